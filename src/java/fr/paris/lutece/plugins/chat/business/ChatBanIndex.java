@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Index of the addresses banned from a room : single addresses and ranges of addresses in the CIDR notation, such as
+ * 192.168.1.0/24 or 2001:db8::/32. The bans are stored in a binary trie of the bits of the addresses, so that an
+ * address is checked in as many steps as it has bits, whatever the number of bans. A ban may expire : an expired ban
+ * is ignored at once, and removed later.
+ * The bans are changed under a lock, the checks never wait.
+ */
+public class ChatBanIndex
+{
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+    private static final char PREFIX_SEPARATOR = '/';
+    private static final char IPV6_SEPARATOR = ':';
+    private static final String IPV4_SEPARATOR = "\\.";
+    private static final int IPV4_BYTES = 4;
+    private static final int MAX_BYTE = 255;
+    private Node _root4 = new Node(  );
+    private Node _root6 = new Node(  );
+
+    /**
+     * Returns the canonical form of an address or a range of addresses. The host names are never resolved.
+     *
+     * @param strAddress The address, or the range in the CIDR notation
+     * @return The canonical form, or null if the address is invalid
+     */
+    public static String normalize( String strAddress )
+    {
+        Prefix prefix = Prefix.parse( strAddress );
+
+        return ( prefix != null ) ? prefix.toString(  ) : null;
+    }
+
+    /**
+     * Bans an address or a range of addresses. A ban of the same range is replaced.
+     *
+     * @param strAddress The address, or the range in the CIDR notation
+     * @param lExpiry The time at which the ban expires, or NO_EXPIRY
+     * @return false if the address is invalid
+     */
+    public synchronized boolean add( String strAddress, long lExpiry )
+    {
+        Prefix prefix = Prefix.parse( strAddress );
+
+        if ( prefix == null )
+        {
+            return false;
+        }
+
+        Node node = getRoot( prefix );
+
+        for ( int i = 0; i < prefix._nBits; i++ )
+        {
+            Node child = node.getChild( prefix.getBit( i ) );
+
+            if ( child == null )
+            {
+                child = new Node(  );
+                node.setChild( prefix.getBit( i ), child );
+            }
+
+            node = child;
+        }
+
+        node._lExpiry = lExpiry;
+
+        return true;
+    }
+
+    /**
+     * Removes the ban of an address or a range of addresses. The addresses of the range banned by a wider range stay
+     * banned.
+     *
+     * @param strAddress The address, or the range in the CIDR notation
+     * @return true if the address was banned
+     */
+    public synchronized boolean remove( String strAddress )
+    {
+        Prefix prefix = Prefix.parse( strAddress );
+
+        if ( prefix == null )
+        {
+            return false;
+        }
+
+        Node[] path = new Node[prefix._nBits + 1];
+        path[0] = getRoot( prefix );
+
+        for ( int i = 0; i < prefix._nBits; i++ )
+        {
+            path[i + 1] = path[i].getChild( prefix.getBit( i ) );
+
+            if ( path[i + 1] == null )
+            {
+                return false;
+            }
+        }
+
+        boolean bBanned = path[prefix._nBits]._lExpiry != 0;
+        path[prefix._nBits]._lExpiry = 0;
+
+        // Unlink the nodes left without ban and without child
+        for ( int i = prefix._nBits; ( i > 0 ) && path[i].isEmpty(  ); i-- )
+        {
+            path[i - 1].setChild( prefix.getBit( i - 1 ), null );
+        }
+
+        return bBanned;
+    }
+
+    /**
+     * Returns the time at which the ban of an address or a range of addresses expires
+     *
+     * @param strAddress The address, or the range in the CIDR notation, as banned
+     * @return The time, NO_EXPIRY, or 0 if the address is not banned as such
+     */
+    public long getExpiry( String strAddress )
+    {
+        Prefix prefix = Prefix.parse( strAddress );
+        Node node = ( prefix != null ) ? getRoot( prefix ) : null;
+
+        for ( int i = 0; ( node != null ) && ( i < prefix._nBits ); i++ )
+        {
+            node = node.getChild( prefix.getBit( i ) );
+        }
+
+        return ( node != null ) ? node._lExpiry : 0;
+    }
+
+    /**
+     * Checks if an address is banned, as such or by a range which contains it
+     *
+     * @param strIpAddress The address
+     * @return true if a ban of the address has not expired
+     */
+    public boolean isBanned( String strIpAddress )
+    {
+        Prefix prefix = Prefix.parse( strIpAddress );
+
+        if ( prefix == null )
+        {
+            return false;
+        }
+
+        long lNow = System.currentTimeMillis(  );
+        Node node = getRoot( prefix );
+
+        for ( int i = 0; node != null; i++ )
+        {
+            if ( node._lExpiry > lNow )
+            {
+                return true;
+            }
+
+            node = ( i < prefix._nBits ) ? node.getChild( prefix.getBit( i ) ) : null;
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes the bans expired
+     *
+     * @param lNow The current time
+     * @return The canonical forms of the addresses and ranges whose ban has been removed
+     */
+    public synchronized List<String> removeExpired( long lNow )
+    {
+        List<String> listRemoved = new ArrayList<String>(  );
+        removeExpired( _root4, new byte[IPV4_BYTES], 0, lNow, listRemoved );
+        removeExpired( _root6, new byte[2 * Long.SIZE / Byte.SIZE], 0, lNow, listRemoved );
+
+        return listRemoved;
+    }
+
+    /**
+     * Removes the bans expired below a node, and the nodes left empty
+     *
+     * @param node The node
+     * @param address The bits of the path to the node
+     * @param nBits The depth of the node
+     * @param lNow The current time
+     * @param listRemoved The canonical forms of the addresses and ranges whose ban has been removed
+     */
+    private static void removeExpired( Node node, byte[] address, int nBits, long lNow, List<String> listRemoved )
+    {
+        if ( ( node._lExpiry != 0 ) && ( node._lExpiry <= lNow ) )
+        {
+            node._lExpiry = 0;
+            listRemoved.add( new Prefix( address.clone(  ), nBits ).toString(  ) );
+        }
+
+        for ( int nBit = 0; nBit <= 1; nBit++ )
+        {
+            Node child = node.getChild( nBit == 1 );
+
+            if ( child != null )
+            {
+                Prefix.setBit( address, nBits, nBit == 1 );
+                removeExpired( child, address, nBits + 1, lNow, listRemoved );
+                Prefix.setBit( address, nBits, false );
+
+                if ( child.isEmpty(  ) )
+                {
+                    node.setChild( nBit == 1, null );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the root of the trie of the family of an address
+     *
+     * @param prefix The address
+     * @return The root
+     */
+    private Node getRoot( Prefix prefix )
+    {
+        return ( prefix._address.length == IPV4_BYTES ) ? _root4 : _root6;
+    }
+
+    /**
+     * A node of the trie
+     */
+    private static final class Node
+    {
+        private volatile Node _zero;
+        private volatile Node _one;
+        private volatile long _lExpiry;
+
+        /**
+         * Returns a child of this node
+         *
+         * @param bOne true for the child of the bit 1
+         * @return The child, or null
+         */
+        Node getChild( boolean bOne )
+        {
+            return bOne ? _one : _zero;
+        }
+
+        /**
+         * Sets a child of this node
+         *
+         * @param bOne true for the child of the bit 1
+         * @param child The child, or null
+         */
+        void setChild( boolean bOne, Node child )
+        {
+            if ( bOne )
+            {
+                _one = child;
+            }
+            else
+            {
+                _zero = child;
+            }
+        }
+
+        /**
+         * Checks if this node holds neither a ban nor a child
+         *
+         * @return true if the node is empty
+         */
+        boolean isEmpty(  )
+        {
+            return ( _lExpiry == 0 ) && ( _zero == null ) && ( _one == null );
+        }
+    }
+
+    /**
+     * An address and the number of its leading bits which define a range
+     */
+    private static final class Prefix
+    {
+        private byte[] _address;
+        private int _nBits;
+
+        /**
+         * Creates a new Prefix object. The bits after the prefix are cleared.
+         *
+         * @param address The bytes of the address
+         * @param nBits The number of bits of the prefix
+         */
+        Prefix( byte[] address, int nBits )
+        {
+            _address = address;
+            _nBits = nBits;
+
+            for ( int i = nBits; i < ( address.length * Byte.SIZE ); i++ )
+            {
+                setBit( address, i, false );
+            }
+        }
+
+        /**
+         * Parses an address, or a range in the CIDR notation
+         *
+         * @param strAddress The address
+         * @return The prefix, or null if the address is invalid
+         */
+        static Prefix parse( String strAddress )
+        {
+            if ( strAddress == null )
+            {
+                return null;
+            }
+
+            String strHost = strAddress.trim(  );
+            int nBits = -1;
+            int nSeparator = strHost.indexOf( PREFIX_SEPARATOR );
+
+            if ( nSeparator >= 0 )
+            {
+                String strBits = strHost.substring( nSeparator + 1 );
+
+                // Only digits : a sign would turn "/-1" into a full address
+                if ( ( strBits.length(  ) == 0 ) || ( strBits.length(  ) > 3 ) || !isDigits( strBits ) )
+                {
+                    return null;
+                }
+
+                nBits = Integer.parseInt( strBits );
+
+                strHost = strHost.substring( 0, nSeparator );
+            }
+
+            byte[] address = parseAddress( strHost );
+
+            if ( ( address == null ) || ( nBits > ( address.length * Byte.SIZE ) ) )
+            {
+                return null;
+            }
+
+            return new Prefix( address, ( nBits < 0 ) ? ( address.length * Byte.SIZE ) : nBits );
+        }
+
+        /**
+         * Parses an IPv4 or IPv6 address
+         *
+         * @param strHost The address
+         * @return The bytes of the address, or null if the address is invalid
+         */
+        private static byte[] parseAddress( String strHost )
+        {
+            if ( strHost.indexOf( IPV6_SEPARATOR ) >= 0 )
+            {
+                // Anything but hex digits, ':' and '.' would be looked up as a host name
+                for ( int i = 0; i < strHost.length(  ); i++ )
+                {
+                    char c = strHost.charAt( i );
+
+                    if ( !isDigit( c ) && ( ( c < 'a' ) || ( c > 'f' ) ) && ( ( c < 'A' ) || ( c > 'F' ) ) &&
+                            ( c != IPV6_SEPARATOR ) && ( c != '.' ) )
+                    {
+                        return null;
+                    }
+                }
+
+                try
+                {
+                    // A literal IPv6 address is parsed, never resolved
+                    return InetAddress.getByName( strHost ).getAddress(  );
+                }
+                catch ( UnknownHostException e )
+                {
+                    return null;
+                }
+            }
+
+            String[] parts = strHost.split( IPV4_SEPARATOR, -1 );
+
+            if ( parts.length != IPV4_BYTES )
+            {
+                return null;
+            }
+
+            byte[] address = new byte[IPV4_BYTES];
+
+            for ( int i = 0; i < IPV4_BYTES; i++ )
+            {
+                if ( ( parts[i].length(  ) == 0 ) || ( parts[i].length(  ) > 3 ) )
+                {
+                    return null;
+                }
+
+                if ( !isDigits( parts[i] ) )
+                {
+                    return null;
+                }
+
+                int nByte = Integer.parseInt( parts[i] );
+
+                if ( nByte > MAX_BYTE )
+                {
+                    return null;
+                }
+
+                address[i] = (byte) nByte;
+            }
+
+            return address;
+        }
+
+        /**
+         * Checks that a string only holds ASCII digits
+         *
+         * @param str The string
+         * @return true if every character is a digit from 0 to 9
+         */
+        private static boolean isDigits( String str )
+        {
+            for ( int i = 0; i < str.length(  ); i++ )
+            {
+                if ( !isDigit( str.charAt( i ) ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Checks that a character is an ASCII digit
+         *
+         * @param c The character
+         * @return true if the character is a digit from 0 to 9
+         */
+        private static boolean isDigit( char c )
+        {
+            return ( c >= '0' ) && ( c <= '9' );
+        }
+
+        /**
+         * Returns a bit of the address
+         *
+         * @param nIndex The index of the bit, from the most significant
+         * @return true for the bit 1
+         */
+        boolean getBit( int nIndex )
+        {
+            return ( _address[nIndex / Byte.SIZE] & ( 0x80 >>> ( nIndex % Byte.SIZE ) ) ) != 0;
+        }
+
+        /**
+         * Sets a bit of an address
+         *
+         * @param address The bytes of the address
+         * @param nIndex The index of the bit, from the most significant
+         * @param bOne true for the bit 1
+         */
+        static void setBit( byte[] address, int nIndex, boolean bOne )
+        {
+            int nMask = 0x80 >>> ( nIndex % Byte.SIZE );
+
+            if ( bOne )
+            {
+                address[nIndex / Byte.SIZE] |= nMask;
+            }
+            else
+            {
+                address[nIndex / Byte.SIZE] &= ~nMask;
+            }
+        }
+
+        /**
+         * Returns the canonical form of this prefix : the address, followed by the number of bits of the prefix for a
+         * range
+         *
+         * @return The canonical form
+         */
+        @Override
+        public String toString(  )
+        {
+            String strHost;
+
+            try
+            {
+                strHost = InetAddress.getByAddress( _address ).getHostAddress(  );
+            }
+            catch ( UnknownHostException e )
+            {
+                // The length of the address is always valid
+                throw new IllegalStateException( e );
+            }
+
+            return ( _nBits < ( _address.length * Byte.SIZE ) ) ? ( strHost + PREFIX_SEPARATOR + _nBits ) : strHost;
+        }
+    }
+}
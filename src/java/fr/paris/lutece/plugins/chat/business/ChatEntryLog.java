@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Bounded, append-only log of the entries of a room or of the private entries of a user. The log keeps the most
+ * recent entries in a ring buffer. Entries must be appended in the increasing order of their ids. Reading never
+ * blocks appending.
+ */
+public class ChatEntryLog
+{
+    private AtomicReferenceArray<Slot> _slots;
+    private int _nCapacity;
+    private volatile long _lNextPosition;
+
+    /**
+     * Creates a new ChatEntryLog object
+     *
+     * @param nCapacity The number of entries kept by the log
+     */
+    public ChatEntryLog( int nCapacity )
+    {
+        _nCapacity = nCapacity;
+        _slots = new AtomicReferenceArray<Slot>( nCapacity );
+    }
+
+    /**
+     * Appends an entry to the log. The oldest entry is dropped when the log is full.
+     *
+     * @param entry The entry
+     */
+    public synchronized void append( ChatEntry entry )
+    {
+        long lPosition = _lNextPosition;
+        _slots.set( (int) ( lPosition % _nCapacity ), new Slot( lPosition, entry ) );
+        _lNextPosition = lPosition + 1;
+    }
+
+    /**
+     * Returns the entries of the log whose id is greater than a given id
+     *
+     * @param lId The id of the last entry already read
+     * @return The entries, in the increasing order of their ids
+     */
+    public List<ChatEntry> getEntriesAfter( long lId )
+    {
+        return getEntriesAfter( lId, Long.MAX_VALUE );
+    }
+
+    /**
+     * Returns the entries of the log whose id is greater than a given id and not greater than a maximum id
+     *
+     * @param lId The id of the last entry already read
+     * @param lMaxId The greatest id returned
+     * @return The entries, in the increasing order of their ids
+     */
+    public List<ChatEntry> getEntriesAfter( long lId, long lMaxId )
+    {
+        long lLast = _lNextPosition - 1;
+        long lPosition = findFirstPositionAfter( lId, lLast );
+
+        if ( lPosition > lLast )
+        {
+            return new ArrayList<ChatEntry>( 0 );
+        }
+
+        List<ChatEntry> listEntries = new ArrayList<ChatEntry>( (int) ( lLast - lPosition + 1 ) );
+
+        for ( ; lPosition <= lLast; lPosition++ )
+        {
+            ChatEntry entry = getEntry( lPosition );
+
+            if ( ( entry != null ) && ( entry.getId(  ) > lMaxId ) )
+            {
+                break;
+            }
+
+            // Entries overwritten by a concurrent append are lost for this reader
+            if ( ( entry != null ) && ( entry.getId(  ) > lId ) )
+            {
+                listEntries.add( entry );
+            }
+        }
+
+        return listEntries;
+    }
+
+    /**
+     * Checks if the log holds an entry whose id is greater than a given id
+     *
+     * @param lId The id of the last entry already read
+     * @return true if there is at least one entry after the id
+     */
+    public boolean hasEntriesAfter( long lId )
+    {
+        ChatEntry entry = getEntry( _lNextPosition - 1 );
+
+        return ( entry != null ) && ( entry.getId(  ) > lId );
+    }
+
+    /**
+     * Finds the position of the first entry whose id is greater than a given id
+     *
+     * @param lId The id
+     * @param lLast The last position
+     * @return The position, greater than lLast if there is no such entry
+     */
+    private long findFirstPositionAfter( long lId, long lLast )
+    {
+        long lLow = Math.max( 0, ( lLast - _nCapacity ) + 1 );
+        long lHigh = lLast + 1;
+
+        while ( lLow < lHigh )
+        {
+            long lMiddle = ( lLow + lHigh ) >>> 1;
+            ChatEntry entry = getEntry( lMiddle );
+
+            // A missing entry has been overwritten : it is older than every entry still in the log
+            if ( ( entry == null ) || ( entry.getId(  ) <= lId ) )
+            {
+                lLow = lMiddle + 1;
+            }
+            else
+            {
+                lHigh = lMiddle;
+            }
+        }
+
+        return lLow;
+    }
+
+    /**
+     * Returns the entry stored at a position
+     *
+     * @param lPosition The position
+     * @return The entry, or null if the position is empty or has been overwritten
+     */
+    private ChatEntry getEntry( long lPosition )
+    {
+        if ( lPosition < 0 )
+        {
+            return null;
+        }
+
+        Slot slot = _slots.get( (int) ( lPosition % _nCapacity ) );
+
+        return ( ( slot != null ) && ( slot._lPosition == lPosition ) ) ? slot._entry : null;
+    }
+
+    /**
+     * An entry and its position in the log
+     */
+    private static final class Slot
+    {
+        private final long _lPosition;
+        private final ChatEntry _entry;
+
+        /**
+         * Creates a new Slot object
+         *
+         * @param lPosition The position
+         * @param entry The entry
+         */
+        Slot( long lPosition, ChatEntry entry )
+        {
+            _lPosition = lPosition;
+            _entry = entry;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+
+/**
+ * Fingerprints of the most recent messages, used to detect repeated messages. A fingerprint is a 64 bits hash of
+ * the letters and digits of a message, ignoring the case, so that messages differing only by spaces, punctuation or
+ * case have the same fingerprint.
+ */
+public class ChatFingerprints
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private long[] _fingerprints;
+    private int _nCount;
+    private int _nNext;
+
+    /**
+     * Creates a new ChatFingerprints object
+     *
+     * @param nCapacity The number of fingerprints kept
+     */
+    public ChatFingerprints( int nCapacity )
+    {
+        _fingerprints = new long[nCapacity];
+    }
+
+    /**
+     * Adds the fingerprint of a message. The oldest fingerprint is dropped when the capacity is reached.
+     *
+     * @param lFingerprint The fingerprint
+     * @return The number of times the fingerprint was already among the kept fingerprints
+     */
+    public synchronized int add( long lFingerprint )
+    {
+        int nRepeats = 0;
+
+        for ( int i = 0; i < _nCount; i++ )
+        {
+            if ( _fingerprints[i] == lFingerprint )
+            {
+                nRepeats++;
+            }
+        }
+
+        _fingerprints[_nNext] = lFingerprint;
+        _nNext = ( _nNext + 1 ) % _fingerprints.length;
+        _nCount = Math.min( _nCount + 1, _fingerprints.length );
+
+        return nRepeats;
+    }
+
+    /**
+     * Returns the number of letters and digits of a message, which are the characters used by its fingerprint
+     *
+     * @param strMessage The message
+     * @return The number of characters
+     */
+    public static int getSignificantLength( String strMessage )
+    {
+        int nLength = 0;
+
+        for ( int i = 0; i < strMessage.length(  ); i++ )
+        {
+            if ( Character.isLetterOrDigit( strMessage.charAt( i ) ) )
+            {
+                nLength++;
+            }
+        }
+
+        return nLength;
+    }
+
+    /**
+     * Computes the fingerprint of a message : a FNV-1a hash of its letters and digits in lower case
+     *
+     * @param strMessage The message
+     * @return The fingerprint
+     */
+    public static long getFingerprint( String strMessage )
+    {
+        long lHash = FNV_OFFSET_BASIS;
+
+        for ( int i = 0; i < strMessage.length(  ); i++ )
+        {
+            char c = strMessage.charAt( i );
+
+            if ( Character.isLetterOrDigit( c ) )
+            {
+                c = Character.toLowerCase( c );
+                lHash = ( lHash ^ ( c & 0xff ) ) * FNV_PRIME;
+                lHash = ( lHash ^ ( c >>> 8 ) ) * FNV_PRIME;
+            }
+        }
+
+        return lHash;
+    }
+}
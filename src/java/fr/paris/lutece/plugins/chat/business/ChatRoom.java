@@ -1,400 +1,886 @@
-/*
- * Copyright (c) 2002-2014, Mairie de Paris
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- *
- *  1. Redistributions of source code must retain the above copyright notice
- *     and the following disclaimer.
- *
- *  2. Redistributions in binary form must reproduce the above copyright notice
- *     and the following disclaimer in the documentation and/or other materials
- *     provided with the distribution.
- *
- *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
- *     contributors may be used to endorse or promote products derived from
- *     this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- *
- * License 1.0
- */
-package fr.paris.lutece.plugins.chat.business;
-
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
-
-
-/**
- * This class provides methods for the ChatRoom objects
- */
-public class ChatRoom
-{
-    public static final int INVALID_ROOM = -1;
-    public static final int USER_ADDED = 0;
-    public static final int USER_ALREADY_EXISTS = 1;
-    public static final int USER_IS_BANNED = 2;
-    private String _strName;
-    private String _strDescription;
-    private String _strAdminPassword;
-    private String _strBgColor;
-    private String _strButtonBgColor;
-    private String _strButtonFgColor;
-    private String _strFieldBgColor;
-    private Hashtable _htUsers = new Hashtable(  );
-    private Hashtable _htBannedUsers = new Hashtable(  );
-    private Vector _vRoomEntries = new Vector(  );
-
-    /**
-     * Creates a new ChatRoom object.
-     *
-     * @param strName The name of the room
-     * @param strDescription The description of the room
-     */
-    public ChatRoom( String strName, String strDescription )
-    {
-        _strName = strName;
-        _strDescription = strDescription;
-    }
-
-    /**
-     * Adds an entry to this chat room
-     *
-     * @param entry The chat entry to add to the room
-     * @param userRecipient The user which receives the message
-     */
-    public synchronized void addChatEntry( ChatEntry entry, ChatUser userRecipient )
-    {
-        addChatEntry( null, entry, userRecipient );
-    }
-
-    /**
-     * Adds an entry to this chat room
-     *
-     * @param userSender The user which sends the message
-     * @param entry The chat entry to add to the room
-     * @param userRecipient The user which receives the message
-     */
-    public synchronized void addChatEntry( ChatUser userSender, ChatEntry entry, ChatUser userRecipient )
-    {
-        if ( userRecipient != null )
-        {
-            userRecipient.addChatEntry( entry );
-        }
-        else
-        {
-            // Send to all
-            Enumeration e = getUsers(  );
-
-            while ( e.hasMoreElements(  ) )
-            {
-                ChatUser u = (ChatUser) e.nextElement(  );
-                u.addChatEntry( entry );
-            }
-        }
-
-        if ( userSender != null )
-        {
-            userSender.addSentData( entry.getChatMessage(  ) );
-        }
-    }
-
-    /**
-     * Checks if the user specified in parameter is not already existent in the room and if it is not banned. If not,
-     * it is added to the room. It returns an int code which describes the status of the user.
-     *
-     * @param user The user to add to the room
-     * @return an int code which describes the result of the process
-     */
-    public synchronized int addUser( ChatUser user )
-    {
-        if ( _htUsers.containsKey( user.getNickname(  ) ) )
-        {
-            return USER_ALREADY_EXISTS;
-        }
-
-        if ( _htBannedUsers.containsKey( user.getIpAddress(  ) ) )
-        {
-            return USER_IS_BANNED;
-        }
-
-        _htUsers.put( user.getNickname(  ), user );
-
-        return USER_ADDED;
-    }
-
-    /**
-     * Modifies the nick name of the user
-     *
-     * @param strPseudo The old pseudo
-     * @param strNewNickname The new pseudo
-     * @return The result of the process
-     */
-    public int changePseudo( String strPseudo, String strNewNickname )
-    {
-        ChatUser user = getUser( strPseudo );
-        user.setNickname( strNewNickname );
-
-        int nError = addUser( user );
-
-        if ( nError != USER_ADDED )
-        {
-            return nError;
-        }
-
-        user.setNewPseudo( true );
-
-        return USER_ADDED;
-    }
-
-    /**
-     * Removes the user which has this pseudo in the room.
-     *
-     * @param strPseudo The pseudo of the user to delete from the room
-     */
-    public void removeOldPseudo( String strPseudo )
-    {
-        ChatUser user = getUser( strPseudo );
-        user.setNewPseudo( false );
-        removeUser( strPseudo );
-    }
-
-    /**
-     * Returns the numbers of users in the room
-     *
-     * @return The number of users as an int
-     */
-    public int getUserCount(  )
-    {
-        return _htUsers.size(  );
-    }
-
-    /**
-     * Removes the user which has this pseudo in the room.
-     *
-     * @param strPseudo The pseudo of the user to delete from the room
-     */
-    public void removeUser( String strPseudo )
-    {
-        _htUsers.remove( strPseudo );
-    }
-
-    /**
-     * Bannes a user from the room and comments it.
-     *
-     * @param strPseudo The pseudo to ban
-     * @param strComment The comment to add to this ban
-     */
-    public void banUser( String strPseudo, String strComment )
-    {
-        ChatUser user = (ChatUser) _htUsers.get( strPseudo );
-        _htBannedUsers.put( user.getIpAddress(  ), user );
-        user.kick( strComment );
-    }
-
-    /**
-     * Removes an ip address from the list of those which are banned from the room
-     *
-     * @param strIpAddress The ip address to authorize again
-     */
-    public void debanUser( String strIpAddress )
-    {
-        _htBannedUsers.remove( strIpAddress );
-    }
-
-    /**
-     * Returns the list of the users of this room
-     *
-     * @return The enumeration which contains the users of the room
-     */
-    public Enumeration getUsers(  )
-    {
-        return _htUsers.elements(  );
-    }
-
-    /**
-     * The list of the entries of the room
-     *
-     * @return A vector which contains the list of the entries
-     */
-    public Vector getRoomEntries(  )
-    {
-        return _vRoomEntries;
-    }
-
-    /**
-     * Returns the list of the users banned from this room
-     *
-     * @return An enumeration of the banned users
-     */
-    public Enumeration getBannedUsers(  )
-    {
-        return _htBannedUsers.elements(  );
-    }
-
-    /**
-     * Retruns the description of this room
-     *
-     * @return The string description of this room
-     */
-    public String getDescription(  )
-    {
-        return _strDescription;
-    }
-
-    /**
-     * The name of this room
-     *
-     * @return The string name of this room
-     */
-    public String getName(  )
-    {
-        return _strName;
-    }
-
-    /**
-     * Sets the last access to the room of the user which corresponds to the pseudo specified in parameter
-     *
-     * @param strPseudo The user's pseudo
-     */
-    public void setLastAccessTime( String strPseudo )
-    {
-        ChatUser user = (ChatUser) _htUsers.get( strPseudo );
-        user.setLastAccessTime( new Date(  ) );
-    }
-
-    /**
-     * Returns the ChatUser object whose pseudo is specified in parameter
-     *
-     * @param strPseudo The pseudo of the user to get
-     * @return The ChatUser object
-     */
-    public ChatUser getUser( String strPseudo )
-    {
-        return (ChatUser) _htUsers.get( strPseudo );
-    }
-
-    /**
-     * Sets the password of the room
-     *
-     * @param strAdminPassword The new password of the admin
-     */
-    public void setAdminPassword( String strAdminPassword )
-    {
-        _strAdminPassword = strAdminPassword;
-    }
-
-    /**
-     * The password of the admin
-     *
-     * @return The admin password
-     */
-    public String getAdminPassword(  )
-    {
-        return _strAdminPassword;
-    }
-
-    /**
-     * Sets the description of this room whith the specified string
-     *
-     * @param strDescription The description of the room
-     */
-    public void setDescription( String strDescription )
-    {
-        _strDescription = strDescription;
-    }
-
-    /**
-     * Sets the background color of the room
-     *
-     * @param strBgColor The background color
-     */
-    public void setBgColor( String strBgColor )
-    {
-        _strBgColor = strBgColor;
-    }
-
-    /**
-     * Returns the background color of the room
-     *
-     * @return The background color of the room as a String
-     */
-    public String getBgColor(  )
-    {
-        return _strBgColor;
-    }
-
-    /**
-     * Sets the button background color
-     *
-     * @param strButtonBgColor The button's background color
-     */
-    public void setButtonBgColor( String strButtonBgColor )
-    {
-        _strButtonBgColor = strButtonBgColor;
-    }
-
-    /**
-     * Returns the background color of the button
-     *
-     * @return The background color of the button as a String
-     */
-    public String getButtonBgColor(  )
-    {
-        return _strButtonBgColor;
-    }
-
-    /**
-     * Sets the foreground color of the button
-     *
-     * @param strButtonFgColor The button's foreground color
-     */
-    public void setButtonFgColor( String strButtonFgColor )
-    {
-        _strButtonFgColor = strButtonFgColor;
-    }
-
-    /**
-     * Returns the foreground color of the button
-     *
-     * @return The foreground color of the button as a String
-     */
-    public String getButtonFgColor(  )
-    {
-        return _strButtonFgColor;
-    }
-
-    /**
-     * Sets the background color of the text field
-     *
-     * @param strFieldBgColor The text field's background color
-     */
-    public void setFieldBgColor( String strFieldBgColor )
-    {
-        _strFieldBgColor = strFieldBgColor;
-    }
-
-    /**
-     * Returns the background color of the text field
-     *
-     * @return The background color of the text field as a String
-     */
-    public String getFieldBgColor(  )
-    {
-        return _strFieldBgColor;
-    }
-}
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class provides methods for the ChatRoom objects
+ */
+public class ChatRoom
+{
+    public static final int INVALID_ROOM = -1;
+    public static final int USER_ADDED = 0;
+    public static final int USER_ALREADY_EXISTS = 1;
+    public static final int USER_IS_BANNED = 2;
+    private static final int DEFAULT_MAX_ENTRIES = 20;
+    private static final int MAX_ROSTER_CHANGES = 100;
+    private static final int MAX_FINGERPRINTS = 64;
+    private String _strName;
+    private volatile String _strDescription;
+    private String _strAdminPassword;
+    private String _strBgColor;
+    private String _strButtonBgColor;
+    private String _strButtonFgColor;
+    private String _strFieldBgColor;
+    private ConcurrentMap<String, ChatUser> _mapUsers = new ConcurrentHashMap<String, ChatUser>(  );
+    private ConcurrentMap<String, ChatUser> _mapBannedUsers = new ConcurrentHashMap<String, ChatUser>(  );
+    private volatile ChatBanIndex _banIndex = new ChatBanIndex(  );
+    private ConcurrentMap<String, AtomicInteger> _mapSuffixes = new ConcurrentHashMap<String, AtomicInteger>(  );
+    private int _nMaxEntries;
+    private volatile ChatEntryLog _log;
+    private volatile long _lLastEntryId;
+    private ChatRoster _roster = new ChatRoster( MAX_ROSTER_CHANGES );
+    private AtomicLong _lStateVersion = new AtomicLong(  );
+    private ChatFingerprints _fingerprints = new ChatFingerprints( MAX_FINGERPRINTS );
+    private Set<ChatRoomListener> _setListeners = Collections.newSetFromMap(
+            new ConcurrentHashMap<ChatRoomListener, Boolean>(  ) );
+    private Set<ChatRosterListener> _setRosterListeners = Collections.newSetFromMap(
+            new ConcurrentHashMap<ChatRosterListener, Boolean>(  ) );
+
+    /**
+     * Creates a new ChatRoom object.
+     *
+     * @param strName The name of the room
+     * @param strDescription The description of the room
+     */
+    public ChatRoom( String strName, String strDescription )
+    {
+        this( strName, strDescription, DEFAULT_MAX_ENTRIES );
+    }
+
+    /**
+     * Creates a new ChatRoom object.
+     *
+     * @param strName The name of the room
+     * @param strDescription The description of the room
+     * @param nMaxEntries The number of entries kept by the room
+     */
+    public ChatRoom( String strName, String strDescription, int nMaxEntries )
+    {
+        _strName = strName;
+        _strDescription = strDescription;
+        _nMaxEntries = nMaxEntries;
+        _log = new ChatEntryLog( nMaxEntries );
+    }
+
+    /**
+     * Adds an entry to this chat room. Posts are serialized so that the ids of the entries are appended in order;
+     * the readers of the entries and the users joining or leaving the room never wait for them.
+     *
+     * @param entry The chat entry to add to the room
+     * @param userRecipient The user which receives the message
+     */
+    public synchronized void addChatEntry( ChatEntry entry, ChatUser userRecipient )
+    {
+        entry.setId( ++_lLastEntryId );
+
+        if ( userRecipient != null )
+        {
+            userRecipient.addChatEntry( entry );
+        }
+        else
+        {
+            // Send to all : the entry is stored once, each user reads it from the log
+            _log.append( entry );
+            _lStateVersion.incrementAndGet(  );
+        }
+
+        for ( ChatRoomListener listener : _setListeners )
+        {
+            listener.chatEntryAdded( this, entry, userRecipient );
+        }
+    }
+
+    /**
+     * Restores an entry sent to all the users, keeping its id. The listeners are not notified.
+     *
+     * @param entry The chat entry to restore
+     */
+    public synchronized void restoreChatEntry( ChatEntry entry )
+    {
+        restoreLastEntryId( entry.getId(  ) );
+        _log.append( entry );
+        _lStateVersion.incrementAndGet(  );
+    }
+
+    /**
+     * Restores the id of the last entry added to this room, so that the ids of the entries stored on the disk are
+     * never given again
+     *
+     * @param lLastEntryId The id of the last entry stored
+     */
+    public synchronized void restoreLastEntryId( long lLastEntryId )
+    {
+        if ( lLastEntryId > _lLastEntryId )
+        {
+            _lLastEntryId = lLastEntryId;
+        }
+    }
+
+    /**
+     * Returns the id of the last entry added to this room
+     *
+     * @return The id
+     */
+    public long getLastEntryId(  )
+    {
+        return _lLastEntryId;
+    }
+
+    /**
+     * Moves the version of the list of the users past a version given by another node, so that the clients knowing
+     * the list of the other node receive the whole list
+     *
+     * @param lRosterVersion The version of the list of the other node
+     */
+    public void restoreRosterVersion( long lRosterVersion )
+    {
+        _roster.restoreVersion( lRosterVersion );
+        _lStateVersion.incrementAndGet(  );
+    }
+
+    /**
+     * Drops the users, the banned users and the entries of this room, when the room is moved to another node. The
+     * id of the last entry is kept. The roster listeners are not notified, the users removed are notified so that
+     * their connections waiting for data are released.
+     */
+    public synchronized void clear(  )
+    {
+        List<ChatUser> listUsers = new ArrayList<ChatUser>( _mapUsers.values(  ) );
+        _mapUsers.clear(  );
+        _mapSuffixes.clear(  );
+
+        synchronized ( _mapBannedUsers )
+        {
+            _mapBannedUsers.clear(  );
+            _banIndex = new ChatBanIndex(  );
+        }
+
+        _log = new ChatEntryLog( _nMaxEntries );
+
+        for ( ChatUser user : listUsers )
+        {
+            _roster.userChanged( user.getNickname(  ) );
+        }
+
+        _lStateVersion.incrementAndGet(  );
+
+        for ( ChatUser user : listUsers )
+        {
+            user.notifyListeners(  );
+        }
+    }
+
+    /**
+     * Registers a listener notified when an entry is added to this room
+     *
+     * @param listener The listener
+     */
+    public void addListener( ChatRoomListener listener )
+    {
+        _setListeners.add( listener );
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param listener The listener
+     */
+    public void removeListener( ChatRoomListener listener )
+    {
+        _setListeners.remove( listener );
+    }
+
+    /**
+     * Registers a listener notified when a user joins or leaves this room
+     *
+     * @param listener The listener
+     */
+    public void addRosterListener( ChatRosterListener listener )
+    {
+        _setRosterListeners.add( listener );
+    }
+
+    /**
+     * Unregisters a listener notified when a user joins or leaves this room
+     *
+     * @param listener The listener
+     */
+    public void removeRosterListener( ChatRosterListener listener )
+    {
+        _setRosterListeners.remove( listener );
+    }
+
+    /**
+     * Checks if the user specified in parameter is not already existent in the room and if it is not banned. If not,
+     * it is added to the room. It returns an int code which describes the status of the user.
+     *
+     * @param user The user to add to the room
+     * @return an int code which describes the result of the process
+     */
+    public int addUser( ChatUser user )
+    {
+        if ( _mapUsers.containsKey( user.getNickname(  ) ) )
+        {
+            return USER_ALREADY_EXISTS;
+        }
+
+        if ( isBanned( user.getIpAddress(  ) ) )
+        {
+            return USER_IS_BANNED;
+        }
+
+        if ( user.getJoinEntryId(  ) < 0 )
+        {
+            // A new user only reads the entries added after his arrival
+            long lLastEntryId = _lLastEntryId;
+            user.setJoinEntryId( lLastEntryId );
+            user.setReadEntryId( lLastEntryId );
+        }
+
+        if ( _mapUsers.putIfAbsent( user.getNickname(  ), user ) != null )
+        {
+            return USER_ALREADY_EXISTS;
+        }
+
+        _roster.userChanged( user.getNickname(  ) );
+        _lStateVersion.incrementAndGet(  );
+
+        for ( ChatRosterListener listener : _setRosterListeners )
+        {
+            listener.userAdded( this, user );
+        }
+
+        return USER_ADDED;
+    }
+
+    /**
+     * Adds a user to the room. If his nickname is already used, a number is appended to it : the numbers are given in
+     * sequence for each nickname, so that a free nickname is found at once even when many users join with the same
+     * nickname.
+     *
+     * @param user The user to add to the room
+     * @return USER_ADDED or USER_IS_BANNED
+     */
+    public int addUserWithFreeNickname( ChatUser user )
+    {
+        String strNickname = user.getNickname(  );
+        int nError = addUser( user );
+
+        if ( nError == USER_ALREADY_EXISTS )
+        {
+            AtomicInteger suffix = _mapSuffixes.get( strNickname );
+
+            if ( suffix == null )
+            {
+                AtomicInteger suffixNew = new AtomicInteger(  );
+                suffix = _mapSuffixes.putIfAbsent( strNickname, suffixNew );
+
+                if ( suffix == null )
+                {
+                    suffix = suffixNew;
+                }
+            }
+
+            // A nickname chosen by another user may still be taken
+            while ( nError == USER_ALREADY_EXISTS )
+            {
+                user.setNickname( strNickname + "_" + suffix.incrementAndGet(  ) );
+                nError = addUser( user );
+            }
+        }
+
+        return nError;
+    }
+
+    /**
+     * Modifies the nick name of the user
+     *
+     * @param strPseudo The old pseudo
+     * @param strNewNickname The new pseudo
+     * @return The result of the process
+     */
+    public int changePseudo( String strPseudo, String strNewNickname )
+    {
+        ChatUser user = getUser( strPseudo );
+        user.setNickname( strNewNickname );
+
+        int nError = addUser( user );
+
+        if ( nError != USER_ADDED )
+        {
+            return nError;
+        }
+
+        user.setNewPseudo( true );
+
+        return USER_ADDED;
+    }
+
+    /**
+     * Removes the user which has this pseudo in the room.
+     *
+     * @param strPseudo The pseudo of the user to delete from the room
+     */
+    public void removeOldPseudo( String strPseudo )
+    {
+        ChatUser user = getUser( strPseudo );
+        user.setNewPseudo( false );
+        removeUser( strPseudo );
+    }
+
+    /**
+     * Returns the numbers of users in the room
+     *
+     * @return The number of users as an int
+     */
+    public int getUserCount(  )
+    {
+        return _mapUsers.size(  );
+    }
+
+    /**
+     * Removes the user which has this pseudo in the room.
+     *
+     * @param strPseudo The pseudo of the user to delete from the room
+     * @return true if the user was in the room
+     */
+    public boolean removeUser( String strPseudo )
+    {
+        if ( _mapUsers.remove( strPseudo ) == null )
+        {
+            return false;
+        }
+
+        if ( _mapUsers.isEmpty(  ) )
+        {
+            // The suffixes are kept while a user remains : a suffixed user may still hold the numbers already given
+            _mapSuffixes.clear(  );
+        }
+
+        _roster.userChanged( strPseudo );
+        _lStateVersion.incrementAndGet(  );
+
+        for ( ChatRosterListener listener : _setRosterListeners )
+        {
+            listener.userRemoved( this, strPseudo );
+        }
+
+        return true;
+    }
+
+    /**
+     * Records a change of the mode or of the absence of a user, so that it is sent to the other users
+     *
+     * @param user The user
+     */
+    public void userChanged( ChatUser user )
+    {
+        _roster.userChanged( user.getNickname(  ) );
+        _lStateVersion.incrementAndGet(  );
+    }
+
+    /**
+     * Returns the version of the state of this room shared by all its users. It changes when an entry is sent to all
+     * the users, when the list of the users changes and when the description changes.
+     *
+     * @return The version
+     */
+    public long getStateVersion(  )
+    {
+        return _lStateVersion.get(  );
+    }
+
+    /**
+     * Returns the version of the list of the users of this room
+     *
+     * @return The version
+     */
+    public long getRosterVersion(  )
+    {
+        return _roster.getVersion(  );
+    }
+
+    /**
+     * Returns the nicknames of the users arrived, departed or changed since a given version of the list of the users
+     *
+     * @param lVersion The version known by the client
+     * @return The nicknames, or null if the whole list must be sent
+     */
+    public Set<String> getRosterChangesSince( long lVersion )
+    {
+        return _roster.getChangesSince( lVersion );
+    }
+
+    /**
+     * Records the fingerprint of a message sent to all the users of this room
+     *
+     * @param lFingerprint The fingerprint of the message
+     * @return The number of times the message has already been sent among the last messages of the room
+     */
+    public int addFingerprint( long lFingerprint )
+    {
+        return _fingerprints.add( lFingerprint );
+    }
+
+    /**
+     * Bannes a user from the room and comments it.
+     *
+     * @param strPseudo The pseudo to ban
+     * @param strComment The comment to add to this ban
+     */
+    public void banUser( String strPseudo, String strComment )
+    {
+        banUser( strPseudo, strComment, ChatBanIndex.NO_EXPIRY );
+    }
+
+    /**
+     * Bans the ip address of a user from the room until a given time, and kicks the user
+     *
+     * @param strPseudo The pseudo to ban
+     * @param strComment The comment to add to this ban
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    public void banUser( String strPseudo, String strComment, long lExpiry )
+    {
+        ChatUser user = _mapUsers.get( strPseudo );
+
+        if ( user != null )
+        {
+            addBan( user.getIpAddress(  ), user, lExpiry );
+            user.kick( strComment );
+        }
+    }
+
+    /**
+     * Bans an ip address or a range of addresses in the CIDR notation from the room until a given time, and kicks
+     * the users of the room connected from these addresses
+     *
+     * @param strAddress The address or the range
+     * @param strNickname The nickname of the user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     * @param strComment The comment sent to the users kicked
+     * @return false if the address is invalid
+     */
+    public boolean banAddress( String strAddress, String strNickname, long lExpiry, String strComment )
+    {
+        String strKey = ChatBanIndex.normalize( strAddress );
+
+        if ( strKey == null )
+        {
+            return false;
+        }
+
+        ChatUser userBanned = new ChatUser( strNickname );
+        userBanned.setIpAddress( strKey );
+        userBanned.setLastAccessTime( new Date(  ) );
+        addBan( strKey, userBanned, lExpiry );
+
+        for ( ChatUser user : _mapUsers.values(  ) )
+        {
+            if ( isBanned( user.getIpAddress(  ) ) )
+            {
+                user.kick( strComment );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes an ip address, or a range of addresses, from the list of those which are banned from the room
+     *
+     * @param strIpAddress The ip address to authorize again
+     */
+    public void debanUser( String strIpAddress )
+    {
+        String strKey = ChatBanIndex.normalize( strIpAddress );
+
+        synchronized ( _mapBannedUsers )
+        {
+            _banIndex.remove( strIpAddress );
+            _mapBannedUsers.remove( ( strKey != null ) ? strKey : strIpAddress );
+        }
+    }
+
+    /**
+     * Restores a ban : the ip address of the user is banned from the room
+     *
+     * @param user The user banned, who is not in the room
+     */
+    public void addBannedUser( ChatUser user )
+    {
+        addBannedUser( user, ChatBanIndex.NO_EXPIRY );
+    }
+
+    /**
+     * Restores a ban until a given time : the ip address, or the range of addresses, of the user is banned from the
+     * room. A ban already expired is ignored.
+     *
+     * @param user The user banned, who is not in the room
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    public void addBannedUser( ChatUser user, long lExpiry )
+    {
+        if ( lExpiry > System.currentTimeMillis(  ) )
+        {
+            addBan( user.getIpAddress(  ), user, lExpiry );
+        }
+    }
+
+    /**
+     * Checks if an ip address is banned from the room, as such or by a range of addresses
+     *
+     * @param strIpAddress The ip address
+     * @return true if the address is banned
+     */
+    public boolean isBanned( String strIpAddress )
+    {
+        if ( strIpAddress == null )
+        {
+            return false;
+        }
+
+        // The addresses which are not ip addresses, if any, are only banned as such
+        return _banIndex.isBanned( strIpAddress ) ||
+        ( _mapBannedUsers.containsKey( strIpAddress ) && ( ChatBanIndex.normalize( strIpAddress ) == null ) );
+    }
+
+    /**
+     * Returns the time at which the ban of an ip address or a range of addresses expires
+     *
+     * @param strIpAddress The address or the range, as banned
+     * @return The time, or ChatBanIndex.NO_EXPIRY
+     */
+    public long getBanExpiry( String strIpAddress )
+    {
+        long lExpiry = _banIndex.getExpiry( strIpAddress );
+
+        return ( lExpiry != 0 ) ? lExpiry : ChatBanIndex.NO_EXPIRY;
+    }
+
+    /**
+     * Removes the bans expired from the list of the banned users
+     */
+    public void removeExpiredBans(  )
+    {
+        synchronized ( _mapBannedUsers )
+        {
+            for ( String strKey : _banIndex.removeExpired( System.currentTimeMillis(  ) ) )
+            {
+                _mapBannedUsers.remove( strKey );
+            }
+        }
+    }
+
+    /**
+     * Adds a ban to the index and to the list of the banned users
+     *
+     * @param strIpAddress The ip address or the range of addresses
+     * @param user The user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    private void addBan( String strIpAddress, ChatUser user, long lExpiry )
+    {
+        String strKey = ChatBanIndex.normalize( strIpAddress );
+
+        synchronized ( _mapBannedUsers )
+        {
+            if ( strKey != null )
+            {
+                _banIndex.add( strKey, lExpiry );
+                _mapBannedUsers.put( strKey, user );
+            }
+            else if ( strIpAddress != null )
+            {
+                _mapBannedUsers.put( strIpAddress, user );
+            }
+        }
+    }
+
+    /**
+     * Returns the list of the users of this room. The enumeration never fails if users join or leave the room while
+     * it is read.
+     *
+     * @return The enumeration which contains the users of the room
+     */
+    public Enumeration<ChatUser> getUsers(  )
+    {
+        return Collections.enumeration( _mapUsers.values(  ) );
+    }
+
+    /**
+     * Returns the entries readable by a user whose id is greater than a given id : the entries sent to all the users
+     * and the private entries of the user
+     *
+     * @param user The user
+     * @param lId The id of the last entry already read
+     * @return The entries, in the increasing order of their ids
+     */
+    public List<ChatEntry> getChatEntriesAfter( ChatUser user, long lId )
+    {
+        // The id is given under the lock of the room before the entry is appended, so every entry with a lower id
+        // is already in its log : the two logs are read up to the same id, so that an entry appended to the log read
+        // first is never skipped by a reader which has received a more recent entry from the other log
+        long lMaxId = _lLastEntryId;
+        List<ChatEntry> listEntries = _log.getEntriesAfter( lId, lMaxId );
+        List<ChatEntry> listPrivateEntries = user.getPrivateEntriesAfter( lId, lMaxId );
+
+        if ( listPrivateEntries.isEmpty(  ) )
+        {
+            return listEntries;
+        }
+
+        // Merge the two lists sorted by id
+        List<ChatEntry> listMerged = new ArrayList<ChatEntry>( listEntries.size(  ) + listPrivateEntries.size(  ) );
+        int i = 0;
+        int j = 0;
+
+        while ( ( i < listEntries.size(  ) ) || ( j < listPrivateEntries.size(  ) ) )
+        {
+            if ( ( j == listPrivateEntries.size(  ) ) ||
+                    ( ( i < listEntries.size(  ) ) &&
+                    ( listEntries.get( i ).getId(  ) < listPrivateEntries.get( j ).getId(  ) ) ) )
+            {
+                listMerged.add( listEntries.get( i++ ) );
+            }
+            else
+            {
+                listMerged.add( listPrivateEntries.get( j++ ) );
+            }
+        }
+
+        return listMerged;
+    }
+
+    /**
+     * Returns the entries sent to all the users which are kept by the room
+     *
+     * @return The entries, in the increasing order of their ids
+     */
+    public List<ChatEntry> getChatEntries(  )
+    {
+        return _log.getEntriesAfter( 0 );
+    }
+
+    /**
+     * Checks if a user has entries to read whose id is greater than a given id
+     *
+     * @param user The user
+     * @param lId The id of the last entry already read
+     * @return true if there is at least one entry to read
+     */
+    public boolean hasChatEntriesAfter( ChatUser user, long lId )
+    {
+        return _log.hasEntriesAfter( lId ) || user.hasPrivateEntriesAfter( lId );
+    }
+
+    /**
+     * Returns the list of the users banned from this room
+     *
+     * @return An enumeration of the banned users
+     */
+    public Enumeration<ChatUser> getBannedUsers(  )
+    {
+        return Collections.enumeration( _mapBannedUsers.values(  ) );
+    }
+
+    /**
+     * Retruns the description of this room
+     *
+     * @return The string description of this room
+     */
+    public String getDescription(  )
+    {
+        return _strDescription;
+    }
+
+    /**
+     * The name of this room
+     *
+     * @return The string name of this room
+     */
+    public String getName(  )
+    {
+        return _strName;
+    }
+
+    /**
+     * Sets the last access to the room of the user which corresponds to the pseudo specified in parameter
+     *
+     * @param strPseudo The user's pseudo
+     */
+    public void setLastAccessTime( String strPseudo )
+    {
+        ChatUser user = _mapUsers.get( strPseudo );
+
+        if ( user != null )
+        {
+            user.setLastAccessTime( new Date(  ) );
+        }
+    }
+
+    /**
+     * Returns the ChatUser object whose pseudo is specified in parameter
+     *
+     * @param strPseudo The pseudo of the user to get
+     * @return The ChatUser object
+     */
+    public ChatUser getUser( String strPseudo )
+    {
+        return _mapUsers.get( strPseudo );
+    }
+
+    /**
+     * Sets the password of the room
+     *
+     * @param strAdminPassword The new password of the admin
+     */
+    public void setAdminPassword( String strAdminPassword )
+    {
+        _strAdminPassword = strAdminPassword;
+    }
+
+    /**
+     * The password of the admin
+     *
+     * @return The admin password
+     */
+    public String getAdminPassword(  )
+    {
+        return _strAdminPassword;
+    }
+
+    /**
+     * Sets the description of this room whith the specified string
+     *
+     * @param strDescription The description of the room
+     */
+    public void setDescription( String strDescription )
+    {
+        _strDescription = strDescription;
+        _lStateVersion.incrementAndGet(  );
+    }
+
+    /**
+     * Sets the background color of the room
+     *
+     * @param strBgColor The background color
+     */
+    public void setBgColor( String strBgColor )
+    {
+        _strBgColor = strBgColor;
+    }
+
+    /**
+     * Returns the background color of the room
+     *
+     * @return The background color of the room as a String
+     */
+    public String getBgColor(  )
+    {
+        return _strBgColor;
+    }
+
+    /**
+     * Sets the button background color
+     *
+     * @param strButtonBgColor The button's background color
+     */
+    public void setButtonBgColor( String strButtonBgColor )
+    {
+        _strButtonBgColor = strButtonBgColor;
+    }
+
+    /**
+     * Returns the background color of the button
+     *
+     * @return The background color of the button as a String
+     */
+    public String getButtonBgColor(  )
+    {
+        return _strButtonBgColor;
+    }
+
+    /**
+     * Sets the foreground color of the button
+     *
+     * @param strButtonFgColor The button's foreground color
+     */
+    public void setButtonFgColor( String strButtonFgColor )
+    {
+        _strButtonFgColor = strButtonFgColor;
+    }
+
+    /**
+     * Returns the foreground color of the button
+     *
+     * @return The foreground color of the button as a String
+     */
+    public String getButtonFgColor(  )
+    {
+        return _strButtonFgColor;
+    }
+
+    /**
+     * Sets the background color of the text field
+     *
+     * @param strFieldBgColor The text field's background color
+     */
+    public void setFieldBgColor( String strFieldBgColor )
+    {
+        _strFieldBgColor = strFieldBgColor;
+    }
+
+    /**
+     * Returns the background color of the text field
+     *
+     * @return The background color of the text field as a String
+     */
+    public String getFieldBgColor(  )
+    {
+        return _strFieldBgColor;
+    }
+}
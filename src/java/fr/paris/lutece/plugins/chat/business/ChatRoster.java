@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+
+/**
+ * Versioned list of the changes of the users of a room : arrivals, departures, mode and absence changes.
+ * Each change increments the version and records the nickname of the user concerned. Only the most recent changes
+ * are kept.
+ */
+public class ChatRoster
+{
+    private String[] _changes;
+    private long _lVersion;
+
+    /**
+     * Creates a new ChatRoster object
+     *
+     * @param nCapacity The number of changes kept
+     */
+    public ChatRoster( int nCapacity )
+    {
+        _changes = new String[nCapacity];
+    }
+
+    /**
+     * Records a change of a user
+     *
+     * @param strNickname The nickname of the user
+     */
+    public synchronized void userChanged( String strNickname )
+    {
+        _lVersion++;
+        _changes[(int) ( _lVersion % _changes.length )] = strNickname;
+    }
+
+    /**
+     * Moves the version past a version given by another list of the same users, so that the clients knowing the
+     * other list receive the whole list
+     *
+     * @param lVersion The version of the other list
+     */
+    public synchronized void restoreVersion( long lVersion )
+    {
+        _lVersion = Math.max( _lVersion, lVersion ) + _changes.length + 1;
+    }
+
+    /**
+     * Returns the current version
+     *
+     * @return The version
+     */
+    public synchronized long getVersion(  )
+    {
+        return _lVersion;
+    }
+
+    /**
+     * Returns the nicknames of the users changed since a given version
+     *
+     * @param lVersion The version known by the client
+     * @return The nicknames in the order of their first change, or null if the changes since this version are no
+     * longer known
+     */
+    public synchronized Set<String> getChangesSince( long lVersion )
+    {
+        if ( ( lVersion > _lVersion ) || ( lVersion < ( _lVersion - _changes.length ) ) )
+        {
+            return null;
+        }
+
+        Set<String> setNicknames = new LinkedHashSet<String>(  );
+
+        for ( long lChange = lVersion + 1; lChange <= _lVersion; lChange++ )
+        {
+            setNicknames.add( _changes[(int) ( lChange % _changes.length )] );
+        }
+
+        return setNicknames;
+    }
+}
@@ -1,367 +1,517 @@
-/*
- * Copyright (c) 2002-2014, Mairie de Paris
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- *
- *  1. Redistributions of source code must retain the above copyright notice
- *     and the following disclaimer.
- *
- *  2. Redistributions in binary form must reproduce the above copyright notice
- *     and the following disclaimer in the documentation and/or other materials
- *     provided with the distribution.
- *
- *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
- *     contributors may be used to endorse or promote products derived from
- *     this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- *
- * License 1.0
- */
-package fr.paris.lutece.plugins.chat.business;
-
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.Vector;
-
-
-/**
- * This class provides methods for the management of the chat users
- */
-public class ChatUser
-{
-    public static final int MODE_USER = 0;
-    public static final int MODE_VOICE = 1;
-    public static final int MODE_OP = 2;
-    public static final int MODE_BAN = 3;
-    public static final int MODE_DEBAN = 4;
-    private String _strNickname;
-    private String _strIpAddress;
-    private String _strHostName;
-    private Vector _vChatEntries = new Vector(  );
-    private int _nMaxMessages = 20;
-    private Date _dateLastAccess;
-    private Date _dateJoin;
-    private int _nMode;
-    private boolean _bAway;
-    private String _strAwayComment;
-    private boolean _bNewPseudo;
-    private String _strKickComment;
-    private boolean _bKicked;
-
-    ////////////////////////////////////////////////////////////////////////////
-    // Flood management
-    private ArrayList _listSentData = new ArrayList(  );
-
-    /**
-     * Creates a new ChatUser object
-     *
-     * @param strNickname The nick name of the user
-     */
-    public ChatUser( String strNickname )
-    {
-        setNickname( strNickname );
-        _dateJoin = new Date(  );
-        _nMode = MODE_USER;
-    }
-
-    /**
-     * Sets the nickname of this user with the specified parameter.
-         * This method is declared final because it is called by the constructor.
-     *
-     * @param strNickname The type as an int
-     */
-    public final void setNickname( String strNickname )
-    {
-        _strNickname = strNickname.replace( ' ', '_' );
-    }
-
-    /**
-     * Returns the nickname of this user
-     *
-     * @return The nick name
-     */
-    public String getNickname(  )
-    {
-        return _strNickname;
-    }
-
-    /**
-     * Sets the ip address of this user with the specified parameter
-     *
-     * @param strIpAddress The String ip address
-     */
-    public void setIpAddress( String strIpAddress )
-    {
-        _strIpAddress = strIpAddress;
-    }
-
-    /**
-     * Returns the ip address of this user
-     *
-     * @return The String ip address
-     */
-    public String getIpAddress(  )
-    {
-        return _strIpAddress;
-    }
-
-    /**
-     * Sets the host name of this user with the specified parameter
-     *
-     * @param strHostName The String host name
-     */
-    public void setHostName( String strHostName )
-    {
-        _strHostName = strHostName;
-    }
-
-    /**
-     * Returns the host name of this user
-     *
-     * @return The String host name
-     */
-    public String getHostName(  )
-    {
-        return _strHostName;
-    }
-
-    /**
-     * Sets the host name of this user with the specified parameter
-     *
-     * @param dateLastAccess The String host name
-     */
-    public void setLastAccessTime( Date dateLastAccess )
-    {
-        _dateLastAccess = dateLastAccess;
-    }
-
-    /**
-     * Returns the date of the last access of this user to the chat room
-     *
-     * @return The date last access
-     */
-    public Date getLastAccessTime(  )
-    {
-        return _dateLastAccess;
-    }
-
-    /**
-     * Returns the time when this user entered the chat room
-     *
-     * @return The Long join time
-     */
-    public long getJoinTime(  )
-    {
-        return _dateJoin.getTime(  );
-    }
-
-    /**
-     * Adds an entry to the ChatEntries Vector
-     *
-     * @param entry The ChatEntry object
-     */
-    public synchronized void addChatEntry( ChatEntry entry )
-    {
-        _vChatEntries.addElement( entry );
-
-        if ( _vChatEntries.size(  ) > _nMaxMessages )
-        {
-            _vChatEntries.removeElementAt( 0 );
-        }
-    }
-
-    /**
-     * Return the entries of the chat
-     *
-     * @return The entries as an Enumeration object
-     */
-    public Enumeration getChatEntries(  )
-    {
-        return _vChatEntries.elements(  );
-    }
-
-    /**
-     * Sets the mode of this user
-     *
-     * @param nMode nMode The mode of this user
-     */
-    public void setMode( int nMode )
-    {
-        _nMode = nMode;
-    }
-
-    /**
-     * Return the mode of this user
-     *
-     * @return The user mode as an int
-     */
-    public int getMode(  )
-    {
-        return _nMode;
-    }
-
-    /**
-     * Sets the attribute which define if this user is absent
-     *
-     * @param bAway The new value
-     */
-    public void setAway( boolean bAway )
-    {
-        _bAway = bAway;
-        _strAwayComment = null;
-    }
-
-    /**
-     * Sets this user as absent and add a comment
-     *
-     * @param strComment the comment of the absence
-     */
-    public void setAway( String strComment )
-    {
-        _bAway = true;
-        _strAwayComment = strComment;
-    }
-
-    /**
-     * Returns the attribute which define if this user is absent
-     *
-     * @return The boolean attribute _bAway
-     */
-    public boolean isAway(  )
-    {
-        return _bAway;
-    }
-
-    /**
-     * Returns the absence comment
-     *
-     * @return The absence comment as a String
-     */
-    public String getAwayComment(  )
-    {
-        return _strAwayComment;
-    }
-
-    /**
-     * Returns the boolean which define if the user has set a new pseudonym
-     *
-     * @return The boolean attribute _bNewPseudo
-     */
-    public boolean hasNewPseudo(  )
-    {
-        return _bNewPseudo;
-    }
-
-    /**
-     * Set the boolean which define if the user has set a new pseudonym
-     *
-     * @param bNewPseudo the boolean which define if the user has set a new pseudonym
-     */
-    public void setNewPseudo( boolean bNewPseudo )
-    {
-        _bNewPseudo = bNewPseudo;
-    }
-
-    /**
-     * Kicks this user out of the chat room
-     *
-     * @param strComment A comment about the kick
-     */
-    public void kick( String strComment )
-    {
-        _bKicked = true;
-        _strKickComment = strComment;
-    }
-
-    /**
-     * Returns the boolean which shows if this user has been kicked out the chat room
-     *
-     * @return the boolean attribte _bKicked
-     */
-    public boolean isKicked(  )
-    {
-        return _bKicked;
-    }
-
-    /**
-     * Returns the comment shown when this user is kicked out of the chat room
-     *
-     * @return The comment as a String
-     */
-    public String getKickComment(  )
-    {
-        return _strKickComment;
-    }
-
-    /**
-     * Adds text to the user's list of sent data
-     *
-     * @param strText The text to add
-     */
-    public void addSentData( String strText )
-    {
-        SentData sd = new SentData( strText );
-        _listSentData.add( sd );
-    }
-
-    /**
-     * Returns the amount of data sent for the last n seconds.
-         *
-     * @param lSeconds The number of seconds
-     * @return The size of the sent data
-     */
-    public int getSentDataSizeSince( long lSeconds )
-    {
-        long lTime = new Date(  ).getTime(  ) - ( 1000 * lSeconds );
-        Iterator i = _listSentData.iterator(  );
-        int nSize = 0;
-
-        while ( i.hasNext(  ) )
-        {
-            SentData sd = (SentData) i.next(  );
-
-            if ( sd._date.getTime(  ) > lTime )
-            {
-                nSize += ( sd._text.length(  ) + 50 );
-            }
-        }
-
-        return nSize;
-    }
-
-    /**
-     * This class represents sent data.
-     */
-    private class SentData
-    {
-        String _text;
-        Date _date;
-
-        /**
-         * Creates a new SentData object.
-         *
-         * @param strText  @param DOCUMENT ME
-         */
-        SentData( String strText )
-        {
-            _text = strText;
-            _date = new Date(  );
-        }
-    }
-}
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class provides methods for the management of the chat users
+ */
+public class ChatUser
+{
+    public static final int MODE_USER = 0;
+    public static final int MODE_VOICE = 1;
+    public static final int MODE_OP = 2;
+    public static final int MODE_BAN = 3;
+    public static final int MODE_DEBAN = 4;
+    private static final int DEFAULT_MAX_MESSAGES = 20;
+    private static final int SENT_DATA_SECONDS = 60;
+    private static final int SENT_DATA_OVERHEAD = 50;
+    private static final int MAX_FINGERPRINTS = 8;
+    private String _strNickname;
+    private String _strIpAddress;
+    private String _strHostName;
+    private ChatEntryLog _logPrivateEntries;
+    private volatile long _lReadEntryId = -1;
+    private volatile long _lJoinEntryId = -1;
+    private AtomicLong _lStateVersion = new AtomicLong(  );
+    private volatile Date _dateLastAccess;
+    private Date _dateJoin;
+    private int _nMode;
+    private boolean _bAway;
+    private String _strAwayComment;
+    private volatile boolean _bNewPseudo;
+    private String _strKickComment;
+    private volatile boolean _bKicked;
+    private List<ChatUserListener> _listListeners = new CopyOnWriteArrayList<ChatUserListener>(  );
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Flood management : the size of the data sent during each of the last seconds
+    private int[] _sentDataSizes = new int[SENT_DATA_SECONDS];
+    private long[] _sentDataSeconds = new long[SENT_DATA_SECONDS];
+    private ChatFingerprints _fingerprints = new ChatFingerprints( MAX_FINGERPRINTS );
+
+    /**
+     * Creates a new ChatUser object
+     *
+     * @param strNickname The nick name of the user
+     */
+    public ChatUser( String strNickname )
+    {
+        this( strNickname, DEFAULT_MAX_MESSAGES );
+    }
+
+    /**
+     * Creates a new ChatUser object
+     *
+     * @param strNickname The nick name of the user
+     * @param nMaxMessages The number of private entries kept for the user
+     */
+    public ChatUser( String strNickname, int nMaxMessages )
+    {
+        setNickname( strNickname );
+        _dateJoin = new Date(  );
+        _nMode = MODE_USER;
+        _logPrivateEntries = new ChatEntryLog( nMaxMessages );
+    }
+
+    /**
+     * Sets the nickname of this user with the specified parameter.
+         * This method is declared final because it is called by the constructor.
+     *
+     * @param strNickname The type as an int
+     */
+    public final void setNickname( String strNickname )
+    {
+        _strNickname = strNickname.replace( ' ', '_' );
+    }
+
+    /**
+     * Returns the nickname of this user
+     *
+     * @return The nick name
+     */
+    public String getNickname(  )
+    {
+        return _strNickname;
+    }
+
+    /**
+     * Sets the ip address of this user with the specified parameter
+     *
+     * @param strIpAddress The String ip address
+     */
+    public void setIpAddress( String strIpAddress )
+    {
+        _strIpAddress = strIpAddress;
+    }
+
+    /**
+     * Returns the ip address of this user
+     *
+     * @return The String ip address
+     */
+    public String getIpAddress(  )
+    {
+        return _strIpAddress;
+    }
+
+    /**
+     * Sets the host name of this user with the specified parameter
+     *
+     * @param strHostName The String host name
+     */
+    public void setHostName( String strHostName )
+    {
+        _strHostName = strHostName;
+    }
+
+    /**
+     * Returns the host name of this user
+     *
+     * @return The String host name
+     */
+    public String getHostName(  )
+    {
+        return _strHostName;
+    }
+
+    /**
+     * Sets the host name of this user with the specified parameter
+     *
+     * @param dateLastAccess The String host name
+     */
+    public void setLastAccessTime( Date dateLastAccess )
+    {
+        _dateLastAccess = dateLastAccess;
+    }
+
+    /**
+     * Returns the date of the last access of this user to the chat room
+     *
+     * @return The date last access
+     */
+    public Date getLastAccessTime(  )
+    {
+        return _dateLastAccess;
+    }
+
+    /**
+     * Returns the time when this user entered the chat room
+     *
+     * @return The Long join time
+     */
+    public long getJoinTime(  )
+    {
+        return _dateJoin.getTime(  );
+    }
+
+    /**
+     * Adds a private entry to this user. Entries sent to all the users of the room are kept by the room.
+     *
+     * @param entry The ChatEntry object
+     */
+    public void addChatEntry( ChatEntry entry )
+    {
+        _logPrivateEntries.append( entry );
+        _lStateVersion.incrementAndGet(  );
+        fireUserDataAvailable(  );
+    }
+
+    /**
+     * Returns the private entries of this user whose id is greater than a given id
+     *
+     * @param lId The id of the last entry already read
+     * @return The list of the entries, in the order they were added
+     */
+    public List<ChatEntry> getPrivateEntriesAfter( long lId )
+    {
+        return _logPrivateEntries.getEntriesAfter( lId );
+    }
+
+    /**
+     * Returns the private entries of this user whose id is greater than a given id and not greater than a maximum id
+     *
+     * @param lId The id of the last entry already read
+     * @param lMaxId The greatest id returned
+     * @return The list of the entries, in the order they were added
+     */
+    public List<ChatEntry> getPrivateEntriesAfter( long lId, long lMaxId )
+    {
+        return _logPrivateEntries.getEntriesAfter( lId, lMaxId );
+    }
+
+    /**
+     * Checks if this user has a private entry whose id is greater than a given id
+     *
+     * @param lId The id of the last entry already read
+     * @return true if there is at least one private entry after the id
+     */
+    public boolean hasPrivateEntriesAfter( long lId )
+    {
+        return _logPrivateEntries.hasEntriesAfter( lId );
+    }
+
+    /**
+     * Sets the id of the last entry read by this user
+     *
+     * @param lReadEntryId The id of the entry
+     */
+    public void setReadEntryId( long lReadEntryId )
+    {
+        _lReadEntryId = lReadEntryId;
+    }
+
+    /**
+     * Returns the id of the last entry read by this user
+     *
+     * @return The id of the entry
+     */
+    public long getReadEntryId(  )
+    {
+        return _lReadEntryId;
+    }
+
+    /**
+     * Sets the id of the last entry of the room when this user entered it
+     *
+     * @param lJoinEntryId The id of the entry
+     */
+    public void setJoinEntryId( long lJoinEntryId )
+    {
+        _lJoinEntryId = lJoinEntryId;
+    }
+
+    /**
+     * Returns the id of the last entry of the room when this user entered it
+     *
+     * @return The id of the entry, -1 if the user has not entered a room yet
+     */
+    public long getJoinEntryId(  )
+    {
+        return _lJoinEntryId;
+    }
+
+    /**
+     * Returns the version of the state of this user. It changes when the user receives a private entry, is kicked or
+     * gets a new pseudo.
+     *
+     * @return The version
+     */
+    public long getStateVersion(  )
+    {
+        return _lStateVersion.get(  );
+    }
+
+    /**
+     * Checks if a kick or a new pseudo is waiting to be read by this user
+     *
+     * @return true if the user is kicked or has a new pseudo
+     */
+    public boolean hasPendingStatus(  )
+    {
+        return _bKicked || _bNewPseudo;
+    }
+
+    /**
+     * Registers a listener notified when data is available for this user
+     *
+     * @param listener The listener
+     */
+    public void addListener( ChatUserListener listener )
+    {
+        _listListeners.add( listener );
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param listener The listener
+     */
+    public void removeListener( ChatUserListener listener )
+    {
+        _listListeners.remove( listener );
+    }
+
+    /**
+     * Notifies the listeners of this user, so that the connections waiting for data check his state at once
+     */
+    public void notifyListeners(  )
+    {
+        fireUserDataAvailable(  );
+    }
+
+    /**
+     * Notifies the listeners that data is available for this user
+     */
+    private void fireUserDataAvailable(  )
+    {
+        for ( ChatUserListener listener : _listListeners )
+        {
+            listener.userDataAvailable( this );
+        }
+    }
+
+    /**
+     * Sets the mode of this user
+     *
+     * @param nMode nMode The mode of this user
+     */
+    public void setMode( int nMode )
+    {
+        _nMode = nMode;
+    }
+
+    /**
+     * Return the mode of this user
+     *
+     * @return The user mode as an int
+     */
+    public int getMode(  )
+    {
+        return _nMode;
+    }
+
+    /**
+     * Sets the attribute which define if this user is absent
+     *
+     * @param bAway The new value
+     */
+    public void setAway( boolean bAway )
+    {
+        _bAway = bAway;
+        _strAwayComment = null;
+    }
+
+    /**
+     * Sets this user as absent and add a comment
+     *
+     * @param strComment the comment of the absence
+     */
+    public void setAway( String strComment )
+    {
+        _bAway = true;
+        _strAwayComment = strComment;
+    }
+
+    /**
+     * Returns the attribute which define if this user is absent
+     *
+     * @return The boolean attribute _bAway
+     */
+    public boolean isAway(  )
+    {
+        return _bAway;
+    }
+
+    /**
+     * Returns the absence comment
+     *
+     * @return The absence comment as a String
+     */
+    public String getAwayComment(  )
+    {
+        return _strAwayComment;
+    }
+
+    /**
+     * Returns the boolean which define if the user has set a new pseudonym
+     *
+     * @return The boolean attribute _bNewPseudo
+     */
+    public boolean hasNewPseudo(  )
+    {
+        return _bNewPseudo;
+    }
+
+    /**
+     * Set the boolean which define if the user has set a new pseudonym
+     *
+     * @param bNewPseudo the boolean which define if the user has set a new pseudonym
+     */
+    public void setNewPseudo( boolean bNewPseudo )
+    {
+        _bNewPseudo = bNewPseudo;
+
+        if ( bNewPseudo )
+        {
+            _lStateVersion.incrementAndGet(  );
+            fireUserDataAvailable(  );
+        }
+    }
+
+    /**
+     * Kicks this user out of the chat room
+     *
+     * @param strComment A comment about the kick
+     */
+    public void kick( String strComment )
+    {
+        _bKicked = true;
+        _strKickComment = strComment;
+        _lStateVersion.incrementAndGet(  );
+        fireUserDataAvailable(  );
+    }
+
+    /**
+     * Returns the boolean which shows if this user has been kicked out the chat room
+     *
+     * @return the boolean attribte _bKicked
+     */
+    public boolean isKicked(  )
+    {
+        return _bKicked;
+    }
+
+    /**
+     * Returns the comment shown when this user is kicked out of the chat room
+     *
+     * @return The comment as a String
+     */
+    public String getKickComment(  )
+    {
+        return _strKickComment;
+    }
+
+    /**
+     * Adds text to the user's list of sent data
+     *
+     * @param strText The text to add
+     */
+    public synchronized void addSentData( String strText )
+    {
+        long lSecond = System.currentTimeMillis(  ) / 1000L;
+        int nBucket = (int) ( lSecond % SENT_DATA_SECONDS );
+
+        if ( _sentDataSeconds[nBucket] != lSecond )
+        {
+            // The bucket held the data of an older second
+            _sentDataSeconds[nBucket] = lSecond;
+            _sentDataSizes[nBucket] = 0;
+        }
+
+        _sentDataSizes[nBucket] += ( strText.length(  ) + SENT_DATA_OVERHEAD );
+    }
+
+    /**
+     * Returns the amount of data sent for the last n seconds. The data is counted by second, over at most the last
+     * 60 seconds.
+     *
+     * @param lSeconds The number of seconds
+     * @return The size of the sent data
+     */
+    public synchronized int getSentDataSizeSince( long lSeconds )
+    {
+        long lSecond = System.currentTimeMillis(  ) / 1000L;
+        long lCount = Math.min( lSeconds, SENT_DATA_SECONDS );
+        int nSize = 0;
+
+        for ( long l = lSecond; l > ( lSecond - lCount ); l-- )
+        {
+            int nBucket = (int) ( l % SENT_DATA_SECONDS );
+
+            if ( _sentDataSeconds[nBucket] == l )
+            {
+                nSize += _sentDataSizes[nBucket];
+            }
+        }
+
+        return nSize;
+    }
+
+    /**
+     * Records the fingerprint of a message sent by this user
+     *
+     * @param lFingerprint The fingerprint of the message
+     * @return The number of times the user has already sent the message among his last messages
+     */
+    public int addFingerprint( long lFingerprint )
+    {
+        return _fingerprints.add( lFingerprint );
+    }
+}
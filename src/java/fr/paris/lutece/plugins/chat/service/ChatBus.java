@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.io.IOException;
+
+
+/**
+ * Message bus linking the nodes of a cluster. A bus delivers the messages published by a node to the other nodes.
+ * The messages published by a node are received in the order they are published. The messages are applied to the
+ * rooms as they are received : a bus reachable from outside the nodes must only deliver the messages of the nodes it
+ * has authenticated. The implementations have a public constructor without argument and read their settings from the
+ * properties.
+ */
+public interface ChatBus
+{
+    /**
+     * Starts the bus
+     *
+     * @param listener The listener which receives the messages of the other nodes
+     * @throws IOException If the bus can't be started
+     */
+    void start( ChatBusListener listener ) throws IOException;
+
+    /**
+     * Publishes a message to the other nodes. This method must not block : it is called while a room is locked.
+     *
+     * @param message The message
+     */
+    void publish( byte[] message );
+
+    /**
+     * Stops the bus
+     */
+    void stop(  );
+}
@@ -0,0 +1,1505 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatRosterListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.business.RoomList;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cluster of the nodes sharing the rooms. The changes of the rooms made on this node are published on a bus : the
+ * entries, the users joining and leaving, the topics and the bans. The changes published by the other nodes are
+ * applied to the rooms of the same name on this node, without being published again.
+ * <br>
+ * The users of the other nodes are added to the rooms of this node, so that they are listed and can receive private
+ * messages. Each node publishes a heartbeat : the users of a node which has not been heard for a while are removed.
+ * When a new node is heard, the users of this node are published again for it.
+ * <br>
+ * In the partition mode, the rooms are not replicated : each room is owned by one node, chosen by consistent hashing
+ * over the nodes heard. The other nodes forward the requests of the room to the URL of its owner. When the nodes
+ * change, the previous owner of a room sends its topic, its banned users, its entries and its users to the new owner
+ * and drops them. The room is sent in several messages, so that no message exceeds the size accepted by the bus. A
+ * node starting waits for the other nodes during a few heartbeats before owning its rooms, and a node stopping hands
+ * its rooms over to the remaining nodes.
+ * <br>
+ * When the rooms are replicated, the rooms are spread over shards and the nodes compete for a lease on each shard.
+ * The users of a node which is not heard anymore are removed silently by every node, and their departure is announced
+ * once, by the node holding the lease of the shard of their room. The lease expires before the node holding it is
+ * considered lost, so that another node holds it when the users are removed.
+ */
+final class ChatCluster implements ChatBusListener, ChatRoomListener, ChatRosterListener
+{
+    private static final String PROPERTY_ENABLED = "chat.cluster.enabled";
+    private static final String PROPERTY_BUS_CLASS = "chat.cluster.bus.class";
+    private static final String PROPERTY_HEARTBEAT_SECONDS = "chat.cluster.heartbeat.seconds";
+    private static final String PROPERTY_PARTITION_ENABLED = "chat.cluster.partition.enabled";
+    private static final String PROPERTY_NODE_URL = "chat.cluster.node.url";
+    private static final String PROPERTY_SECRET = "chat.cluster.secret";
+    private static final String PROPERTY_LEASE_CLASS = "chat.cluster.lease.class";
+    private static final String PROPERTY_SWEEPER_SHARDS = "chat.cluster.sweeper.shards";
+    private static final String DEFAULT_BUS_CLASS = ChatSocketBus.class.getName(  );
+    private static final long DEFAULT_HEARTBEAT_SECONDS = 5L;
+    private static final int NODE_TIMEOUT_HEARTBEATS = 3;
+    private static final int DEFAULT_SWEEPER_SHARDS = 16;
+    private static final String SWEEPER_LEASE_PREFIX = "chat-sweeper-";
+    private static final String THREAD_NAME = "chat-cluster";
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_JOIN = 2;
+    private static final byte TYPE_LEAVE = 3;
+    private static final byte TYPE_TOPIC = 4;
+    private static final byte TYPE_BAN = 5;
+    private static final byte TYPE_DEBAN = 6;
+    private static final byte TYPE_HEARTBEAT = 7;
+    private static final byte TYPE_ROOM_MOVED = 8;
+    private static final byte TYPE_NODE_LEAVING = 9;
+    private static final byte TYPE_ROOM_PART = 10;
+    private static final int PART_BANNED_USERS = 1;
+    private static final int PART_ENTRIES = 2;
+    private static final int PART_USERS = 3;
+    private static final int MAX_PART_SIZE = 256 * 1024;
+    private String _strNodeId = UUID.randomUUID(  ).toString(  );
+    private ChatBus _bus;
+    private long _lHeartbeatMillis;
+    private String _strNodeUrl;
+    private String _strSecret;
+    private volatile ChatRing _ring;
+    private volatile boolean _bClaimed;
+    private Set<String> _setOwnedRooms = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>(  ) );
+    private Map<String, Integer> _mapIncomingParts = new HashMap<String, Integer>(  );
+    private RoomList _roomList;
+    private ConcurrentMap<String, RemoteNode> _mapNodes = new ConcurrentHashMap<String, RemoteNode>(  );
+    private Set<ChatUser> _setRemoteUsers = Collections.newSetFromMap( new ConcurrentHashMap<ChatUser, Boolean>(  ) );
+    private ThreadLocal<Boolean> _applying = new ThreadLocal<Boolean>(  );
+    private ScheduledExecutorService _executor;
+    private ChatLease _lease;
+    private int _nSweeperShards;
+    private Set<Integer> _setSweptShards = Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>(  ) );
+
+    /**
+     * Creates a new ChatCluster object
+     *
+     * @param bus The bus linking the nodes
+     * @param lHeartbeatMillis The delay between two heartbeats
+     */
+    ChatCluster( ChatBus bus, long lHeartbeatMillis )
+    {
+        this( bus, lHeartbeatMillis, null, null );
+    }
+
+    /**
+     * Creates a new ChatCluster object
+     *
+     * @param bus The bus linking the nodes
+     * @param lHeartbeatMillis The delay between two heartbeats
+     * @param strNodeUrl The URL of the webapp on this node in the partition mode, or null to replicate the rooms
+     * @param strSecret The secret shared by the nodes to forward the requests, or null
+     */
+    ChatCluster( ChatBus bus, long lHeartbeatMillis, String strNodeUrl, String strSecret )
+    {
+        _bus = bus;
+        _lHeartbeatMillis = lHeartbeatMillis;
+        _strNodeUrl = strNodeUrl;
+        _strSecret = strSecret;
+    }
+
+    /**
+     * Creates the cluster defined in the properties
+     *
+     * @return The cluster, or null if the cluster mode is not enabled or the bus can't be created
+     */
+    static ChatCluster create(  )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false ) )
+        {
+            return null;
+        }
+
+        String strNodeUrl = null;
+
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_PARTITION_ENABLED, false ) )
+        {
+            strNodeUrl = AppPropertiesService.getProperty( PROPERTY_NODE_URL, "" ).trim(  );
+
+            if ( ( strNodeUrl.length(  ) == 0 ) ||
+                    ( AppPropertiesService.getProperty( PROPERTY_SECRET, "" ).length(  ) == 0 ) )
+            {
+                AppLogService.error( "Chat cluster : the partition mode requires the properties " + PROPERTY_NODE_URL +
+                    " and " + PROPERTY_SECRET );
+
+                return null;
+            }
+        }
+
+        String strBusClass = AppPropertiesService.getProperty( PROPERTY_BUS_CLASS, DEFAULT_BUS_CLASS );
+        ChatCluster cluster;
+
+        try
+        {
+            Class<? extends ChatBus> busClass = Class.forName( strBusClass ).asSubclass( ChatBus.class );
+            ChatBus bus = busClass.getDeclaredConstructor(  ).newInstance(  );
+            long lHeartbeatSeconds = AppPropertiesService.getPropertyLong( PROPERTY_HEARTBEAT_SECONDS,
+                    DEFAULT_HEARTBEAT_SECONDS );
+            cluster = new ChatCluster( bus, 1000L * lHeartbeatSeconds, strNodeUrl,
+                    AppPropertiesService.getProperty( PROPERTY_SECRET ) );
+        }
+        catch ( Exception e )
+        {
+            AppLogService.error( "Chat cluster : unable to create the bus " + strBusClass, e );
+
+            return null;
+        }
+
+        String strLeaseClass = AppPropertiesService.getProperty( PROPERTY_LEASE_CLASS, "" ).trim(  );
+
+        if ( ( strNodeUrl == null ) && ( strLeaseClass.length(  ) != 0 ) )
+        {
+            try
+            {
+                Class<? extends ChatLease> leaseClass = Class.forName( strLeaseClass ).asSubclass( ChatLease.class );
+                cluster.setLease( leaseClass.getDeclaredConstructor(  ).newInstance(  ),
+                    AppPropertiesService.getPropertyInt( PROPERTY_SWEEPER_SHARDS, DEFAULT_SWEEPER_SHARDS ) );
+            }
+            catch ( Exception e )
+            {
+                AppLogService.error( "Chat cluster : unable to create the leases " + strLeaseClass +
+                    ", the departures of the users of the nodes lost are not announced", e );
+            }
+        }
+
+        return cluster;
+    }
+
+    /**
+     * Sets the leases electing the node which announces the departures of the users of the nodes lost, when the rooms
+     * are replicated
+     *
+     * @param lease The leases shared by the nodes
+     * @param nShards The number of shards of rooms, each shard having its own lease
+     */
+    void setLease( ChatLease lease, int nShards )
+    {
+        _lease = lease;
+        _nSweeperShards = Math.max( 1, nShards );
+    }
+
+    /**
+     * Starts sharing the rooms with the other nodes
+     *
+     * @param roomList The rooms
+     * @throws IOException If the bus can't be started
+     */
+    void start( RoomList roomList ) throws IOException
+    {
+        _roomList = roomList;
+
+        if ( isPartitioned(  ) )
+        {
+            _ring = new ChatRing( Collections.singleton( _strNodeId ) );
+        }
+
+        if ( _lease != null )
+        {
+            _lease.start( _strNodeId );
+        }
+
+        _bus.start( this );
+
+        Enumeration rooms = roomList.getRooms(  );
+
+        while ( !isPartitioned(  ) && rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            room.addListener( this );
+            room.addRosterListener( this );
+        }
+
+        _executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+        _executor.scheduleWithFixedDelay( new Runnable(  )
+            {
+                public void run(  )
+                {
+                    // An exception would cancel the heartbeats for good : the other nodes would drop this node
+                    try
+                    {
+                        heartbeat(  );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        AppLogService.error( "Chat cluster : unable to send the heartbeat", e );
+                    }
+                }
+            }, 0, _lHeartbeatMillis, TimeUnit.MILLISECONDS );
+
+        if ( isPartitioned(  ) )
+        {
+            _executor.schedule( new Runnable(  )
+                {
+                    public void run(  )
+                    {
+                        try
+                        {
+                            claim(  );
+                        }
+                        catch ( RuntimeException e )
+                        {
+                            AppLogService.error( "Chat cluster : unable to claim the rooms", e );
+                        }
+                    }
+                }, NODE_TIMEOUT_HEARTBEATS * _lHeartbeatMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Stops sharing the rooms
+     */
+    void stop(  )
+    {
+        if ( _executor != null )
+        {
+            _executor.shutdownNow(  );
+        }
+
+        if ( isPartitioned(  ) )
+        {
+            handOver(  );
+        }
+
+        Enumeration rooms = _roomList.getRooms(  );
+
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            room.removeListener( this );
+            room.removeRosterListener( this );
+        }
+
+        if ( _lease != null )
+        {
+            for ( Integer nShard : _setSweptShards )
+            {
+                _lease.release( SWEEPER_LEASE_PREFIX + nShard );
+            }
+
+            _setSweptShards.clear(  );
+            _lease.stop(  );
+        }
+
+        _bus.stop(  );
+    }
+
+    /**
+     * Returns the URL of the webapp on the node owning a room, in the partition mode
+     *
+     * @param room The room
+     * @return The URL, or null if the room is owned by this node or the rooms are replicated
+     */
+    String getOwnerUrl( ChatRoom room )
+    {
+        ChatRing ring = _ring;
+
+        if ( ring == null )
+        {
+            return null;
+        }
+
+        String strOwner = ring.getOwner( room.getName(  ) );
+        RemoteNode node = ( strOwner != null ) ? _mapNodes.get( strOwner ) : null;
+
+        return ( node != null ) ? node._strUrl : null;
+    }
+
+    /**
+     * Checks the secret sent along with a request forwarded by another node
+     *
+     * @param strSecret The secret sent
+     * @return true if the secret is the one shared by the nodes
+     */
+    boolean isTrusted( String strSecret )
+    {
+        return ( _strSecret != null ) && ( _strSecret.length(  ) != 0 ) && _strSecret.equals( strSecret );
+    }
+
+    /**
+     * Checks if a user is connected to another node
+     *
+     * @param user The user
+     * @return true if the user is connected to another node
+     */
+    boolean isRemoteUser( ChatUser user )
+    {
+        return _setRemoteUsers.contains( user );
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Changes of this node
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        // The private entries of the users of this node stay on this node
+        if ( !isReplicating(  ) || ( ( userRecipient != null ) && !isRemoteUser( userRecipient ) ) )
+        {
+            return;
+        }
+
+        Message message = new Message( TYPE_ENTRY, room );
+        message.writeInt( entry.getType(  ) );
+        message.writeNullableString( entry.getNickname(  ) );
+        message.writeString( entry.getChatMessage(  ) );
+        message.writeNullableString( ( userRecipient != null ) ? userRecipient.getNickname(  ) : null );
+        publish( message );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void userAdded( ChatRoom room, ChatUser user )
+    {
+        if ( isReplicating(  ) )
+        {
+            publishJoin( room, user );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void userRemoved( ChatRoom room, String strNickname )
+    {
+        if ( isReplicating(  ) )
+        {
+            Message message = new Message( TYPE_LEAVE, room );
+            message.writeString( strNickname );
+            publish( message );
+        }
+    }
+
+    /**
+     * Publishes a change of the topic of a room
+     *
+     * @param room The room
+     */
+    void topicChanged( ChatRoom room )
+    {
+        if ( isReplicating(  ) )
+        {
+            Message message = new Message( TYPE_TOPIC, room );
+            message.writeString( room.getDescription(  ) );
+            publish( message );
+        }
+    }
+
+    /**
+     * Publishes a ban
+     *
+     * @param room The room
+     * @param strIpAddress The address banned
+     * @param strNickname The nickname of the user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    void userBanned( ChatRoom room, String strIpAddress, String strNickname, long lExpiry )
+    {
+        if ( isReplicating(  ) )
+        {
+            Message message = new Message( TYPE_BAN, room );
+            message.writeString( strIpAddress );
+            message.writeString( strNickname );
+            message.writeLong( lExpiry );
+            publish( message );
+        }
+    }
+
+    /**
+     * Publishes a deban
+     *
+     * @param room The room
+     * @param strIpAddress The address authorized again
+     */
+    void userDebanned( ChatRoom room, String strIpAddress )
+    {
+        if ( isReplicating(  ) )
+        {
+            Message message = new Message( TYPE_DEBAN, room );
+            message.writeString( strIpAddress );
+            publish( message );
+        }
+    }
+
+    /**
+     * Publishes a user of this node
+     *
+     * @param room The room of the user
+     * @param user The user
+     */
+    private void publishJoin( ChatRoom room, ChatUser user )
+    {
+        Message message = new Message( TYPE_JOIN, room );
+        message.writeString( user.getNickname(  ) );
+        message.writeString( ( user.getIpAddress(  ) != null ) ? user.getIpAddress(  ) : "" );
+        publish( message );
+    }
+
+    /**
+     * Publishes a message
+     *
+     * @param message The message
+     */
+    private void publish( Message message )
+    {
+        byte[] bytes = message.toByteArray(  );
+
+        if ( bytes != null )
+        {
+            _bus.publish( bytes );
+        }
+    }
+
+    /**
+     * Publishes the heartbeat of this node and removes the users of the nodes not heard for too long
+     */
+    private void heartbeat(  )
+    {
+        renewLeases(  );
+
+        Message message = new Message( TYPE_HEARTBEAT, null );
+        message.writeString( isPartitioned(  ) ? _strNodeUrl : "" );
+        publish( message );
+
+        boolean bNodeRemoved = false;
+        Map<ChatUser, ChatRoom> mapDepartures = new HashMap<ChatUser, ChatRoom>(  );
+        long lLimit = System.currentTimeMillis(  ) - ( NODE_TIMEOUT_HEARTBEATS * _lHeartbeatMillis );
+        Iterator<RemoteNode> iterator = _mapNodes.values(  ).iterator(  );
+
+        while ( iterator.hasNext(  ) )
+        {
+            RemoteNode node = iterator.next(  );
+
+            if ( node._lLastHeard < lLimit )
+            {
+                iterator.remove(  );
+                bNodeRemoved = true;
+                AppLogService.info( "Chat cluster : the node " + node._strId + " is not heard anymore" );
+                _applying.set( Boolean.TRUE );
+
+                try
+                {
+                    for ( Map.Entry<ChatUser, ChatRoom> entry : node._mapUsers.entrySet(  ) )
+                    {
+                        ChatRoom room = entry.getValue(  );
+
+                        if ( removeRemoteUser( node, room, entry.getKey(  ) ) && isSweeper( room ) )
+                        {
+                            mapDepartures.put( entry.getKey(  ), room );
+                        }
+                    }
+                }
+                finally
+                {
+                    _applying.remove(  );
+                }
+            }
+        }
+
+        // The departures are published to the other nodes, which have removed the users silently
+        for ( Map.Entry<ChatUser, ChatRoom> entry : mapDepartures.entrySet(  ) )
+        {
+            ChatService.userLost( entry.getValue(  ), entry.getKey(  ).getNickname(  ) );
+        }
+
+        if ( bNodeRemoved && isPartitioned(  ) )
+        {
+            rebalance(  );
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Changes of the other nodes
+
+    /**
+     * {@inheritDoc}
+     */
+    public void messageReceived( byte[] message )
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( message ) );
+        _applying.set( Boolean.TRUE );
+
+        try
+        {
+            byte nType = in.readByte(  );
+            RemoteNode node = getNode( ChatStrings.read( in ) );
+            String strRoomName = ChatStrings.read( in );
+
+            if ( nType == TYPE_HEARTBEAT )
+            {
+                nodeHeard( node, ChatStrings.read( in ) );
+            }
+            else if ( nType == TYPE_NODE_LEAVING )
+            {
+                nodeLeaving( node );
+            }
+            else
+            {
+                ChatRoom room = _roomList.getRoom( strRoomName );
+
+                if ( room != null )
+                {
+                    apply( node, room, nType, in );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat cluster : invalid message received", e );
+        }
+        finally
+        {
+            _applying.remove(  );
+        }
+    }
+
+    /**
+     * Applies a change published by another node
+     *
+     * @param node The node
+     * @param room The room changed
+     * @param nType The type of the change
+     * @param in The content of the change
+     * @throws IOException If the content is invalid
+     */
+    private void apply( RemoteNode node, ChatRoom room, byte nType, DataInputStream in )
+        throws IOException
+    {
+        switch ( nType )
+        {
+            case TYPE_ENTRY:
+
+                int nEntryType = in.readInt(  );
+                String strNickname = in.readBoolean(  ) ? ChatStrings.read( in ) : null;
+                ChatEntry entry = new ChatEntry( strNickname, ChatStrings.read( in ), nEntryType );
+                String strRecipient = in.readBoolean(  ) ? ChatStrings.read( in ) : null;
+
+                if ( strRecipient == null )
+                {
+                    room.addChatEntry( entry, null );
+                }
+                else
+                {
+                    ChatUser userRecipient = room.getUser( strRecipient );
+
+                    if ( ( userRecipient != null ) && !isRemoteUser( userRecipient ) )
+                    {
+                        room.addChatEntry( entry, userRecipient );
+                    }
+                }
+
+                break;
+
+            case TYPE_JOIN:
+
+                ChatUser user = new ChatUser( ChatStrings.read( in ) );
+                user.setIpAddress( ChatStrings.read( in ) );
+                user.setLastAccessTime( new Date(  ) );
+
+                if ( room.addUser( user ) == ChatRoom.USER_ADDED )
+                {
+                    _setRemoteUsers.add( user );
+                    node._mapUsers.put( user, room );
+                }
+
+                break;
+
+            case TYPE_LEAVE:
+
+                ChatUser userLeaving = room.getUser( ChatStrings.read( in ) );
+
+                if ( ( userLeaving != null ) && node._mapUsers.containsKey( userLeaving ) )
+                {
+                    removeRemoteUser( node, room, userLeaving );
+                }
+
+                break;
+
+            case TYPE_TOPIC:
+                ChatService.changeTopic( room, ChatStrings.read( in ) );
+
+                break;
+
+            case TYPE_BAN:
+
+                // The users of this node connected from the addresses banned are kicked at once
+                String strIpAddress = ChatStrings.read( in );
+                String strBannedNickname = ChatStrings.read( in );
+                ChatService.banAddress( room, strIpAddress, strBannedNickname, in.readLong(  ) );
+
+                break;
+
+            case TYPE_DEBAN:
+                ChatService.debanUser( room, ChatStrings.read( in ) );
+
+                break;
+
+            case TYPE_ROOM_MOVED:
+
+                if ( _strNodeId.equals( ChatStrings.read( in ) ) )
+                {
+                    receiveRoom( room, in );
+                }
+
+                break;
+
+            case TYPE_ROOM_PART:
+
+                if ( _strNodeId.equals( ChatStrings.read( in ) ) )
+                {
+                    receiveRoomPart( room, in );
+                }
+
+                break;
+
+            default:
+
+                // Unknown changes are ignored
+                break;
+        }
+    }
+
+    /**
+     * Removes a user of another node
+     *
+     * @param node The node
+     * @param room The room of the user
+     * @param user The user
+     * @return true if the user was still in the room
+     */
+    private boolean removeRemoteUser( RemoteNode node, ChatRoom room, ChatUser user )
+    {
+        node._mapUsers.remove( user );
+        _setRemoteUsers.remove( user );
+
+        return ( room.getUser( user.getNickname(  ) ) == user ) && room.removeUser( user.getNickname(  ) );
+    }
+
+    /**
+     * Returns a node which has been heard, registering it the first time. The users of this node are published
+     * again for a new node.
+     *
+     * @param strNodeId The id of the node
+     * @return The node
+     */
+    private RemoteNode getNode( String strNodeId )
+    {
+        RemoteNode node = _mapNodes.get( strNodeId );
+
+        if ( node == null )
+        {
+            RemoteNode nodeNew = new RemoteNode( strNodeId );
+            node = _mapNodes.putIfAbsent( strNodeId, nodeNew );
+
+            if ( node == null )
+            {
+                node = nodeNew;
+                AppLogService.info( "Chat cluster : the node " + strNodeId + " has joined the cluster" );
+
+                if ( !isPartitioned(  ) )
+                {
+                    announce(  );
+                }
+            }
+        }
+
+        node._lLastHeard = System.currentTimeMillis(  );
+
+        return node;
+    }
+
+    /**
+     * Publishes all the users of this node
+     */
+    private void announce(  )
+    {
+        Enumeration rooms = _roomList.getRooms(  );
+
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            Enumeration<ChatUser> users = room.getUsers(  );
+
+            while ( users.hasMoreElements(  ) )
+            {
+                ChatUser user = users.nextElement(  );
+
+                if ( !isRemoteUser( user ) )
+                {
+                    publishJoin( room, user );
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the changes of this node must be published : the rooms are replicated and the current thread is not
+     * applying a change of another node
+     *
+     * @return true if the changes must be published
+     */
+    private boolean isReplicating(  )
+    {
+        return !isPartitioned(  ) && ( _applying.get(  ) == null );
+    }
+
+    /**
+     * Checks if the rooms are owned by a single node
+     *
+     * @return true in the partition mode
+     */
+    private boolean isPartitioned(  )
+    {
+        return _strNodeUrl != null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Election of the sweepers when the rooms are replicated
+
+    /**
+     * Acquires or renews the lease of each shard of rooms. A lease lasts one heartbeat less than the time after which
+     * a node is considered lost.
+     */
+    private void renewLeases(  )
+    {
+        if ( _lease == null )
+        {
+            return;
+        }
+
+        long lDurationMillis = ( NODE_TIMEOUT_HEARTBEATS - 1 ) * _lHeartbeatMillis;
+
+        for ( int nShard = 0; nShard < _nSweeperShards; nShard++ )
+        {
+            boolean bHeld = _lease.acquire( SWEEPER_LEASE_PREFIX + nShard, lDurationMillis );
+
+            if ( bHeld && _setSweptShards.add( nShard ) )
+            {
+                AppLogService.info( "Chat cluster : this node sweeps the rooms of the shard " + nShard );
+            }
+            else if ( !bHeld )
+            {
+                _setSweptShards.remove( nShard );
+            }
+        }
+    }
+
+    /**
+     * Checks if this node holds the lease of the shard of a room
+     *
+     * @param room The room
+     * @return true if this node announces the departures of the users of the nodes lost from this room
+     */
+    private boolean isSweeper( ChatRoom room )
+    {
+        return ( _lease != null ) &&
+        _setSweptShards.contains( ( room.getName(  ).hashCode(  ) & Integer.MAX_VALUE ) % _nSweeperShards );
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Ownership of the rooms in the partition mode
+
+    /**
+     * Records the URL of a node in the partition mode. A node enters the ring once its URL is known.
+     *
+     * @param node The node
+     * @param strUrl The URL sent by the node
+     */
+    private void nodeHeard( RemoteNode node, String strUrl )
+    {
+        if ( isPartitioned(  ) && ( node._strUrl == null ) && ( strUrl.length(  ) != 0 ) )
+        {
+            node._strUrl = strUrl;
+            rebalance(  );
+        }
+    }
+
+    /**
+     * Removes a node which is stopping, after it has handed its rooms over
+     *
+     * @param node The node
+     */
+    private void nodeLeaving( RemoteNode node )
+    {
+        _mapNodes.remove( node._strId );
+        AppLogService.info( "Chat cluster : the node " + node._strId + " has left the cluster" );
+
+        if ( isPartitioned(  ) )
+        {
+            rebalance(  );
+        }
+    }
+
+    /**
+     * Starts owning the rooms, once the other nodes have had the time to be heard. The state of the rooms owned by
+     * another node, such as the state replayed from the journal, is dropped.
+     */
+    private synchronized void claim(  )
+    {
+        _bClaimed = true;
+
+        Enumeration rooms = _roomList.getRooms(  );
+
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+
+            if ( _strNodeId.equals( _ring.getOwner( room.getName(  ) ) ) )
+            {
+                _setOwnedRooms.add( room.getName(  ) );
+            }
+            else if ( !_setOwnedRooms.contains( room.getName(  ) ) )
+            {
+                room.clear(  );
+            }
+        }
+
+        rebalance(  );
+    }
+
+    /**
+     * Builds the ring of the nodes heard, then sends the rooms owned by this node to their new owner
+     */
+    private synchronized void rebalance(  )
+    {
+        _ring = new ChatRing( getMembers(  ) );
+
+        if ( !_bClaimed )
+        {
+            return;
+        }
+
+        Enumeration rooms = _roomList.getRooms(  );
+
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            String strOwner = _ring.getOwner( room.getName(  ) );
+
+            if ( _strNodeId.equals( strOwner ) )
+            {
+                _setOwnedRooms.add( room.getName(  ) );
+            }
+            else if ( _setOwnedRooms.remove( room.getName(  ) ) )
+            {
+                sendRoom( room, strOwner );
+            }
+        }
+    }
+
+    /**
+     * Hands the rooms owned by this node over to the remaining nodes, then announces that this node is stopping
+     */
+    private synchronized void handOver(  )
+    {
+        List<String> listMembers = getMembers(  );
+        listMembers.remove( _strNodeId );
+
+        if ( !listMembers.isEmpty(  ) )
+        {
+            ChatRing ring = new ChatRing( listMembers );
+            Enumeration rooms = _roomList.getRooms(  );
+
+            while ( rooms.hasMoreElements(  ) )
+            {
+                ChatRoom room = (ChatRoom) rooms.nextElement(  );
+
+                if ( _setOwnedRooms.remove( room.getName(  ) ) )
+                {
+                    sendRoom( room, ring.getOwner( room.getName(  ) ) );
+                }
+            }
+        }
+
+        _bClaimed = false;
+        publish( new Message( TYPE_NODE_LEAVING, null ) );
+    }
+
+    /**
+     * Returns the ids of this node and of the nodes whose URL is known
+     *
+     * @return The ids of the nodes
+     */
+    private List<String> getMembers(  )
+    {
+        List<String> listMembers = new ArrayList<String>(  );
+        listMembers.add( _strNodeId );
+
+        for ( RemoteNode node : _mapNodes.values(  ) )
+        {
+            if ( node._strUrl != null )
+            {
+                listMembers.add( node._strId );
+            }
+        }
+
+        return listMembers;
+    }
+
+    /**
+     * Sends a room to its new owner, then drops its state on this node. The room is locked meanwhile so that no
+     * entry is added after it has been sent. The topic is sent first, along with the number of the parts holding the
+     * banned users, the entries and the users.
+     *
+     * @param room The room
+     * @param strOwner The id of the new owner
+     */
+    private void sendRoom( ChatRoom room, String strOwner )
+    {
+        synchronized ( room )
+        {
+            List<Message> listParts;
+
+            try
+            {
+                listParts = getRoomParts( room, strOwner );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat cluster : unable to move the room " + room.getName(  ), e );
+
+                return;
+            }
+
+            Message message = new Message( TYPE_ROOM_MOVED, room );
+            message.writeString( strOwner );
+            message.writeString( room.getDescription(  ) );
+            message.writeLong( room.getLastEntryId(  ) );
+            message.writeLong( room.getRosterVersion(  ) );
+            message.writeInt( listParts.size(  ) );
+            publish( message );
+
+            for ( Message part : listParts )
+            {
+                publish( part );
+            }
+
+            room.clear(  );
+        }
+
+        AppLogService.info( "Chat cluster : the room " + room.getName(  ) + " is moved to the node " + strOwner );
+    }
+
+    /**
+     * Writes the banned users, the entries and the users of a room in parts
+     *
+     * @param room The room
+     * @param strOwner The id of the new owner
+     * @return The parts
+     * @throws IOException If the room can't be written
+     */
+    private List<Message> getRoomParts( ChatRoom room, String strOwner )
+        throws IOException
+    {
+        RoomParts parts = new RoomParts( room, strOwner );
+        parts.startSection( PART_BANNED_USERS );
+
+        for ( ChatUser user : Collections.list( room.getBannedUsers(  ) ) )
+        {
+            DataOutputStream out = parts.startItem(  );
+            ChatStrings.write( out, user.getIpAddress(  ) );
+            ChatStrings.write( out, user.getNickname(  ) );
+            out.writeLong( user.getLastAccessTime(  ).getTime(  ) );
+            out.writeLong( room.getBanExpiry( user.getIpAddress(  ) ) );
+            parts.endItem(  );
+        }
+
+        parts.startSection( PART_ENTRIES );
+
+        for ( ChatEntry entry : room.getChatEntries(  ) )
+        {
+            DataOutputStream out = parts.startItem(  );
+            out.writeLong( entry.getId(  ) );
+            out.writeLong( entry.getTime(  ) );
+            out.writeInt( entry.getType(  ) );
+            writeNullableString( out, entry.getNickname(  ) );
+            ChatStrings.write( out, entry.getChatMessage(  ) );
+            parts.endItem(  );
+        }
+
+        parts.startSection( PART_USERS );
+
+        for ( ChatUser user : Collections.list( room.getUsers(  ) ) )
+        {
+            DataOutputStream out = parts.startItem(  );
+            ChatStrings.write( out, user.getNickname(  ) );
+            writeNullableString( out, user.getIpAddress(  ) );
+            writeNullableString( out, user.getHostName(  ) );
+            out.writeLong( user.getLastAccessTime(  ).getTime(  ) );
+            out.writeLong( user.getJoinEntryId(  ) );
+            out.writeLong( user.getReadEntryId(  ) );
+            out.writeInt( user.getMode(  ) );
+            writeNullableString( out, user.isAway(  ) ? user.getAwayComment(  ) : null );
+            parts.endItem(  );
+        }
+
+        return parts.getParts(  );
+    }
+
+    /**
+     * Writes a string which may be null
+     *
+     * @param out The output
+     * @param strValue The string, or null
+     * @throws IOException If the string can't be written
+     */
+    private static void writeNullableString( DataOutputStream out, String strValue )
+        throws IOException
+    {
+        out.writeBoolean( strValue != null );
+
+        if ( strValue != null )
+        {
+            ChatStrings.write( out, strValue );
+        }
+    }
+
+    /**
+     * Receives a room sent by its previous owner. The state of the room on this node is replaced. The room is owned
+     * once its parts are received.
+     *
+     * @param room The room
+     * @param in The state of the room
+     * @throws IOException If the state is invalid
+     */
+    private synchronized void receiveRoom( ChatRoom room, DataInputStream in )
+        throws IOException
+    {
+        synchronized ( room )
+        {
+            room.clear(  );
+            room.setDescription( ChatStrings.read( in ) );
+            room.restoreLastEntryId( in.readLong(  ) );
+            room.restoreRosterVersion( in.readLong(  ) );
+            _mapIncomingParts.put( room.getName(  ), in.readInt(  ) );
+        }
+
+        roomPartReceived( room, 0 );
+    }
+
+    /**
+     * Receives a part of a room sent by its previous owner
+     *
+     * @param room The room
+     * @param in The part
+     * @throws IOException If the part is invalid
+     */
+    private synchronized void receiveRoomPart( ChatRoom room, DataInputStream in )
+        throws IOException
+    {
+        if ( !_mapIncomingParts.containsKey( room.getName(  ) ) )
+        {
+            // The beginning of the room has not been received
+            return;
+        }
+
+        synchronized ( room )
+        {
+            int nSection = in.readInt(  );
+            int nMaxMessages = ChatService.getConfiguration( room ).getMaxMessages(  );
+
+            for ( int i = in.readInt(  ); i > 0; i-- )
+            {
+                if ( nSection == PART_BANNED_USERS )
+                {
+                    String strIpAddress = ChatStrings.read( in );
+                    ChatUser user = new ChatUser( ChatStrings.read( in ) );
+                    user.setIpAddress( strIpAddress );
+                    user.setLastAccessTime( new Date( in.readLong(  ) ) );
+                    room.addBannedUser( user, in.readLong(  ) );
+                }
+                else if ( nSection == PART_ENTRIES )
+                {
+                    long lId = in.readLong(  );
+                    long lTime = in.readLong(  );
+                    int nType = in.readInt(  );
+                    String strNickname = in.readBoolean(  ) ? ChatStrings.read( in ) : null;
+                    ChatEntry entry = new ChatEntry( strNickname, ChatStrings.read( in ), nType );
+                    entry.setId( lId );
+                    entry.setTime( lTime );
+                    room.restoreChatEntry( entry );
+                }
+                else if ( nSection == PART_USERS )
+                {
+                    ChatUser user = new ChatUser( ChatStrings.read( in ), nMaxMessages );
+                    user.setIpAddress( in.readBoolean(  ) ? ChatStrings.read( in ) : null );
+                    user.setHostName( in.readBoolean(  ) ? ChatStrings.read( in ) : null );
+                    user.setLastAccessTime( new Date( in.readLong(  ) ) );
+                    user.setJoinEntryId( in.readLong(  ) );
+                    user.setReadEntryId( in.readLong(  ) );
+                    user.setMode( in.readInt(  ) );
+
+                    if ( in.readBoolean(  ) )
+                    {
+                        user.setAway( ChatStrings.read( in ) );
+                    }
+
+                    room.addUser( user );
+                }
+                else
+                {
+                    throw new IOException( "Unknown part : " + nSection );
+                }
+            }
+        }
+
+        roomPartReceived( room, 1 );
+    }
+
+    /**
+     * Counts the parts of a room received. The room is owned by this node once all its parts are received.
+     *
+     * @param room The room
+     * @param nParts The number of parts received
+     */
+    private void roomPartReceived( ChatRoom room, int nParts )
+    {
+        int nRemaining = _mapIncomingParts.get( room.getName(  ) ) - nParts;
+
+        if ( nRemaining > 0 )
+        {
+            _mapIncomingParts.put( room.getName(  ), nRemaining );
+
+            return;
+        }
+
+        _mapIncomingParts.remove( room.getName(  ) );
+        _setOwnedRooms.add( room.getName(  ) );
+        ChatService.roomReceived( room );
+        AppLogService.info( "Chat cluster : the room " + room.getName(  ) + " is received" );
+    }
+
+    /**
+     * Another node, and its users added to the rooms of this node
+     */
+    private static final class RemoteNode
+    {
+        private String _strId;
+        private volatile long _lLastHeard;
+        private volatile String _strUrl;
+        private ConcurrentMap<ChatUser, ChatRoom> _mapUsers = new ConcurrentHashMap<ChatUser, ChatRoom>(  );
+
+        /**
+         * Creates a new RemoteNode object
+         *
+         * @param strId The id of the node
+         */
+        RemoteNode( String strId )
+        {
+            _strId = strId;
+        }
+    }
+
+    /**
+     * The parts of a room sent to its new owner. The items of each section are gathered in parts whose size is
+     * bounded, so that each part fits in a message of the bus.
+     */
+    private final class RoomParts
+    {
+        private final ChatRoom _room;
+        private final String _strOwner;
+        private final List<Message> _listParts = new ArrayList<Message>(  );
+        private final ByteArrayOutputStream _bytesItem = new ByteArrayOutputStream(  );
+        private final DataOutputStream _outItem = new DataOutputStream( _bytesItem );
+        private final ByteArrayOutputStream _bytesPart = new ByteArrayOutputStream(  );
+        private int _nSection;
+        private int _nCount;
+
+        /**
+         * Creates a new RoomParts object
+         *
+         * @param room The room
+         * @param strOwner The id of the new owner
+         */
+        RoomParts( ChatRoom room, String strOwner )
+        {
+            _room = room;
+            _strOwner = strOwner;
+        }
+
+        /**
+         * Starts a section
+         *
+         * @param nSection The section
+         */
+        void startSection( int nSection )
+        {
+            flush(  );
+            _nSection = nSection;
+        }
+
+        /**
+         * Starts an item of the current section
+         *
+         * @return The output where the item is written
+         */
+        DataOutputStream startItem(  )
+        {
+            _bytesItem.reset(  );
+
+            return _outItem;
+        }
+
+        /**
+         * Ends an item, starting a new part if the current one is full
+         *
+         * @throws IOException If the item can't be added
+         */
+        void endItem(  ) throws IOException
+        {
+            if ( _bytesItem.size(  ) > MAX_PART_SIZE )
+            {
+                AppLogService.error( "Chat cluster : an item of the room " + _room.getName(  ) +
+                    " is too large to be moved : " + _bytesItem.size(  ) + " bytes" );
+
+                return;
+            }
+
+            if ( ( _bytesPart.size(  ) + _bytesItem.size(  ) ) > MAX_PART_SIZE )
+            {
+                flush(  );
+            }
+
+            _bytesItem.writeTo( _bytesPart );
+            _nCount++;
+        }
+
+        /**
+         * Returns the parts
+         *
+         * @return The parts
+         */
+        List<Message> getParts(  )
+        {
+            flush(  );
+
+            return _listParts;
+        }
+
+        /**
+         * Ends the current part
+         */
+        private void flush(  )
+        {
+            if ( _nCount > 0 )
+            {
+                Message message = new Message( TYPE_ROOM_PART, _room );
+                message.writeString( _strOwner );
+                message.writeInt( _nSection );
+                message.writeInt( _nCount );
+                message.writeBytes( _bytesPart.toByteArray(  ) );
+                _listParts.add( message );
+            }
+
+            _bytesPart.reset(  );
+            _nCount = 0;
+        }
+    }
+
+    /**
+     * A message being built : its type, the id of this node and the name of the room, followed by the content
+     */
+    private final class Message
+    {
+        private ByteArrayOutputStream _bytes = new ByteArrayOutputStream(  );
+        private DataOutputStream _out = new DataOutputStream( _bytes );
+        private IOException _exception;
+
+        /**
+         * Creates a new Message object
+         *
+         * @param nType The type of the message
+         * @param room The room, or null
+         */
+        Message( byte nType, ChatRoom room )
+        {
+            try
+            {
+                _out.writeByte( nType );
+                ChatStrings.write( _out, _strNodeId );
+                ChatStrings.write( _out, ( room != null ) ? room.getName(  ) : "" );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Writes a number
+         *
+         * @param nValue The number
+         */
+        void writeInt( int nValue )
+        {
+            try
+            {
+                _out.writeInt( nValue );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Writes a long number
+         *
+         * @param lValue The number
+         */
+        void writeLong( long lValue )
+        {
+            try
+            {
+                _out.writeLong( lValue );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Writes a string
+         *
+         * @param strValue The string
+         */
+        void writeString( String strValue )
+        {
+            try
+            {
+                ChatStrings.write( _out, strValue );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Writes a string which may be null
+         *
+         * @param strValue The string, or null
+         */
+        void writeNullableString( String strValue )
+        {
+            try
+            {
+                ChatCluster.writeNullableString( _out, strValue );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Writes bytes already encoded
+         *
+         * @param bytes The bytes
+         */
+        void writeBytes( byte[] bytes )
+        {
+            try
+            {
+                _out.write( bytes );
+            }
+            catch ( IOException e )
+            {
+                _exception = e;
+            }
+        }
+
+        /**
+         * Returns the content of the message
+         *
+         * @return The content, or null if it could not be written
+         */
+        byte[] toByteArray(  )
+        {
+            if ( _exception != null )
+            {
+                AppLogService.error( "Chat cluster : unable to publish a message", _exception );
+
+                return null;
+            }
+
+            return _bytes.toByteArray(  );
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Immutable snapshot of the settings of the chat read from the properties. Each room may override the settings with
+ * properties prefixed by chat.room&lt;n&gt;, for instance chat.room1.flood.max.data.size. A new snapshot is built
+ * when the properties are reloaded, the snapshot in use is never modified.
+ */
+public final class ChatConfiguration
+{
+    private static final String PROPERTY_PREFIX = "chat.";
+    private static final String PROPERTY_ROOM_PREFIX = "chat.room";
+    private static final String PROPERTY_ROOM_NAME = ".name";
+    private static final String PROPERTY_MAX_INACTIVITY = "users.max.inactivity.seconds";
+    private static final String PROPERTY_MAX_MESSAGES = "messages.max";
+    private static final String PROPERTY_FLOOD_DELAY_SECONDS = "flood.delay.seconds";
+    private static final String PROPERTY_FLOOD_MAX_DATA_SIZE = "flood.max.data.size";
+    private static final String PROPERTY_FLOOD_REPEAT_MIN_LENGTH = "flood.repeat.min.length";
+    private static final String PROPERTY_FLOOD_MAX_USER_REPEATS = "flood.max.user.repeats";
+    private static final String PROPERTY_FLOOD_MAX_ROOM_REPEATS = "flood.max.room.repeats";
+    private static final String PROPERTY_FLOOD_BOT_NAME = "flood.bot.name";
+    private static final String PROPERTY_FLOOD_BOT_MESSAGE = "flood.bot.message";
+    private static final String PROPERTY_FLOOD_BAN_MINUTES = "flood.ban.minutes";
+    private static final int DEFAULT_MAX_INACTIVITY = 60;
+    private static final int DEFAULT_MAX_MESSAGES = 20;
+    private static final int DEFAULT_FLOOD_DELAY_SECONDS = 5;
+    private static final int DEFAULT_FLOOD_MAX_DATA_SIZE = 300;
+    private static final int DEFAULT_FLOOD_REPEAT_MIN_LENGTH = 10;
+    private static final int DEFAULT_FLOOD_MAX_USER_REPEATS = 2;
+    private static final int DEFAULT_FLOOD_MAX_ROOM_REPEATS = 5;
+    private static final String DEFAULT_FLOOD_BOT_NAME = "ChatSupervisor";
+    private static final String DEFAULT_FLOOD_BOT_MESSAGE = "Excess flood";
+    private static final int DEFAULT_FLOOD_BAN_MINUTES = 0;
+    private static final String UNDEFINED = "undefined";
+    private int _nMaxInactivity;
+    private int _nMaxMessages;
+    private int _nFloodDelaySeconds;
+    private int _nFloodMaxDataSize;
+    private int _nFloodRepeatMinLength;
+    private int _nFloodMaxUserRepeats;
+    private int _nFloodMaxRoomRepeats;
+    private String _strFloodBotName;
+    private String _strFloodBotMessage;
+    private int _nFloodBanMinutes;
+    private Map<String, ChatConfiguration> _mapRooms;
+
+    /**
+     * Creates a new ChatConfiguration object from the properties
+     *
+     * @param strPrefix The prefix of the properties
+     * @param defaults The settings used when a property is not defined, or null for the default values
+     */
+    private ChatConfiguration( String strPrefix, ChatConfiguration defaults )
+    {
+        _nMaxInactivity = Math.max( 1,
+                AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_MAX_INACTIVITY,
+                    ( defaults != null ) ? defaults._nMaxInactivity : DEFAULT_MAX_INACTIVITY ) );
+        _nMaxMessages = Math.max( 1,
+                AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_MAX_MESSAGES,
+                    ( defaults != null ) ? defaults._nMaxMessages : DEFAULT_MAX_MESSAGES ) );
+        _nFloodDelaySeconds = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_DELAY_SECONDS,
+                ( defaults != null ) ? defaults._nFloodDelaySeconds : DEFAULT_FLOOD_DELAY_SECONDS );
+        _nFloodMaxDataSize = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_MAX_DATA_SIZE,
+                ( defaults != null ) ? defaults._nFloodMaxDataSize : DEFAULT_FLOOD_MAX_DATA_SIZE );
+        _nFloodRepeatMinLength = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_REPEAT_MIN_LENGTH,
+                ( defaults != null ) ? defaults._nFloodRepeatMinLength : DEFAULT_FLOOD_REPEAT_MIN_LENGTH );
+        _nFloodMaxUserRepeats = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_MAX_USER_REPEATS,
+                ( defaults != null ) ? defaults._nFloodMaxUserRepeats : DEFAULT_FLOOD_MAX_USER_REPEATS );
+        _nFloodMaxRoomRepeats = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_MAX_ROOM_REPEATS,
+                ( defaults != null ) ? defaults._nFloodMaxRoomRepeats : DEFAULT_FLOOD_MAX_ROOM_REPEATS );
+        _strFloodBotName = AppPropertiesService.getProperty( strPrefix + PROPERTY_FLOOD_BOT_NAME,
+                ( defaults != null ) ? defaults._strFloodBotName : DEFAULT_FLOOD_BOT_NAME );
+        _strFloodBotMessage = AppPropertiesService.getProperty( strPrefix + PROPERTY_FLOOD_BOT_MESSAGE,
+                ( defaults != null ) ? defaults._strFloodBotMessage : DEFAULT_FLOOD_BOT_MESSAGE );
+        _nFloodBanMinutes = AppPropertiesService.getPropertyInt( strPrefix + PROPERTY_FLOOD_BAN_MINUTES,
+                ( defaults != null ) ? defaults._nFloodBanMinutes : DEFAULT_FLOOD_BAN_MINUTES );
+        _mapRooms = Collections.emptyMap(  );
+    }
+
+    /**
+     * Builds a snapshot of the settings of the chat and of its rooms from the properties
+     *
+     * @return The configuration
+     */
+    public static ChatConfiguration load(  )
+    {
+        ChatConfiguration configuration = new ChatConfiguration( PROPERTY_PREFIX, null );
+        Map<String, ChatConfiguration> mapRooms = new HashMap<String, ChatConfiguration>(  );
+
+        for ( int i = 1;; i++ )
+        {
+            String strRoomPrefix = PROPERTY_ROOM_PREFIX + i;
+            String strRoomName = AppPropertiesService.getProperty( strRoomPrefix + PROPERTY_ROOM_NAME, UNDEFINED );
+
+            if ( strRoomName.equals( UNDEFINED ) )
+            {
+                break;
+            }
+
+            mapRooms.put( strRoomName, new ChatConfiguration( strRoomPrefix + ".", configuration ) );
+        }
+
+        configuration._mapRooms = Collections.unmodifiableMap( mapRooms );
+
+        return configuration;
+    }
+
+    /**
+     * Returns the directory in which a service stores the state kept across the restarts. The directory must be
+     * outside the webapp, which is deleted when it is deployed again.
+     *
+     * @param strProperty The property giving the absolute path of the directory
+     * @return The directory, or null if the path is missing, relative or inside the webapp
+     */
+    static File getStorageDirectory( String strProperty )
+    {
+        String strPath = AppPropertiesService.getProperty( strProperty, "" ).trim(  );
+        File directory = new File( strPath );
+
+        try
+        {
+            String strWebappPath = new File( AppPathService.getWebAppPath(  ) ).getCanonicalPath(  );
+            String strDirectoryPath = directory.getCanonicalPath(  );
+
+            if ( directory.isAbsolute(  ) && !strDirectoryPath.equals( strWebappPath ) &&
+                    !strDirectoryPath.startsWith( strWebappPath + File.separator ) )
+            {
+                return directory;
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat : invalid path " + strPath, e );
+
+            return null;
+        }
+
+        AppLogService.error( "Chat : the property " + strProperty +
+            " must be the absolute path of a directory outside the webapp" );
+
+        return null;
+    }
+
+    /**
+     * Returns the settings of a room
+     *
+     * @param strRoomName The name of the room
+     * @return The settings of the room, or the global settings if the room has no specific settings
+     */
+    public ChatConfiguration getRoomConfiguration( String strRoomName )
+    {
+        ChatConfiguration configuration = _mapRooms.get( strRoomName );
+
+        return ( configuration != null ) ? configuration : this;
+    }
+
+    /**
+     * Returns the inactivity delay after which a user is removed
+     *
+     * @return The delay in seconds
+     */
+    public int getMaxInactivity(  )
+    {
+        return _nMaxInactivity;
+    }
+
+    /**
+     * Returns the number of entries kept by a room, and of private entries kept by a user
+     *
+     * @return The number of entries
+     */
+    public int getMaxMessages(  )
+    {
+        return _nMaxMessages;
+    }
+
+    /**
+     * Returns the delay over which the data sent by a user is counted
+     *
+     * @return The delay in seconds
+     */
+    public int getFloodDelaySeconds(  )
+    {
+        return _nFloodDelaySeconds;
+    }
+
+    /**
+     * Returns the size of the data a user may send during the flood delay
+     *
+     * @return The size
+     */
+    public int getFloodMaxDataSize(  )
+    {
+        return _nFloodMaxDataSize;
+    }
+
+    /**
+     * Returns the number of letters and digits under which a message is never considered as repeated
+     *
+     * @return The number of characters
+     */
+    public int getFloodRepeatMinLength(  )
+    {
+        return _nFloodRepeatMinLength;
+    }
+
+    /**
+     * Returns the number of times a user may repeat a message among his last messages
+     *
+     * @return The number of repeats
+     */
+    public int getFloodMaxUserRepeats(  )
+    {
+        return _nFloodMaxUserRepeats;
+    }
+
+    /**
+     * Returns the number of times a message may be repeated among the last messages of a room
+     *
+     * @return The number of repeats
+     */
+    public int getFloodMaxRoomRepeats(  )
+    {
+        return _nFloodMaxRoomRepeats;
+    }
+
+    /**
+     * Returns the name of the supervisor which bans the flooders
+     *
+     * @return The name
+     */
+    public String getFloodBotName(  )
+    {
+        return _strFloodBotName;
+    }
+
+    /**
+     * Returns the comment of the ban of a flooder
+     *
+     * @return The comment
+     */
+    public String getFloodBotMessage(  )
+    {
+        return _strFloodBotMessage;
+    }
+
+    /**
+     * Returns the duration of the ban of a flooder
+     *
+     * @return The duration in minutes, or 0 if the ban never expires
+     */
+    public int getFloodBanMinutes(  )
+    {
+        return _nFloodBanMinutes;
+    }
+}
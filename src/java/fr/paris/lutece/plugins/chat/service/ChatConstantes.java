@@ -1,58 +1,68 @@
-/*
- * Copyright (c) 2002-2014, Mairie de Paris
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- *
- *  1. Redistributions of source code must retain the above copyright notice
- *     and the following disclaimer.
- *
- *  2. Redistributions in binary form must reproduce the above copyright notice
- *     and the following disclaimer in the documentation and/or other materials
- *     provided with the distribution.
- *
- *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
- *     contributors may be used to endorse or promote products derived from
- *     this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- *
- * License 1.0
- */
-package fr.paris.lutece.plugins.chat.service;
-
-
-/**
- * Defines constants for the chat plugin.
- */
-public final class ChatConstantes
-{
-    /**
-     * Private constructor
-     */
-    private ChatConstantes()
-    {
-    }
-    
-    public static final String ATTRIBUTE_NICKNAME = "nickname";
-    public static final String ATTRIBUTE_ROOM_NAME = "room";
-    public static final String PARAM_NICKNAME = "nickname";
-    public static final String PARAM_MESSAGE = "msg";
-    public static final String PARAM_ROOM = "room";
-    public static final String PARAM_UI = "ui";
-    public static final String PARAM_VALUE_UI_HTML = "html";
-    public static final String PARAM_VALUE_UI_APPLET11 = "applet11";
-    public static final String PARAM_VALUE_UI_APPLET10 = "applet10";
-}
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+
+/**
+ * Defines constants for the chat plugin.
+ */
+public final class ChatConstantes
+{
+    /**
+     * Private constructor
+     */
+    private ChatConstantes()
+    {
+    }
+    
+    public static final String ATTRIBUTE_NICKNAME = "nickname";
+    public static final String ATTRIBUTE_ROOM_NAME = "room";
+    public static final String PARAM_NICKNAME = "nickname";
+    public static final String PARAM_MESSAGE = "msg";
+    public static final String PARAM_ROOM = "room";
+    public static final String PARAM_WAIT = "wait";
+    public static final String PARAM_LAST_ENTRY_ID = "last";
+    public static final String PARAM_ROSTER_VERSION = "roster";
+    public static final String PARAM_STATE_VERSION = "version";
+    public static final String PARAM_BEFORE = "before";
+    public static final String PARAM_TIME = "time";
+    public static final String PARAM_COUNT = "count";
+    public static final String PARAM_UI = "ui";
+    public static final String PARAM_VALUE_UI_HTML = "html";
+    public static final String PARAM_VALUE_UI_APPLET11 = "applet11";
+    public static final String PARAM_VALUE_UI_APPLET10 = "applet10";
+    public static final String HEADER_CLUSTER_SECRET = "X-Chat-Cluster-Secret";
+    public static final String HEADER_FORWARDED_FOR = "X-Chat-Forwarded-For";
+    public static final String HEADER_NICKNAME = "X-Chat-Nickname";
+}
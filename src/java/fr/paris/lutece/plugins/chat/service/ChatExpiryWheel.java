@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Timing wheel which removes the users inactive for too long. Each user is put in the slot of the second at which
+ * he expires if he is not seen again. Touching a user only updates his last access time : when his slot comes, a
+ * user seen since is moved to the slot of his new expiry time, the others are removed. So each tick only visits the
+ * users whose expiry time has come, and each user is visited about once per inactivity delay.
+ */
+final class ChatExpiryWheel implements Runnable
+{
+    private static final long TICK_MILLIS = 1000L;
+    private Queue<Expiry>[] _slots;
+    private volatile long _lCurrentTick;
+
+    /**
+     * Creates a new ChatExpiryWheel object
+     *
+     * @param nMaxInactivity The usual inactivity delay after which a user is removed, in seconds. The users whose
+     * delay is longer are checked once per turn of the wheel.
+     */
+    @SuppressWarnings( "unchecked" )
+    ChatExpiryWheel( int nMaxInactivity )
+    {
+        // The slot of the current tick is never used to schedule a user
+        _slots = new Queue[nMaxInactivity + 2];
+
+        for ( int i = 0; i < _slots.length; i++ )
+        {
+            _slots[i] = new ConcurrentLinkedQueue<Expiry>(  );
+        }
+
+        _lCurrentTick = System.currentTimeMillis(  ) / TICK_MILLIS;
+    }
+
+    /**
+     * Schedules the expiry of a user who joined a room
+     *
+     * @param room The room
+     * @param user The user
+     */
+    void schedule( ChatRoom room, ChatUser user )
+    {
+        schedule( new Expiry( room, user ) );
+    }
+
+    /**
+     * Processes the ticks elapsed since the previous run
+     */
+    public void run(  )
+    {
+        long lNowTick = System.currentTimeMillis(  ) / TICK_MILLIS;
+
+        while ( _lCurrentTick < lNowTick )
+        {
+            _lCurrentTick++;
+
+            Queue<Expiry> slot = _slots[(int) ( _lCurrentTick % _slots.length )];
+            Expiry expiry;
+
+            while ( ( expiry = slot.poll(  ) ) != null )
+            {
+                try
+                {
+                    process( expiry );
+                }
+                catch ( RuntimeException e )
+                {
+                    AppLogService.error( "Chat expiry : unable to process the user " +
+                        expiry._user.getNickname(  ), e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a user whose expiry time has come, or schedules him again if he has been seen since
+     *
+     * @param expiry The expiry
+     */
+    private void process( Expiry expiry )
+    {
+        ChatUser user = expiry._user;
+
+        if ( expiry._room.getUser( user.getNickname(  ) ) != user )
+        {
+            // The user has already left the room
+            return;
+        }
+
+        if ( getExpiryTime( expiry ) > System.currentTimeMillis(  ) )
+        {
+            schedule( expiry );
+        }
+        else
+        {
+            ChatService.expireUser( expiry._room, user );
+        }
+    }
+
+    /**
+     * Puts an expiry in the slot of the expiry time of its user
+     *
+     * @param expiry The expiry
+     */
+    private void schedule( Expiry expiry )
+    {
+        long lCurrentTick = _lCurrentTick;
+        long lTick = getExpiryTime( expiry ) / TICK_MILLIS;
+
+        // The slot of the current tick may already have been processed, the farthest slot is the previous one
+        lTick = Math.min( Math.max( lTick, lCurrentTick + 1 ), ( lCurrentTick + _slots.length ) - 1 );
+        _slots[(int) ( lTick % _slots.length )].add( expiry );
+    }
+
+    /**
+     * Returns the time at which a user expires if he is not seen again
+     *
+     * @param expiry The expiry of the user
+     * @return The time in milliseconds
+     */
+    private long getExpiryTime( Expiry expiry )
+    {
+        return expiry._user.getLastAccessTime(  ).getTime(  ) +
+        ( ChatService.getConfiguration( expiry._room ).getMaxInactivity(  ) * TICK_MILLIS );
+    }
+
+    /**
+     * A user scheduled in the wheel
+     */
+    private static final class Expiry
+    {
+        private ChatRoom _room;
+        private ChatUser _user;
+
+        /**
+         * Creates a new Expiry object
+         *
+         * @param room The room
+         * @param user The user
+         */
+        Expiry( ChatRoom room, ChatUser user )
+        {
+            _room = room;
+            _user = user;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+
+import java.nio.channels.FileLock;
+
+
+/**
+ * Leases stored in a directory shared by the nodes. Each lease is a file holding the id of the node and the time at
+ * which the lease expires, read and written under a file lock. The clocks of the nodes must be synchronized.
+ */
+public class ChatFileLease implements ChatLease
+{
+    private static final String PROPERTY_PATH = "chat.cluster.lease.path";
+    private static final String LEASE_EXTENSION = ".lease";
+
+    // The file locks are held by the JVM : the nodes running in the same JVM take turns
+    private static final Object LOCK = new Object(  );
+    private File _directory;
+    private String _strNodeId;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void start( String strNodeId ) throws IOException
+    {
+        String strPath = AppPropertiesService.getProperty( PROPERTY_PATH, "" ).trim(  );
+
+        if ( strPath.length(  ) == 0 )
+        {
+            throw new IOException( "The property " + PROPERTY_PATH + " is not defined" );
+        }
+
+        _directory = new File( strPath );
+
+        if ( !_directory.isDirectory(  ) && !_directory.mkdirs(  ) )
+        {
+            throw new IOException( "Unable to create the directory " + _directory );
+        }
+
+        _strNodeId = strNodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean acquire( String strName, long lDurationMillis )
+    {
+        try
+        {
+            return update( strName, lDurationMillis );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat lease : unable to acquire the lease " + strName, e );
+
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release( String strName )
+    {
+        try
+        {
+            update( strName, -1L );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat lease : unable to release the lease " + strName, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop(  )
+    {
+        // The leases are released by the cluster
+    }
+
+    /**
+     * Updates the file of a lease if the lease is free, expired or held by this node
+     *
+     * @param strName The name of the lease
+     * @param lDurationMillis The duration of the lease from now, or a negative value to release it
+     * @return true if the lease is held by this node after the update
+     * @throws IOException If the file can't be read or written
+     */
+    private boolean update( String strName, long lDurationMillis )
+        throws IOException
+    {
+        synchronized ( LOCK )
+        {
+            RandomAccessFile file = new RandomAccessFile( new File( _directory, strName + LEASE_EXTENSION ), "rw" );
+
+            try
+            {
+                FileLock lock = file.getChannel(  ).lock(  );
+
+                try
+                {
+                    long lNow = System.currentTimeMillis(  );
+
+                    if ( file.length(  ) != 0 )
+                    {
+                        String strHolder;
+                        long lExpiry;
+
+                        try
+                        {
+                            strHolder = file.readUTF(  );
+                            lExpiry = file.readLong(  );
+                        }
+                        catch ( EOFException e )
+                        {
+                            // A node stopped while writing the file : the lease is expired and the file overwritten
+                            AppLogService.error( "Chat lease : the file of the lease " + strName +
+                                " is truncated and is overwritten" );
+                            strHolder = null;
+                            lExpiry = 0L;
+                        }
+                        catch ( UTFDataFormatException e )
+                        {
+                            AppLogService.error( "Chat lease : the file of the lease " + strName +
+                                " is corrupted and is overwritten" );
+                            strHolder = null;
+                            lExpiry = 0L;
+                        }
+
+                        if ( ( strHolder != null ) && !strHolder.equals( _strNodeId ) &&
+                                ( ( lDurationMillis < 0 ) || ( lExpiry > lNow ) ) )
+                        {
+                            // The lease is held by another node
+                            return false;
+                        }
+                    }
+
+                    return write( file, lDurationMillis, lNow );
+                }
+                finally
+                {
+                    lock.release(  );
+                }
+            }
+            finally
+            {
+                file.close(  );
+            }
+        }
+    }
+
+    /**
+     * Writes this node as the holder of a lease, or empties the file of the lease to release it
+     *
+     * @param file The file of the lease
+     * @param lDurationMillis The duration of the lease from now, or a negative value to release it
+     * @param lNow The current time
+     * @return true if the lease is held by this node
+     * @throws IOException If the file can't be written
+     */
+    private boolean write( RandomAccessFile file, long lDurationMillis, long lNow )
+        throws IOException
+    {
+        file.setLength( 0 );
+
+        if ( lDurationMillis >= 0 )
+        {
+            file.writeUTF( _strNodeId );
+            file.writeLong( lNow + lDurationMillis );
+        }
+
+        return lDurationMillis >= 0;
+    }
+}
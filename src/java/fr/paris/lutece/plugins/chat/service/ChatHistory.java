@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * History of the rooms : the entries sent to all the users are stored in segments mapped in memory, one directory
+ * per room, and the last segments are kept. Clients page backwards through the history, the entries being read from
+ * the segments only when they are requested.
+ * <br>
+ * The entries added to the rooms are queued and stored by a background thread, which also creates, syncs and
+ * deletes the segments : the threads adding entries while the room is locked never wait for the disk.
+ */
+public final class ChatHistory implements ChatRoomListener, Runnable
+{
+    private static final String PROPERTY_ENABLED = "chat.history.enabled";
+    private static final String PROPERTY_PATH = "chat.history.path";
+    private static final String PROPERTY_SEGMENT_SIZE = "chat.history.segment.size";
+    private static final String PROPERTY_SEGMENTS = "chat.history.segments";
+    private static final String PROPERTY_PAGE_SIZE = "chat.history.page.size";
+    private static final String PROPERTY_QUEUE_SIZE = "chat.history.queue.size";
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENTS = 8;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final long POLL_MILLIS = 200L;
+    private static final String THREAD_NAME = "chat-history";
+    private static final String SEGMENT_EXTENSION = ".history";
+    private static final String SEGMENT_NAME_FORMAT = "%012d";
+    private static final String ENCODING = "UTF-8";
+    private File _directory;
+    private int _nSegmentSize;
+    private int _nSegments;
+    private int _nPageSize;
+    private Map<ChatRoom, List<ChatHistorySegment>> _mapSegments =
+        new ConcurrentHashMap<ChatRoom, List<ChatHistorySegment>>(  );
+    private BlockingQueue<Pending> _queue;
+    private Thread _thread;
+    private volatile boolean _bRunning;
+    private volatile boolean _bQueueFull;
+
+    /**
+     * Creates a new ChatHistory object
+     *
+     * @param directory The directory of the history
+     * @param nSegmentSize The size of a segment
+     * @param nSegments The number of segments kept for each room
+     * @param nPageSize The maximum number of entries read at once
+     * @param nQueueSize The number of entries waiting to be stored from which entries are dropped
+     */
+    ChatHistory( File directory, int nSegmentSize, int nSegments, int nPageSize, int nQueueSize )
+    {
+        _directory = directory;
+        _nSegmentSize = nSegmentSize;
+        _nSegments = Math.max( 1, nSegments );
+        _nPageSize = Math.max( 1, nPageSize );
+        _queue = new LinkedBlockingQueue<Pending>( Math.max( 1, nQueueSize ) );
+    }
+
+    /**
+     * Creates the history defined in the properties
+     *
+     * @return The history, or null if the history is not enabled or its directory is invalid
+     */
+    static ChatHistory create(  )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false ) )
+        {
+            return null;
+        }
+
+        File directory = ChatConfiguration.getStorageDirectory( PROPERTY_PATH );
+
+        if ( directory == null )
+        {
+            return null;
+        }
+
+        return new ChatHistory( directory,
+            AppPropertiesService.getPropertyInt( PROPERTY_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE ),
+            AppPropertiesService.getPropertyInt( PROPERTY_SEGMENTS, DEFAULT_SEGMENTS ),
+            AppPropertiesService.getPropertyInt( PROPERTY_PAGE_SIZE, DEFAULT_PAGE_SIZE ),
+            AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ) );
+    }
+
+    /**
+     * Opens the segments of the rooms and starts storing their entries. The ids of the entries stored are not given
+     * again by the rooms.
+     *
+     * @param rooms The rooms
+     */
+    void open( Enumeration rooms )
+    {
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            List<ChatHistorySegment> listSegments = new CopyOnWriteArrayList<ChatHistorySegment>(  );
+
+            for ( File file : getSegmentFiles( room ) )
+            {
+                try
+                {
+                    listSegments.add( new ChatHistorySegment( file, _nSegmentSize ) );
+                }
+                catch ( IOException e )
+                {
+                    AppLogService.error( "Chat history : unable to open the segment " + file, e );
+                }
+            }
+
+            if ( !listSegments.isEmpty(  ) )
+            {
+                room.restoreLastEntryId( listSegments.get( listSegments.size(  ) - 1 ).getLastId(  ) );
+            }
+
+            _mapSegments.put( room, listSegments );
+            room.addListener( this );
+        }
+
+        _bRunning = true;
+        _thread = new Thread( this, THREAD_NAME );
+        _thread.setDaemon( true );
+        _thread.start(  );
+    }
+
+    /**
+     * Stops storing the entries : the entries waiting are stored, then the segments are written to the disk
+     */
+    void close(  )
+    {
+        for ( ChatRoom room : _mapSegments.keySet(  ) )
+        {
+            room.removeListener( this );
+        }
+
+        _bRunning = false;
+
+        if ( _thread != null )
+        {
+            try
+            {
+                _thread.join(  );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread(  ).interrupt(  );
+            }
+        }
+
+        for ( List<ChatHistorySegment> listSegments : _mapSegments.values(  ) )
+        {
+            for ( ChatHistorySegment segment : listSegments )
+            {
+                segment.force(  );
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of entries read at once
+     *
+     * @return The number of entries
+     */
+    public int getPageSize(  )
+    {
+        return _nPageSize;
+    }
+
+    /**
+     * Returns the last entries of a room before an entry
+     *
+     * @param room The room
+     * @param lBeforeId The id of the entry : the entries returned have a lower id
+     * @param nCount The maximum number of entries, limited to the page size
+     * @return The entries, from the oldest to the newest
+     */
+    public List<ChatEntry> getEntriesBefore( ChatRoom room, long lBeforeId, int nCount )
+    {
+        List<ChatEntry> listEntries = new ArrayList<ChatEntry>(  );
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments == null )
+        {
+            return listEntries;
+        }
+
+        int nMax = Math.min( nCount, _nPageSize );
+        ChatHistorySegment[] segments = listSegments.toArray( new ChatHistorySegment[0] );
+
+        for ( int i = segments.length - 1; ( i >= 0 ) && ( listEntries.size(  ) < nMax ); i-- )
+        {
+            long lFirstId = segments[i].getFirstId(  );
+
+            if ( ( lFirstId >= 0 ) && ( lFirstId < lBeforeId ) )
+            {
+                segments[i].readBefore( lBeforeId, nMax, listEntries );
+            }
+        }
+
+        return listEntries;
+    }
+
+    /**
+     * Returns the first entries of a room after an entry
+     *
+     * @param room The room
+     * @param lAfterId The id of the entry : the entries returned have a greater id
+     * @param nCount The maximum number of entries
+     * @return The entries, from the oldest to the newest
+     */
+    List<ChatEntry> getEntriesAfter( ChatRoom room, long lAfterId, int nCount )
+    {
+        List<ChatEntry> listEntries = new ArrayList<ChatEntry>(  );
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments != null )
+        {
+            for ( ChatHistorySegment segment : listSegments )
+            {
+                if ( listEntries.size(  ) >= nCount )
+                {
+                    break;
+                }
+
+                if ( segment.getLastId(  ) > lAfterId )
+                {
+                    segment.readAfter( lAfterId, nCount - listEntries.size(  ), listEntries );
+                }
+            }
+        }
+
+        return listEntries;
+    }
+
+    /**
+     * Returns an entry of a room
+     *
+     * @param room The room
+     * @param lId The id of the entry
+     * @return The entry, or null if it is not in the history
+     */
+    public ChatEntry getEntry( ChatRoom room, long lId )
+    {
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments != null )
+        {
+            for ( ChatHistorySegment segment : listSegments )
+            {
+                long lFirstId = segment.getFirstId(  );
+
+                if ( ( lFirstId >= 0 ) && ( lFirstId <= lId ) && ( segment.getLastId(  ) >= lId ) )
+                {
+                    return segment.read( lId );
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the id of the oldest entry of a room kept by the history
+     *
+     * @param room The room
+     * @return The id, or 0 if the history of the room is empty
+     */
+    long getFirstEntryId( ChatRoom room )
+    {
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments != null )
+        {
+            for ( ChatHistorySegment segment : listSegments )
+            {
+                long lFirstId = segment.getFirstId(  );
+
+                if ( lFirstId >= 0 )
+                {
+                    return lFirstId;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the id of the first entry of a room added at or after a date. The entries with a lower id are older
+     * than this date.
+     *
+     * @param room The room
+     * @param lTime The date
+     * @return The id, or Long.MAX_VALUE if all the entries are older
+     */
+    public long getEntryIdAt( ChatRoom room, long lTime )
+    {
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments != null )
+        {
+            for ( ChatHistorySegment segment : listSegments )
+            {
+                if ( segment.getLastTime(  ) >= lTime )
+                {
+                    long lId = segment.findIdAt( lTime );
+
+                    if ( lId >= 0 )
+                    {
+                        return lId;
+                    }
+                }
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        // Private entries are not kept
+        if ( userRecipient != null )
+        {
+            return;
+        }
+
+        if ( _queue.offer( new Pending( room, entry ) ) )
+        {
+            _bQueueFull = false;
+        }
+        else if ( !_bQueueFull )
+        {
+            _bQueueFull = true;
+            AppLogService.error( "Chat history : too many entries waiting to be stored, entries are dropped" );
+        }
+    }
+
+    /**
+     * Stores the entries queued, in the order they have been added
+     */
+    public void run(  )
+    {
+        while ( _bRunning || !_queue.isEmpty(  ) )
+        {
+            try
+            {
+                Pending pending = _bRunning ? _queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS ) : _queue.poll(  );
+
+                if ( pending != null )
+                {
+                    store( pending._room, pending._entry );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                // Not expected : the entries waiting are stored and the thread stops
+                _bRunning = false;
+            }
+        }
+    }
+
+    /**
+     * Stores an entry in the current segment of its room, starting a new segment when it is full
+     *
+     * @param room The room
+     * @param entry The entry
+     */
+    private void store( ChatRoom room, ChatEntry entry )
+    {
+        List<ChatHistorySegment> listSegments = _mapSegments.get( room );
+
+        if ( listSegments == null )
+        {
+            return;
+        }
+
+        ChatHistorySegment segment = listSegments.isEmpty(  ) ? null : listSegments.get( listSegments.size(  ) - 1 );
+
+        if ( ( segment != null ) && segment.append( entry ) )
+        {
+            return;
+        }
+
+        // A new segment couldn't hold the entry either, and would evict the oldest segment for nothing
+        if ( ChatHistorySegment.getSize( entry ) > _nSegmentSize )
+        {
+            AppLogService.error( "Chat history : the entry " + entry.getId(  ) + " of the room " +
+                room.getName(  ) + " is larger than a segment and is not stored" );
+
+            return;
+        }
+
+        try
+        {
+            if ( segment != null )
+            {
+                segment.force(  );
+            }
+
+            segment = newSegment( room, segment );
+            listSegments.add( segment );
+
+            segment.append( entry );
+
+            while ( listSegments.size(  ) > _nSegments )
+            {
+                File file = listSegments.remove( 0 ).getFile(  );
+
+                // The segment is unmapped once the readers are done with it
+                if ( !file.delete(  ) )
+                {
+                    AppLogService.error( "Chat history : unable to delete the segment " + file );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat history : unable to store the entry " + entry.getId(  ) + " of the room " +
+                room.getName(  ), e );
+        }
+    }
+
+    /**
+     * Creates the segment following the current segment of a room
+     *
+     * @param room The room
+     * @param segment The current segment, or null
+     * @return The new segment
+     * @throws IOException If an I/O exception occurs
+     */
+    private ChatHistorySegment newSegment( ChatRoom room, ChatHistorySegment segment )
+        throws IOException
+    {
+        long lNumber = 1;
+
+        if ( segment != null )
+        {
+            String strName = segment.getFile(  ).getName(  );
+            lNumber = Long.parseLong( strName.substring( 0, strName.length(  ) - SEGMENT_EXTENSION.length(  ) ) ) + 1;
+        }
+
+        File directory = getRoomDirectory( room );
+
+        if ( !directory.isDirectory(  ) && !directory.mkdirs(  ) )
+        {
+            throw new IOException( "Unable to create the directory " + directory );
+        }
+
+        String strName = String.format( SEGMENT_NAME_FORMAT, lNumber ) + SEGMENT_EXTENSION;
+
+        return new ChatHistorySegment( new File( directory, strName ), _nSegmentSize );
+    }
+
+    /**
+     * Returns the segments of a room, from the oldest to the newest
+     *
+     * @param room The room
+     * @return The segments
+     */
+    private File[] getSegmentFiles( ChatRoom room )
+    {
+        List<File> listFiles = new ArrayList<File>(  );
+        File[] files = getRoomDirectory( room ).listFiles(  );
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isFile(  ) && file.getName(  ).endsWith( SEGMENT_EXTENSION ) )
+                {
+                    listFiles.add( file );
+                }
+            }
+        }
+
+        File[] segments = listFiles.toArray( new File[listFiles.size(  )] );
+
+        // The names are numbers of the same length
+        Arrays.sort( segments );
+
+        return segments;
+    }
+
+    /**
+     * Returns the directory of the segments of a room
+     *
+     * @param room The room
+     * @return The directory
+     */
+    private File getRoomDirectory( ChatRoom room )
+    {
+        try
+        {
+            return new File( _directory, URLEncoder.encode( room.getName(  ), ENCODING ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Entry waiting to be stored
+     */
+    private static final class Pending
+    {
+        private ChatRoom _room;
+        private ChatEntry _entry;
+
+        /**
+         * Creates a new Pending object
+         *
+         * @param room The room
+         * @param entry The entry
+         */
+        Pending( ChatRoom room, ChatEntry entry )
+        {
+            _room = room;
+            _entry = entry;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Segment of the history of a room : a file of fixed size mapped in memory, in which the entries are appended. The
+ * entries are read from the mapped file when they are requested, so the history is not kept on the heap. A sparse
+ * index gives the id, the date and the position of one entry out of INDEX_INTERVAL.
+ * <br>
+ * The entries are appended by one thread at a time. Each entry is written before its length, and becomes visible
+ * to the readers when the position of the end of the segment is moved after it. A file is read until the first
+ * entry without length, so an entry being written during a crash is ignored.
+ */
+final class ChatHistorySegment
+{
+    private static final int INDEX_INTERVAL = 32;
+    private static final int INDEX_INITIAL_SIZE = 64;
+    private static final int HEADER_SIZE = 4;
+    private static final int MIN_RECORD_SIZE = 8 + 8 + 4 + 2 + 4;
+    private static final String ENCODING = "UTF-8";
+    private File _file;
+    private int _nCapacity;
+    private MappedByteBuffer _buffer;
+    private ByteBuffer _writer;
+    private volatile int _nPosition;
+    private int _nRecords;
+    private long[] _indexIds = new long[INDEX_INITIAL_SIZE];
+    private long[] _indexTimes = new long[INDEX_INITIAL_SIZE];
+    private int[] _indexPositions = new int[INDEX_INITIAL_SIZE];
+    private int _nIndexSize;
+    private volatile long _lLastId;
+    private volatile long _lLastTime;
+
+    /**
+     * Opens a segment, creating its file if needed. The entries already in the file are indexed.
+     *
+     * @param file The file of the segment
+     * @param nCapacity The size of the file
+     * @throws IOException If an I/O exception occurs
+     */
+    ChatHistorySegment( File file, int nCapacity ) throws IOException
+    {
+        _file = file;
+
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+        try
+        {
+            _nCapacity = (int) Math.max( raf.length(  ), nCapacity );
+            raf.setLength( _nCapacity );
+            _buffer = raf.getChannel(  ).map( FileChannel.MapMode.READ_WRITE, 0, _nCapacity );
+        }
+        finally
+        {
+            // The mapping stays valid once the file is closed
+            raf.close(  );
+        }
+
+        _writer = _buffer.duplicate(  );
+        scan(  );
+    }
+
+    /**
+     * Indexes the entries already in the file and moves the end of the segment after them
+     */
+    private void scan(  )
+    {
+        int nPosition = 0;
+
+        while ( ( nPosition + HEADER_SIZE ) <= _nCapacity )
+        {
+            int nLength = _buffer.getInt( nPosition );
+
+            if ( ( nLength < MIN_RECORD_SIZE ) || ( nLength > ( _nCapacity - nPosition - HEADER_SIZE ) ) )
+            {
+                break;
+            }
+
+            index( _buffer.getLong( nPosition + HEADER_SIZE ), _buffer.getLong( nPosition + HEADER_SIZE + 8 ),
+                nPosition );
+            nPosition += ( HEADER_SIZE + nLength );
+        }
+
+        _nPosition = nPosition;
+    }
+
+    /**
+     * Appends an entry
+     *
+     * @param entry The entry
+     * @return false if there is not enough room left in the segment for the entry
+     */
+    boolean append( ChatEntry entry )
+    {
+        byte[] nickname = ( entry.getNickname(  ) != null ) ? encode( entry.getNickname(  ) ) : null;
+        byte[] message = encode( entry.getChatMessage(  ) );
+        int nNicknameLength = getNicknameLength( nickname );
+        int nLength = MIN_RECORD_SIZE + nNicknameLength + message.length;
+        int nPosition = _nPosition;
+
+        if ( ( nPosition + HEADER_SIZE + nLength ) > _nCapacity )
+        {
+            return false;
+        }
+
+        _writer.position( nPosition + HEADER_SIZE );
+        _writer.putLong( entry.getId(  ) );
+        _writer.putLong( entry.getTime(  ) );
+        _writer.putInt( entry.getType(  ) );
+        _writer.putShort( (short) ( ( nickname != null ) ? nNicknameLength : -1 ) );
+
+        if ( nickname != null )
+        {
+            _writer.put( nickname, 0, nNicknameLength );
+        }
+
+        _writer.putInt( message.length );
+        _writer.put( message );
+
+        // The length is written last : the entry is complete once it is there
+        _writer.putInt( nPosition, nLength );
+        index( entry.getId(  ), entry.getTime(  ), nPosition );
+        _nPosition = nPosition + HEADER_SIZE + nLength;
+
+        return true;
+    }
+
+    /**
+     * Returns the space taken by an entry in a segment
+     *
+     * @param entry The entry
+     * @return The size of the entry, header included
+     */
+    static int getSize( ChatEntry entry )
+    {
+        byte[] nickname = ( entry.getNickname(  ) != null ) ? encode( entry.getNickname(  ) ) : null;
+        byte[] message = encode( entry.getChatMessage(  ) );
+
+        return HEADER_SIZE + MIN_RECORD_SIZE + getNicknameLength( nickname ) + message.length;
+    }
+
+    /**
+     * Returns the number of bytes of a nickname stored in a segment
+     *
+     * @param nickname The encoded nickname, or null
+     * @return The number of bytes stored
+     */
+    private static int getNicknameLength( byte[] nickname )
+    {
+        return ( nickname != null ) ? Math.min( nickname.length, Short.MAX_VALUE ) : 0;
+    }
+
+    /**
+     * Adds an entry to the index
+     *
+     * @param lId The id of the entry
+     * @param lTime The date of the entry
+     * @param nPosition The position of the entry
+     */
+    private synchronized void index( long lId, long lTime, int nPosition )
+    {
+        if ( ( _nRecords % INDEX_INTERVAL ) == 0 )
+        {
+            if ( _nIndexSize == _indexIds.length )
+            {
+                _indexIds = Arrays.copyOf( _indexIds, _nIndexSize * 2 );
+                _indexTimes = Arrays.copyOf( _indexTimes, _nIndexSize * 2 );
+                _indexPositions = Arrays.copyOf( _indexPositions, _nIndexSize * 2 );
+            }
+
+            _indexIds[_nIndexSize] = lId;
+            _indexTimes[_nIndexSize] = lTime;
+            _indexPositions[_nIndexSize] = nPosition;
+            _nIndexSize++;
+        }
+
+        _nRecords++;
+        _lLastId = lId;
+        _lLastTime = lTime;
+    }
+
+    /**
+     * Reads the last entries before an id. The entries are inserted at the beginning of the list, so that the list
+     * stays sorted from the oldest entry to the newest when the segments are read from the newest to the oldest.
+     *
+     * @param lBeforeId The entries read have a lower id
+     * @param nCount The maximum number of entries in the list
+     * @param listEntries The list
+     */
+    void readBefore( long lBeforeId, int nCount, List<ChatEntry> listEntries )
+    {
+        long[] indexIds;
+        int[] indexPositions;
+        int nIndexSize;
+
+        synchronized ( this )
+        {
+            indexIds = _indexIds;
+            indexPositions = _indexPositions;
+            nIndexSize = _nIndexSize;
+        }
+
+        int nEnd = _nPosition;
+        ByteBuffer reader = _buffer.duplicate(  );
+        int nSlot = findLastBefore( indexIds, nIndexSize, lBeforeId );
+
+        // Read the entries of each slot of the index, from the newest slot
+        for ( ; ( nSlot >= 0 ) && ( listEntries.size(  ) < nCount ); nSlot-- )
+        {
+            int nSlotEnd = ( ( nSlot + 1 ) < nIndexSize ) ? indexPositions[nSlot + 1] : nEnd;
+            List<ChatEntry> listSlot = new ArrayList<ChatEntry>( INDEX_INTERVAL );
+            int nPosition = indexPositions[nSlot];
+
+            while ( nPosition < nSlotEnd )
+            {
+                int nLength = reader.getInt( nPosition );
+
+                if ( reader.getLong( nPosition + HEADER_SIZE ) >= lBeforeId )
+                {
+                    break;
+                }
+
+                listSlot.add( read( reader, nPosition ) );
+                nPosition += ( HEADER_SIZE + nLength );
+            }
+
+            int nFrom = Math.max( 0, listSlot.size(  ) - ( nCount - listEntries.size(  ) ) );
+            listEntries.addAll( 0, listSlot.subList( nFrom, listSlot.size(  ) ) );
+        }
+    }
+
+    /**
+     * Reads the first entries after an id
+     *
+     * @param lAfterId The entries read have a greater id
+     * @param nCount The maximum number of entries read
+     * @param listEntries The list to which the entries are added
+     */
+    void readAfter( long lAfterId, int nCount, List<ChatEntry> listEntries )
+    {
+        long[] indexIds;
+        int[] indexPositions;
+        int nIndexSize;
+
+        synchronized ( this )
+        {
+            indexIds = _indexIds;
+            indexPositions = _indexPositions;
+            nIndexSize = _nIndexSize;
+        }
+
+        int nEnd = _nPosition;
+        ByteBuffer reader = _buffer.duplicate(  );
+        int nSlot = Math.max( 0, findLastBefore( indexIds, nIndexSize, lAfterId + 1 ) );
+        int nPosition = ( nIndexSize > 0 ) ? indexPositions[nSlot] : nEnd;
+
+        for ( int nRead = 0; ( nPosition < nEnd ) && ( nRead < nCount ); )
+        {
+            if ( reader.getLong( nPosition + HEADER_SIZE ) > lAfterId )
+            {
+                listEntries.add( read( reader, nPosition ) );
+                nRead++;
+            }
+
+            nPosition += ( HEADER_SIZE + reader.getInt( nPosition ) );
+        }
+    }
+
+    /**
+     * Reads an entry
+     *
+     * @param lId The id of the entry
+     * @return The entry, or null if it is not in the segment
+     */
+    ChatEntry read( long lId )
+    {
+        long[] indexIds;
+        int[] indexPositions;
+        int nIndexSize;
+
+        synchronized ( this )
+        {
+            indexIds = _indexIds;
+            indexPositions = _indexPositions;
+            nIndexSize = _nIndexSize;
+        }
+
+        int nEnd = _nPosition;
+        ByteBuffer reader = _buffer.duplicate(  );
+        int nSlot = findLastBefore( indexIds, nIndexSize, lId + 1 );
+        int nPosition = ( nSlot >= 0 ) ? indexPositions[nSlot] : nEnd;
+
+        while ( nPosition < nEnd )
+        {
+            long lEntryId = reader.getLong( nPosition + HEADER_SIZE );
+
+            if ( lEntryId == lId )
+            {
+                return read( reader, nPosition );
+            }
+
+            if ( lEntryId > lId )
+            {
+                break;
+            }
+
+            nPosition += ( HEADER_SIZE + reader.getInt( nPosition ) );
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the id of the first entry added at or after a date
+     *
+     * @param lTime The date
+     * @return The id, or -1 if all the entries of the segment are older
+     */
+    long findIdAt( long lTime )
+    {
+        long[] indexTimes;
+        int[] indexPositions;
+        int nIndexSize;
+
+        synchronized ( this )
+        {
+            indexTimes = _indexTimes;
+            indexPositions = _indexPositions;
+            nIndexSize = _nIndexSize;
+        }
+
+        int nEnd = _nPosition;
+        ByteBuffer reader = _buffer.duplicate(  );
+        int nSlot = Math.max( 0, findLastBefore( indexTimes, nIndexSize, lTime ) );
+        int nPosition = ( nIndexSize > 0 ) ? indexPositions[nSlot] : nEnd;
+
+        while ( nPosition < nEnd )
+        {
+            if ( reader.getLong( nPosition + HEADER_SIZE + 8 ) >= lTime )
+            {
+                return reader.getLong( nPosition + HEADER_SIZE );
+            }
+
+            nPosition += ( HEADER_SIZE + reader.getInt( nPosition ) );
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of the first entry of the segment
+     *
+     * @return The id, or -1 if the segment is empty
+     */
+    synchronized long getFirstId(  )
+    {
+        return ( _nIndexSize > 0 ) ? _indexIds[0] : -1;
+    }
+
+    /**
+     * Returns the id of the last entry of the segment
+     *
+     * @return The id, or 0 if the segment is empty
+     */
+    long getLastId(  )
+    {
+        return _lLastId;
+    }
+
+    /**
+     * Returns the date of the last entry of the segment
+     *
+     * @return The date, or 0 if the segment is empty
+     */
+    long getLastTime(  )
+    {
+        return _lLastTime;
+    }
+
+    /**
+     * Returns the file of the segment
+     *
+     * @return The file
+     */
+    File getFile(  )
+    {
+        return _file;
+    }
+
+    /**
+     * Writes the entries appended to the disk
+     */
+    void force(  )
+    {
+        _buffer.force(  );
+    }
+
+    /**
+     * Reads an entry
+     *
+     * @param reader A view of the segment
+     * @param nPosition The position of the entry
+     * @return The entry
+     */
+    private static ChatEntry read( ByteBuffer reader, int nPosition )
+    {
+        reader.position( nPosition + HEADER_SIZE );
+
+        long lId = reader.getLong(  );
+        long lTime = reader.getLong(  );
+        int nType = reader.getInt(  );
+        short nNicknameLength = reader.getShort(  );
+        String strNickname = ( nNicknameLength >= 0 ) ? decode( reader, nNicknameLength ) : null;
+        String strMessage = decode( reader, reader.getInt(  ) );
+        ChatEntry entry = new ChatEntry( strNickname, strMessage, nType );
+        entry.setId( lId );
+        entry.setTime( lTime );
+
+        return entry;
+    }
+
+    /**
+     * Returns the last slot of an index whose value is lower than a value
+     *
+     * @param index The values of the index, in ascending order
+     * @param nSize The size of the index
+     * @param lValue The value
+     * @return The slot, or -1 if no value is lower
+     */
+    private static int findLastBefore( long[] index, int nSize, long lValue )
+    {
+        int nLow = 0;
+        int nHigh = nSize - 1;
+
+        while ( nLow <= nHigh )
+        {
+            int nMiddle = ( nLow + nHigh ) >>> 1;
+
+            if ( index[nMiddle] < lValue )
+            {
+                nLow = nMiddle + 1;
+            }
+            else
+            {
+                nHigh = nMiddle - 1;
+            }
+        }
+
+        return nHigh;
+    }
+
+    /**
+     * Encodes a string
+     *
+     * @param strValue The string
+     * @return The bytes
+     */
+    private static byte[] encode( String strValue )
+    {
+        try
+        {
+            return strValue.getBytes( ENCODING );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Decodes a string
+     *
+     * @param reader The view of the segment, positioned on the string
+     * @param nLength The length of the string in bytes
+     * @return The string
+     */
+    private static String decode( ByteBuffer reader, int nLength )
+    {
+        byte[] value = new byte[nLength];
+        reader.get( value );
+
+        try
+        {
+            return new String( value, ENCODING );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
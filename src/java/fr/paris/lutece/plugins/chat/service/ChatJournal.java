@@ -0,0 +1,1104 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatBanIndex;
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only journal of the rooms. The entries sent to all the users, the topic changes, the bans and the debans
+ * are appended as binary records to segment files, one directory per room. The records are written by a dedicated
+ * thread and synced to the disk in batches, so that posting a message never waits for the disk. At startup, the
+ * state of the rooms is rebuilt by replaying the segments. Each segment starts with the topic and the bans of the
+ * room, so that the oldest segments can be deleted.
+ * <br>
+ * The state of each room changed is also written periodically to a snapshot : topic, bans, last entries and the
+ * position reached in the segments. At startup, the snapshot is loaded and only the records written after it are
+ * replayed.
+ * <br>
+ * Each record is written as its length, its content and the CRC32 of its content. The replay of a segment stops at
+ * the first incomplete or corrupted record, which is the record being written during a crash.
+ */
+public final class ChatJournal implements ChatRoomListener, Runnable
+{
+    private static final String PROPERTY_ENABLED = "chat.journal.enabled";
+    private static final String PROPERTY_PATH = "chat.journal.path";
+    private static final String PROPERTY_SEGMENT_SIZE = "chat.journal.segment.size";
+    private static final String PROPERTY_SEGMENTS = "chat.journal.segments";
+    private static final String PROPERTY_SYNC_MILLIS = "chat.journal.sync.millis";
+    private static final String PROPERTY_QUEUE_SIZE = "chat.journal.queue.size";
+    private static final String PROPERTY_SNAPSHOT_SECONDS = "chat.journal.snapshot.seconds";
+    private static final long DEFAULT_SEGMENT_SIZE = 1024L * 1024L;
+    private static final int DEFAULT_SEGMENTS = 4;
+    private static final long DEFAULT_SYNC_MILLIS = 200L;
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final long DEFAULT_SNAPSHOT_SECONDS = 60L;
+    private static final String THREAD_NAME = "chat-journal";
+    private static final String SEGMENT_EXTENSION = ".journal";
+    private static final String SEGMENT_NAME_FORMAT = "%012d";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final String ENCODING = "UTF-8";
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_TOPIC = 2;
+    private static final byte TYPE_BAN = 3;
+    private static final byte TYPE_DEBAN = 4;
+    private static final byte TYPE_SNAPSHOT = 5;
+    private File _directory;
+    private long _lSegmentSize;
+    private int _nSegments;
+    private long _lSyncMillis;
+    private long _lSnapshotMillis;
+    private BlockingQueue<Record> _queue;
+    private List<ChatRoom> _listRooms = new ArrayList<ChatRoom>(  );
+    private Map<ChatRoom, Segment> _mapSegments = new HashMap<ChatRoom, Segment>(  );
+    private Set<ChatRoom> _setChangedRooms = new HashSet<ChatRoom>(  );
+    private Thread _thread;
+    private volatile boolean _bRunning;
+    private volatile boolean _bQueueFull;
+
+    /**
+     * Creates a new ChatJournal object
+     *
+     * @param directory The directory of the journal
+     * @param lSegmentSize The size from which a new segment is started
+     * @param nSegments The number of segments kept for each room
+     * @param lSyncMillis The maximum delay before the records written are synced to the disk
+     * @param nQueueSize The number of records waiting to be written from which records are dropped
+     * @param lSnapshotMillis The delay between two snapshots of a room changed
+     */
+    ChatJournal( File directory, long lSegmentSize, int nSegments, long lSyncMillis, int nQueueSize,
+        long lSnapshotMillis )
+    {
+        _directory = directory;
+        _lSegmentSize = lSegmentSize;
+        _nSegments = Math.max( 1, nSegments );
+        _lSyncMillis = lSyncMillis;
+        _lSnapshotMillis = lSnapshotMillis;
+        _queue = new LinkedBlockingQueue<Record>( nQueueSize );
+    }
+
+    /**
+     * Creates the journal defined in the properties
+     *
+     * @return The journal, or null if the journal is not enabled or its directory is invalid
+     */
+    static ChatJournal create(  )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false ) )
+        {
+            return null;
+        }
+
+        File directory = ChatConfiguration.getStorageDirectory( PROPERTY_PATH );
+
+        if ( directory == null )
+        {
+            return null;
+        }
+
+        return new ChatJournal( directory,
+            AppPropertiesService.getPropertyLong( PROPERTY_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE ),
+            AppPropertiesService.getPropertyInt( PROPERTY_SEGMENTS, DEFAULT_SEGMENTS ),
+            AppPropertiesService.getPropertyLong( PROPERTY_SYNC_MILLIS, DEFAULT_SYNC_MILLIS ),
+            AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ),
+            1000L * AppPropertiesService.getPropertyLong( PROPERTY_SNAPSHOT_SECONDS, DEFAULT_SNAPSHOT_SECONDS ) );
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Replay
+
+    /**
+     * Rebuilds the state of a room : last entries, topic and bans. The snapshot of the room is loaded, then the
+     * records written after it are replayed. The room must not be journaled yet.
+     *
+     * @param room The room
+     */
+    void replay( ChatRoom room )
+    {
+        Snapshot snapshot = null;
+        File fileSnapshot = new File( getRoomDirectory( room ), SNAPSHOT_FILE );
+
+        if ( fileSnapshot.isFile(  ) )
+        {
+            try
+            {
+                snapshot = readSnapshot( fileSnapshot );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat journal : unable to read the snapshot " + fileSnapshot, e );
+            }
+        }
+
+        int nRecords = 0;
+
+        if ( snapshot != null )
+        {
+            for ( byte[] record : snapshot._listRecords )
+            {
+                nRecords += replay( room, record, 0 );
+            }
+        }
+        else
+        {
+            snapshot = new Snapshot(  );
+        }
+
+        for ( File file : getSegmentFiles( room ) )
+        {
+            long lNumber = getSegmentNumber( file );
+
+            // The segments older than the snapshot are already in it
+            if ( lNumber >= snapshot._lSegment )
+            {
+                try
+                {
+                    nRecords += replay( room, file, ( lNumber == snapshot._lSegment ) ? snapshot._lOffset : 0,
+                        snapshot._lLastEntryId );
+                }
+                catch ( IOException e )
+                {
+                    AppLogService.error( "Chat journal : unable to read the segment " + file, e );
+                }
+            }
+        }
+
+        AppLogService.info( "Chat journal : " + nRecords + " records replayed for the room " + room.getName(  ) );
+    }
+
+    /**
+     * Replays the records of a segment
+     *
+     * @param room The room
+     * @param file The segment
+     * @param lOffset The position of the first record to replay
+     * @param lLastEntryId The id of the last entry already restored : the entries up to this one are skipped
+     * @return The number of records replayed
+     * @throws IOException If an I/O exception occurs
+     */
+    private int replay( ChatRoom room, File file, long lOffset, long lLastEntryId )
+        throws IOException
+    {
+        FileInputStream fis = new FileInputStream( file );
+        DataInputStream in = new DataInputStream( new BufferedInputStream( fis ) );
+        int nRecords = 0;
+
+        try
+        {
+            fis.getChannel(  ).position( lOffset );
+
+            byte[] record;
+
+            while ( ( record = readRecord( in ) ) != null )
+            {
+                nRecords += replay( room, record, lLastEntryId );
+            }
+        }
+        finally
+        {
+            in.close(  );
+        }
+
+        return nRecords;
+    }
+
+    /**
+     * Replays a record
+     *
+     * @param room The room
+     * @param record The content of the record
+     * @param lLastEntryId The id of the last entry already restored
+     * @return 1 if the record has been replayed, 0 if it is skipped or invalid
+     */
+    private static int replay( ChatRoom room, byte[] record, long lLastEntryId )
+    {
+        try
+        {
+            return apply( room, new DataInputStream( new ByteArrayInputStream( record ) ), lLastEntryId ) ? 1 : 0;
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat journal : invalid record in the room " + room.getName(  ), e );
+
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a snapshot
+     *
+     * @param file The file of the snapshot
+     * @return The snapshot, or null if the file is incomplete or corrupted
+     * @throws IOException If an I/O exception occurs
+     */
+    private static Snapshot readSnapshot( File file ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+        try
+        {
+            byte[] header = readRecord( in );
+
+            if ( header == null )
+            {
+                return null;
+            }
+
+            DataInputStream inHeader = new DataInputStream( new ByteArrayInputStream( header ) );
+
+            if ( inHeader.readByte(  ) != TYPE_SNAPSHOT )
+            {
+                return null;
+            }
+
+            Snapshot snapshot = new Snapshot(  );
+            inHeader.readLong(  );
+            snapshot._lSegment = inHeader.readLong(  );
+            snapshot._lOffset = inHeader.readLong(  );
+            snapshot._lLastEntryId = inHeader.readLong(  );
+
+            int nRecords = inHeader.readInt(  );
+
+            for ( int i = 0; i < nRecords; i++ )
+            {
+                byte[] record = readRecord( in );
+
+                if ( record == null )
+                {
+                    return null;
+                }
+
+                snapshot._listRecords.add( record );
+            }
+
+            return snapshot;
+        }
+        finally
+        {
+            in.close(  );
+        }
+    }
+
+    /**
+     * Reads the content of the next record of a segment
+     *
+     * @param in The segment
+     * @return The content, or null at the end of the segment or at the first incomplete or corrupted record
+     * @throws IOException If an I/O exception occurs
+     */
+    private static byte[] readRecord( DataInputStream in ) throws IOException
+    {
+        try
+        {
+            int nLength = in.readInt(  );
+
+            if ( ( nLength <= 0 ) || ( nLength > MAX_RECORD_SIZE ) )
+            {
+                return null;
+            }
+
+            byte[] record = new byte[nLength];
+            in.readFully( record );
+
+            int nCrc = in.readInt(  );
+            CRC32 crc = new CRC32(  );
+            crc.update( record );
+
+            return ( nCrc == (int) crc.getValue(  ) ) ? record : null;
+        }
+        catch ( EOFException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Applies a record to a room
+     *
+     * @param room The room
+     * @param in The content of the record
+     * @param lLastEntryId The id of the last entry already restored : the entries up to this one are skipped
+     * @return true if the record has been applied
+     * @throws IOException If an I/O exception occurs
+     */
+    private static boolean apply( ChatRoom room, DataInputStream in, long lLastEntryId )
+        throws IOException
+    {
+        byte nType = in.readByte(  );
+        long lTime = in.readLong(  );
+
+        switch ( nType )
+        {
+            case TYPE_ENTRY:
+
+                long lId = in.readLong(  );
+
+                if ( lId <= lLastEntryId )
+                {
+                    return false;
+                }
+
+                int nEntryType = in.readInt(  );
+                String strNickname = in.readBoolean(  ) ? ChatStrings.read( in ) : null;
+                ChatEntry entry = new ChatEntry( strNickname, ChatStrings.read( in ), nEntryType );
+                entry.setId( lId );
+                entry.setTime( lTime );
+                room.restoreChatEntry( entry );
+
+                break;
+
+            case TYPE_TOPIC:
+                room.setDescription( ChatStrings.read( in ) );
+
+                break;
+
+            case TYPE_BAN:
+
+                String strIpAddress = ChatStrings.read( in );
+                ChatUser user = new ChatUser( ChatStrings.read( in ) );
+                user.setIpAddress( strIpAddress );
+                user.setLastAccessTime( new Date( lTime ) );
+
+                // The bans recorded before the expiry was journaled never expire
+                room.addBannedUser( user, ( in.available(  ) > 0 ) ? in.readLong(  ) : ChatBanIndex.NO_EXPIRY );
+
+                break;
+
+            case TYPE_DEBAN:
+                room.debanUser( ChatStrings.read( in ) );
+
+                break;
+
+            default:
+
+                // Unknown records are ignored
+                return false;
+        }
+
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Recording
+
+    /**
+     * Starts journaling rooms. Each room starts a new segment.
+     *
+     * @param rooms The rooms
+     */
+    void start( Enumeration rooms )
+    {
+        while ( rooms.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) rooms.nextElement(  );
+            _listRooms.add( room );
+            room.addListener( this );
+        }
+
+        _bRunning = true;
+        _thread = new Thread( this, THREAD_NAME );
+        _thread.setDaemon( true );
+        _thread.start(  );
+    }
+
+    /**
+     * Stops journaling : the records waiting are written and synced, then the segments are closed
+     */
+    void stop(  )
+    {
+        for ( ChatRoom room : _listRooms )
+        {
+            room.removeListener( this );
+        }
+
+        _bRunning = false;
+
+        // The thread is not interrupted, which would close the segments : it stops within the sync delay
+        if ( _thread != null )
+        {
+            try
+            {
+                _thread.join(  );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread(  ).interrupt(  );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        // Private entries are not kept
+        if ( userRecipient == null )
+        {
+            enqueue( new Record( room, TYPE_ENTRY, entry, null, null ) );
+        }
+    }
+
+    /**
+     * Records a change of the topic of a room
+     *
+     * @param room The room
+     */
+    void topicChanged( ChatRoom room )
+    {
+        enqueue( new Record( room, TYPE_TOPIC, null, room.getDescription(  ), null ) );
+    }
+
+    /**
+     * Records a ban
+     *
+     * @param room The room
+     * @param strIpAddress The address banned
+     * @param strNickname The nickname of the user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    void userBanned( ChatRoom room, String strIpAddress, String strNickname, long lExpiry )
+    {
+        Record record = new Record( room, TYPE_BAN, null, strIpAddress, strNickname );
+        record._lExpiry = lExpiry;
+        enqueue( record );
+    }
+
+    /**
+     * Records a deban
+     *
+     * @param room The room
+     * @param strIpAddress The address authorized again
+     */
+    void userDebanned( ChatRoom room, String strIpAddress )
+    {
+        enqueue( new Record( room, TYPE_DEBAN, null, strIpAddress, null ) );
+    }
+
+    /**
+     * Gives a record to the writing thread without waiting
+     *
+     * @param record The record
+     */
+    private void enqueue( Record record )
+    {
+        if ( _queue.offer( record ) )
+        {
+            _bQueueFull = false;
+        }
+        else if ( !_bQueueFull )
+        {
+            _bQueueFull = true;
+            AppLogService.error( "Chat journal : too many records waiting to be written, records are dropped" );
+        }
+    }
+
+    /**
+     * Writes the records, syncs them in batches and writes the snapshots
+     */
+    public void run(  )
+    {
+        List<Record> listRecords = new ArrayList<Record>(  );
+        long lLastSync = System.currentTimeMillis(  );
+        long lLastSnapshot = lLastSync;
+        boolean bDirty = false;
+
+        while ( _bRunning || !_queue.isEmpty(  ) )
+        {
+            try
+            {
+                Record record = _bRunning ? _queue.poll( _lSyncMillis, TimeUnit.MILLISECONDS ) : _queue.poll(  );
+
+                if ( record != null )
+                {
+                    listRecords.add( record );
+                    _queue.drainTo( listRecords );
+
+                    for ( Record r : listRecords )
+                    {
+                        write( r );
+                    }
+
+                    listRecords.clear(  );
+                    bDirty = true;
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                // Not expected : the records waiting are written and the thread stops
+                _bRunning = false;
+            }
+
+            if ( bDirty && ( ( System.currentTimeMillis(  ) - lLastSync ) >= _lSyncMillis ) )
+            {
+                sync(  );
+                lLastSync = System.currentTimeMillis(  );
+                bDirty = false;
+            }
+
+            if ( ( System.currentTimeMillis(  ) - lLastSnapshot ) >= _lSnapshotMillis )
+            {
+                snapshot(  );
+                lLastSnapshot = System.currentTimeMillis(  );
+            }
+        }
+
+        sync(  );
+        snapshot(  );
+
+        for ( Segment segment : _mapSegments.values(  ) )
+        {
+            segment.close(  );
+        }
+
+        _mapSegments.clear(  );
+    }
+
+    /**
+     * Writes a record in the current segment of its room
+     *
+     * @param record The record
+     */
+    private void write( Record record )
+    {
+        byte[] content;
+
+        try
+        {
+            content = encode( record );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat journal : unable to encode a record of the room " + record._room.getName(  ),
+                e );
+
+            return;
+        }
+
+        if ( content.length > MAX_RECORD_SIZE )
+        {
+            // The replay would stop at this record : it is dropped, the segment is kept
+            AppLogService.error( "Chat journal : a record of the room " + record._room.getName(  ) + " is too large (" +
+                content.length + " bytes), it is not journaled" );
+
+            return;
+        }
+
+        try
+        {
+            Segment segment = getSegment( record._room );
+            segment.write( content );
+            _setChangedRooms.add( record._room );
+
+            if ( segment.getSize(  ) >= _lSegmentSize )
+            {
+                segment.sync(  );
+                segment.close(  );
+                _mapSegments.remove( record._room );
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat journal : unable to write a record of the room " + record._room.getName(  ), e );
+
+            Segment segment = _mapSegments.remove( record._room );
+
+            if ( segment != null )
+            {
+                segment.close(  );
+            }
+        }
+    }
+
+    /**
+     * Syncs the segments to the disk
+     */
+    private void sync(  )
+    {
+        for ( Segment segment : _mapSegments.values(  ) )
+        {
+            try
+            {
+                segment.sync(  );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat journal : unable to sync the segment " + segment._file, e );
+            }
+        }
+    }
+
+    /**
+     * Returns the current segment of a room, starting a new one if needed. A new segment starts with the topic and
+     * the bans of the room, and the oldest segments are deleted.
+     *
+     * @param room The room
+     * @return The segment
+     * @throws IOException If an I/O exception occurs
+     */
+    private Segment getSegment( ChatRoom room ) throws IOException
+    {
+        Segment segment = _mapSegments.get( room );
+
+        if ( segment != null )
+        {
+            return segment;
+        }
+
+        File[] files = getSegmentFiles( room );
+        long lNumber = ( files.length > 0 ) ? ( getSegmentNumber( files[files.length - 1] ) + 1 ) : 1;
+
+        File directory = getRoomDirectory( room );
+
+        if ( !directory.isDirectory(  ) && !directory.mkdirs(  ) )
+        {
+            throw new IOException( "Unable to create the directory " + directory );
+        }
+
+        String strName = String.format( SEGMENT_NAME_FORMAT, lNumber ) + SEGMENT_EXTENSION;
+        segment = new Segment( new File( directory, strName ), lNumber );
+        _mapSegments.put( room, segment );
+
+        // Checkpoint of the state which is not rebuilt from the entries
+        for ( byte[] record : encodeState( room ) )
+        {
+            segment.write( record );
+        }
+
+        // Delete the oldest segments
+        for ( int i = 0; i <= ( files.length - _nSegments ); i++ )
+        {
+            if ( !files[i].delete(  ) )
+            {
+                AppLogService.error( "Chat journal : unable to delete the segment " + files[i] );
+            }
+        }
+
+        return segment;
+    }
+
+    /**
+     * Writes the snapshots of the rooms changed since the previous snapshots
+     */
+    private void snapshot(  )
+    {
+        for ( ChatRoom room : _setChangedRooms )
+        {
+            try
+            {
+                Segment segment = getSegment( room );
+                segment.sync(  );
+                writeSnapshot( room, segment._lNumber, segment.getSize(  ) );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat journal : unable to write the snapshot of the room " + room.getName(  ), e );
+            }
+        }
+
+        _setChangedRooms.clear(  );
+    }
+
+    /**
+     * Writes the snapshot of a room. The snapshot is written to a temporary file, then replaces the previous one.
+     *
+     * @param room The room
+     * @param lSegment The number of the current segment
+     * @param lOffset The position in the current segment from which the records are not in the snapshot
+     * @throws IOException If an I/O exception occurs
+     */
+    private void writeSnapshot( ChatRoom room, long lSegment, long lOffset )
+        throws IOException
+    {
+        List<byte[]> listRecords = encodeState( room );
+        List<ChatEntry> listEntries = room.getChatEntries(  );
+
+        for ( ChatEntry entry : listEntries )
+        {
+            listRecords.add( encode( new Record( room, TYPE_ENTRY, entry, null, null ) ) );
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream outHeader = new DataOutputStream( bytes );
+        outHeader.writeByte( TYPE_SNAPSHOT );
+        outHeader.writeLong( System.currentTimeMillis(  ) );
+        outHeader.writeLong( lSegment );
+        outHeader.writeLong( lOffset );
+        outHeader.writeLong( listEntries.isEmpty(  ) ? 0 : listEntries.get( listEntries.size(  ) - 1 ).getId(  ) );
+        outHeader.writeInt( listRecords.size(  ) );
+        outHeader.flush(  );
+
+        File directory = getRoomDirectory( room );
+        File fileTemp = new File( directory, SNAPSHOT_TEMP_FILE );
+        FileOutputStream fos = new FileOutputStream( fileTemp );
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos ) );
+            writeRecord( out, bytes.toByteArray(  ) );
+
+            for ( byte[] record : listRecords )
+            {
+                writeRecord( out, record );
+            }
+
+            out.flush(  );
+            fos.getChannel(  ).force( false );
+        }
+        finally
+        {
+            fos.close(  );
+        }
+
+        File file = new File( directory, SNAPSHOT_FILE );
+
+        if ( !fileTemp.renameTo( file ) && ( !file.delete(  ) || !fileTemp.renameTo( file ) ) )
+        {
+            throw new IOException( "Unable to replace the snapshot " + file );
+        }
+    }
+
+    /**
+     * Encodes the state of a room which is not rebuilt from the entries : the topic and the bans
+     *
+     * @param room The room
+     * @return The contents of the records
+     * @throws IOException If an I/O exception occurs
+     */
+    private static List<byte[]> encodeState( ChatRoom room )
+        throws IOException
+    {
+        List<byte[]> listRecords = new ArrayList<byte[]>(  );
+        listRecords.add( encode( new Record( room, TYPE_TOPIC, null, room.getDescription(  ), null ) ) );
+
+        Enumeration<ChatUser> bannedUsers = room.getBannedUsers(  );
+
+        while ( bannedUsers.hasMoreElements(  ) )
+        {
+            ChatUser user = bannedUsers.nextElement(  );
+            Date dateLastAccess = user.getLastAccessTime(  );
+            Record record = new Record( room, TYPE_BAN, null, user.getIpAddress(  ), user.getNickname(  ) );
+            record._lExpiry = room.getBanExpiry( user.getIpAddress(  ) );
+
+            if ( dateLastAccess != null )
+            {
+                record._lTime = dateLastAccess.getTime(  );
+            }
+
+            listRecords.add( encode( record ) );
+        }
+
+        return listRecords;
+    }
+
+    /**
+     * Writes a record : its length, its content and the CRC32 of its content
+     *
+     * @param out The output stream
+     * @param record The content of the record
+     * @throws IOException If an I/O exception occurs
+     */
+    private static void writeRecord( DataOutputStream out, byte[] record )
+        throws IOException
+    {
+        CRC32 crc = new CRC32(  );
+        crc.update( record );
+        out.writeInt( record.length );
+        out.write( record );
+        out.writeInt( (int) crc.getValue(  ) );
+    }
+
+    /**
+     * Encodes the content of a record
+     *
+     * @param record The record
+     * @return The content
+     * @throws IOException If an I/O exception occurs
+     */
+    private static byte[] encode( Record record ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeByte( record._nType );
+        out.writeLong( record._lTime );
+
+        switch ( record._nType )
+        {
+            case TYPE_ENTRY:
+                out.writeLong( record._entry.getId(  ) );
+                out.writeInt( record._entry.getType(  ) );
+                out.writeBoolean( record._entry.getNickname(  ) != null );
+
+                if ( record._entry.getNickname(  ) != null )
+                {
+                    ChatStrings.write( out, record._entry.getNickname(  ) );
+                }
+
+                ChatStrings.write( out, record._entry.getChatMessage(  ) );
+
+                break;
+
+            case TYPE_BAN:
+                ChatStrings.write( out, record._strValue );
+                ChatStrings.write( out, ( record._strNickname != null ) ? record._strNickname : "" );
+                out.writeLong( record._lExpiry );
+
+                break;
+
+            default:
+                ChatStrings.write( out, ( record._strValue != null ) ? record._strValue : "" );
+
+                break;
+        }
+
+        out.flush(  );
+
+        return bytes.toByteArray(  );
+    }
+
+    /**
+     * Returns the segments of a room, from the oldest to the newest
+     *
+     * @param room The room
+     * @return The segments
+     */
+    private File[] getSegmentFiles( ChatRoom room )
+    {
+        List<File> listFiles = new ArrayList<File>(  );
+        File[] files = getRoomDirectory( room ).listFiles(  );
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isFile(  ) && file.getName(  ).endsWith( SEGMENT_EXTENSION ) )
+                {
+                    listFiles.add( file );
+                }
+            }
+        }
+
+        File[] segments = listFiles.toArray( new File[listFiles.size(  )] );
+
+        // The names are numbers of the same length
+        Arrays.sort( segments );
+
+        return segments;
+    }
+
+    /**
+     * Returns the number of a segment
+     *
+     * @param file The segment
+     * @return The number
+     */
+    private static long getSegmentNumber( File file )
+    {
+        String strName = file.getName(  );
+
+        return Long.parseLong( strName.substring( 0, strName.length(  ) - SEGMENT_EXTENSION.length(  ) ) );
+    }
+
+    /**
+     * Returns the directory of the segments of a room
+     *
+     * @param room The room
+     * @return The directory
+     */
+    private File getRoomDirectory( ChatRoom room )
+    {
+        try
+        {
+            return new File( _directory, URLEncoder.encode( room.getName(  ), ENCODING ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * A record waiting to be written
+     */
+    private static final class Record
+    {
+        private ChatRoom _room;
+        private byte _nType;
+        private long _lTime;
+        private ChatEntry _entry;
+        private String _strValue;
+        private String _strNickname;
+        private long _lExpiry = ChatBanIndex.NO_EXPIRY;
+
+        /**
+         * Creates a new Record object
+         *
+         * @param room The room
+         * @param nType The type of the record
+         * @param entry The entry, for an entry record
+         * @param strValue The topic or the address, for the other records
+         * @param strNickname The nickname of the user banned, for a ban record
+         */
+        Record( ChatRoom room, byte nType, ChatEntry entry, String strValue, String strNickname )
+        {
+            _room = room;
+            _nType = nType;
+            _lTime = ( entry != null ) ? entry.getTime(  ) : System.currentTimeMillis(  );
+            _entry = entry;
+            _strValue = strValue;
+            _strNickname = strNickname;
+        }
+    }
+
+    /**
+     * The position reached in the segments by a snapshot, and the records of the snapshot
+     */
+    private static final class Snapshot
+    {
+        private long _lSegment;
+        private long _lOffset;
+        private long _lLastEntryId;
+        private List<byte[]> _listRecords = new ArrayList<byte[]>(  );
+    }
+
+    /**
+     * A segment being written
+     */
+    private static final class Segment
+    {
+        private File _file;
+        private long _lNumber;
+        private FileOutputStream _fos;
+        private DataOutputStream _out;
+
+        /**
+         * Creates a new Segment object
+         *
+         * @param file The file of the segment
+         * @param lNumber The number of the segment
+         * @throws IOException If an I/O exception occurs
+         */
+        Segment( File file, long lNumber ) throws IOException
+        {
+            _file = file;
+            _lNumber = lNumber;
+            _fos = new FileOutputStream( file, true );
+            _out = new DataOutputStream( new BufferedOutputStream( _fos ) );
+        }
+
+        /**
+         * Writes a record
+         *
+         * @param record The content of the record
+         * @throws IOException If an I/O exception occurs
+         */
+        void write( byte[] record ) throws IOException
+        {
+            writeRecord( _out, record );
+        }
+
+        /**
+         * Returns the size of the segment, which is always a new file
+         *
+         * @return The size in bytes
+         */
+        long getSize(  )
+        {
+            return _out.size(  );
+        }
+
+        /**
+         * Writes the buffered records and syncs the segment to the disk
+         *
+         * @throws IOException If an I/O exception occurs
+         */
+        void sync(  ) throws IOException
+        {
+            _out.flush(  );
+            _fos.getChannel(  ).force( false );
+        }
+
+        /**
+         * Closes the segment
+         */
+        void close(  )
+        {
+            try
+            {
+                _out.close(  );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat journal : unable to close the segment " + _file, e );
+            }
+        }
+    }
+}
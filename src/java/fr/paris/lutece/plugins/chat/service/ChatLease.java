@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.io.IOException;
+
+
+/**
+ * Leases shared by the nodes of a cluster. A lease is held by one node at most until it expires : the node holding a
+ * lease renews it before it expires, another node acquires it once it has expired. The implementations have a public
+ * constructor without argument and read their settings from the properties.
+ */
+public interface ChatLease
+{
+    /**
+     * Starts using the leases
+     *
+     * @param strNodeId The id of this node
+     * @throws IOException If the leases can't be used
+     */
+    void start( String strNodeId ) throws IOException;
+
+    /**
+     * Acquires a lease, or renews it if it is already held by this node
+     *
+     * @param strName The name of the lease
+     * @param lDurationMillis The duration of the lease from now
+     * @return true if the lease is held by this node until the duration expires
+     */
+    boolean acquire( String strName, long lDurationMillis );
+
+    /**
+     * Releases a lease held by this node
+     *
+     * @param strName The name of the lease
+     */
+    void release( String strName );
+
+    /**
+     * Stops using the leases
+     */
+    void stop(  );
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Bus linking the nodes running in the same JVM, for the tests. The buses started on the same channel receive the
+ * messages published by each other. Each bus delivers its messages from its own thread.
+ */
+public class ChatLoopbackBus implements ChatBus
+{
+    private static final String PROPERTY_CHANNEL = "chat.cluster.bus.channel";
+    private static final String DEFAULT_CHANNEL = "chat";
+    private static final String THREAD_NAME = "chat-bus-loopback";
+    private static ConcurrentMap<String, Set<ChatLoopbackBus>> _mapChannels =
+        new ConcurrentHashMap<String, Set<ChatLoopbackBus>>(  );
+    private String _strChannel;
+    private volatile ChatBusListener _listener;
+    private ExecutorService _executor;
+
+    /**
+     * Creates a new ChatLoopbackBus object on the channel defined in the properties
+     */
+    public ChatLoopbackBus(  )
+    {
+        this( AppPropertiesService.getProperty( PROPERTY_CHANNEL, DEFAULT_CHANNEL ) );
+    }
+
+    /**
+     * Creates a new ChatLoopbackBus object
+     *
+     * @param strChannel The channel
+     */
+    public ChatLoopbackBus( String strChannel )
+    {
+        _strChannel = strChannel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void start( ChatBusListener listener )
+    {
+        _listener = listener;
+        _executor = Executors.newSingleThreadExecutor( new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+
+        Set<ChatLoopbackBus> setBuses = Collections.newSetFromMap(
+                new ConcurrentHashMap<ChatLoopbackBus, Boolean>(  ) );
+        Set<ChatLoopbackBus> setExisting = _mapChannels.putIfAbsent( _strChannel, setBuses );
+        ( ( setExisting != null ) ? setExisting : setBuses ).add( this );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void publish( byte[] message )
+    {
+        Set<ChatLoopbackBus> setBuses = _mapChannels.get( _strChannel );
+
+        if ( setBuses != null )
+        {
+            for ( ChatLoopbackBus bus : setBuses )
+            {
+                if ( bus != this )
+                {
+                    bus.deliver( message );
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop(  )
+    {
+        Set<ChatLoopbackBus> setBuses = _mapChannels.get( _strChannel );
+
+        if ( setBuses != null )
+        {
+            setBuses.remove( this );
+        }
+
+        if ( _executor != null )
+        {
+            _executor.shutdown(  );
+        }
+    }
+
+    /**
+     * Delivers a message to the listener of this bus
+     *
+     * @param message The message
+     */
+    private void deliver( final byte[] message )
+    {
+        try
+        {
+            _executor.execute( new Runnable(  )
+                {
+                    public void run(  )
+                    {
+                        _listener.messageReceived( message );
+                    }
+                } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // The bus is stopped
+        }
+    }
+}
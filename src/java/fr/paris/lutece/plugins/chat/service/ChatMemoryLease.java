@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Leases shared by the nodes running in the same JVM, for the tests
+ */
+public class ChatMemoryLease implements ChatLease
+{
+    private static Map<String, Holder> _mapLeases = new HashMap<String, Holder>(  );
+    private String _strNodeId;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void start( String strNodeId )
+    {
+        _strNodeId = strNodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean acquire( String strName, long lDurationMillis )
+    {
+        long lNow = System.currentTimeMillis(  );
+
+        synchronized ( _mapLeases )
+        {
+            Holder holder = _mapLeases.get( strName );
+
+            if ( ( holder != null ) && !holder._strNodeId.equals( _strNodeId ) && ( holder._lExpiry > lNow ) )
+            {
+                return false;
+            }
+
+            _mapLeases.put( strName, new Holder( _strNodeId, lNow + lDurationMillis ) );
+
+            return true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release( String strName )
+    {
+        synchronized ( _mapLeases )
+        {
+            Holder holder = _mapLeases.get( strName );
+
+            if ( ( holder != null ) && holder._strNodeId.equals( _strNodeId ) )
+            {
+                _mapLeases.remove( strName );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop(  )
+    {
+        // The leases are released by the cluster
+    }
+
+    /**
+     * Node holding a lease
+     */
+    private static final class Holder
+    {
+        private String _strNodeId;
+        private long _lExpiry;
+
+        /**
+         * Creates a new Holder object
+         *
+         * @param strNodeId The id of the node
+         * @param lExpiry The time at which the lease expires
+         */
+        Holder( String strNodeId, long lExpiry )
+        {
+            _strNodeId = strNodeId;
+            _lExpiry = lExpiry;
+        }
+    }
+}
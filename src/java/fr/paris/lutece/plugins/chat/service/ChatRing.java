@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Consistent hashing ring of the nodes of the cluster. Each node is placed at several points of the ring, a key is
+ * owned by the node of the first point following the hash of the key. When a node joins or leaves the ring, only the
+ * keys of the points next to this node change their owner.
+ */
+final class ChatRing
+{
+    private static final int POINTS_PER_NODE = 128;
+    private static final String HASH_ALGORITHM = "MD5";
+    private static final String ENCODING = "UTF-8";
+    private static final char POINT_SEPARATOR = '#';
+    private SortedMap<Long, String> _mapPoints = new TreeMap<Long, String>(  );
+
+    /**
+     * Creates a new ChatRing object
+     *
+     * @param nodes The ids of the nodes
+     */
+    ChatRing( Collection<String> nodes )
+    {
+        for ( String strNode : nodes )
+        {
+            for ( int i = 0; i < POINTS_PER_NODE; i++ )
+            {
+                _mapPoints.put( hash( strNode + POINT_SEPARATOR + i ), strNode );
+            }
+        }
+    }
+
+    /**
+     * Returns the node owning a key
+     *
+     * @param strKey The key
+     * @return The id of the node, or null if the ring is empty
+     */
+    String getOwner( String strKey )
+    {
+        if ( _mapPoints.isEmpty(  ) )
+        {
+            return null;
+        }
+
+        SortedMap<Long, String> mapTail = _mapPoints.tailMap( hash( strKey ) );
+
+        return mapTail.isEmpty(  ) ? _mapPoints.get( _mapPoints.firstKey(  ) ) : mapTail.get( mapTail.firstKey(  ) );
+    }
+
+    /**
+     * Hashes a key on the ring
+     *
+     * @param strKey The key
+     * @return The position of the key
+     */
+    private static long hash( String strKey )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( HASH_ALGORITHM ).digest( strKey.getBytes( ENCODING ) );
+            long lHash = 0;
+
+            for ( int i = 0; i < 8; i++ )
+            {
+                lHash = ( lHash << 8 ) | ( digest[i] & 0xFF );
+            }
+
+            return lHash;
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Executor running the tasks of each room one at a time, in the order they are submitted. Each room has a mailbox
+ * holding its pending tasks : a mailbox is run by one thread of a shared pool at most, and gives the thread back after
+ * a batch of tasks so that a busy room does not hold the pool. The requests only enqueue their tasks and return, so
+ * the messages sent to a busy room do not hold the threads of the servlet container.
+ */
+final class ChatRoomExecutor
+{
+    private static final String PROPERTY_ENABLED = "chat.room.executor.enabled";
+    private static final String PROPERTY_THREADS = "chat.room.executor.threads";
+    private static final String PROPERTY_MAILBOX_SIZE = "chat.room.executor.mailbox.size";
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_MAILBOX_SIZE = 1000;
+    private static final String THREAD_NAME = "chat-room-";
+    private static final int BATCH_SIZE = 32;
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+    private static final long STOP_POLL_MILLIS = 10L;
+    private ExecutorService _pool;
+    private int _nMailboxSize;
+    private ConcurrentMap<ChatRoom, Mailbox> _mapMailboxes = new ConcurrentHashMap<ChatRoom, Mailbox>(  );
+    private volatile boolean _bStopped;
+
+    /**
+     * Creates a new ChatRoomExecutor object
+     *
+     * @param nThreads The number of threads shared by the rooms
+     * @param nMailboxSize The maximum number of pending tasks of a room
+     */
+    ChatRoomExecutor( int nThreads, int nMailboxSize )
+    {
+        final AtomicInteger nThreadCount = new AtomicInteger(  );
+        _nMailboxSize = nMailboxSize;
+        _pool = Executors.newFixedThreadPool( Math.max( 1, nThreads ),
+                new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, THREAD_NAME + nThreadCount.incrementAndGet(  ) );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+    }
+
+    /**
+     * Creates the executor defined in the properties
+     *
+     * @return The executor, or null if the tasks of the rooms are run by the threads submitting them
+     */
+    static ChatRoomExecutor create(  )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false ) )
+        {
+            return null;
+        }
+
+        return new ChatRoomExecutor( AppPropertiesService.getPropertyInt( PROPERTY_THREADS, DEFAULT_THREADS ),
+            AppPropertiesService.getPropertyInt( PROPERTY_MAILBOX_SIZE, DEFAULT_MAILBOX_SIZE ) );
+    }
+
+    /**
+     * Submits a task of a room
+     *
+     * @param room The room
+     * @param task The task
+     * @return false if the task is dropped because the mailbox of the room is full or the executor is stopped
+     */
+    boolean execute( ChatRoom room, Runnable task )
+    {
+        if ( _bStopped )
+        {
+            return false;
+        }
+
+        Mailbox mailbox = _mapMailboxes.get( room );
+
+        if ( mailbox == null )
+        {
+            Mailbox mailboxNew = new Mailbox( room.getName(  ) );
+            mailbox = _mapMailboxes.putIfAbsent( room, mailboxNew );
+
+            if ( mailbox == null )
+            {
+                mailbox = mailboxNew;
+            }
+        }
+
+        return mailbox.offer( task );
+    }
+
+    /**
+     * Stops the executor, once the pending tasks have been run
+     */
+    void stop(  )
+    {
+        _bStopped = true;
+
+        long lLimit = System.currentTimeMillis(  ) + STOP_TIMEOUT_MILLIS;
+
+        try
+        {
+            while ( !isIdle(  ) && ( System.currentTimeMillis(  ) < lLimit ) )
+            {
+                Thread.sleep( STOP_POLL_MILLIS );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+
+        if ( !isIdle(  ) )
+        {
+            AppLogService.error( "Chat rooms : the pending messages have not been processed before the shutdown" );
+        }
+
+        _pool.shutdownNow(  );
+    }
+
+    /**
+     * Checks if all the tasks submitted have been run
+     *
+     * @return true if no mailbox has pending tasks
+     */
+    private boolean isIdle(  )
+    {
+        for ( Mailbox mailbox : _mapMailboxes.values(  ) )
+        {
+            if ( mailbox._bScheduled.get(  ) || !mailbox._queue.isEmpty(  ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Pending tasks of a room
+     */
+    private final class Mailbox implements Runnable
+    {
+        private String _strRoomName;
+        private Queue<Runnable> _queue = new ConcurrentLinkedQueue<Runnable>(  );
+        private AtomicInteger _nSize = new AtomicInteger(  );
+        private AtomicBoolean _bScheduled = new AtomicBoolean(  );
+        private volatile boolean _bFull;
+
+        /**
+         * Creates a new Mailbox object
+         *
+         * @param strRoomName The name of the room
+         */
+        Mailbox( String strRoomName )
+        {
+            _strRoomName = strRoomName;
+        }
+
+        /**
+         * Adds a task to the mailbox, and schedules the mailbox if it is not already
+         *
+         * @param task The task
+         * @return false if the mailbox is full or the executor is stopped
+         */
+        boolean offer( Runnable task )
+        {
+            if ( _nSize.incrementAndGet(  ) > _nMailboxSize )
+            {
+                _nSize.decrementAndGet(  );
+
+                if ( !_bFull )
+                {
+                    _bFull = true;
+                    AppLogService.error( "Chat rooms : too many messages waiting for the room " + _strRoomName +
+                        ", messages are dropped" );
+                }
+
+                return false;
+            }
+
+            _bFull = false;
+            _queue.add( task );
+
+            return schedule(  );
+        }
+
+        /**
+         * Runs a batch of tasks, then gives the thread back to the pool
+         */
+        public void run(  )
+        {
+            for ( int i = 0; i < BATCH_SIZE; i++ )
+            {
+                Runnable task = _queue.poll(  );
+
+                if ( task == null )
+                {
+                    break;
+                }
+
+                _nSize.decrementAndGet(  );
+
+                try
+                {
+                    task.run(  );
+                }
+                catch ( RuntimeException e )
+                {
+                    AppLogService.error( "Chat rooms : unable to process a message", e );
+                }
+            }
+
+            // A task added after the last poll finds the mailbox still scheduled : it is run by the next batch
+            _bScheduled.set( false );
+
+            if ( !_queue.isEmpty(  ) )
+            {
+                schedule(  );
+            }
+        }
+
+        /**
+         * Submits the mailbox to the pool if it is not already
+         *
+         * @return false if the executor is stopped
+         */
+        private boolean schedule(  )
+        {
+            if ( _bScheduled.compareAndSet( false, true ) )
+            {
+                try
+                {
+                    _pool.execute( this );
+                }
+                catch ( RejectedExecutionException e )
+                {
+                    _bScheduled.set( false );
+
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
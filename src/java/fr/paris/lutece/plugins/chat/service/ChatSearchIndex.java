@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.text.Normalizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Full-text index of the history of the rooms. For each room, the words of the messages are mapped to the ids of
+ * the entries which contain them. A background thread indexes the entries appended to the history, and forgets the
+ * entries removed from it. A search finds the entries which contain all the words of the query from the index,
+ * then reads only these entries from the history.
+ * <br>
+ * The words are compared in lower case and without accents.
+ */
+public final class ChatSearchIndex implements Runnable
+{
+    private static final String PROPERTY_ENABLED = "chat.search.enabled";
+    private static final String PROPERTY_MAX_RESULTS = "chat.search.max.results";
+    private static final String PROPERTY_DELAY_MILLIS = "chat.search.index.delay.millis";
+    private static final int DEFAULT_MAX_RESULTS = 20;
+    private static final long DEFAULT_DELAY_MILLIS = 1000L;
+    private static final String THREAD_NAME = "chat-indexer";
+    private static final int BATCH_SIZE = 500;
+    private static final int PRUNE_INTERVAL = 60;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    private ChatHistory _history;
+    private int _nMaxResults;
+    private long _lDelayMillis;
+    private Map<ChatRoom, RoomIndex> _mapIndexes = new ConcurrentHashMap<ChatRoom, RoomIndex>(  );
+    private ScheduledExecutorService _executor;
+    private int _nRuns;
+
+    /**
+     * Creates a new ChatSearchIndex object
+     *
+     * @param history The history indexed
+     * @param nMaxResults The maximum number of entries returned by a search
+     * @param lDelayMillis The delay between two checks of the history
+     */
+    ChatSearchIndex( ChatHistory history, int nMaxResults, long lDelayMillis )
+    {
+        _history = history;
+        _nMaxResults = Math.max( 1, nMaxResults );
+        _lDelayMillis = lDelayMillis;
+    }
+
+    /**
+     * Creates the index defined in the properties
+     *
+     * @param history The history of the rooms, or null if it is not enabled
+     * @return The index, or null if the index or the history is not enabled
+     */
+    static ChatSearchIndex create( ChatHistory history )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false ) )
+        {
+            return null;
+        }
+
+        if ( history == null )
+        {
+            AppLogService.error( "Chat search : the history must be enabled to search the messages" );
+
+            return null;
+        }
+
+        return new ChatSearchIndex( history,
+            AppPropertiesService.getPropertyInt( PROPERTY_MAX_RESULTS, DEFAULT_MAX_RESULTS ),
+            AppPropertiesService.getPropertyLong( PROPERTY_DELAY_MILLIS, DEFAULT_DELAY_MILLIS ) );
+    }
+
+    /**
+     * Starts indexing the history of the rooms. The entries already in the history are indexed first.
+     *
+     * @param rooms The rooms
+     */
+    void start( Enumeration rooms )
+    {
+        while ( rooms.hasMoreElements(  ) )
+        {
+            _mapIndexes.put( (ChatRoom) rooms.nextElement(  ), new RoomIndex(  ) );
+        }
+
+        _executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+        _executor.scheduleWithFixedDelay( this, 0, _lDelayMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stops indexing
+     */
+    void stop(  )
+    {
+        if ( _executor != null )
+        {
+            _executor.shutdownNow(  );
+            _executor = null;
+        }
+    }
+
+    /**
+     * Indexes the entries appended to the history since the previous run
+     */
+    public void run(  )
+    {
+        boolean bPrune = ( ++_nRuns % PRUNE_INTERVAL ) == 0;
+
+        for ( Map.Entry<ChatRoom, RoomIndex> entry : _mapIndexes.entrySet(  ) )
+        {
+            ChatRoom room = entry.getKey(  );
+            RoomIndex index = entry.getValue(  );
+
+            try
+            {
+                List<ChatEntry> listEntries;
+
+                do
+                {
+                    listEntries = _history.getEntriesAfter( room, index.getLastIndexedId(  ), BATCH_SIZE );
+                    index.add( listEntries );
+                }
+                while ( listEntries.size(  ) == BATCH_SIZE );
+
+                if ( bPrune )
+                {
+                    index.prune( _history.getFirstEntryId( room ) );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                // The next rooms and the next runs must not be stopped
+                AppLogService.error( "Chat search : unable to index the room " + room.getName(  ), e );
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of entries returned by a search
+     *
+     * @return The number of entries
+     */
+    public int getMaxResults(  )
+    {
+        return _nMaxResults;
+    }
+
+    /**
+     * Searches the entries of a room which contain all the words of a query
+     *
+     * @param room The room
+     * @param strQuery The query
+     * @return The most recent entries found, from the oldest to the newest
+     */
+    public List<ChatEntry> search( ChatRoom room, String strQuery )
+    {
+        List<ChatEntry> listEntries = new ArrayList<ChatEntry>(  );
+        RoomIndex index = _mapIndexes.get( room );
+        Set<String> setTerms = getTerms( strQuery );
+
+        if ( ( index == null ) || setTerms.isEmpty(  ) )
+        {
+            return listEntries;
+        }
+
+        for ( long lId : index.search( setTerms, _nMaxResults ) )
+        {
+            ChatEntry entry = _history.getEntry( room, lId );
+
+            // The entry may have been removed from the history since
+            if ( entry != null )
+            {
+                listEntries.add( entry );
+            }
+        }
+
+        return listEntries;
+    }
+
+    /**
+     * Returns the words of a text, in lower case and without accents
+     *
+     * @param strText The text
+     * @return The words, in the order of the text
+     */
+    static Set<String> getTerms( String strText )
+    {
+        Set<String> setTerms = new LinkedHashSet<String>(  );
+
+        if ( strText == null )
+        {
+            return setTerms;
+        }
+
+        String strNormalized = Normalizer.normalize( strText.toLowerCase( Locale.FRANCE ), Normalizer.Form.NFD );
+        StringBuilder sbTerm = new StringBuilder(  );
+
+        for ( int i = 0; i <= strNormalized.length(  ); i++ )
+        {
+            char c = ( i < strNormalized.length(  ) ) ? strNormalized.charAt( i ) : ' ';
+
+            if ( Character.getType( c ) == Character.NON_SPACING_MARK )
+            {
+                continue;
+            }
+
+            if ( Character.isLetterOrDigit( c ) )
+            {
+                sbTerm.append( c );
+            }
+            else
+            {
+                if ( ( sbTerm.length(  ) >= MIN_TERM_LENGTH ) && ( sbTerm.length(  ) <= MAX_TERM_LENGTH ) )
+                {
+                    setTerms.add( sbTerm.toString(  ) );
+                }
+
+                sbTerm.setLength( 0 );
+            }
+        }
+
+        return setTerms;
+    }
+
+    /**
+     * Index of a room : the ids of the entries which contain each word. The index is written by the indexing thread
+     * and read by the searches.
+     */
+    private static final class RoomIndex
+    {
+        private Map<String, Postings> _mapTerms = new HashMap<String, Postings>(  );
+        private long _lLastIndexedId;
+
+        /**
+         * Returns the id of the last entry indexed
+         *
+         * @return The id
+         */
+        synchronized long getLastIndexedId(  )
+        {
+            return _lLastIndexedId;
+        }
+
+        /**
+         * Indexes entries
+         *
+         * @param listEntries The entries, in the increasing order of their ids
+         */
+        synchronized void add( List<ChatEntry> listEntries )
+        {
+            for ( ChatEntry entry : listEntries )
+            {
+                if ( entry.getType(  ) == ChatEntry.TYPE_MESSAGE )
+                {
+                    for ( String strTerm : getTerms( entry.getChatMessage(  ) ) )
+                    {
+                        Postings postings = _mapTerms.get( strTerm );
+
+                        if ( postings == null )
+                        {
+                            postings = new Postings(  );
+                            _mapTerms.put( strTerm, postings );
+                        }
+
+                        postings.add( entry.getId(  ) );
+                    }
+                }
+
+                _lLastIndexedId = entry.getId(  );
+            }
+        }
+
+        /**
+         * Forgets the entries removed from the history
+         *
+         * @param lFirstId The id of the oldest entry kept by the history
+         */
+        synchronized void prune( long lFirstId )
+        {
+            Iterator<Postings> iterator = _mapTerms.values(  ).iterator(  );
+
+            while ( iterator.hasNext(  ) )
+            {
+                Postings postings = iterator.next(  );
+                postings.removeBefore( lFirstId );
+
+                if ( postings.isEmpty(  ) )
+                {
+                    iterator.remove(  );
+                }
+            }
+        }
+
+        /**
+         * Returns the ids of the most recent entries which contain all the words
+         *
+         * @param setTerms The words
+         * @param nMax The maximum number of ids
+         * @return The ids, in increasing order
+         */
+        synchronized long[] search( Set<String> setTerms, int nMax )
+        {
+            Postings[] postings = new Postings[setTerms.size(  )];
+            int i = 0;
+
+            for ( String strTerm : setTerms )
+            {
+                postings[i] = _mapTerms.get( strTerm );
+
+                if ( postings[i] == null )
+                {
+                    return new long[0];
+                }
+
+                i++;
+            }
+
+            // The ids of the rarest word are checked against the other words, from the most recent
+            Postings rarest = postings[0];
+
+            for ( Postings p : postings )
+            {
+                if ( p.size(  ) < rarest.size(  ) )
+                {
+                    rarest = p;
+                }
+            }
+
+            long[] ids = new long[Math.min( nMax, rarest.size(  ) )];
+            int nFound = 0;
+
+            for ( int j = rarest.size(  ) - 1; ( j >= 0 ) && ( nFound < ids.length ); j-- )
+            {
+                long lId = rarest.get( j );
+                boolean bMatch = true;
+
+                for ( Postings p : postings )
+                {
+                    if ( ( p != rarest ) && !p.contains( lId ) )
+                    {
+                        bMatch = false;
+
+                        break;
+                    }
+                }
+
+                if ( bMatch )
+                {
+                    ids[ids.length - ++nFound] = lId;
+                }
+            }
+
+            return Arrays.copyOfRange( ids, ids.length - nFound, ids.length );
+        }
+    }
+
+    /**
+     * Ids of the entries which contain a word, in increasing order
+     */
+    private static final class Postings
+    {
+        private static final int INITIAL_SIZE = 4;
+        private long[] _ids = new long[INITIAL_SIZE];
+        private int _nSize;
+
+        /**
+         * Adds an id, greater than the ids already added
+         *
+         * @param lId The id
+         */
+        void add( long lId )
+        {
+            if ( _nSize == _ids.length )
+            {
+                _ids = Arrays.copyOf( _ids, _nSize * 2 );
+            }
+
+            _ids[_nSize++] = lId;
+        }
+
+        /**
+         * Returns an id
+         *
+         * @param nIndex The index of the id
+         * @return The id
+         */
+        long get( int nIndex )
+        {
+            return _ids[nIndex];
+        }
+
+        /**
+         * Checks if an id has been added
+         *
+         * @param lId The id
+         * @return true if the id has been added
+         */
+        boolean contains( long lId )
+        {
+            return Arrays.binarySearch( _ids, 0, _nSize, lId ) >= 0;
+        }
+
+        /**
+         * Removes the ids lower than an id
+         *
+         * @param lId The id
+         */
+        void removeBefore( long lId )
+        {
+            int nFirst = 0;
+
+            while ( ( nFirst < _nSize ) && ( _ids[nFirst] < lId ) )
+            {
+                nFirst++;
+            }
+
+            if ( nFirst > 0 )
+            {
+                _nSize -= nFirst;
+                _ids = Arrays.copyOfRange( _ids, nFirst, nFirst + Math.max( _nSize, INITIAL_SIZE ) );
+            }
+        }
+
+        /**
+         * Returns the number of ids
+         *
+         * @return The number of ids
+         */
+        int size(  )
+        {
+            return _nSize;
+        }
+
+        /**
+         * Checks if there is no id
+         *
+         * @return true if there is no id
+         */
+        boolean isEmpty(  )
+        {
+            return _nSize == 0;
+        }
+    }
+}
@@ -1,1005 +1,1601 @@
-/*
- * Copyright (c) 2002-2014, Mairie de Paris
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- *
- *  1. Redistributions of source code must retain the above copyright notice
- *     and the following disclaimer.
- *
- *  2. Redistributions in binary form must reproduce the above copyright notice
- *     and the following disclaimer in the documentation and/or other materials
- *     provided with the distribution.
- *
- *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
- *     contributors may be used to endorse or promote products derived from
- *     this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- *
- * License 1.0
- */
-package fr.paris.lutece.plugins.chat.service;
-
-import fr.paris.lutece.plugins.chat.business.ChatEntry;
-import fr.paris.lutece.plugins.chat.business.ChatRoom;
-import fr.paris.lutece.plugins.chat.business.ChatUser;
-import fr.paris.lutece.plugins.chat.business.RoomList;
-
-/**
- * Titre : ChatService
- * Description : Class that provides basic services for chat clinkts
- * Copyright :    Copyright (c) 2001
- * Soci?t? :      Mairie de Paris
- * @author        SePD
- * @version 1.0
- */
-import fr.paris.lutece.portal.service.util.AppPropertiesService;
-
-import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
-
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Locale;
-
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
-
-
-/**
- * This class manages chat users and rooms.
- */
-public final class ChatService implements Runnable
-{
-    ////////////////////////////////////////////////////////////////////////////
-    // Constants
-    // chat.properties
-    private static final String PROPERTY_MAX_INACTIVITY = "chat.users.max.inactivity.seconds";
-    private static final String PROPERTY_LANGUAGE = "chat.language";
-    private static final String UNDEFINED = "undefined";
-    private static final String PROPERTY_DEF_ADMIN_PASSWORD = "chatadmin";
-    private static final String PROPERTY_DEF_BGCOLOR = "DDDDDD";
-    private static final String PROPERTY_DEF_BTBGCOLOR = "555555";
-    private static final String PROPERTY_DEF_BTFGCOLOR = "FFFFFF";
-    private static final String PROPERTY_DEF_FDBGCOLOR = "FFFFFF";
-    private static final String PROPERTY_FLOOD_DELAY_SECONDS = "chat.flood.delay.seconds";
-    private static final String PROPERTY_FLOOD_MAX_DATA_SIZE = "chat.flood.max.data.size";
-    private static final int PROPERTY_FLOOD_DELAY_SECONDS_DEF = 5;
-    private static final int PROPERTY_FLOOD_MAX_DATA_SIZE_DEF = 300;
-    private static final String PROPERTY_FLOOD_BOT_NAME = "chat.flood.bot.name";
-    private static final String PROPERTY_FLOOD_BOT_NAME_DEF = "ChatSupervisor";
-    private static final String PROPERTY_FLOOD_BOT_MESSAGE = "chat.flood.bot.message";
-    private static final String PROPERTY_FLOOD_BOT_MESSAGE_DEF = "Excess flood";
-
-    // IRC like commands
-    private static final String COMMAND_MODE = "/MODE";
-    private static final String COMMAND_WHOIS = "/WHOIS";
-    private static final String COMMAND_KICK = "/KICK";
-    private static final String COMMAND_ME = "/ME";
-    private static final String COMMAND_NICK = "/NICK";
-    private static final String COMMAND_MSG = "/MSG";
-    private static final String COMMAND_TOPIC = "/TOPIC";
-    private static final String COMMAND_AWAY = "/AWAY";
-    private static final String COMMAND_PART = "/PART";
-    private static final String COMMAND_QUIT = "/QUIT";
-
-    // Specific commands
-    private static final String COMMAND_OP = "/OP";
-    private static final String COMMAND_BANLIST = "/BANLIST";
-
-    // Notification messages
-    private static final String MSG_OP = "op";
-    private static final String MSG_QUIT = "quit";
-    private static final String MSG_ENTER = "enter";
-    private static final String MSG_TOPIC = "topic";
-    private static final String MSG_AWAY = "away";
-    private static final String MSG_COMEBACK = "comeback";
-    private static final String MSG_NICK = "nick";
-    private static final String MSG_KICK = "kick";
-    private static final String MSG_KICKED = "kicked";
-    private static final String MSG_BAN = "ban";
-    private static final String MSG_BANNED = "banned";
-    private static final String MSG_DEBAN = "deban";
-    private static final String MSG_MODE = "mode";
-    private static final String MSG_COMMAND_DENIED = "command.denied";
-    private static final String MSG_COMMAND_INVALID_PARMS = "command.invalid.params";
-    private static final String MSG_COMMAND_INVALID_USER = "command.invalid.user";
-    private static final String MSG_COMMAND_UNKOWN = "command.unkown";
-    private static final String MSG_INVALID_NICK = "invalid.nick";
-    private static final String MSG_EXIT = "exit";
-    private static final String MSG_BANNED_LIST_TITLE = "msg.banned.list.title";
-    private static final String MSG_BANNED_LIST_TABLE = "msg.banned.list.table";
-    private static final String MSG_USERS_INFOS_TITLE = "msg.users.infos.title";
-    private static final String MSG_USERS_INFOS_IP = "msg.users.infos.ip";
-    private static final String MSG_USERS_INFOS_LAST_ACCESS = "msg.users.infos.last.access";
-    private static final String MSG_USERS_INFOS_ENTRANCE = "msg.users.infos.entrance";
-
-    // Static variables
-    private static RoomList _roomList;
-    private Thread _timer;
-
-    // Constructor ( private  singleton )
-
-    /**
-     * Creates a new ChatService object.
-     */
-    private ChatService(  )
-    {
-        // Create a timer to remove disconnected users
-        _timer = new Thread( this );
-        _timer.start(  );
-    }
-
-    /**
-     * Room entering process
-     *
-     * @param request The Http request
-     * @return One of the error codes defined in the ChatRoom class
-     * @see fr.paris.lutece.plugins.chat.business.ChatRoom
-         *
-     */
-    public static synchronized int doEnterRoom( HttpServletRequest request )
-    {
-        // Get the room posted in the form
-        String strRoomName = request.getParameter( ChatConstantes.PARAM_ROOM );
-
-        if ( ( strRoomName == null ) || ( strRoomName.length(  ) == 0 ) )
-        {
-            return ChatRoom.INVALID_ROOM;
-        }
-
-        // Attach the room to the user's session
-        HttpSession session = request.getSession(  );
-        session.setAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME, strRoomName );
-
-        // R?cup?re le pseudo envoy? dans la requete du formulaire
-        String strNickname = request.getParameter( ChatConstantes.PARAM_NICKNAME );
-
-        // Attache le pseudo ? la session
-        session.setAttribute( ChatConstantes.ATTRIBUTE_NICKNAME, strNickname );
-
-        // Cr?e l'appUser et l'ajoute au salon
-        ChatUser user = new ChatUser( strNickname );
-        user.setIpAddress( request.getRemoteAddr(  ) );
-        user.setHostName( request.getRemoteHost(  ) );
-        user.setLastAccessTime( new Date(  ) );
-
-        ChatRoom room = getRoom( request );
-
-        if ( room == null )
-        {
-            return ChatRoom.INVALID_ROOM;
-        }
-
-        int nError = room.addUser( user );
-
-        if ( nError != ChatRoom.USER_ADDED )
-        {
-            if ( nError == ChatRoom.USER_ALREADY_EXISTS )
-            {
-                while ( nError == ChatRoom.USER_ALREADY_EXISTS )
-                {
-                    user.setNickname( user.getNickname(  ) + "_" );
-                    nError = room.addUser( user );
-                }
-            }
-            else
-            {
-                return nError;
-            }
-        }
-
-        room.addChatEntry( new ChatEntry( formatMsg( MSG_ENTER, strNickname ) ), null );
-
-        return ChatRoom.USER_ADDED;
-    }
-
-    ////////////////////////////////////////////////////////////////////////////
-    // Rooms management
-
-    /**
-     * Get the room attached to the session
-     *
-     * @param request the servlet request
-     * @return the room attached to the session
-     */
-    public static ChatRoom getRoom( HttpServletRequest request )
-    {
-        String strRoomName = request.getParameter( ChatConstantes.PARAM_ROOM );
-
-        if ( strRoomName == null )
-        {
-            HttpSession session = request.getSession(  );
-            strRoomName = (String) session.getAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME );
-        }
-
-        ChatRoom room = _roomList.getRoom( strRoomName );
-
-        if ( room == null )
-        {
-            return null;
-        }
-
-        return room;
-    }
-
-    /**
-     * Returns the rooms list
-     *
-     * @return the rooms ist as a RoomList object
-     */
-    public static RoomList getRoomList(  )
-    {
-        return _roomList;
-    }
-
-    /**
-     * Initialize rooms
-    
-    
-         */
-    public static void initRooms(  )
-    {
-        // Create rooms
-        _roomList = createRooms(  );
-    }
-
-    /**
-     * Create rooms from the properties file
-     * @return The created rooms list as a RoomList object
-     */
-    private static RoomList createRooms(  )
-    {
-        RoomList roomList = new RoomList(  );
-        String strRoomName;
-        String strRoomNameKey;
-        String strRoomDescription;
-        String strRoomDescriptionKey;
-
-        int i = 1;
-
-        while ( true )
-        {
-            strRoomNameKey = "chat.room" + i + ".name";
-            strRoomName = AppPropertiesService.getProperty( strRoomNameKey, UNDEFINED );
-
-            if ( strRoomName.equals( UNDEFINED ) )
-            {
-                break;
-            }
-
-            strRoomDescriptionKey = "chat.room" + i + ".description";
-            strRoomDescription = AppPropertiesService.getProperty( strRoomDescriptionKey, UNDEFINED );
-
-            ChatRoom room = new ChatRoom( strRoomName, strRoomDescription );
-
-            // read other room attributes
-            room.setAdminPassword( AppPropertiesService.getProperty( "chat.room" + i + ".admin.password",
-                    PROPERTY_DEF_ADMIN_PASSWORD ) );
-            room.setBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".bgcolor", PROPERTY_DEF_BGCOLOR ) );
-            room.setButtonBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".btbgcolor",
-                    PROPERTY_DEF_BTBGCOLOR ) );
-            room.setButtonFgColor( AppPropertiesService.getProperty( "chat.room" + i + ".btfgcolor",
-                    PROPERTY_DEF_BTFGCOLOR ) );
-            room.setFieldBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".fdbgcolor",
-                    PROPERTY_DEF_FDBGCOLOR ) );
-            roomList.addRoom( room );
-            i++;
-        }
-
-        return roomList;
-    }
-
-    ////////////////////////////////////////////////////////////////////////////
-    // Users management
-
-    /**
-     * Remove all users with no activity since a given time
-     *
-     * @param room The room to remove users from
-     */
-    private void clearUsers( ChatRoom room )
-    {
-        // Parcours la liste des appUsers pour voir ceux qui ne sont plus actifs
-        Date dateCurrent = new Date(  );
-        int nMaxInactivity = AppPropertiesService.getPropertyInt( PROPERTY_MAX_INACTIVITY, 60 );
-        Enumeration e = room.getUsers(  );
-
-        while ( e.hasMoreElements(  ) )
-        {
-            ChatUser user = (ChatUser) e.nextElement(  );
-            Date lastActivity = user.getLastAccessTime(  );
-
-            if ( ( dateCurrent.getTime(  ) - lastActivity.getTime(  ) ) > ( nMaxInactivity * 1000 ) )
-            {
-                room.removeUser( user.getNickname(  ) );
-                room.addChatEntry( new ChatEntry( formatMsg( MSG_QUIT, user.getNickname(  ) ) ), null );
-            }
-        }
-    }
-
-    /**
-     * Ban flooders from a room.
-     * @param room The room to ban users from
-     */
-    private void banFlooders( ChatRoom room )
-    {
-        // Parcours la liste des appUsers pour voir ceux qui ne sont plus actifs
-        Enumeration e = room.getUsers(  );
-        long lSeconds = AppPropertiesService.getPropertyInt( PROPERTY_FLOOD_DELAY_SECONDS,
-                PROPERTY_FLOOD_DELAY_SECONDS_DEF );
-        int nMaxSize = AppPropertiesService.getPropertyInt( PROPERTY_FLOOD_MAX_DATA_SIZE,
-                PROPERTY_FLOOD_MAX_DATA_SIZE_DEF );
-        String strFloodBotName = AppPropertiesService.getProperty( PROPERTY_FLOOD_BOT_NAME, PROPERTY_FLOOD_BOT_NAME_DEF );
-        String strFloodBotMessage = AppPropertiesService.getProperty( PROPERTY_FLOOD_BOT_MESSAGE,
-                PROPERTY_FLOOD_BOT_MESSAGE_DEF );
-
-        while ( e.hasMoreElements(  ) )
-        {
-            ChatUser u = (ChatUser) e.nextElement(  );
-
-            if ( u.getSentDataSizeSince( lSeconds ) > nMaxSize )
-            {
-                u.kick( formatMsg( MSG_KICKED, strFloodBotName, u.getNickname(  ), strFloodBotMessage ) );
-                room.addChatEntry( new ChatEntry( formatMsg( MSG_KICK, strFloodBotName, u.getNickname(  ),
-                            strFloodBotMessage ) ), null );
-                room.banUser( u.getNickname(  ), formatMsg( MSG_BANNED ) );
-                room.addChatEntry( new ChatEntry( formatMsg( MSG_BAN, strFloodBotName, u.getNickname(  ), "" ) ), null );
-            }
-        }
-    }
-
-    /**
-     * Scan rooms for no activity users in order to remove them.
-     * Use Runnable implementation
-     */
-    public void run(  )
-    {
-        Thread me = Thread.currentThread(  );
-
-        while ( _timer == me )
-        {
-            try
-            {
-                Thread.sleep( 1000 );
-            }
-            catch ( InterruptedException e )
-            {
-            }
-
-            RoomList list = getRoomList(  );
-            Enumeration e = list.getRooms(  );
-
-            while ( e.hasMoreElements(  ) )
-            {
-                ChatRoom room = (ChatRoom) e.nextElement(  );
-                clearUsers( room );
-                banFlooders( room );
-            }
-        }
-    }
-
-    /**
-     * Get nickname attached to the request or to user's session
-     *
-     * @param request the servlet request
-         * @return The nickname
-     */
-    public static String getNickname( HttpServletRequest request )
-    {
-        String strNickname = request.getParameter( ChatConstantes.PARAM_NICKNAME );
-
-        if ( strNickname == null )
-        {
-            HttpSession session = request.getSession(  );
-            strNickname = (String) session.getAttribute( ChatConstantes.ATTRIBUTE_NICKNAME );
-        }
-
-        return strNickname;
-    }
-
-    ////////////////////////////////////////////////////////////////////////////
-    // Message management
-
-    /**
-     *
-     * @param request the HttpServlet request
-     * @return if a new message is processed
-     */
-    public static boolean newMessage( HttpServletRequest request )
-    {
-        ChatRoom room = ChatService.getRoom( request );
-
-        if ( room == null )
-        {
-            return false;
-        }
-
-        String strNickname = ChatService.getNickname( request );
-        ChatUser user = room.getUser( strNickname );
-
-        if ( ( user == null ) || user.isKicked(  ) )
-        {
-            return false;
-        }
-
-        // if the user was away, he's no longer away
-        if ( user.isAway(  ) )
-        {
-            user.setAway( false );
-            room.addChatEntry( user, new ChatEntry( formatMsg( MSG_COMEBACK, strNickname ) ), null );
-        }
-
-        String strMessage = request.getParameter( ChatConstantes.PARAM_MESSAGE );
-
-        if ( ( strMessage != null ) && ( strMessage.length(  ) != 0 ) )
-        {
-            Message message = new Message( strMessage );
-
-            if ( message.isCommand(  ) )
-            {
-                parseCommand( message, room, strNickname );
-            }
-            else
-            {
-                room.addChatEntry( user, new ChatEntry( strNickname, strMessage, ChatEntry.TYPE_MESSAGE ), null );
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Commands parsing
-     *
-     * @param message The message
-     * @param room The room
-     * @param strNickname The nickname
-     */
-    private static void parseCommand( Message message, ChatRoom room, String strNickname )
-    {
-        ChatUser user = room.getUser( strNickname );
-
-        if ( message.isCommand( COMMAND_AWAY ) )
-        {
-            setAway( room, user, message.getArgs(  ) );
-
-            return;
-        }
-        else if ( message.isCommand( COMMAND_QUIT ) )
-        {
-            quit( room, user, message.getArgs(  ) );
-
-            return;
-        }
-        else if ( message.isCommand( COMMAND_PART ) )
-        {
-            quit( room, user, "" );
-
-            return;
-        }
-
-        if ( user.getMode(  ) == ChatUser.MODE_OP )
-        {
-            if ( message.isCommand( COMMAND_MODE ) )
-            {
-                changeUserMode( room, user, message.getArg1(  ), message.getArg2(  ) );
-            }
-            else if ( message.isCommand( COMMAND_WHOIS ) )
-            {
-                whoisUser( room, user, message.getArgs(  ) );
-            }
-            else if ( message.isCommand( COMMAND_KICK ) )
-            {
-                kickUser( room, user, message.getArg1(  ), message.getArg2(  ) );
-            }
-            else if ( message.isCommand( COMMAND_NICK ) )
-            {
-                changeNickname( room, user, message.getArgs(  ) );
-            }
-            else if ( message.isCommand( COMMAND_TOPIC ) )
-            {
-                setTopic( room, user, message.getArgs(  ) );
-            }
-            else if ( message.isCommand( COMMAND_MSG ) )
-            {
-                sendPrivateMessage( room, user, message.getArg1(  ), message.getArg2(  ) );
-            }
-            else if ( message.isCommand( COMMAND_ME ) )
-            {
-                room.addChatEntry( user,
-                    new ChatEntry( strNickname, message.getArgs(  ), ChatEntry.TYPE_NOTIFICATION ), null );
-            }
-            else if ( message.isCommand( COMMAND_BANLIST ) )
-            {
-                banlist( room, user );
-            }
-            else
-            {
-                room.addChatEntry( user, new ChatEntry( formatMsg( MSG_COMMAND_UNKOWN, strNickname ) ),
-                    room.getUser( strNickname ) );
-            }
-        }
-        else
-        {
-            if ( message.isCommand( COMMAND_OP ) )
-            {
-                String strAdminPassword = message.getArgs(  );
-
-                if ( strAdminPassword.equalsIgnoreCase( room.getAdminPassword(  ) ) )
-                {
-                    user.setMode( ChatUser.MODE_OP );
-                    room.addChatEntry( new ChatEntry( strNickname, formatMsg( MSG_OP, strNickname ),
-                            ChatEntry.TYPE_NOTIFICATION ), null );
-                }
-            }
-            else
-            {
-                room.addChatEntry( user, new ChatEntry( formatMsg( MSG_COMMAND_DENIED, strNickname ) ), user );
-            }
-        }
-    }
-
-    /**
-     * Changes the user mode
-     *
-     *@param room The chat room
-     *@param userOperator  the chat room operator
-     *@param strMode The user mode
-     *@param strUser The user
-     */
-    private static void changeUserMode( ChatRoom room, ChatUser userOperator, String strMode, String strUser )
-    {
-        int nMode = getNewUserMode( strMode.toUpperCase(  ) );
-        ChatUser user = null;
-
-        switch ( nMode )
-        {
-            case ChatUser.MODE_USER:
-            case ChatUser.MODE_VOICE:
-            case ChatUser.MODE_OP:
-                user = checkCommandUser( room, strUser, userOperator );
-
-                if ( user != null )
-                {
-                    user.setMode( nMode );
-                    room.addChatEntry( new ChatEntry( formatMsg( MSG_MODE, userOperator.getNickname(  ),
-                                user.getNickname(  ), "" ) ), null );
-                }
-
-                break;
-
-            case ChatUser.MODE_BAN:
-                user = checkCommandUser( room, strUser, userOperator );
-
-                if ( user != null )
-                {
-                    room.banUser( user.getNickname(  ), formatMsg( MSG_BANNED ) );
-                    room.addChatEntry( new ChatEntry( formatMsg( MSG_BAN, userOperator.getNickname(  ),
-                                user.getNickname(  ), "" ) ), null );
-                }
-
-                break;
-
-            case ChatUser.MODE_DEBAN:
-                room.debanUser( strUser );
-                room.addChatEntry( new ChatEntry( formatMsg( MSG_DEBAN, "", strUser, "" ) ), userOperator );
-
-                break;
-
-            default:
-                room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_INVALID_PARMS, "", user.getNickname(  ), "" ) ),
-                    userOperator );
-        }
-    }
-
-    /**
-     * Returns the mode number from a string
-     *
-     *@param strMode  the mode string
-     *@return the mode number
-     */
-    private static int getNewUserMode( String strMode )
-    {
-        if ( strMode.equals( "+O" ) )
-        {
-            return ChatUser.MODE_OP;
-        }
-
-        if ( strMode.equals( "+V" ) )
-        {
-            return ChatUser.MODE_VOICE;
-        }
-
-        if ( strMode.equals( "-O" ) || strMode.equals( "-V" ) )
-        {
-            return ChatUser.MODE_USER;
-        }
-
-        if ( strMode.equals( "+B" ) )
-        {
-            return ChatUser.MODE_BAN;
-        }
-
-        if ( strMode.equals( "-B" ) )
-        {
-            return ChatUser.MODE_DEBAN;
-        }
-
-        return -1;
-    }
-
-    /**
-     * Returns informations about a user
-     *
-     *@param room The chat room
-     *@param userOperator The user's operator
-     *@param strUser The name of the user
-     */
-    private static void whoisUser( ChatRoom room, ChatUser userOperator, String strUser )
-    {
-        ChatUser user = checkCommandUser( room, strUser, userOperator );
-
-        if ( user != null )
-        {
-            String strMessage = AppPropertiesService.getProperty( MSG_USERS_INFOS_TITLE ) + user.getNickname(  ) +
-                "\n" + AppPropertiesService.getProperty( MSG_USERS_INFOS_IP ) + " (" + user.getIpAddress(  ) + ") " +
-                user.getHostName(  ) + "\n" + AppPropertiesService.getProperty( MSG_USERS_INFOS_LAST_ACCESS ) +
-                user.getLastAccessTime(  ).toString(  ) + "\n" +
-                AppPropertiesService.getProperty( MSG_USERS_INFOS_ENTRANCE ) +
-                new Date( user.getJoinTime(  ) ).toString(  );
-            room.addChatEntry( new ChatEntry( "", strMessage, ChatEntry.TYPE_NOTIFICATION ), userOperator );
-        }
-    }
-
-    /**
-     * Kicks a user out of a chat room
-     *
-     * @param room The chat room
-     * @param userOperator The operator
-     * @param strUser The name of the user
-     * @param strComment A string comment
-     */
-    private static void kickUser( ChatRoom room, ChatUser userOperator, String strUser, String strComment )
-    {
-        ChatUser user = checkCommandUser( room, strUser, userOperator );
-
-        if ( user != null )
-        {
-            room.addChatEntry( new ChatEntry( formatMsg( MSG_KICK, userOperator.getNickname(  ), strUser, strComment ) ),
-                null );
-            user.kick( formatMsg( MSG_KICKED, userOperator.getNickname(  ), strUser, strComment ) );
-        }
-    }
-
-    /**
-     * Sends a private message from the chat operator to a user
-     *
-     * @param room The chat room
-     * @param userOperator The chat operator
-     * @param strUser The user name
-     * @param strMessage The message
-     */
-    private static void sendPrivateMessage( ChatRoom room, ChatUser userOperator, String strUser, String strMessage )
-    {
-        ChatUser user = checkCommandUser( room, strUser, userOperator );
-
-        if ( user != null )
-        {
-            String strSender = "<" + userOperator.getNickname(  ) + ">";
-            room.addChatEntry( user, new ChatEntry( strSender, strMessage, ChatEntry.TYPE_MESSAGE ), user );
-            room.addChatEntry( userOperator, new ChatEntry( strSender, strMessage, ChatEntry.TYPE_MESSAGE ),
-                userOperator );
-        }
-    }
-
-    /**
-     * Changes a user nickname
-     *
-     * @param room The chat room
-     * @param user The user
-     * @param strNewNickname The new nickname
-     */
-    private static void changeNickname( ChatRoom room, ChatUser user, String strNewNickname )
-    {
-        String strNickname = user.getNickname(  );
-
-        if ( room.changePseudo( strNickname, strNewNickname ) != ChatRoom.USER_ADDED )
-        {
-            room.addChatEntry( user, new ChatEntry( formatMsg( MSG_INVALID_NICK, strNewNickname ) ), user );
-        }
-        else
-        {
-            room.addChatEntry( user, new ChatEntry( formatMsg( MSG_NICK, strNickname, "", strNewNickname ) ), null );
-        }
-    }
-
-    /**
-     * Sets a user away
-     *
-     * @param room The chat room
-     * @param user The user
-     * @param strComment A string comment
-     */
-    private static void setAway( ChatRoom room, ChatUser user, String strComment )
-    {
-        if ( user.getMode(  ) == ChatUser.MODE_OP )
-        {
-            user.setMode( ChatUser.MODE_VOICE );
-        }
-
-        user.setAway( strComment );
-        room.addChatEntry( user, new ChatEntry( formatMsg( MSG_AWAY, user.getNickname(  ), "", strComment ) ), null );
-    }
-
-    /**
-     * Allows a user to leave the chat room
-     *
-     * @param room The chat room
-     * @param user The user
-     * @param strComment A comment
-     */
-    private static void quit( ChatRoom room, ChatUser user, String strComment )
-    {
-        room.addChatEntry( new ChatEntry( formatMsg( MSG_QUIT, user.getNickname(  ), "", strComment ) ), null );
-        user.kick( formatMsg( MSG_EXIT ) );
-    }
-
-    /**
-     * Sets the topic of the chat room
-     *
-     * @param room The chat room
-     * @param user The user
-     * @param strTopic The topic
-     */
-    private static void setTopic( ChatRoom room, ChatUser user, String strTopic )
-    {
-        room.setDescription( strTopic );
-        room.addChatEntry( new ChatEntry( formatMsg( MSG_TOPIC, user.getNickname(  ), "", strTopic ) ), null );
-    }
-
-    /**
-     * Adds an entry with the ban list
-     *
-     * @param room The chat room
-     * @param userOperator The chat operator
-     */
-    private static void banlist( ChatRoom room, ChatUser userOperator )
-    {
-        Enumeration e = room.getBannedUsers(  );
-        StringBuffer strList = new StringBuffer(  );
-        strList.append( AppPropertiesService.getProperty( MSG_BANNED_LIST_TITLE ) + "\n" );
-        strList.append( AppPropertiesService.getProperty( MSG_BANNED_LIST_TABLE ) + "\n" );
-
-        SimpleDateFormat formatter = new SimpleDateFormat( "dd'/'MM'/'yyyy' 'HH':'mm", Locale.FRANCE );
-
-        while ( e.hasMoreElements(  ) )
-        {
-            ChatUser user = (ChatUser) e.nextElement(  );
-            strList.append( user.getIpAddress(  ) );
-            strList.append( "    " );
-            strList.append( formatter.format( user.getLastAccessTime(  ) ) );
-            strList.append( "        " );
-            strList.append( user.getNickname(  ) );
-            strList.append( "\n" );
-        }
-
-        room.addChatEntry( new ChatEntry( "", strList.toString(  ), ChatEntry.TYPE_NOTIFICATION ), userOperator );
-    }
-
-    /**
-     * Checks the user validity
-     *
-     * @param room The chat room
-     * @param strUser The user name
-     * @param userOperator The chat operator
-         *
-         * @return The object corespondig to the user name, null if the name is
-         * invalid
-     */
-    private static ChatUser checkCommandUser( ChatRoom room, String strUser, ChatUser userOperator )
-    {
-        ChatUser user = room.getUser( strUser );
-
-        if ( user == null )
-        {
-            room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_INVALID_USER, userOperator.getNickname(  ),
-                        strUser, "" ) ), userOperator );
-        }
-
-        return user;
-    }
-
-    /**
-     * Formats a message
-     *
-     * @param strMessageName The message name
-     * @param strNickname The nickname
-     * @param strUser The name of the user
-     * @param strComment A comment
-     * @return The formated message
-     */
-    private static String formatMsg( String strMessageName, String strNickname, String strUser, String strComment )
-    {
-        String strRessource = "chat.msg." + strMessageName;
-        String strLanguage = AppPropertiesService.getProperty( PROPERTY_LANGUAGE, "" );
-
-        if ( !strLanguage.equals( "" ) )
-        {
-            strRessource += ( "." + strLanguage );
-        }
-
-        String strPattern = AppPropertiesService.getProperty( strRessource );
-        MessageFormat msgFormat = new MessageFormat( strPattern );
-        Object[] msgArgs = { strNickname, strUser, strComment };
-
-        return msgFormat.format( msgArgs );
-    }
-
-    /**
-     * Formats a message
-     *
-     * @param strMessageName The message name
-     * @param strNickname The nickname
-     * @return The formated message
-     */
-    private static String formatMsg( String strMessageName, String strNickname )
-    {
-        return formatMsg( strMessageName, strNickname, "", "" );
-    }
-
-    /**
-     * Formats a message
-     *
-     * @param strMessageName The message name
-     * @return The formated message
-     */
-    private static String formatMsg( String strMessageName )
-    {
-        String strRessource = "chat.msg." + strMessageName;
-        String strLanguage = AppPropertiesService.getProperty( PROPERTY_LANGUAGE, "" );
-
-        if ( !strLanguage.equals( "" ) )
-        {
-            strRessource += ( "." + strLanguage );
-        }
-
-        return AppPropertiesService.getProperty( strRessource, "" );
-    }
-}
-
-
-////////////////////////////////////////////////////////////////////////////////
-// Class Message
-
-/**
- * Utility class for message management :
- * <li>Extract commands and arguments from messages
- */
-class Message
-{
-    private String _strCommand = ""; // command found in the message
-    private String _strArgs = ""; // data found after the command
-    private String _strArg1 = ""; // first argument found after the command
-    private String _strArg2 = ""; // data found after the first argument
-    private boolean _bCommand;// indicate whether the message is a command or not
-
-    /**
-     * Creates a new Message object.
-     *
-     * @param strMessage The text of the message
-     */
-    Message( String strMessage )
-    {
-        parseMessage( strMessage );
-    }
-
-    /**
-     * Parse a message
-         *
-     * @param strMessage The message text
-     */
-    private void parseMessage( String strMessage )
-    {
-        if ( !strMessage.startsWith( "/" ) )
-        {
-            return;
-        }
-
-        _bCommand = true;
-
-        int nPos = strMessage.indexOf( " " );
-
-        if ( nPos != -1 )
-        {
-            _strCommand = strMessage.substring( 0, nPos ).toUpperCase(  );
-            _strArgs = strMessage.substring( nPos + 1, strMessage.length(  ) );
-            nPos = _strArgs.indexOf( " " );
-
-            if ( nPos != -1 )
-            {
-                _strArg1 = _strArgs.substring( 0, nPos );
-                _strArg2 = _strArgs.substring( nPos + 1, _strArgs.length(  ) );
-            }
-            else
-            {
-                _strArg1 = _strArgs;
-            }
-        }
-        else
-        {
-            _strCommand = strMessage.toUpperCase(  );
-        }
-    }
-
-    /**
-     * @return true if the message contains a command.
-     */
-    boolean isCommand(  )
-    {
-        return _bCommand;
-    }
-
-    /**
-     * Returns true if the message contains the specified command.
-     * @param strCommand The command to check
-     * @return true if the message contains the specified command
-     */
-    boolean isCommand( String strCommand )
-    {
-        return _strCommand.equals( strCommand );
-    }
-
-    /**
-     * Return the command in upper case
-         *
-         * @return The command in upper case
-     */
-    String getCommand(  )
-    {
-        return _strCommand;
-    }
-
-    /**
-     * Return all data found after the command
-         *
-         * @return The data
-     */
-    String getArgs(  )
-    {
-        return _strArgs;
-    }
-
-    /**
-     * Return first argument found after the command
-         *
-         * @return The argument
-     */
-    String getArg1(  )
-    {
-        return _strArg1;
-    }
-
-    /**
-     * Return data found after the first argument
-         *
-         * @return The data
-     */
-    String getArg2(  )
-    {
-        return _strArg2;
-    }
-}
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.plugins.chat.business.ChatBanIndex;
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatFingerprints;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.business.RoomList;
+
+/**
+ * Titre : ChatService
+ * Description : Class that provides basic services for chat clinkts
+ * Copyright :    Copyright (c) 2001
+ * Soci?t? :      Mairie de Paris
+ * @author        SePD
+ * @version 1.0
+ */
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * This class manages chat users and rooms.
+ */
+public final class ChatService
+{
+    ////////////////////////////////////////////////////////////////////////////
+    // Constants
+    // chat.properties
+    private static final String PROPERTY_LANGUAGE = "chat.language";
+    private static final String UNDEFINED = "undefined";
+    private static final String PROPERTY_DEF_ADMIN_PASSWORD = "chatadmin";
+    private static final String PROPERTY_DEF_BGCOLOR = "DDDDDD";
+    private static final String PROPERTY_DEF_BTBGCOLOR = "555555";
+    private static final String PROPERTY_DEF_BTFGCOLOR = "FFFFFF";
+    private static final String PROPERTY_DEF_FDBGCOLOR = "FFFFFF";
+
+    // IRC like commands
+    private static final String COMMAND_MODE = "/MODE";
+    private static final String COMMAND_WHOIS = "/WHOIS";
+    private static final String COMMAND_KICK = "/KICK";
+    private static final String COMMAND_ME = "/ME";
+    private static final String COMMAND_NICK = "/NICK";
+    private static final String COMMAND_MSG = "/MSG";
+    private static final String COMMAND_TOPIC = "/TOPIC";
+    private static final String COMMAND_AWAY = "/AWAY";
+    private static final String COMMAND_PART = "/PART";
+    private static final String COMMAND_QUIT = "/QUIT";
+
+    // Specific commands
+    private static final String COMMAND_OP = "/OP";
+    private static final String COMMAND_BANLIST = "/BANLIST";
+    private static final String COMMAND_BAN = "/BAN";
+    private static final String COMMAND_SEARCH = "/SEARCH";
+
+    // Notification messages
+    private static final String MSG_OP = "op";
+    private static final String MSG_QUIT = "quit";
+    private static final String MSG_ENTER = "enter";
+    private static final String MSG_TOPIC = "topic";
+    private static final String MSG_AWAY = "away";
+    private static final String MSG_COMEBACK = "comeback";
+    private static final String MSG_NICK = "nick";
+    private static final String MSG_KICK = "kick";
+    private static final String MSG_KICKED = "kicked";
+    private static final String MSG_BAN = "ban";
+    private static final String MSG_BANNED = "banned";
+    private static final String MSG_DEBAN = "deban";
+    private static final String MSG_MODE = "mode";
+    private static final String MSG_COMMAND_DENIED = "command.denied";
+    private static final String MSG_COMMAND_INVALID_PARMS = "command.invalid.params";
+    private static final String MSG_COMMAND_INVALID_USER = "command.invalid.user";
+    private static final String MSG_COMMAND_UNKOWN = "command.unkown";
+    private static final String MSG_INVALID_NICK = "invalid.nick";
+    private static final String MSG_REPEATED = "repeated";
+    private static final String MSG_SEARCH_TITLE = "search.title";
+    private static final String MSG_SEARCH_UNAVAILABLE = "search.unavailable";
+    private static final String MSG_EXIT = "exit";
+    private static final String MSG_BANNED_LIST_TITLE = "msg.banned.list.title";
+    private static final String MSG_BANNED_LIST_TABLE = "msg.banned.list.table";
+    private static final String MSG_USERS_INFOS_TITLE = "msg.users.infos.title";
+    private static final String MSG_USERS_INFOS_IP = "msg.users.infos.ip";
+    private static final String MSG_USERS_INFOS_LAST_ACCESS = "msg.users.infos.last.access";
+    private static final String MSG_USERS_INFOS_ENTRANCE = "msg.users.infos.entrance";
+
+    private static final String SCHEDULER_THREAD_NAME = "chat-scheduler";
+    private static final int TEMPLATES_REFRESH_SECONDS = 30;
+    private static final int BANS_EXPIRY_SECONDS = 60;
+
+    /** The message has been processed, or submitted to the executor of the room */
+    public static final int MESSAGE_ACCEPTED = 0;
+
+    /** The message has been refused : the user is not in the room, or the message is a flood */
+    public static final int MESSAGE_REFUSED = 1;
+
+    /** The message has been dropped because the room has too many messages waiting */
+    public static final int MESSAGE_DROPPED = 2;
+
+    // Static variables
+    private static RoomList _roomList;
+    private static volatile ChatConfiguration _configuration;
+    private static ScheduledExecutorService _scheduler;
+    private static volatile ChatExpiryWheel _expiryWheel;
+    private static volatile ChatJournal _journal;
+    private static volatile ChatHistory _history;
+    private static volatile ChatSearchIndex _searchIndex;
+    private static volatile ChatCluster _cluster;
+    private static volatile ChatRoomExecutor _roomExecutor;
+    private static ChatTemplates _templates = new ChatTemplates( PROPERTY_LANGUAGE );
+
+    // Constructor ( private  singleton )
+
+    /**
+     * Creates a new ChatService object.
+     */
+    private ChatService(  )
+    {
+    }
+
+    /**
+     * Room entering process
+     *
+     * @param request The Http request
+     * @return One of the error codes defined in the ChatRoom class
+     * @see fr.paris.lutece.plugins.chat.business.ChatRoom
+         *
+     */
+    public static int doEnterRoom( HttpServletRequest request )
+    {
+        // Get the room posted in the form
+        String strRoomName = request.getParameter( ChatConstantes.PARAM_ROOM );
+
+        if ( ( strRoomName == null ) || ( strRoomName.length(  ) == 0 ) )
+        {
+            return ChatRoom.INVALID_ROOM;
+        }
+
+        // Attach the room to the user's session
+        HttpSession session = request.getSession(  );
+        session.setAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME, strRoomName );
+
+        // R?cup?re le pseudo envoy? dans la requete du formulaire
+        String strNickname = request.getParameter( ChatConstantes.PARAM_NICKNAME );
+
+        // Cr?e l'appUser et l'ajoute au salon
+        ChatRoom room = getRoom( request );
+
+        if ( room == null )
+        {
+            return ChatRoom.INVALID_ROOM;
+        }
+
+        ChatUser user = new ChatUser( strNickname, getConfiguration( room ).getMaxMessages(  ) );
+
+        if ( isForwardedRequest( request ) )
+        {
+            // The request has been forwarded by the node of the user
+            user.setIpAddress( request.getHeader( ChatConstantes.HEADER_FORWARDED_FOR ) );
+            user.setHostName( user.getIpAddress(  ) );
+        }
+        else
+        {
+            user.setIpAddress( request.getRemoteAddr(  ) );
+            user.setHostName( request.getRemoteHost(  ) );
+        }
+
+        user.setLastAccessTime( new Date(  ) );
+
+        // Only the joins into the same room contend, on the users of the room
+        int nError = room.addUserWithFreeNickname( user );
+
+        if ( nError != ChatRoom.USER_ADDED )
+        {
+            return nError;
+        }
+
+        // Attache le pseudo ? la session
+        session.setAttribute( ChatConstantes.ATTRIBUTE_NICKNAME, user.getNickname(  ) );
+
+        ChatExpiryWheel expiryWheel = _expiryWheel;
+
+        if ( expiryWheel != null )
+        {
+            expiryWheel.schedule( room, user );
+        }
+
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_ENTER, user.getNickname(  ) ) ), null );
+
+        return ChatRoom.USER_ADDED;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Rooms management
+
+    /**
+     * Get the room attached to the session
+     *
+     * @param request the servlet request
+     * @return the room attached to the session
+     */
+    public static ChatRoom getRoom( HttpServletRequest request )
+    {
+        String strRoomName = request.getParameter( ChatConstantes.PARAM_ROOM );
+
+        if ( strRoomName == null )
+        {
+            HttpSession session = request.getSession(  );
+            strRoomName = (String) session.getAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME );
+        }
+
+        ChatRoom room = _roomList.getRoom( strRoomName );
+
+        if ( room == null )
+        {
+            return null;
+        }
+
+        return room;
+    }
+
+    /**
+     * Returns the rooms list
+     *
+     * @return the rooms ist as a RoomList object
+     */
+    public static RoomList getRoomList(  )
+    {
+        return _roomList;
+    }
+
+    /**
+     * Initialize rooms
+    
+    
+         */
+    public static void initRooms(  )
+    {
+        // Read the settings, then create rooms
+        _configuration = ChatConfiguration.load(  );
+        _roomList = createRooms(  );
+
+        // The messages of the previous rooms are processed before the new rooms are used
+        if ( _roomExecutor != null )
+        {
+            _roomExecutor.stop(  );
+        }
+
+        _roomExecutor = ChatRoomExecutor.create(  );
+
+        // Rebuild the recent state of the rooms, then journal their changes
+        if ( _journal != null )
+        {
+            _journal.stop(  );
+        }
+
+        _journal = ChatJournal.create(  );
+
+        if ( _journal != null )
+        {
+            Enumeration e = _roomList.getRooms(  );
+
+            while ( e.hasMoreElements(  ) )
+            {
+                _journal.replay( (ChatRoom) e.nextElement(  ) );
+            }
+
+            _journal.start( _roomList.getRooms(  ) );
+        }
+
+        if ( _history != null )
+        {
+            _history.close(  );
+        }
+
+        _history = ChatHistory.create(  );
+
+        if ( _history != null )
+        {
+            _history.open( _roomList.getRooms(  ) );
+        }
+
+        if ( _searchIndex != null )
+        {
+            _searchIndex.stop(  );
+        }
+
+        _searchIndex = ChatSearchIndex.create( _history );
+
+        if ( _searchIndex != null )
+        {
+            _searchIndex.start( _roomList.getRooms(  ) );
+        }
+
+        // Share the rooms with the other nodes
+        if ( _cluster != null )
+        {
+            _cluster.stop(  );
+        }
+
+        _cluster = ChatCluster.create(  );
+
+        if ( _cluster != null )
+        {
+            try
+            {
+                _cluster.start( _roomList );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.error( "Chat cluster : unable to start the bus", e );
+                _cluster = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the history of the rooms
+     *
+     * @return The history, or null if it is not enabled
+     */
+    public static ChatHistory getHistory(  )
+    {
+        return _history;
+    }
+
+    /**
+     * Returns the full-text index of the history of the rooms
+     *
+     * @return The index, or null if it is not enabled
+     */
+    public static ChatSearchIndex getSearchIndex(  )
+    {
+        return _searchIndex;
+    }
+
+    /**
+     * Returns the URL of the webapp on the node owning a room, when the rooms are partitioned between the nodes of
+     * the cluster
+     *
+     * @param room The room
+     * @return The URL, or null if the room is owned by this node
+     */
+    public static String getOwnerUrl( ChatRoom room )
+    {
+        ChatCluster cluster = _cluster;
+
+        return ( cluster != null ) ? cluster.getOwnerUrl( room ) : null;
+    }
+
+    /**
+     * Checks if a request has been forwarded by another node of the cluster
+     *
+     * @param request The http request
+     * @return true if the request holds the secret shared by the nodes
+     */
+    public static boolean isForwardedRequest( HttpServletRequest request )
+    {
+        ChatCluster cluster = _cluster;
+        String strSecret = request.getHeader( ChatConstantes.HEADER_CLUSTER_SECRET );
+
+        return ( strSecret != null ) && ( cluster != null ) && cluster.isTrusted( strSecret );
+    }
+
+    /**
+     * Records the state of a room received from another node of the cluster, and schedules the expiry of its users
+     *
+     * @param room The room
+     */
+    static void roomReceived( ChatRoom room )
+    {
+        ChatJournal journal = _journal;
+
+        if ( journal != null )
+        {
+            journal.topicChanged( room );
+
+            Enumeration<ChatUser> bannedUsers = room.getBannedUsers(  );
+
+            while ( bannedUsers.hasMoreElements(  ) )
+            {
+                ChatUser user = bannedUsers.nextElement(  );
+                journal.userBanned( room, user.getIpAddress(  ), user.getNickname(  ),
+                    room.getBanExpiry( user.getIpAddress(  ) ) );
+            }
+        }
+
+        ChatExpiryWheel expiryWheel = _expiryWheel;
+
+        if ( expiryWheel != null )
+        {
+            Enumeration<ChatUser> users = room.getUsers(  );
+
+            while ( users.hasMoreElements(  ) )
+            {
+                expiryWheel.schedule( room, users.nextElement(  ) );
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler, the processing of the messages, the cluster, the journal, the history and its index
+     */
+    public static synchronized void shutdown(  )
+    {
+        stopScheduler(  );
+
+        if ( _roomExecutor != null )
+        {
+            _roomExecutor.stop(  );
+            _roomExecutor = null;
+        }
+
+        if ( _cluster != null )
+        {
+            _cluster.stop(  );
+            _cluster = null;
+        }
+
+        if ( _searchIndex != null )
+        {
+            _searchIndex.stop(  );
+            _searchIndex = null;
+        }
+
+        if ( _journal != null )
+        {
+            _journal.stop(  );
+            _journal = null;
+        }
+
+        if ( _history != null )
+        {
+            _history.close(  );
+            _history = null;
+        }
+    }
+
+    /**
+     * Create rooms from the properties file
+     * @return The created rooms list as a RoomList object
+     */
+    private static RoomList createRooms(  )
+    {
+        RoomList roomList = new RoomList(  );
+        String strRoomName;
+        String strRoomNameKey;
+        String strRoomDescription;
+        String strRoomDescriptionKey;
+
+        int i = 1;
+
+        while ( true )
+        {
+            strRoomNameKey = "chat.room" + i + ".name";
+            strRoomName = AppPropertiesService.getProperty( strRoomNameKey, UNDEFINED );
+
+            if ( strRoomName.equals( UNDEFINED ) )
+            {
+                break;
+            }
+
+            strRoomDescriptionKey = "chat.room" + i + ".description";
+            strRoomDescription = AppPropertiesService.getProperty( strRoomDescriptionKey, UNDEFINED );
+
+            ChatRoom room = new ChatRoom( strRoomName, strRoomDescription,
+                    _configuration.getRoomConfiguration( strRoomName ).getMaxMessages(  ) );
+
+            // read other room attributes
+            room.setAdminPassword( AppPropertiesService.getProperty( "chat.room" + i + ".admin.password",
+                    PROPERTY_DEF_ADMIN_PASSWORD ) );
+            room.setBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".bgcolor", PROPERTY_DEF_BGCOLOR ) );
+            room.setButtonBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".btbgcolor",
+                    PROPERTY_DEF_BTBGCOLOR ) );
+            room.setButtonFgColor( AppPropertiesService.getProperty( "chat.room" + i + ".btfgcolor",
+                    PROPERTY_DEF_BTFGCOLOR ) );
+            room.setFieldBgColor( AppPropertiesService.getProperty( "chat.room" + i + ".fdbgcolor",
+                    PROPERTY_DEF_FDBGCOLOR ) );
+            roomList.addRoom( room );
+            i++;
+        }
+
+        return roomList;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Users management
+
+    /**
+     * Starts the thread which removes the inactive users and checks the settings and the notification templates.
+     * A scheduler already started is
+     * stopped first.
+     */
+    public static synchronized void startScheduler(  )
+    {
+        stopScheduler(  );
+
+        ChatExpiryWheel expiryWheel = new ChatExpiryWheel( _configuration.getMaxInactivity(  ) );
+        _scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, SCHEDULER_THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+        _scheduler.scheduleAtFixedRate( expiryWheel, 1, 1, TimeUnit.SECONDS );
+        _scheduler.scheduleWithFixedDelay( new Runnable(  )
+            {
+                public void run(  )
+                {
+                    reloadConfiguration(  );
+                    _templates.refresh(  );
+                }
+            }, TEMPLATES_REFRESH_SECONDS, TEMPLATES_REFRESH_SECONDS, TimeUnit.SECONDS );
+        _scheduler.scheduleWithFixedDelay( new Runnable(  )
+            {
+                public void run(  )
+                {
+                    // The bans expired are already ignored, they are removed from the lists
+                    Enumeration rooms = getRoomList(  ).getRooms(  );
+
+                    while ( rooms.hasMoreElements(  ) )
+                    {
+                        ( (ChatRoom) rooms.nextElement(  ) ).removeExpiredBans(  );
+                    }
+                }
+            }, BANS_EXPIRY_SECONDS, BANS_EXPIRY_SECONDS, TimeUnit.SECONDS );
+
+        // The users already in the rooms are scheduled too, the users joining meanwhile may be scheduled twice.
+        // The users of the other nodes are removed by their own node.
+        _expiryWheel = expiryWheel;
+
+        ChatCluster cluster = _cluster;
+        Enumeration e = getRoomList(  ).getRooms(  );
+
+        while ( e.hasMoreElements(  ) )
+        {
+            ChatRoom room = (ChatRoom) e.nextElement(  );
+            Enumeration<ChatUser> users = room.getUsers(  );
+
+            while ( users.hasMoreElements(  ) )
+            {
+                ChatUser user = users.nextElement(  );
+
+                if ( ( cluster == null ) || !cluster.isRemoteUser( user ) )
+                {
+                    expiryWheel.schedule( room, user );
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread which removes the inactive users and checks the settings and the notification templates
+     */
+    public static synchronized void stopScheduler(  )
+    {
+        if ( _scheduler != null )
+        {
+            _scheduler.shutdownNow(  );
+            _scheduler = null;
+            _expiryWheel = null;
+        }
+    }
+
+    /**
+     * Reads the settings again from the properties. The new settings replace the previous ones at once : a request
+     * being processed uses either the previous settings or the new ones. The number of entries kept by a room only
+     * changes when the rooms are created.
+     */
+    public static void reloadConfiguration(  )
+    {
+        _configuration = ChatConfiguration.load(  );
+    }
+
+    /**
+     * Returns the settings of a room
+     *
+     * @param room The room
+     * @return The settings
+     */
+    public static ChatConfiguration getConfiguration( ChatRoom room )
+    {
+        return _configuration.getRoomConfiguration( room.getName(  ) );
+    }
+
+    /**
+     * Removes a user inactive for too long
+     *
+     * @param room The room of the user
+     * @param user The user
+     */
+    static void expireUser( ChatRoom room, ChatUser user )
+    {
+        if ( room.removeUser( user.getNickname(  ) ) )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_QUIT, user.getNickname(  ) ) ), null );
+        }
+    }
+
+    /**
+     * Announces the departure of a user of a node lost, already removed from the room
+     *
+     * @param room The room of the user
+     * @param strNickname The nickname of the user
+     */
+    static void userLost( ChatRoom room, String strNickname )
+    {
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_QUIT, strNickname ) ), null );
+    }
+
+    /**
+     * Records the data sent by a user and bans him if he floods the room
+     *
+     * @param room The room of the user
+     * @param u The user
+     * @param strMessage The message sent by the user
+     * @return true if the user has been banned
+     */
+    private static boolean banFlooder( ChatRoom room, ChatUser u, String strMessage )
+    {
+        ChatConfiguration configuration = getConfiguration( room );
+        u.addSentData( strMessage );
+
+        if ( u.getSentDataSizeSince( configuration.getFloodDelaySeconds(  ) ) <= configuration.getFloodMaxDataSize(  ) )
+        {
+            return false;
+        }
+
+        String strFloodBotName = configuration.getFloodBotName(  );
+        String strFloodBotMessage = configuration.getFloodBotMessage(  );
+        u.kick( formatMsg( MSG_KICKED, strFloodBotName, u.getNickname(  ), strFloodBotMessage ) );
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_KICK, strFloodBotName, u.getNickname(  ),
+                    strFloodBotMessage ) ), null );
+        banUser( room, u, getBanExpiry( configuration.getFloodBanMinutes(  ) ) );
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_BAN, strFloodBotName, u.getNickname(  ), "" ) ), null );
+
+        return true;
+    }
+
+    /**
+     * Checks if a message has already been sent too many times by the user or by the users of the room. Short
+     * messages are never considered as repeated.
+     *
+     * @param room The room of the user
+     * @param user The user
+     * @param strMessage The message sent by the user
+     * @return true if the message must be dropped
+     */
+    private static boolean isRepeated( ChatRoom room, ChatUser user, String strMessage )
+    {
+        ChatConfiguration configuration = getConfiguration( room );
+
+        if ( ChatFingerprints.getSignificantLength( strMessage ) < configuration.getFloodRepeatMinLength(  ) )
+        {
+            return false;
+        }
+
+        long lFingerprint = ChatFingerprints.getFingerprint( strMessage );
+
+        if ( user.addFingerprint( lFingerprint ) >= configuration.getFloodMaxUserRepeats(  ) )
+        {
+            return true;
+        }
+
+        return room.addFingerprint( lFingerprint ) >= configuration.getFloodMaxRoomRepeats(  );
+    }
+
+    /**
+     * Get nickname attached to the request or to user's session
+     *
+     * @param request the servlet request
+         * @return The nickname
+     */
+    public static String getNickname( HttpServletRequest request )
+    {
+        String strNickname = request.getParameter( ChatConstantes.PARAM_NICKNAME );
+
+        if ( strNickname == null )
+        {
+            HttpSession session = request.getSession(  );
+            strNickname = (String) session.getAttribute( ChatConstantes.ATTRIBUTE_NICKNAME );
+        }
+
+        return strNickname;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Message management
+
+    /**
+     *
+     * @param request the HttpServlet request
+     * @return MESSAGE_ACCEPTED, MESSAGE_REFUSED or MESSAGE_DROPPED
+     */
+    public static int newMessage( HttpServletRequest request )
+    {
+        ChatRoom room = ChatService.getRoom( request );
+
+        if ( room == null )
+        {
+            return MESSAGE_REFUSED;
+        }
+
+        return newMessage( room, ChatService.getNickname( request ),
+            request.getParameter( ChatConstantes.PARAM_MESSAGE ) );
+    }
+
+    /**
+     * Processes a message or a command sent by a user. When the rooms have their own executor, the message is only
+     * submitted to the executor of the room, and processed after this method has returned.
+     *
+     * @param room The room
+     * @param strNickname The nickname of the sender
+     * @param strMessage The message
+     * @return MESSAGE_ACCEPTED, MESSAGE_REFUSED or MESSAGE_DROPPED
+     */
+    public static int newMessage( final ChatRoom room, final String strNickname, final String strMessage )
+    {
+        ChatRoomExecutor roomExecutor = _roomExecutor;
+
+        if ( roomExecutor == null )
+        {
+            return processMessage( room, strNickname, strMessage ) ? MESSAGE_ACCEPTED : MESSAGE_REFUSED;
+        }
+
+        ChatUser user = room.getUser( strNickname );
+
+        if ( ( user == null ) || user.isKicked(  ) )
+        {
+            return MESSAGE_REFUSED;
+        }
+
+        boolean bSubmitted = roomExecutor.execute( room,
+                new Runnable(  )
+                {
+                    public void run(  )
+                    {
+                        processMessage( room, strNickname, strMessage );
+                    }
+                } );
+
+        return bSubmitted ? MESSAGE_ACCEPTED : MESSAGE_DROPPED;
+    }
+
+    /**
+     * Processes a message or a command sent by a user, in the executor of the room if the rooms have their own
+     * executor
+     *
+     * @param room The room
+     * @param strNickname The nickname of the sender
+     * @param strMessage The message
+     * @return if a new message is processed
+     */
+    private static boolean processMessage( ChatRoom room, String strNickname, String strMessage )
+    {
+        ChatUser user = room.getUser( strNickname );
+
+        if ( ( user == null ) || user.isKicked(  ) )
+        {
+            return false;
+        }
+
+        // if the user was away, he's no longer away
+        if ( user.isAway(  ) )
+        {
+            user.setAway( false );
+            room.userChanged( user );
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_COMEBACK, strNickname ) ), null );
+        }
+
+        if ( ( strMessage != null ) && ( strMessage.length(  ) != 0 ) )
+        {
+            // The flood is checked before the message is sent to the room
+            if ( banFlooder( room, user, strMessage ) )
+            {
+                return false;
+            }
+
+            Message message = new Message( strMessage );
+
+            if ( message.isCommand(  ) )
+            {
+                parseCommand( message, room, strNickname );
+            }
+            else if ( isRepeated( room, user, strMessage ) )
+            {
+                // The message is dropped before it is sent to all the users
+                room.addChatEntry( new ChatEntry( formatMsg( MSG_REPEATED, strNickname ) ), user );
+
+                return false;
+            }
+            else
+            {
+                room.addChatEntry( new ChatEntry( strNickname, strMessage, ChatEntry.TYPE_MESSAGE ), null );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Commands parsing
+     *
+     * @param message The message
+     * @param room The room
+     * @param strNickname The nickname
+     */
+    private static void parseCommand( Message message, ChatRoom room, String strNickname )
+    {
+        ChatUser user = room.getUser( strNickname );
+
+        if ( message.isCommand( COMMAND_AWAY ) )
+        {
+            setAway( room, user, message.getArgs(  ) );
+
+            return;
+        }
+        else if ( message.isCommand( COMMAND_QUIT ) )
+        {
+            quit( room, user, message.getArgs(  ) );
+
+            return;
+        }
+        else if ( message.isCommand( COMMAND_PART ) )
+        {
+            quit( room, user, "" );
+
+            return;
+        }
+
+        if ( user.getMode(  ) == ChatUser.MODE_OP )
+        {
+            if ( message.isCommand( COMMAND_MODE ) )
+            {
+                changeUserMode( room, user, message.getArg1(  ), message.getArg2(  ) );
+            }
+            else if ( message.isCommand( COMMAND_WHOIS ) )
+            {
+                whoisUser( room, user, message.getArgs(  ) );
+            }
+            else if ( message.isCommand( COMMAND_KICK ) )
+            {
+                kickUser( room, user, message.getArg1(  ), message.getArg2(  ) );
+            }
+            else if ( message.isCommand( COMMAND_NICK ) )
+            {
+                changeNickname( room, user, message.getArgs(  ) );
+            }
+            else if ( message.isCommand( COMMAND_TOPIC ) )
+            {
+                setTopic( room, user, message.getArgs(  ) );
+            }
+            else if ( message.isCommand( COMMAND_MSG ) )
+            {
+                sendPrivateMessage( room, user, message.getArg1(  ), message.getArg2(  ) );
+            }
+            else if ( message.isCommand( COMMAND_ME ) )
+            {
+                room.addChatEntry( new ChatEntry( strNickname, message.getArgs(  ), ChatEntry.TYPE_NOTIFICATION ),
+                    null );
+            }
+            else if ( message.isCommand( COMMAND_BAN ) )
+            {
+                ban( room, user, message.getArg1(  ), message.getArg2(  ) );
+            }
+            else if ( message.isCommand( COMMAND_BANLIST ) )
+            {
+                banlist( room, user );
+            }
+            else if ( message.isCommand( COMMAND_SEARCH ) )
+            {
+                search( room, user, message.getArgs(  ) );
+            }
+            else
+            {
+                room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_UNKOWN, strNickname ) ),
+                    room.getUser( strNickname ) );
+            }
+        }
+        else
+        {
+            if ( message.isCommand( COMMAND_OP ) )
+            {
+                String strAdminPassword = message.getArgs(  );
+
+                if ( strAdminPassword.equalsIgnoreCase( room.getAdminPassword(  ) ) )
+                {
+                    user.setMode( ChatUser.MODE_OP );
+                    room.userChanged( user );
+                    room.addChatEntry( new ChatEntry( strNickname, formatMsg( MSG_OP, strNickname ),
+                            ChatEntry.TYPE_NOTIFICATION ), null );
+                }
+            }
+            else
+            {
+                room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_DENIED, strNickname ) ), user );
+            }
+        }
+    }
+
+    /**
+     * Changes the user mode
+     *
+     *@param room The chat room
+     *@param userOperator  the chat room operator
+     *@param strMode The user mode
+     *@param strUser The user
+     */
+    private static void changeUserMode( ChatRoom room, ChatUser userOperator, String strMode, String strUser )
+    {
+        int nMode = getNewUserMode( strMode.toUpperCase(  ) );
+        ChatUser user = null;
+
+        switch ( nMode )
+        {
+            case ChatUser.MODE_USER:
+            case ChatUser.MODE_VOICE:
+            case ChatUser.MODE_OP:
+                user = checkCommandUser( room, strUser, userOperator );
+
+                if ( user != null )
+                {
+                    user.setMode( nMode );
+                    room.userChanged( user );
+                    room.addChatEntry( new ChatEntry( formatMsg( MSG_MODE, userOperator.getNickname(  ),
+                                user.getNickname(  ), "" ) ), null );
+                }
+
+                break;
+
+            case ChatUser.MODE_BAN:
+                user = checkCommandUser( room, strUser, userOperator );
+
+                if ( user != null )
+                {
+                    banUser( room, user );
+                    room.addChatEntry( new ChatEntry( formatMsg( MSG_BAN, userOperator.getNickname(  ),
+                                user.getNickname(  ), "" ) ), null );
+                }
+
+                break;
+
+            case ChatUser.MODE_DEBAN:
+                debanUser( room, strUser );
+                room.addChatEntry( new ChatEntry( formatMsg( MSG_DEBAN, "", strUser, "" ) ), userOperator );
+
+                break;
+
+            default:
+                room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_INVALID_PARMS, "", user.getNickname(  ), "" ) ),
+                    userOperator );
+        }
+    }
+
+    /**
+     * Returns the mode number from a string
+     *
+     *@param strMode  the mode string
+     *@return the mode number
+     */
+    private static int getNewUserMode( String strMode )
+    {
+        if ( strMode.equals( "+O" ) )
+        {
+            return ChatUser.MODE_OP;
+        }
+
+        if ( strMode.equals( "+V" ) )
+        {
+            return ChatUser.MODE_VOICE;
+        }
+
+        if ( strMode.equals( "-O" ) || strMode.equals( "-V" ) )
+        {
+            return ChatUser.MODE_USER;
+        }
+
+        if ( strMode.equals( "+B" ) )
+        {
+            return ChatUser.MODE_BAN;
+        }
+
+        if ( strMode.equals( "-B" ) )
+        {
+            return ChatUser.MODE_DEBAN;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns informations about a user
+     *
+     *@param room The chat room
+     *@param userOperator The user's operator
+     *@param strUser The name of the user
+     */
+    private static void whoisUser( ChatRoom room, ChatUser userOperator, String strUser )
+    {
+        ChatUser user = checkCommandUser( room, strUser, userOperator );
+
+        if ( user != null )
+        {
+            String strMessage = AppPropertiesService.getProperty( MSG_USERS_INFOS_TITLE ) + user.getNickname(  ) +
+                "\n" + AppPropertiesService.getProperty( MSG_USERS_INFOS_IP ) + " (" + user.getIpAddress(  ) + ") " +
+                user.getHostName(  ) + "\n" + AppPropertiesService.getProperty( MSG_USERS_INFOS_LAST_ACCESS ) +
+                user.getLastAccessTime(  ).toString(  ) + "\n" +
+                AppPropertiesService.getProperty( MSG_USERS_INFOS_ENTRANCE ) +
+                new Date( user.getJoinTime(  ) ).toString(  );
+            room.addChatEntry( new ChatEntry( "", strMessage, ChatEntry.TYPE_NOTIFICATION ), userOperator );
+        }
+    }
+
+    /**
+     * Kicks a user out of a chat room
+     *
+     * @param room The chat room
+     * @param userOperator The operator
+     * @param strUser The name of the user
+     * @param strComment A string comment
+     */
+    private static void kickUser( ChatRoom room, ChatUser userOperator, String strUser, String strComment )
+    {
+        ChatUser user = checkCommandUser( room, strUser, userOperator );
+
+        if ( user != null )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_KICK, userOperator.getNickname(  ), strUser, strComment ) ),
+                null );
+            user.kick( formatMsg( MSG_KICKED, userOperator.getNickname(  ), strUser, strComment ) );
+        }
+    }
+
+    /**
+     * Sends a private message from the chat operator to a user
+     *
+     * @param room The chat room
+     * @param userOperator The chat operator
+     * @param strUser The user name
+     * @param strMessage The message
+     */
+    private static void sendPrivateMessage( ChatRoom room, ChatUser userOperator, String strUser, String strMessage )
+    {
+        ChatUser user = checkCommandUser( room, strUser, userOperator );
+
+        if ( user != null )
+        {
+            String strSender = "<" + userOperator.getNickname(  ) + ">";
+            room.addChatEntry( new ChatEntry( strSender, strMessage, ChatEntry.TYPE_MESSAGE ), user );
+            room.addChatEntry( new ChatEntry( strSender, strMessage, ChatEntry.TYPE_MESSAGE ),
+                userOperator );
+        }
+    }
+
+    /**
+     * Changes a user nickname
+     *
+     * @param room The chat room
+     * @param user The user
+     * @param strNewNickname The new nickname
+     */
+    private static void changeNickname( ChatRoom room, ChatUser user, String strNewNickname )
+    {
+        String strNickname = user.getNickname(  );
+
+        if ( room.changePseudo( strNickname, strNewNickname ) != ChatRoom.USER_ADDED )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_INVALID_NICK, strNewNickname ) ), user );
+        }
+        else
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_NICK, strNickname, "", strNewNickname ) ), null );
+        }
+    }
+
+    /**
+     * Sets a user away
+     *
+     * @param room The chat room
+     * @param user The user
+     * @param strComment A string comment
+     */
+    private static void setAway( ChatRoom room, ChatUser user, String strComment )
+    {
+        if ( user.getMode(  ) == ChatUser.MODE_OP )
+        {
+            user.setMode( ChatUser.MODE_VOICE );
+        }
+
+        user.setAway( strComment );
+        room.userChanged( user );
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_AWAY, user.getNickname(  ), "", strComment ) ), null );
+    }
+
+    /**
+     * Allows a user to leave the chat room
+     *
+     * @param room The chat room
+     * @param user The user
+     * @param strComment A comment
+     */
+    private static void quit( ChatRoom room, ChatUser user, String strComment )
+    {
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_QUIT, user.getNickname(  ), "", strComment ) ), null );
+        user.kick( formatMsg( MSG_EXIT ) );
+    }
+
+    /**
+     * Sets the topic of the chat room
+     *
+     * @param room The chat room
+     * @param user The user
+     * @param strTopic The topic
+     */
+    private static void setTopic( ChatRoom room, ChatUser user, String strTopic )
+    {
+        changeTopic( room, strTopic );
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_TOPIC, user.getNickname(  ), "", strTopic ) ), null );
+    }
+
+    /**
+     * Changes the topic of the chat room, and records the change in the journal and the cluster
+     *
+     * @param room The chat room
+     * @param strTopic The topic
+     */
+    static void changeTopic( ChatRoom room, String strTopic )
+    {
+        room.setDescription( strTopic );
+
+        ChatJournal journal = _journal;
+
+        if ( journal != null )
+        {
+            journal.topicChanged( room );
+        }
+
+        ChatCluster cluster = _cluster;
+
+        if ( cluster != null )
+        {
+            cluster.topicChanged( room );
+        }
+    }
+
+    /**
+     * Bans a user from the chat room
+     *
+     * @param room The chat room
+     * @param user The user to ban
+     */
+    static void banUser( ChatRoom room, ChatUser user )
+    {
+        banUser( room, user, ChatBanIndex.NO_EXPIRY );
+    }
+
+    /**
+     * Bans a user from the chat room until a given time
+     *
+     * @param room The chat room
+     * @param user The user to ban
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    static void banUser( ChatRoom room, ChatUser user, long lExpiry )
+    {
+        room.banUser( user.getNickname(  ), formatMsg( MSG_BANNED ), lExpiry );
+        userBanned( room, user.getIpAddress(  ), user.getNickname(  ), lExpiry );
+    }
+
+    /**
+     * Bans an address or a range of addresses from the chat room until a given time. The users of the room connected
+     * from these addresses are kicked.
+     *
+     * @param room The chat room
+     * @param strAddress The address, or the range in the CIDR notation
+     * @param strNickname The nickname of the user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     * @return false if the address is invalid
+     */
+    static boolean banAddress( ChatRoom room, String strAddress, String strNickname, long lExpiry )
+    {
+        if ( !room.banAddress( strAddress, strNickname, lExpiry, formatMsg( MSG_BANNED ) ) )
+        {
+            return false;
+        }
+
+        userBanned( room, ChatBanIndex.normalize( strAddress ), strNickname, lExpiry );
+
+        return true;
+    }
+
+    /**
+     * Records a ban in the journal and the cluster
+     *
+     * @param room The chat room
+     * @param strIpAddress The address banned
+     * @param strNickname The nickname of the user banned
+     * @param lExpiry The time at which the ban expires, or ChatBanIndex.NO_EXPIRY
+     */
+    private static void userBanned( ChatRoom room, String strIpAddress, String strNickname, long lExpiry )
+    {
+        ChatJournal journal = _journal;
+
+        if ( journal != null )
+        {
+            journal.userBanned( room, strIpAddress, strNickname, lExpiry );
+        }
+
+        ChatCluster cluster = _cluster;
+
+        if ( cluster != null )
+        {
+            cluster.userBanned( room, strIpAddress, strNickname, lExpiry );
+        }
+    }
+
+    /**
+     * Returns the time at which a ban given now expires
+     *
+     * @param nMinutes The duration of the ban in minutes, or 0 if the ban never expires
+     * @return The time, or ChatBanIndex.NO_EXPIRY
+     */
+    private static long getBanExpiry( int nMinutes )
+    {
+        return ( nMinutes > 0 ) ? ( System.currentTimeMillis(  ) + ( nMinutes * 60000L ) ) : ChatBanIndex.NO_EXPIRY;
+    }
+
+    /**
+     * Bans a user of the room, an address or a range of addresses in the CIDR notation, for a number of minutes or
+     * for ever
+     *
+     * @param room The chat room
+     * @param userOperator The chat operator
+     * @param strTarget The nickname of the user, the address or the range
+     * @param strMinutes The duration of the ban in minutes, or an empty string
+     */
+    private static void ban( ChatRoom room, ChatUser userOperator, String strTarget, String strMinutes )
+    {
+        int nMinutes = 0;
+
+        try
+        {
+            nMinutes = ( strMinutes.trim(  ).length(  ) != 0 ) ? Integer.parseInt( strMinutes.trim(  ) ) : 0;
+        }
+        catch ( NumberFormatException e )
+        {
+            nMinutes = -1;
+        }
+
+        ChatUser user = room.getUser( strTarget );
+        long lExpiry = getBanExpiry( nMinutes );
+
+        if ( ( nMinutes >= 0 ) && ( user != null ) )
+        {
+            banUser( room, user, lExpiry );
+        }
+        else if ( ( nMinutes < 0 ) || !banAddress( room, strTarget, "", lExpiry ) )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_INVALID_PARMS, "", strTarget, "" ) ),
+                userOperator );
+
+            return;
+        }
+
+        room.addChatEntry( new ChatEntry( formatMsg( MSG_BAN, userOperator.getNickname(  ), strTarget, "" ) ), null );
+    }
+
+    /**
+     * Authorizes again an address banned from the chat room
+     *
+     * @param room The chat room
+     * @param strIpAddress The address
+     */
+    static void debanUser( ChatRoom room, String strIpAddress )
+    {
+        room.debanUser( strIpAddress );
+
+        ChatJournal journal = _journal;
+
+        if ( journal != null )
+        {
+            journal.userDebanned( room, strIpAddress );
+        }
+
+        ChatCluster cluster = _cluster;
+
+        if ( cluster != null )
+        {
+            cluster.userDebanned( room, strIpAddress );
+        }
+    }
+
+    /**
+     * Adds an entry with the ban list
+     *
+     * @param room The chat room
+     * @param userOperator The chat operator
+     */
+    private static void banlist( ChatRoom room, ChatUser userOperator )
+    {
+        Enumeration e = room.getBannedUsers(  );
+        StringBuffer strList = new StringBuffer(  );
+        strList.append( AppPropertiesService.getProperty( MSG_BANNED_LIST_TITLE ) + "\n" );
+        strList.append( AppPropertiesService.getProperty( MSG_BANNED_LIST_TABLE ) + "\n" );
+
+        SimpleDateFormat formatter = new SimpleDateFormat( "dd'/'MM'/'yyyy' 'HH':'mm", Locale.FRANCE );
+
+        while ( e.hasMoreElements(  ) )
+        {
+            ChatUser user = (ChatUser) e.nextElement(  );
+            strList.append( user.getIpAddress(  ) );
+            strList.append( "    " );
+            strList.append( formatter.format( user.getLastAccessTime(  ) ) );
+            strList.append( "        " );
+            strList.append( user.getNickname(  ) );
+
+            long lExpiry = room.getBanExpiry( user.getIpAddress(  ) );
+
+            if ( lExpiry != ChatBanIndex.NO_EXPIRY )
+            {
+                strList.append( " -> " );
+                strList.append( formatter.format( new Date( lExpiry ) ) );
+            }
+
+            strList.append( "\n" );
+        }
+
+        room.addChatEntry( new ChatEntry( "", strList.toString(  ), ChatEntry.TYPE_NOTIFICATION ), userOperator );
+    }
+
+    /**
+     * Adds an entry with the most recent messages of the history which contain the words of a query
+     *
+     * @param room The chat room
+     * @param userOperator The chat operator
+     * @param strQuery The query
+     */
+    private static void search( ChatRoom room, ChatUser userOperator, String strQuery )
+    {
+        ChatSearchIndex searchIndex = _searchIndex;
+
+        if ( searchIndex == null )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_SEARCH_UNAVAILABLE, userOperator.getNickname(  ) ) ),
+                userOperator );
+
+            return;
+        }
+
+        StringBuffer strList = new StringBuffer(  );
+        strList.append( formatMsg( MSG_SEARCH_TITLE, userOperator.getNickname(  ), "", strQuery ) + "\n" );
+
+        SimpleDateFormat formatter = new SimpleDateFormat( "dd'/'MM'/'yyyy' 'HH':'mm", Locale.FRANCE );
+
+        for ( ChatEntry entry : searchIndex.search( room, strQuery ) )
+        {
+            strList.append( formatter.format( new Date( entry.getTime(  ) ) ) );
+            strList.append( "  <" );
+            strList.append( entry.getNickname(  ) );
+            strList.append( "> " );
+            strList.append( entry.getChatMessage(  ) );
+            strList.append( "\n" );
+        }
+
+        room.addChatEntry( new ChatEntry( "", strList.toString(  ), ChatEntry.TYPE_NOTIFICATION ), userOperator );
+    }
+
+    /**
+     * Checks the user validity
+     *
+     * @param room The chat room
+     * @param strUser The user name
+     * @param userOperator The chat operator
+         *
+         * @return The object corespondig to the user name, null if the name is
+         * invalid
+     */
+    private static ChatUser checkCommandUser( ChatRoom room, String strUser, ChatUser userOperator )
+    {
+        ChatUser user = room.getUser( strUser );
+
+        if ( user == null )
+        {
+            room.addChatEntry( new ChatEntry( formatMsg( MSG_COMMAND_INVALID_USER, userOperator.getNickname(  ),
+                        strUser, "" ) ), userOperator );
+        }
+
+        return user;
+    }
+
+    /**
+     * Formats a message
+     *
+     * @param strMessageName The message name
+     * @param strNickname The nickname
+     * @param strUser The name of the user
+     * @param strComment A comment
+     * @return The formated message
+     */
+    private static String formatMsg( String strMessageName, String strNickname, String strUser, String strComment )
+    {
+        return _templates.getTemplate( strMessageName ).format( strNickname, strUser, strComment );
+    }
+
+    /**
+     * Formats a message
+     *
+     * @param strMessageName The message name
+     * @param strNickname The nickname
+     * @return The formated message
+     */
+    private static String formatMsg( String strMessageName, String strNickname )
+    {
+        return formatMsg( strMessageName, strNickname, "", "" );
+    }
+
+    /**
+     * Formats a message
+     *
+     * @param strMessageName The message name
+     * @return The formated message
+     */
+    private static String formatMsg( String strMessageName )
+    {
+        return _templates.getTemplate( strMessageName ).getPattern(  );
+    }
+}
+
+
+////////////////////////////////////////////////////////////////////////////////
+// Class Message
+
+/**
+ * Utility class for message management :
+ * <li>Extract commands and arguments from messages
+ */
+class Message
+{
+    private String _strCommand = ""; // command found in the message
+    private String _strArgs = ""; // data found after the command
+    private String _strArg1 = ""; // first argument found after the command
+    private String _strArg2 = ""; // data found after the first argument
+    private boolean _bCommand;// indicate whether the message is a command or not
+
+    /**
+     * Creates a new Message object.
+     *
+     * @param strMessage The text of the message
+     */
+    Message( String strMessage )
+    {
+        parseMessage( strMessage );
+    }
+
+    /**
+     * Parse a message
+         *
+     * @param strMessage The message text
+     */
+    private void parseMessage( String strMessage )
+    {
+        if ( !strMessage.startsWith( "/" ) )
+        {
+            return;
+        }
+
+        _bCommand = true;
+
+        int nPos = strMessage.indexOf( " " );
+
+        if ( nPos != -1 )
+        {
+            _strCommand = strMessage.substring( 0, nPos ).toUpperCase(  );
+            _strArgs = strMessage.substring( nPos + 1, strMessage.length(  ) );
+            nPos = _strArgs.indexOf( " " );
+
+            if ( nPos != -1 )
+            {
+                _strArg1 = _strArgs.substring( 0, nPos );
+                _strArg2 = _strArgs.substring( nPos + 1, _strArgs.length(  ) );
+            }
+            else
+            {
+                _strArg1 = _strArgs;
+            }
+        }
+        else
+        {
+            _strCommand = strMessage.toUpperCase(  );
+        }
+    }
+
+    /**
+     * @return true if the message contains a command.
+     */
+    boolean isCommand(  )
+    {
+        return _bCommand;
+    }
+
+    /**
+     * Returns true if the message contains the specified command.
+     * @param strCommand The command to check
+     * @return true if the message contains the specified command
+     */
+    boolean isCommand( String strCommand )
+    {
+        return _strCommand.equals( strCommand );
+    }
+
+    /**
+     * Return the command in upper case
+         *
+         * @return The command in upper case
+     */
+    String getCommand(  )
+    {
+        return _strCommand;
+    }
+
+    /**
+     * Return all data found after the command
+         *
+         * @return The data
+     */
+    String getArgs(  )
+    {
+        return _strArgs;
+    }
+
+    /**
+     * Return first argument found after the command
+         *
+         * @return The argument
+     */
+    String getArg1(  )
+    {
+        return _strArg1;
+    }
+
+    /**
+     * Return data found after the first argument
+         *
+         * @return The data
+     */
+    String getArg2(  )
+    {
+        return _strArg2;
+    }
+}
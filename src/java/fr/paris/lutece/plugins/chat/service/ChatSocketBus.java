@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Bus linking the nodes with TCP connections. Each node listens on an address and a port and connects to each other
+ * node, given in the peers property as a list of host:port separated by commas. The messages published are queued
+ * for each peer and sent by a thread per peer, which reconnects when the connection is lost.
+ * <br>
+ * The connections are authenticated with the secret shared by the nodes : the node accepting a connection sends a
+ * random nonce, then each message is sent as its length, its content and the HMAC-SHA256 of the nonce, the sequence
+ * number of the message on the connection and its content. A connection sending a message whose HMAC is wrong is
+ * closed, so that the messages can neither be forged nor replayed on another connection.
+ */
+public class ChatSocketBus implements ChatBus
+{
+    private static final String PROPERTY_ADDRESS = "chat.cluster.bus.address";
+    private static final String PROPERTY_PORT = "chat.cluster.bus.port";
+    private static final String PROPERTY_PEERS = "chat.cluster.bus.peers";
+    private static final String PROPERTY_QUEUE_SIZE = "chat.cluster.bus.queue.size";
+    private static final String PROPERTY_SECRET = "chat.cluster.secret";
+    private static final String DEFAULT_ADDRESS = "127.0.0.1";
+    private static final int DEFAULT_PORT = 7800;
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long RETRY_MILLIS = 1000L;
+    private static final long STOP_DRAIN_MILLIS = 2000L;
+    private static final long DRAIN_POLL_MILLIS = 20L;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final int NONCE_LENGTH = 16;
+    private static final String CHARSET = "UTF-8";
+    private static final String PEERS_SEPARATOR = ",";
+    private static final String PORT_SEPARATOR = ":";
+    private String _strAddress;
+    private int _nPort;
+    private byte[] _secret;
+    private SecureRandom _random = new SecureRandom(  );
+    private List<Peer> _listPeers = new ArrayList<Peer>(  );
+    private Set<Socket> _setSockets = Collections.newSetFromMap( new ConcurrentHashMap<Socket, Boolean>(  ) );
+    private ServerSocket _serverSocket;
+    private ChatBusListener _listener;
+    private volatile boolean _bRunning;
+
+    /**
+     * Creates a new ChatSocketBus object defined in the properties
+     */
+    public ChatSocketBus(  )
+    {
+        this( AppPropertiesService.getProperty( PROPERTY_ADDRESS, DEFAULT_ADDRESS ),
+            AppPropertiesService.getPropertyInt( PROPERTY_PORT, DEFAULT_PORT ),
+            AppPropertiesService.getProperty( PROPERTY_PEERS, "" ),
+            AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ),
+            AppPropertiesService.getProperty( PROPERTY_SECRET, "" ) );
+    }
+
+    /**
+     * Creates a new ChatSocketBus object
+     *
+     * @param strAddress The address on which the node listens
+     * @param nPort The port on which the node listens
+     * @param strPeers The other nodes, as a list of host:port separated by commas
+     * @param nQueueSize The number of messages waiting to be sent to a peer from which messages are dropped
+     * @param strSecret The secret shared by the nodes
+     */
+    public ChatSocketBus( String strAddress, int nPort, String strPeers, int nQueueSize, String strSecret )
+    {
+        _strAddress = strAddress.trim(  );
+        _nPort = nPort;
+
+        try
+        {
+            _secret = strSecret.getBytes( CHARSET );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+
+        for ( String strPeer : strPeers.split( PEERS_SEPARATOR ) )
+        {
+            int nIndex = strPeer.lastIndexOf( PORT_SEPARATOR );
+
+            if ( nIndex > 0 )
+            {
+                _listPeers.add( new Peer( strPeer.substring( 0, nIndex ).trim(  ),
+                        Integer.parseInt( strPeer.substring( nIndex + 1 ).trim(  ) ), nQueueSize ) );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void start( ChatBusListener listener ) throws IOException
+    {
+        if ( _secret.length == 0 )
+        {
+            throw new IOException( "The property " + PROPERTY_SECRET + " is required to authenticate the nodes" );
+        }
+
+        // Fails now rather than in the threads if the algorithm is not available
+        createMac(  );
+
+        _listener = listener;
+        _serverSocket = new ServerSocket( _nPort, 0, InetAddress.getByName( _strAddress ) );
+        _bRunning = true;
+
+        Thread thread = new Thread( new Runnable(  )
+                {
+                    public void run(  )
+                    {
+                        accept(  );
+                    }
+                }, "chat-bus-acceptor" );
+        thread.setDaemon( true );
+        thread.start(  );
+
+        for ( Peer peer : _listPeers )
+        {
+            peer.start(  );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void publish( byte[] message )
+    {
+        for ( Peer peer : _listPeers )
+        {
+            peer.send( message );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop(  )
+    {
+        // Leave a moment to the senders for the last messages, such as the rooms handed over by a stopping node
+        long lDeadline = System.currentTimeMillis(  ) + STOP_DRAIN_MILLIS;
+
+        for ( Peer peer : _listPeers )
+        {
+            peer.drain( lDeadline );
+        }
+
+        _bRunning = false;
+        close( _serverSocket );
+
+        for ( Socket socket : _setSockets )
+        {
+            close( socket );
+        }
+
+        for ( Peer peer : _listPeers )
+        {
+            peer.stop(  );
+        }
+    }
+
+    /**
+     * Accepts the connections of the other nodes
+     */
+    private void accept(  )
+    {
+        while ( _bRunning )
+        {
+            try
+            {
+                final Socket socket = _serverSocket.accept(  );
+                _setSockets.add( socket );
+
+                Thread thread = new Thread( new Runnable(  )
+                        {
+                            public void run(  )
+                            {
+                                receive( socket );
+                            }
+                        }, "chat-bus-reader-" + socket.getRemoteSocketAddress(  ) );
+                thread.setDaemon( true );
+                thread.start(  );
+            }
+            catch ( IOException e )
+            {
+                if ( _bRunning )
+                {
+                    AppLogService.error( "Chat bus : unable to accept a connection", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the messages sent by another node on a connection, until the connection is closed or a message is not
+     * authenticated
+     *
+     * @param socket The connection
+     */
+    private void receive( Socket socket )
+    {
+        try
+        {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            _random.nextBytes( nonce );
+            socket.getOutputStream(  ).write( nonce );
+            socket.getOutputStream(  ).flush(  );
+
+            Mac mac = createMac(  );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream(  ) ) );
+            byte[] signature = new byte[MAC_LENGTH];
+            long lSequence = 0;
+
+            while ( _bRunning )
+            {
+                int nLength = in.readInt(  );
+
+                if ( ( nLength <= 0 ) || ( nLength > MAX_MESSAGE_SIZE ) )
+                {
+                    throw new IOException( "Invalid message length : " + nLength );
+                }
+
+                byte[] message = new byte[nLength];
+                in.readFully( message );
+                in.readFully( signature );
+
+                if ( !MessageDigest.isEqual( signature, sign( mac, nonce, lSequence++, message ) ) )
+                {
+                    AppLogService.error( "Chat bus : message not authenticated from " +
+                        socket.getRemoteSocketAddress(  ) + ", the connection is closed" );
+
+                    return;
+                }
+
+                try
+                {
+                    _listener.messageReceived( message );
+                }
+                catch ( RuntimeException e )
+                {
+                    AppLogService.error( "Chat bus : unable to process a message", e );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            if ( _bRunning )
+            {
+                AppLogService.info( "Chat bus : connection closed by " + socket.getRemoteSocketAddress(  ) );
+            }
+        }
+        finally
+        {
+            _setSockets.remove( socket );
+            close( socket );
+        }
+    }
+
+    /**
+     * Creates the HMAC of the messages, keyed with the secret shared by the nodes
+     *
+     * @return The HMAC
+     * @throws IOException If the algorithm is not available
+     */
+    private Mac createMac(  ) throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance( MAC_ALGORITHM );
+            mac.init( new SecretKeySpec( _secret, MAC_ALGORITHM ) );
+
+            return mac;
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IOException( "Unable to create the HMAC of the messages", e );
+        }
+    }
+
+    /**
+     * Computes the HMAC of a message sent on a connection
+     *
+     * @param mac The HMAC
+     * @param nonce The nonce sent by the node accepting the connection
+     * @param lSequence The sequence number of the message on the connection
+     * @param message The message
+     * @return The HMAC of the message
+     */
+    private static byte[] sign( Mac mac, byte[] nonce, long lSequence, byte[] message )
+    {
+        mac.update( nonce );
+
+        for ( int nShift = 56; nShift >= 0; nShift -= 8 )
+        {
+            mac.update( (byte) ( lSequence >>> nShift ) );
+        }
+
+        return mac.doFinal( message );
+    }
+
+    /**
+     * Closes a socket, ignoring the errors
+     *
+     * @param socket The socket, or null
+     */
+    private static void close( Socket socket )
+    {
+        try
+        {
+            if ( socket != null )
+            {
+                socket.close(  );
+            }
+        }
+        catch ( IOException e )
+        {
+            // The socket is closed anyway
+        }
+    }
+
+    /**
+     * Closes a server socket, ignoring the errors
+     *
+     * @param socket The socket, or null
+     */
+    private static void close( ServerSocket socket )
+    {
+        try
+        {
+            if ( socket != null )
+            {
+                socket.close(  );
+            }
+        }
+        catch ( IOException e )
+        {
+            // The socket is closed anyway
+        }
+    }
+
+    /**
+     * Another node, to which the messages are sent
+     */
+    private final class Peer implements Runnable
+    {
+        private String _strHost;
+        private int _nPort;
+        private BlockingQueue<byte[]> _queue;
+        private Thread _thread;
+        private Socket _socket;
+        private DataOutputStream _out;
+        private Mac _mac;
+        private byte[] _nonce = new byte[NONCE_LENGTH];
+        private long _lSequence;
+        private volatile boolean _bQueueFull;
+        private volatile boolean _bWriting;
+
+        /**
+         * Creates a new Peer object
+         *
+         * @param strHost The host of the node
+         * @param nPort The port of the node
+         * @param nQueueSize The number of messages waiting from which messages are dropped
+         */
+        Peer( String strHost, int nPort, int nQueueSize )
+        {
+            _strHost = strHost;
+            _nPort = nPort;
+            _queue = new LinkedBlockingQueue<byte[]>( nQueueSize );
+        }
+
+        /**
+         * Starts the thread which sends the messages
+         */
+        void start(  )
+        {
+            _thread = new Thread( this, "chat-bus-sender-" + _strHost + PORT_SEPARATOR + _nPort );
+            _thread.setDaemon( true );
+            _thread.start(  );
+        }
+
+        /**
+         * Stops the thread which sends the messages
+         */
+        void stop(  )
+        {
+            if ( _thread != null )
+            {
+                _thread.interrupt(  );
+            }
+
+            close( _socket );
+        }
+
+        /**
+         * Waits until the messages queued have been written, or until a deadline
+         *
+         * @param lDeadline The time after which the remaining messages are dropped
+         */
+        void drain( long lDeadline )
+        {
+            try
+            {
+                while ( ( !_queue.isEmpty(  ) || _bWriting ) && ( System.currentTimeMillis(  ) < lDeadline ) )
+                {
+                    Thread.sleep( DRAIN_POLL_MILLIS );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread(  ).interrupt(  );
+            }
+        }
+
+        /**
+         * Queues a message without waiting
+         *
+         * @param message The message
+         */
+        void send( byte[] message )
+        {
+            if ( _queue.offer( message ) )
+            {
+                _bQueueFull = false;
+            }
+            else if ( !_bQueueFull )
+            {
+                _bQueueFull = true;
+                AppLogService.error( "Chat bus : too many messages waiting for " + _strHost + PORT_SEPARATOR + _nPort +
+                    ", messages are dropped" );
+            }
+        }
+
+        /**
+         * Sends the messages queued, in batches. A batch is sent again until the node can be reached.
+         */
+        public void run(  )
+        {
+            List<byte[]> listMessages = new ArrayList<byte[]>(  );
+
+            try
+            {
+                while ( _bRunning )
+                {
+                    listMessages.add( _queue.take(  ) );
+                    _bWriting = true;
+                    _queue.drainTo( listMessages );
+
+                    while ( _bRunning && !write( listMessages ) )
+                    {
+                        Thread.sleep( RETRY_MILLIS );
+                    }
+
+                    listMessages.clear(  );
+                    _bWriting = false;
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                // The bus is stopped
+            }
+            finally
+            {
+                close( _socket );
+            }
+        }
+
+        /**
+         * Writes messages to the node, connecting to it if needed
+         *
+         * @param listMessages The messages
+         * @return true if the messages have been written
+         */
+        private boolean write( List<byte[]> listMessages )
+        {
+            try
+            {
+                if ( _socket == null )
+                {
+                    Socket socket = new Socket(  );
+                    _socket = socket;
+                    socket.connect( new InetSocketAddress( _strHost, _nPort ), CONNECT_TIMEOUT_MILLIS );
+                    socket.setTcpNoDelay( true );
+
+                    // The messages are signed with the nonce of the connection
+                    socket.setSoTimeout( CONNECT_TIMEOUT_MILLIS );
+                    new DataInputStream( socket.getInputStream(  ) ).readFully( _nonce );
+                    socket.setSoTimeout( 0 );
+                    _out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(  ) ) );
+                    _mac = createMac(  );
+                    _lSequence = 0;
+                }
+
+                for ( byte[] message : listMessages )
+                {
+                    _out.writeInt( message.length );
+                    _out.write( message );
+                    _out.write( sign( _mac, _nonce, _lSequence++, message ) );
+                }
+
+                _out.flush(  );
+
+                return true;
+            }
+            catch ( IOException e )
+            {
+                AppLogService.debug( "Chat bus : unable to send messages to " + _strHost + PORT_SEPARATOR + _nPort );
+                close( _socket );
+                _socket = null;
+
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Encoding of the strings in the records of the journal and in the messages of the cluster. A string is written as the
+ * length of its UTF-8 encoding followed by the encoding, so that its length is not limited to 64 KB as with
+ * DataOutput.writeUTF.
+ */
+final class ChatStrings
+{
+    private static final String ENCODING = "UTF-8";
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    /**
+     * Private constructor
+     */
+    private ChatStrings(  )
+    {
+    }
+
+    /**
+     * Writes a string
+     *
+     * @param out The output
+     * @param strValue The string
+     * @throws IOException If an I/O exception occurs
+     */
+    static void write( DataOutput out, String strValue )
+        throws IOException
+    {
+        byte[] value = strValue.getBytes( ENCODING );
+        out.writeInt( value.length );
+        out.write( value );
+    }
+
+    /**
+     * Reads a string
+     *
+     * @param in The input
+     * @return The string
+     * @throws IOException If an I/O exception occurs or the length is invalid
+     */
+    static String read( DataInput in ) throws IOException
+    {
+        int nLength = in.readInt(  );
+
+        if ( ( nLength < 0 ) || ( nLength > MAX_LENGTH ) )
+        {
+            throw new IOException( "Invalid string length : " + nLength );
+        }
+
+        byte[] value = new byte[nLength];
+        in.readFully( value );
+
+        return new String( value, ENCODING );
+    }
+}
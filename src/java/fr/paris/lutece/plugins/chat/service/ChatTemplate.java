@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import java.text.MessageFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Notification template compiled from a MessageFormat pattern. The pattern is parsed once into literal parts and
+ * arguments, so that formatting is thread safe and only concatenates strings.
+ */
+final class ChatTemplate
+{
+    private static final char MARKER_START = '\uFDD0';
+    private static final char MARKER_END = '\uFDD1';
+    private static final int MAX_ARGUMENTS = 10;
+    private String _strPattern;
+    private String[] _literals;
+    private int[] _arguments;
+    private MessageFormat _format;
+
+    /**
+     * Creates a new ChatTemplate object
+     *
+     * @param strPattern The MessageFormat pattern, or null if the pattern is not defined
+     */
+    ChatTemplate( String strPattern )
+    {
+        _strPattern = ( strPattern != null ) ? strPattern : "";
+
+        try
+        {
+            compile( new MessageFormat( _strPattern ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // The pattern formats its arguments as numbers or dates : formatting is left to MessageFormat
+            _literals = null;
+            _format = new MessageFormat( _strPattern );
+        }
+    }
+
+    /**
+     * Splits the pattern into literal parts and arguments. The pattern is formatted with markers as arguments, so
+     * that MessageFormat processes the quotes.
+     *
+     * @param format The MessageFormat of the pattern
+     */
+    private void compile( MessageFormat format )
+    {
+        Object[] markers = new Object[MAX_ARGUMENTS];
+
+        for ( int i = 0; i < MAX_ARGUMENTS; i++ )
+        {
+            markers[i] = "" + MARKER_START + (char) ( '0' + i ) + MARKER_END;
+        }
+
+        String strFormatted = format.format( markers );
+        List<String> listLiterals = new ArrayList<String>(  );
+        List<Integer> listArguments = new ArrayList<Integer>(  );
+        int nStart = 0;
+        int nMarker;
+
+        while ( ( nMarker = strFormatted.indexOf( MARKER_START, nStart ) ) >= 0 )
+        {
+            listLiterals.add( strFormatted.substring( nStart, nMarker ) );
+            listArguments.add( strFormatted.charAt( nMarker + 1 ) - '0' );
+            nStart = nMarker + 3;
+        }
+
+        listLiterals.add( strFormatted.substring( nStart ) );
+        _literals = listLiterals.toArray( new String[listLiterals.size(  )] );
+        _arguments = new int[listArguments.size(  )];
+
+        for ( int i = 0; i < _arguments.length; i++ )
+        {
+            _arguments[i] = listArguments.get( i );
+        }
+    }
+
+    /**
+     * Returns the pattern of this template
+     *
+     * @return The pattern, an empty string if the pattern is not defined
+     */
+    String getPattern(  )
+    {
+        return _strPattern;
+    }
+
+    /**
+     * Formats the template
+     *
+     * @param args The arguments
+     * @return The formatted string
+     */
+    String format( String... args )
+    {
+        if ( _literals == null )
+        {
+            synchronized ( _format )
+            {
+                return _format.format( args );
+            }
+        }
+
+        StringBuilder sbFormatted = new StringBuilder( _literals[0] );
+
+        for ( int i = 0; i < _arguments.length; i++ )
+        {
+            int nArgument = _arguments[i];
+
+            // A missing argument is left as is, like MessageFormat does
+            sbFormatted.append( ( nArgument < args.length ) ? args[nArgument] : ( "{" + nArgument + "}" ) );
+            sbFormatted.append( _literals[i + 1] );
+        }
+
+        return sbFormatted.toString(  );
+    }
+}
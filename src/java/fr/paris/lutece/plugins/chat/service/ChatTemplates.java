@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Cache of the compiled notification templates of the configured language. A template is read from the properties
+ * the first time it is used. The templates are checked again from time to time, so that reloaded properties are
+ * taken into account without reading the properties for each notification.
+ */
+final class ChatTemplates
+{
+    private static final String PREFIX = "chat.msg.";
+    private String _strLanguageProperty;
+    private volatile String _strLanguage;
+    private ConcurrentMap<String, ChatTemplate> _mapTemplates = new ConcurrentHashMap<String, ChatTemplate>(  );
+
+    /**
+     * Creates a new ChatTemplates object
+     *
+     * @param strLanguageProperty The name of the property which defines the language of the templates
+     */
+    ChatTemplates( String strLanguageProperty )
+    {
+        _strLanguageProperty = strLanguageProperty;
+        _strLanguage = AppPropertiesService.getProperty( _strLanguageProperty, "" );
+    }
+
+    /**
+     * Returns the template of a message
+     *
+     * @param strMessageName The message name
+     * @return The template
+     */
+    ChatTemplate getTemplate( String strMessageName )
+    {
+        ChatTemplate template = _mapTemplates.get( strMessageName );
+
+        if ( template == null )
+        {
+            template = new ChatTemplate( getPattern( strMessageName, _strLanguage ) );
+            _mapTemplates.put( strMessageName, template );
+        }
+
+        return template;
+    }
+
+    /**
+     * Compiles again the templates whose pattern or language has changed in the properties
+     */
+    void refresh(  )
+    {
+        String strLanguage = AppPropertiesService.getProperty( _strLanguageProperty, "" );
+
+        if ( !strLanguage.equals( _strLanguage ) )
+        {
+            _strLanguage = strLanguage;
+            _mapTemplates.clear(  );
+
+            return;
+        }
+
+        for ( Map.Entry<String, ChatTemplate> entry : _mapTemplates.entrySet(  ) )
+        {
+            String strPattern = getPattern( entry.getKey(  ), strLanguage );
+
+            if ( !entry.getValue(  ).getPattern(  ).equals( ( strPattern != null ) ? strPattern : "" ) )
+            {
+                _mapTemplates.replace( entry.getKey(  ), entry.getValue(  ), new ChatTemplate( strPattern ) );
+            }
+        }
+    }
+
+    /**
+     * Reads the pattern of a message in the properties
+     *
+     * @param strMessageName The message name
+     * @param strLanguage The language, or an empty string
+     * @return The pattern, or null if it is not defined
+     */
+    private static String getPattern( String strMessageName, String strLanguage )
+    {
+        String strRessource = PREFIX + strMessageName;
+
+        if ( !strLanguage.equals( "" ) )
+        {
+            strRessource += ( "." + strLanguage );
+        }
+
+        return AppPropertiesService.getProperty( strRessource );
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Servlet which streams the data of the user as Server-Sent Events. The response stays open and receives the
+ * frames of the chat protocol as soon as they are available. The Last-Event-ID header sent by a reconnecting
+ * client gives the id of the last entry received.
+ */
+public class ChatEventServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 4137563207869424164L;
+    private static final String CONTENT_TYPE = "text/event-stream";
+    private static final String ENCODING = "UTF-8";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+    private static final String NO_CACHE = "no-cache";
+    private static final String PROPERTY_SSE_TIMEOUT = "chat.sse.timeout.seconds";
+    private static final int PROPERTY_SSE_TIMEOUT_DEF = 30;
+
+    /**
+     * Process HTTP Get request
+     * @param request The http request
+     * @param response The http response
+     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
+     * @throws IOException If an I/O exception occurs
+     */
+    public void doGet( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        if ( ChatForwarder.forward( request, response ) )
+        {
+            return;
+        }
+
+        ChatRoom room = ChatService.getRoom( request );
+
+        if ( ( room == null ) || !request.isAsyncSupported(  ) )
+        {
+            response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+
+            return;
+        }
+
+        String strPseudo = ChatService.getNickname( request );
+        ChatUser user = room.getUser( strPseudo );
+
+        response.setContentType( CONTENT_TYPE );
+        response.setCharacterEncoding( ENCODING );
+        response.setHeader( HEADER_CACHE_CONTROL, NO_CACHE );
+
+        ChatEventStream stream = new ChatEventStream( room, user, strPseudo, getLastEventId( request ) );
+
+        if ( ( user == null ) || user.isKicked(  ) )
+        {
+            // Send the kick and end the stream
+            stream.writeStatus( response.getWriter(  ) );
+
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync(  );
+        asyncContext.setTimeout( 1000L * AppPropertiesService.getPropertyInt( PROPERTY_SSE_TIMEOUT,
+                PROPERTY_SSE_TIMEOUT_DEF ) );
+        stream.start( asyncContext );
+    }
+
+    /**
+     * Returns the id of the last entry received by the client
+     * @param request The http request
+     * @return The id, or ChatProtocol.NO_ENTRY_ID if the client did not send it
+     */
+    private static long getLastEventId( HttpServletRequest request )
+    {
+        String strLastEventId = request.getHeader( HEADER_LAST_EVENT_ID );
+
+        if ( strLastEventId != null )
+        {
+            try
+            {
+                return Math.max( Long.parseLong( strLastEventId.trim(  ) ), 0 );
+            }
+            catch ( NumberFormatException e )
+            {
+                // Unknown id : the stream starts from the available entries
+            }
+        }
+
+        return ChatProtocol.NO_ENTRY_ID;
+    }
+}
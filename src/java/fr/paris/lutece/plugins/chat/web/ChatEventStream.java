@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.business.ChatUserListener;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+
+/**
+ * A Server-Sent Events stream sending the data of one user. Each event holds a batch of frames of the chat
+ * protocol and its id is the id of the last entry of the batch.
+ */
+class ChatEventStream implements ChatUserListener, ChatRoomListener, AsyncListener, Runnable
+{
+    private static final String FIELD_ID = "id: ";
+    private static final String FIELD_DATA = "data: ";
+
+    // The EventSource parsers end a line on CR, LF or CRLF : a CR left in a data line would start a new field
+    private static final Pattern PATTERN_LINE_END = Pattern.compile( "\\r\\n|\\r|\\n" );
+    private ChatRoom _room;
+    private ChatUser _user;
+    private String _strPseudo;
+    private long _lLastEntryId;
+    private long _lRosterVersion;
+    private AsyncContext _asyncContext;
+    private AtomicBoolean _bScheduled = new AtomicBoolean(  );
+    private volatile boolean _bClosed;
+
+    /**
+     * Creates a new ChatEventStream object
+     *
+     * @param room The room of the user
+     * @param user The user
+     * @param strPseudo The pseudo used by the client
+     * @param lLastEntryId The id of the last entry received by the client, or ChatProtocol.NO_ENTRY_ID
+     */
+    ChatEventStream( ChatRoom room, ChatUser user, String strPseudo, long lLastEntryId )
+    {
+        _room = room;
+        _user = user;
+        _strPseudo = strPseudo;
+        _lLastEntryId = lLastEntryId;
+    }
+
+    /**
+     * Starts streaming
+     *
+     * @param asyncContext The async context of the request
+     */
+    void start( AsyncContext asyncContext )
+    {
+        _asyncContext = asyncContext;
+
+        // A new stream starts with the entries the user has not read yet
+        _lLastEntryId = ChatProtocol.getReadEntryId( _user, _lLastEntryId );
+
+        _asyncContext.addListener( this );
+        _user.addListener( this );
+        _room.addListener( this );
+
+        // Send the entries missed by the client, the users and the topic
+        userDataAvailable( _user );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void userDataAvailable( ChatUser user )
+    {
+        if ( !_bClosed && _bScheduled.compareAndSet( false, true ) )
+        {
+            // Write on a container thread, not on the thread which posted the data
+            _asyncContext.start( this );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        // Private entries are notified by the user
+        if ( userRecipient == null )
+        {
+            userDataAvailable( _user );
+        }
+    }
+
+    /**
+     * Writes the pending data to the stream
+     */
+    public void run(  )
+    {
+        _bScheduled.set( false );
+
+        synchronized ( this )
+        {
+            if ( _bClosed )
+            {
+                return;
+            }
+
+            if ( ChatService.getOwnerUrl( _room ) != null )
+            {
+                // The room has moved to another node : the client reconnects and is forwarded to it
+                close(  );
+
+                return;
+            }
+
+            try
+            {
+                PrintWriter out = _asyncContext.getResponse(  ).getWriter(  );
+
+                if ( writeStatus( out ) )
+                {
+                    close(  );
+
+                    return;
+                }
+
+                writeEntries( out );
+                _asyncContext.getResponse(  ).flushBuffer(  );
+            }
+            catch ( IOException e )
+            {
+                AppLogService.debug( "Chat event stream closed by the client : " + e.getMessage(  ) );
+                close(  );
+            }
+        }
+    }
+
+    /**
+     * Writes the kick or the new pseudo of the user
+     *
+     * @param out The writer
+     * @return true if the stream must be closed
+     */
+    boolean writeStatus( PrintWriter out )
+    {
+        boolean bKicked = ( _user == null ) || _user.isKicked(  );
+        String strStatus = ChatProtocol.getUserStatus( _room, _user, _strPseudo );
+
+        if ( strStatus != null )
+        {
+            writeEvent( out, null, strStatus );
+
+            if ( !bKicked )
+            {
+                // The pseudo has changed, the stream goes on with the new one
+                _strPseudo = _user.getNickname(  );
+            }
+        }
+
+        return bKicked;
+    }
+
+    /**
+     * Writes the entries added since the last event, followed by the changes of the users and the topic.
+     * The first event holds the whole list of the users.
+     *
+     * @param out The writer
+     */
+    private void writeEntries( PrintWriter out )
+    {
+        List<ChatEntry> listEntries = _room.getChatEntriesAfter( _user, _lLastEntryId );
+
+        if ( listEntries.isEmpty(  ) && ( _lRosterVersion > 0 ) )
+        {
+            return;
+        }
+
+        StringBuffer strData = new StringBuffer(  );
+
+        for ( ChatEntry entry : listEntries )
+        {
+            ChatProtocol.appendEntry( strData, entry );
+            _lLastEntryId = entry.getId(  );
+        }
+
+        // Users and topic only change along with a notification entry
+        _lRosterVersion = ChatProtocol.appendRosterChanges( strData, _room, _strPseudo, _lRosterVersion );
+        ChatProtocol.appendTopic( strData, _room );
+        writeEvent( out, String.valueOf( _lLastEntryId ), strData.toString(  ) );
+        _user.setReadEntryId( _lLastEntryId );
+        _user.setLastAccessTime( new Date(  ) );
+    }
+
+    /**
+     * Writes an event
+     *
+     * @param out The writer
+     * @param strId The id of the event, may be null
+     * @param strData The frames of the event
+     */
+    private static void writeEvent( PrintWriter out, String strId, String strData )
+    {
+        if ( strId != null )
+        {
+            out.print( FIELD_ID );
+            out.print( strId );
+            out.print( '\n' );
+        }
+
+        String[] lines = PATTERN_LINE_END.split( strData );
+
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            out.print( FIELD_DATA );
+            out.print( lines[i] );
+            out.print( '\n' );
+        }
+
+        out.print( '\n' );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onTimeout( AsyncEvent event ) throws IOException
+    {
+        // The client reconnects with the Last-Event-ID header, which also refreshes its last access
+        close(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onError( AsyncEvent event ) throws IOException
+    {
+        close(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onComplete( AsyncEvent event ) throws IOException
+    {
+        _bClosed = true;
+        _user.removeListener( this );
+        _room.removeListener( this );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onStartAsync( AsyncEvent event ) throws IOException
+    {
+    }
+
+    /**
+     * Closes the stream
+     */
+    private synchronized void close(  )
+    {
+        if ( !_bClosed )
+        {
+            _bClosed = true;
+            _user.removeListener( this );
+            _room.removeListener( this );
+            _asyncContext.complete(  );
+        }
+    }
+}
@@ -0,0 +1,949 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.service.ChatConstantes;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Forwards the requests of a room to the node of the cluster which owns it, when the rooms are partitioned between
+ * the nodes. The room and the nickname attached to the session are sent as parameters, the address of the user and
+ * the secret shared by the nodes as headers. The response of the owner is copied as it arrives, so that the event
+ * streams are forwarded too.
+ * <br>
+ * The requests are forwarded rather than the clients redirected to the owner, since the session of the user stays on
+ * this node. A forwarded request holds no container thread while it waits for the owner : the request is put in the
+ * asynchronous mode and the owner is called by a non-blocking client, whose single thread reads the responses of all
+ * the forwarded requests. A container thread is only taken to copy each part of a response to the client, and the
+ * next part is not read before. The owner is called with HTTP/1.0, so that its response ends with the connection.
+ */
+final class ChatForwarder implements Runnable
+{
+    private static final String PROPERTY_SECRET = "chat.cluster.secret";
+    private static final String PROPERTY_TIMEOUT = "chat.cluster.forward.timeout.seconds";
+    private static final int PROPERTY_TIMEOUT_DEF = 60;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int SELECT_TIMEOUT_MILLIS = 1000;
+    private static final String THREAD_NAME = "chat-forwarder";
+    private static final String PROTOCOL_HTTP = "http";
+    private static final String METHOD_GET = "GET";
+    private static final String METHOD_POST = "POST";
+    private static final String ENCODING = "UTF-8";
+    private static final String HEADER_ENCODING = "ISO-8859-1";
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=" + ENCODING;
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+    private static final String HEADER_HOST = "Host";
+    private static final String HEADER_CONNECTION = "Connection";
+    private static final String CONNECTION_CLOSE = "close";
+    private static final String HTTP_VERSION = " HTTP/1.0";
+    private static final String LINE_END = "\r\n";
+    private static final String HEADER_SEPARATOR = ": ";
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+    private static final int MAX_HEADER_SIZE = 16384;
+    private static final int BUFFER_SIZE = 4096;
+    private static ChatForwarder _forwarder;
+    private final Selector _selector;
+    private final Queue<Runnable> _queueTasks = new ConcurrentLinkedQueue<Runnable>(  );
+    private volatile boolean _bRunning = true;
+
+    /**
+     * Creates a new ChatForwarder object
+     *
+     * @throws IOException If the selector can't be opened
+     */
+    private ChatForwarder(  ) throws IOException
+    {
+        _selector = Selector.open(  );
+    }
+
+    /**
+     * Forwards a request to the node owning its room
+     *
+     * @param request The http request
+     * @param response The http response
+     * @return true if the request has been forwarded, false if it must be processed by this node
+     * @throws IOException If the response can't be written
+     */
+    static boolean forward( HttpServletRequest request, HttpServletResponse response )
+        throws IOException
+    {
+        if ( ChatService.isForwardedRequest( request ) )
+        {
+            // Never forwarded twice, even while the nodes disagree on the owner
+            return false;
+        }
+
+        ChatRoom room = ChatService.getRoom( request );
+        String strOwnerUrl = ( room != null ) ? ChatService.getOwnerUrl( room ) : null;
+
+        if ( strOwnerUrl == null )
+        {
+            return false;
+        }
+
+        URL url = new URL( strOwnerUrl );
+        int nPort = ( url.getPort(  ) != -1 ) ? url.getPort(  ) : url.getDefaultPort(  );
+        InetSocketAddress address = new InetSocketAddress( url.getHost(  ), nPort );
+
+        if ( !request.isAsyncSupported(  ) || !PROTOCOL_HTTP.equals( url.getProtocol(  ) ) ||
+                address.isUnresolved(  ) )
+        {
+            AppLogService.error( "Chat forwarder : unable to forward the request to " + strOwnerUrl +
+                " : the request must be asynchronous and the URL an http URL of a known host" );
+            response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+
+            return true;
+        }
+
+        byte[] forwardedRequest = buildRequest( request, room, url, nPort );
+        ChatForwarder forwarder = getForwarder(  );
+        AsyncContext asyncContext = request.startAsync(  );
+        asyncContext.setTimeout( 1000L * AppPropertiesService.getPropertyInt( PROPERTY_TIMEOUT,
+                PROPERTY_TIMEOUT_DEF ) );
+
+        Exchange exchange = forwarder.new Exchange( asyncContext, room, strOwnerUrl, forwardedRequest );
+        asyncContext.addListener( exchange );
+        exchange.connect( address );
+
+        return true;
+    }
+
+    /**
+     * Stops the thread of the forwarder. The requests being forwarded are dropped.
+     */
+    static synchronized void shutdown(  )
+    {
+        if ( _forwarder != null )
+        {
+            _forwarder._bRunning = false;
+            _forwarder._selector.wakeup(  );
+            _forwarder = null;
+        }
+    }
+
+    /**
+     * Returns the forwarder, starting its thread on the first call or when it has stopped
+     *
+     * @return The forwarder
+     * @throws IOException If the selector can't be opened
+     */
+    static synchronized ChatForwarder getForwarder(  )
+        throws IOException
+    {
+        if ( ( _forwarder == null ) || !_forwarder._bRunning )
+        {
+            _forwarder = new ChatForwarder(  );
+
+            Thread thread = new Thread( _forwarder, THREAD_NAME );
+            thread.setDaemon( true );
+            thread.start(  );
+        }
+
+        return _forwarder;
+    }
+
+    /**
+     * Reads the responses of the owners until the forwarder is stopped. An exchange failing, for instance because
+     * its connection is closed by a container thread while it is processed, never stops the thread.
+     */
+    public void run(  )
+    {
+        try
+        {
+            while ( _bRunning )
+            {
+                select(  );
+            }
+        }
+        finally
+        {
+            // A forwarder stopped by an error is replaced on the next request
+            _bRunning = false;
+            close(  );
+        }
+    }
+
+    /**
+     * Runs the pending tasks and processes the connections which are ready
+     */
+    private void select(  )
+    {
+        try
+        {
+            _selector.select( SELECT_TIMEOUT_MILLIS );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat forwarder : unable to select the connections", e );
+
+            return;
+        }
+
+        Runnable task;
+
+        while ( ( task = _queueTasks.poll(  ) ) != null )
+        {
+            try
+            {
+                task.run(  );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Chat forwarder : unable to run a task", e );
+            }
+        }
+
+        Iterator<SelectionKey> keys = _selector.selectedKeys(  ).iterator(  );
+
+        while ( keys.hasNext(  ) )
+        {
+            SelectionKey key = keys.next(  );
+            keys.remove(  );
+
+            Exchange exchange = (Exchange) key.attachment(  );
+
+            try
+            {
+                exchange.handle( key );
+            }
+            catch ( RuntimeException e )
+            {
+                exchange.fail( e );
+            }
+        }
+
+        long lNow = System.currentTimeMillis(  );
+
+        for ( SelectionKey key : _selector.keys(  ) )
+        {
+            Exchange exchange = (Exchange) key.attachment(  );
+
+            try
+            {
+                exchange.checkConnectTimeout( key, lNow );
+            }
+            catch ( RuntimeException e )
+            {
+                exchange.fail( e );
+            }
+        }
+    }
+
+    /**
+     * Closes the connections and the selector
+     */
+    private void close(  )
+    {
+        for ( SelectionKey key : _selector.keys(  ) )
+        {
+            ( (Exchange) key.attachment(  ) ).close(  );
+        }
+
+        try
+        {
+            _selector.close(  );
+        }
+        catch ( IOException e )
+        {
+            // The selector is dropped anyway
+        }
+    }
+
+    /**
+     * Runs a task on the thread of the forwarder
+     *
+     * @param task The task
+     */
+    private void execute( Runnable task )
+    {
+        _queueTasks.add( task );
+        _selector.wakeup(  );
+    }
+
+    /**
+     * Builds the request sent to the owner
+     *
+     * @param request The http request
+     * @param room The room
+     * @param url The URL of the webapp on the owner
+     * @param nPort The port of the owner
+     * @return The request
+     * @throws IOException If the request can't be encoded
+     */
+    private static byte[] buildRequest( HttpServletRequest request, ChatRoom room, URL url, int nPort )
+        throws IOException
+    {
+        boolean bPost = METHOD_POST.equals( request.getMethod(  ) );
+        String strParameters = getParameters( request, room );
+        byte[] body = strParameters.getBytes( ENCODING );
+        StringBuilder sbRequest = new StringBuilder( bPost ? METHOD_POST : METHOD_GET ).append( ' ' );
+        sbRequest.append( url.getPath(  ) ).append( request.getServletPath(  ) );
+
+        if ( !bPost )
+        {
+            sbRequest.append( '?' ).append( strParameters );
+        }
+
+        sbRequest.append( HTTP_VERSION ).append( LINE_END );
+        appendHeader( sbRequest, HEADER_HOST, url.getHost(  ) + ':' + nPort );
+        appendHeader( sbRequest, HEADER_CONNECTION, CONNECTION_CLOSE );
+        appendHeader( sbRequest, ChatConstantes.HEADER_CLUSTER_SECRET,
+            AppPropertiesService.getProperty( PROPERTY_SECRET, "" ) );
+        appendHeader( sbRequest, ChatConstantes.HEADER_FORWARDED_FOR, request.getRemoteAddr(  ) );
+
+        String strLastEventId = request.getHeader( HEADER_LAST_EVENT_ID );
+
+        if ( strLastEventId != null )
+        {
+            appendHeader( sbRequest, HEADER_LAST_EVENT_ID, strLastEventId );
+        }
+
+        if ( bPost )
+        {
+            appendHeader( sbRequest, HEADER_CONTENT_TYPE, FORM_CONTENT_TYPE );
+            appendHeader( sbRequest, HEADER_CONTENT_LENGTH, String.valueOf( body.length ) );
+        }
+
+        sbRequest.append( LINE_END );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(  );
+        out.write( sbRequest.toString(  ).getBytes( ENCODING ) );
+
+        if ( bPost )
+        {
+            out.write( body );
+        }
+
+        return out.toByteArray(  );
+    }
+
+    /**
+     * Appends a header to a request. A value holding a line end is dropped, so that the client can't add headers.
+     *
+     * @param sbRequest The request
+     * @param strName The name of the header
+     * @param strValue The value of the header
+     */
+    private static void appendHeader( StringBuilder sbRequest, String strName, String strValue )
+    {
+        if ( ( strValue.indexOf( '\r' ) == -1 ) && ( strValue.indexOf( '\n' ) == -1 ) )
+        {
+            sbRequest.append( strName ).append( HEADER_SEPARATOR ).append( strValue ).append( LINE_END );
+        }
+    }
+
+    /**
+     * Finds the end of the header of a response
+     *
+     * @param data The data read
+     * @return The position of the end of the header, or -1 if the header is not complete
+     */
+    private static int indexOfHeaderEnd( byte[] data )
+    {
+        for ( int i = 0; i <= ( data.length - HEADER_END.length ); i++ )
+        {
+            int j = 0;
+
+            while ( ( j < HEADER_END.length ) && ( data[i + j] == HEADER_END[j] ) )
+            {
+                j++;
+            }
+
+            if ( j == HEADER_END.length )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Encodes the parameters of a request, adding the room and the nickname attached to the session
+     *
+     * @param request The http request
+     * @param room The room
+     * @return The encoded parameters
+     * @throws IOException If the parameters can't be encoded
+     */
+    private static String getParameters( HttpServletRequest request, ChatRoom room )
+        throws IOException
+    {
+        StringBuilder strParameters = new StringBuilder(  );
+        Map<String, String[]> mapParameters = request.getParameterMap(  );
+
+        for ( Map.Entry<String, String[]> parameter : mapParameters.entrySet(  ) )
+        {
+            for ( String strValue : parameter.getValue(  ) )
+            {
+                appendParameter( strParameters, parameter.getKey(  ), strValue );
+            }
+        }
+
+        if ( !mapParameters.containsKey( ChatConstantes.PARAM_ROOM ) )
+        {
+            appendParameter( strParameters, ChatConstantes.PARAM_ROOM, room.getName(  ) );
+        }
+
+        String strNickname = ChatService.getNickname( request );
+
+        if ( !mapParameters.containsKey( ChatConstantes.PARAM_NICKNAME ) && ( strNickname != null ) )
+        {
+            appendParameter( strParameters, ChatConstantes.PARAM_NICKNAME, strNickname );
+        }
+
+        return strParameters.toString(  );
+    }
+
+    /**
+     * Appends an encoded parameter
+     *
+     * @param strParameters The parameters
+     * @param strName The name of the parameter
+     * @param strValue The value of the parameter
+     * @throws IOException If the parameter can't be encoded
+     */
+    private static void appendParameter( StringBuilder strParameters, String strName, String strValue )
+        throws IOException
+    {
+        if ( strParameters.length(  ) != 0 )
+        {
+            strParameters.append( '&' );
+        }
+
+        strParameters.append( URLEncoder.encode( strName, ENCODING ) ).append( '=' )
+                     .append( URLEncoder.encode( strValue, ENCODING ) );
+    }
+
+    /**
+     * A request forwarded to the owner. The connection is only used by the thread of the forwarder, the response is
+     * written by the container threads.
+     */
+    final class Exchange implements AsyncListener
+    {
+        private final AsyncContext _asyncContext;
+        private final ChatRoom _room;
+        private final String _strOwnerUrl;
+        private final ByteBuffer _bufferRequest;
+        private final ByteBuffer _buffer = ByteBuffer.allocate( BUFFER_SIZE );
+        private final long _lStartTime = System.currentTimeMillis(  );
+        private final AtomicBoolean _bDone = new AtomicBoolean(  );
+        private volatile SocketChannel _channel;
+        private ByteArrayOutputStream _header = new ByteArrayOutputStream(  );
+        private SelectionKey _key;
+        private int _nStatus;
+        private String _strContentType;
+        private String _strCacheControl;
+        private String _strNickname;
+        private volatile boolean _bHeaderWritten;
+
+        /**
+         * Creates a new Exchange object
+         *
+         * @param asyncContext The context of the request
+         * @param room The room
+         * @param strOwnerUrl The URL of the webapp on the owner
+         * @param request The request sent to the owner
+         */
+        Exchange( AsyncContext asyncContext, ChatRoom room, String strOwnerUrl, byte[] request )
+        {
+            _asyncContext = asyncContext;
+            _room = room;
+            _strOwnerUrl = strOwnerUrl;
+            _bufferRequest = ByteBuffer.wrap( request );
+        }
+
+        /**
+         * Opens the connection to the owner
+         *
+         * @param address The address of the owner
+         */
+        void connect( InetSocketAddress address )
+        {
+            try
+            {
+                final SocketChannel channel = SocketChannel.open(  );
+                _channel = channel;
+                channel.configureBlocking( false );
+
+                final int nOps = channel.connect( address ) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+                execute( new Runnable(  )
+                    {
+                        public void run(  )
+                        {
+                            try
+                            {
+                                _key = channel.register( _selector, nOps, Exchange.this );
+                            }
+                            catch ( ClosedChannelException e )
+                            {
+                                // The request has been completed meanwhile
+                            }
+                        }
+                    } );
+            }
+            catch ( IOException e )
+            {
+                fail( e );
+            }
+        }
+
+        /**
+         * Processes the connection when it is ready, on the thread of the forwarder
+         *
+         * @param key The key of the connection
+         */
+        void handle( SelectionKey key )
+        {
+            try
+            {
+                if ( !key.isValid(  ) )
+                {
+                    return;
+                }
+
+                if ( key.isConnectable(  ) )
+                {
+                    if ( _channel.finishConnect(  ) )
+                    {
+                        key.interestOps( SelectionKey.OP_WRITE );
+                    }
+                }
+                else if ( key.isWritable(  ) )
+                {
+                    _channel.write( _bufferRequest );
+
+                    if ( !_bufferRequest.hasRemaining(  ) )
+                    {
+                        key.interestOps( SelectionKey.OP_READ );
+                    }
+                }
+                else if ( key.isReadable(  ) )
+                {
+                    read( key );
+                }
+            }
+            catch ( IOException e )
+            {
+                fail( e );
+            }
+        }
+
+        /**
+         * Fails the request if the owner has not accepted the connection in time
+         *
+         * @param key The key of the connection
+         * @param lNow The current time
+         */
+        void checkConnectTimeout( SelectionKey key, long lNow )
+        {
+            if ( key.isValid(  ) && ( ( key.interestOps(  ) & SelectionKey.OP_CONNECT ) != 0 ) &&
+                    ( ( lNow - _lStartTime ) > CONNECT_TIMEOUT_MILLIS ) )
+            {
+                fail( new IOException( "Connection timed out" ) );
+            }
+        }
+
+        /**
+         * Reads a part of the response. The reading is suspended until the part is written to the client.
+         *
+         * @param key The key of the connection
+         * @throws IOException If the response can't be read
+         */
+        private void read( SelectionKey key ) throws IOException
+        {
+            _buffer.clear(  );
+
+            int nRead = _channel.read( _buffer );
+
+            if ( nRead == -1 )
+            {
+                if ( _header != null )
+                {
+                    throw new IOException( "Incomplete response" );
+                }
+
+                close(  );
+                dispatch( null, true );
+
+                return;
+            }
+
+            byte[] data = Arrays.copyOf( _buffer.array(  ), nRead );
+
+            if ( _header != null )
+            {
+                _header.write( data );
+
+                byte[] header = _header.toByteArray(  );
+                int nEnd = indexOfHeaderEnd( header );
+
+                if ( nEnd == -1 )
+                {
+                    if ( header.length > MAX_HEADER_SIZE )
+                    {
+                        throw new IOException( "Response header too large" );
+                    }
+
+                    return;
+                }
+
+                parseHeader( new String( header, 0, nEnd, HEADER_ENCODING ) );
+                _header = null;
+                data = Arrays.copyOfRange( header, nEnd + HEADER_END.length, header.length );
+            }
+
+            key.interestOps( 0 );
+            dispatch( data, false );
+        }
+
+        /**
+         * Reads the status and the headers of the response
+         *
+         * @param strHeader The header of the response
+         * @throws IOException If the status is invalid
+         */
+        private void parseHeader( String strHeader ) throws IOException
+        {
+            String[] lines = strHeader.split( LINE_END );
+            String[] status = lines[0].split( " " );
+
+            try
+            {
+                _nStatus = Integer.parseInt( ( status.length > 1 ) ? status[1] : "" );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new IOException( "Invalid status : " + lines[0] );
+            }
+
+            for ( int i = 1; i < lines.length; i++ )
+            {
+                int nSeparator = lines[i].indexOf( ':' );
+
+                if ( nSeparator == -1 )
+                {
+                    continue;
+                }
+
+                String strName = lines[i].substring( 0, nSeparator ).trim(  );
+                String strValue = lines[i].substring( nSeparator + 1 ).trim(  );
+
+                if ( HEADER_CONTENT_TYPE.equalsIgnoreCase( strName ) )
+                {
+                    _strContentType = strValue;
+                }
+                else if ( HEADER_CACHE_CONTROL.equalsIgnoreCase( strName ) )
+                {
+                    _strCacheControl = strValue;
+                }
+                else if ( ChatConstantes.HEADER_NICKNAME.equalsIgnoreCase( strName ) )
+                {
+                    _strNickname = strValue;
+                }
+            }
+        }
+
+        /**
+         * Writes a part of the response on a container thread
+         *
+         * @param data The data to write, or null if there is none
+         * @param bEnd true if the response is complete
+         */
+        private void dispatch( final byte[] data, final boolean bEnd )
+        {
+            try
+            {
+                _asyncContext.start( new Runnable(  )
+                    {
+                        public void run(  )
+                        {
+                            write( data, bEnd );
+                        }
+                    } );
+            }
+            catch ( RuntimeException e )
+            {
+                // The request has timed out meanwhile, or the container refuses the task
+                complete(  );
+            }
+        }
+
+        /**
+         * Writes a part of the response, then resumes the reading of the response
+         *
+         * @param data The data to write, or null if there is none
+         * @param bEnd true if the response is complete
+         */
+        private void write( byte[] data, boolean bEnd )
+        {
+            if ( _bDone.get(  ) )
+            {
+                return;
+            }
+
+            try
+            {
+                HttpServletResponse response = (HttpServletResponse) _asyncContext.getResponse(  );
+
+                if ( !_bHeaderWritten )
+                {
+                    writeHeader( response );
+                    _bHeaderWritten = true;
+                }
+
+                OutputStream out = response.getOutputStream(  );
+
+                if ( data != null )
+                {
+                    out.write( data );
+                }
+
+                // The events are sent to the client as soon as the owner sends them
+                out.flush(  );
+            }
+            catch ( IOException e )
+            {
+                // The client has gone
+                complete(  );
+
+                return;
+            }
+
+            if ( bEnd )
+            {
+                complete(  );
+            }
+            else
+            {
+                execute( new Runnable(  )
+                    {
+                        public void run(  )
+                        {
+                            if ( ( _key != null ) && _key.isValid(  ) )
+                            {
+                                _key.interestOps( SelectionKey.OP_READ );
+                            }
+                        }
+                    } );
+            }
+        }
+
+        /**
+         * Writes the status and the headers of the response. When the owner has added the user to the room, the
+         * nickname given to the user is attached to the session, as the owner does when the user enters the room on
+         * it.
+         *
+         * @param response The http response
+         */
+        private void writeHeader( HttpServletResponse response )
+        {
+            if ( _strNickname != null )
+            {
+                HttpSession session = ( (HttpServletRequest) _asyncContext.getRequest(  ) ).getSession(  );
+                session.setAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME, _room.getName(  ) );
+                session.setAttribute( ChatConstantes.ATTRIBUTE_NICKNAME, _strNickname );
+            }
+
+            response.setStatus( _nStatus );
+
+            if ( _strContentType != null )
+            {
+                response.setContentType( _strContentType );
+            }
+
+            if ( _strCacheControl != null )
+            {
+                response.setHeader( HEADER_CACHE_CONTROL, _strCacheControl );
+            }
+        }
+
+        /**
+         * Fails the request : the client receives an error if nothing has been sent yet
+         *
+         * @param e The cause of the failure
+         */
+        void fail( Exception e )
+        {
+            close(  );
+
+            if ( _bDone.get(  ) )
+            {
+                return;
+            }
+
+            AppLogService.error( "Chat forwarder : unable to forward the request to " + _strOwnerUrl, e );
+
+            try
+            {
+                _asyncContext.start( new Runnable(  )
+                    {
+                        public void run(  )
+                        {
+                            HttpServletResponse response = (HttpServletResponse) _asyncContext.getResponse(  );
+
+                            if ( !_bDone.get(  ) && !response.isCommitted(  ) )
+                            {
+                                response.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                            }
+
+                            complete(  );
+                        }
+                    } );
+            }
+            catch ( RuntimeException eStart )
+            {
+                // The request has timed out meanwhile, or the container refuses the task
+                complete(  );
+            }
+        }
+
+        /**
+         * Completes the request once
+         */
+        private void complete(  )
+        {
+            close(  );
+
+            if ( _bDone.compareAndSet( false, true ) )
+            {
+                try
+                {
+                    _asyncContext.complete(  );
+                }
+                catch ( IllegalStateException e )
+                {
+                    // Already completed by the container
+                }
+            }
+        }
+
+        /**
+         * Closes the connection to the owner
+         */
+        void close(  )
+        {
+            SocketChannel channel = _channel;
+
+            if ( channel != null )
+            {
+                try
+                {
+                    channel.close(  );
+                }
+                catch ( IOException e )
+                {
+                    // The connection is closed anyway
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onTimeout( AsyncEvent event ) throws IOException
+        {
+            close(  );
+
+            HttpServletResponse response = (HttpServletResponse) _asyncContext.getResponse(  );
+
+            if ( !_bDone.get(  ) && !response.isCommitted(  ) )
+            {
+                response.setStatus( HttpServletResponse.SC_GATEWAY_TIMEOUT );
+            }
+
+            complete(  );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onError( AsyncEvent event ) throws IOException
+        {
+            _bDone.set( true );
+            close(  );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onComplete( AsyncEvent event ) throws IOException
+        {
+            _bDone.set( true );
+            close(  );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onStartAsync( AsyncEvent event ) throws IOException
+        {
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.service.ChatConstantes;
+import fr.paris.lutece.plugins.chat.service.ChatHistory;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Servlet which returns a page of the history of the room on which the user is connected. Without parameter, the
+ * page ends with the arrival of the user in the room. The before parameter gives the id of the entry which follows
+ * the page, the time parameter its date, and the count parameter the number of entries of the page. The entries
+ * are followed by the id to send as before parameter to get the previous page, or 0 at the beginning of the history.
+ */
+public class ChatHistoryServlet extends HttpServlet
+{
+    private static final long serialVersionUID = -2869512734058237145L;
+    private static final String CONTENT_TYPE = "text/html";
+
+    /**
+     * Process HTTP Get request
+     * @param request The http request
+     * @param response The http response
+     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
+     * @throws IOException If an I/O exception occurs
+     */
+    public void doGet( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        if ( ChatForwarder.forward( request, response ) )
+        {
+            return;
+        }
+
+        ChatHistory history = ChatService.getHistory(  );
+        ChatRoom room = ChatService.getRoom( request );
+
+        if ( ( history == null ) || ( room == null ) )
+        {
+            response.sendError( HttpServletResponse.SC_NOT_FOUND );
+
+            return;
+        }
+
+        ChatUser user = room.getUser( ChatService.getNickname( request ) );
+
+        if ( ( user == null ) || user.isKicked(  ) )
+        {
+            response.sendError( HttpServletResponse.SC_FORBIDDEN );
+
+            return;
+        }
+
+        long lBeforeId = getLongParameter( request, ChatConstantes.PARAM_BEFORE, user.getJoinEntryId(  ) + 1 );
+        long lTime = getLongParameter( request, ChatConstantes.PARAM_TIME, -1 );
+
+        if ( lTime >= 0 )
+        {
+            lBeforeId = Math.min( lBeforeId, history.getEntryIdAt( room, lTime ) );
+        }
+
+        int nCount = (int) getLongParameter( request, ChatConstantes.PARAM_COUNT, history.getPageSize(  ) );
+        List<ChatEntry> listEntries = history.getEntriesBefore( room, lBeforeId, nCount );
+
+        response.setContentType( CONTENT_TYPE );
+        response.setCharacterEncoding( ChatProtocol.ENCODING );
+
+        ServletOutputStream out = response.getOutputStream(  );
+
+        for ( ChatEntry entry : listEntries )
+        {
+            out.write( ChatProtocol.getFrameBytes( entry ) );
+        }
+
+        long lPreviousId = listEntries.isEmpty(  ) ? 0 : listEntries.get( 0 ).getId(  );
+        out.print( ChatProtocol.buildMessage( ChatProtocol.CMD_HISTORY_BEFORE, String.valueOf( lPreviousId ) ) );
+        out.println(  );
+    }
+
+    /**
+     * Returns a positive number sent in the request
+     * @param request The http request
+     * @param strName The name of the parameter
+     * @param lDefault The value returned when the parameter is missing or invalid
+     * @return The number
+     */
+    private static long getLongParameter( HttpServletRequest request, String strName, long lDefault )
+    {
+        String strValue = request.getParameter( strName );
+
+        if ( strValue != null )
+        {
+            try
+            {
+                return Math.max( Long.parseLong( strValue.trim(  ) ), 0 );
+            }
+            catch ( NumberFormatException e )
+            {
+                // The default value is used
+            }
+        }
+
+        return lDefault;
+    }
+}
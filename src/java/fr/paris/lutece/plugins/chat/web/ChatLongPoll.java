@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.business.ChatUserListener;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+
+
+/**
+ * A long poll request parked until data is available for the user or the timeout expires.
+ * The container thread is released while the request waits.
+ */
+class ChatLongPoll implements ChatUserListener, ChatRoomListener, AsyncListener, Runnable
+{
+    private AsyncContext _asyncContext;
+    private ChatRoom _room;
+    private ChatUser _user;
+    private String _strPseudo;
+    private long _lLastEntryId;
+    private long _lRosterVersion;
+    private boolean _bStateVersion;
+    private AtomicBoolean _bReleased = new AtomicBoolean(  );
+
+    /**
+     * Creates a new ChatLongPoll object
+     *
+     * @param asyncContext The async context of the request
+     * @param room The room of the user
+     * @param user The user
+     * @param strPseudo The pseudo used by the request
+     * @param lLastEntryId The id of the last entry received by the client, or ChatProtocol.NO_ENTRY_ID
+     * @param lRosterVersion The version of the list of users known by the client, or ChatProtocol.NO_ROSTER_VERSION
+     * @param bStateVersion true if the state version must be sent with the data
+     */
+    ChatLongPoll( AsyncContext asyncContext, ChatRoom room, ChatUser user, String strPseudo,
+        long lLastEntryId, long lRosterVersion, boolean bStateVersion )
+    {
+        _asyncContext = asyncContext;
+        _room = room;
+        _user = user;
+        _strPseudo = strPseudo;
+        _lLastEntryId = lLastEntryId;
+        _lRosterVersion = lRosterVersion;
+        _bStateVersion = bStateVersion;
+    }
+
+    /**
+     * Starts waiting for data
+     */
+    void start(  )
+    {
+        _asyncContext.addListener( this );
+        _user.addListener( this );
+        _room.addListener( this );
+
+        // Data may have arrived before the listeners were registered
+        if ( ChatProtocol.hasUserData( _room, _user, _lLastEntryId ) )
+        {
+            userDataAvailable( _user );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        // Private entries are notified by the user
+        if ( userRecipient == null )
+        {
+            userDataAvailable( _user );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void userDataAvailable( ChatUser user )
+    {
+        if ( release(  ) )
+        {
+            // Write the response on a container thread, not on the thread which posted the data
+            _asyncContext.start( this );
+        }
+    }
+
+    /**
+     * Writes the user data to the response and completes the request
+     */
+    public void run(  )
+    {
+        try
+        {
+            if ( ChatService.getOwnerUrl( _room ) != null )
+            {
+                // The room has moved to another node : the next poll is forwarded to it
+                _asyncContext.getResponse(  ).getOutputStream(  ).println(  );
+
+                return;
+            }
+
+            // The version is read before the data so that a change made meanwhile is sent by the next poll
+            String strStateVersion = _bStateVersion ? ChatProtocol.getStateVersion( _room, _user ) : null;
+            ServletOutputStream out = _asyncContext.getResponse(  ).getOutputStream(  );
+            ChatProtocol.writeUserData( out, _room, _strPseudo, _lLastEntryId, _lRosterVersion, strStateVersion );
+            out.println(  );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Chat long poll : unable to write the response", e );
+        }
+        finally
+        {
+            _asyncContext.complete(  );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onTimeout( AsyncEvent event ) throws IOException
+    {
+        if ( release(  ) )
+        {
+            // Nothing happened : answer like a regular poll
+            run(  );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onError( AsyncEvent event ) throws IOException
+    {
+        if ( release(  ) )
+        {
+            _asyncContext.complete(  );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onComplete( AsyncEvent event ) throws IOException
+    {
+        _user.removeListener( this );
+        _room.removeListener( this );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onStartAsync( AsyncEvent event ) throws IOException
+    {
+    }
+
+    /**
+     * Releases the request. Only the first caller gets the right to answer.
+     *
+     * @return true if the request was released by this call
+     */
+    private boolean release(  )
+    {
+        if ( _bReleased.compareAndSet( false, true ) )
+        {
+            _user.removeListener( this );
+            _room.removeListener( this );
+
+            return true;
+        }
+
+        return false;
+    }
+}
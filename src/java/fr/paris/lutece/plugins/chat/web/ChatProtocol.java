@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.service.ChatConstantes;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.Charset;
+
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Builds the frames of the chat protocol understood by the chat clients
+ */
+public final class ChatProtocol
+{
+    public static final String SEPARATOR = "\nend\n";
+    public static final String CMD_ADD_USER = "ADD USER:";
+    public static final String CMD_ADD_MSG = "ADD MESSAGE:";
+    public static final String CMD_SET_TOPIC = "SET TOPIC:";
+    public static final String CMD_NEW_PSEUDO = "NEW PSEUDO:";
+    public static final String CMD_KICK = "KICK:";
+    public static final String CMD_LAST_ENTRY = "LAST ENTRY:";
+    public static final String CMD_REMOVE_USER = "REMOVE USER:";
+    public static final String CMD_CLEAR_USERS = "CLEAR USERS:";
+    public static final String CMD_ROSTER_VERSION = "ROSTER VERSION:";
+    public static final String CMD_STATE_VERSION = "STATE VERSION:";
+    public static final String CMD_HISTORY_BEFORE = "HISTORY BEFORE:";
+    public static final long NO_ENTRY_ID = -1;
+    public static final long NO_ROSTER_VERSION = -1;
+
+    /** Encoding of the polls, the one the applet decodes */
+    public static final String ENCODING = "ISO-8859-1";
+    private static final Charset CHARSET = Charset.forName( ENCODING );
+    private static final String MESSAGE_USER_KICKED = "chat.msg.user.kicked";
+
+    /**
+     * Private constructor
+     */
+    private ChatProtocol(  )
+    {
+    }
+
+    /**
+     * Builds a message
+     * @param strMessage The body of the message
+     * @return The message string
+     */
+    public static String buildMessage( String strMessage )
+    {
+        return buildMessage( CMD_ADD_MSG, strMessage );
+    }
+
+    /**
+     * Builds a message
+     * @param strCommand The message command
+     * @param strMessage The body of the message
+     * @return The message string
+     */
+    public static String buildMessage( String strCommand, String strMessage )
+    {
+        StringBuffer strBuffer = new StringBuffer(  );
+        strBuffer.append( strCommand );
+        strBuffer.append( strMessage );
+        strBuffer.append( SEPARATOR );
+
+        return strBuffer.toString(  );
+    }
+
+    /**
+     * Gets the data of a user for a poll : entries not read yet, users and topic of the room
+     * @param room The room of the user
+     * @param strPseudo The pseudo of the user
+     * @return A string containing user information
+     */
+    public static String getUserData( ChatRoom room, String strPseudo )
+    {
+        return getUserData( room, strPseudo, NO_ENTRY_ID, NO_ROSTER_VERSION, null );
+    }
+
+    /**
+     * Gets the data of a user for a poll : entries after the last entry received by the client, users and topic of
+     * the room. When the client gives the id of its last entry, the data ends with the id of the last entry sent.
+     * When the client gives the version of its list of users, only the changes since this version are sent,
+     * followed by the new version.
+     * @param room The room of the user
+     * @param strPseudo The pseudo of the user
+     * @param lLastEntryId The id of the last entry received by the client, or NO_ENTRY_ID to use the last entry
+     * read by the user
+     * @param lRosterVersion The version of the list of users known by the client, 0 if it has no list, or
+     * NO_ROSTER_VERSION to send the whole list
+     * @param strStateVersion The state version of the user computed before reading the data, sent at the end of
+     * the data, or null if the client does not use it
+     * @return A string containing user information
+     */
+    public static String getUserData( ChatRoom room, String strPseudo, long lLastEntryId, long lRosterVersion,
+        String strStateVersion )
+    {
+        StringBuffer strData = new StringBuffer(  );
+        ChatUser user = room.getUser( strPseudo );
+        String strStatus = getUserStatus( room, user, strPseudo );
+
+        if ( strStatus != null )
+        {
+            return strStatus;
+        }
+
+        long lReadEntryId = getReadEntryId( user, lLastEntryId );
+
+        for ( ChatEntry entry : readEntries( room, user, lReadEntryId ) )
+        {
+            appendEntry( strData, entry );
+            lReadEntryId = entry.getId(  );
+        }
+
+        appendUserState( strData, room, user, strPseudo, lReadEntryId, lLastEntryId, lRosterVersion,
+            strStateVersion );
+
+        return strData.toString(  );
+    }
+
+    /**
+     * Writes the data of a user for a poll, encoded with the ENCODING charset. The frames of the entries are encoded
+     * once and shared by all the users. See getUserData for the parameters.
+     * @param out The output stream
+     * @param room The room of the user
+     * @param strPseudo The pseudo of the user
+     * @param lLastEntryId The id of the last entry received by the client, or NO_ENTRY_ID
+     * @param lRosterVersion The version of the list of users known by the client, or NO_ROSTER_VERSION
+     * @param strStateVersion The state version of the user computed before reading the data, or null
+     * @throws IOException If an I/O exception occurs
+     */
+    public static void writeUserData( OutputStream out, ChatRoom room, String strPseudo, long lLastEntryId,
+        long lRosterVersion, String strStateVersion )
+        throws IOException
+    {
+        ChatUser user = room.getUser( strPseudo );
+        String strStatus = getUserStatus( room, user, strPseudo );
+
+        if ( strStatus != null )
+        {
+            out.write( strStatus.getBytes( CHARSET ) );
+
+            return;
+        }
+
+        long lReadEntryId = getReadEntryId( user, lLastEntryId );
+
+        for ( ChatEntry entry : readEntries( room, user, lReadEntryId ) )
+        {
+            out.write( getFrameBytes( entry ) );
+            lReadEntryId = entry.getId(  );
+        }
+
+        StringBuffer strData = new StringBuffer(  );
+        appendUserState( strData, room, user, strPseudo, lReadEntryId, lLastEntryId, lRosterVersion,
+            strStateVersion );
+        out.write( strData.toString(  ).getBytes( CHARSET ) );
+    }
+
+    /**
+     * Reads the entries not read yet by a user and moves his read cursor after them
+     * @param room The room of the user
+     * @param user The user
+     * @param lReadEntryId The id after which the entries are read
+     * @return The entries
+     */
+    private static List<ChatEntry> readEntries( ChatRoom room, ChatUser user, long lReadEntryId )
+    {
+        List<ChatEntry> listEntries = room.getChatEntriesAfter( user, lReadEntryId );
+
+        if ( !listEntries.isEmpty(  ) )
+        {
+            user.setReadEntryId( listEntries.get( listEntries.size(  ) - 1 ).getId(  ) );
+        }
+
+        return listEntries;
+    }
+
+    /**
+     * Appends the frames which follow the entries in the data of a user : users, topic and versions
+     * @param strData The buffer
+     * @param room The room of the user
+     * @param user The user
+     * @param strPseudo The pseudo of the user
+     * @param lReadEntryId The id of the last entry sent
+     * @param lLastEntryId The id of the last entry received by the client, or NO_ENTRY_ID
+     * @param lRosterVersion The version of the list of users known by the client, or NO_ROSTER_VERSION
+     * @param strStateVersion The state version of the user, or null
+     */
+    private static void appendUserState( StringBuffer strData, ChatRoom room, ChatUser user, String strPseudo,
+        long lReadEntryId, long lLastEntryId, long lRosterVersion, String strStateVersion )
+    {
+        if ( lRosterVersion == NO_ROSTER_VERSION )
+        {
+            appendUsers( strData, room, strPseudo );
+        }
+        else
+        {
+            long lVersion = appendRosterChanges( strData, room, strPseudo, lRosterVersion );
+            strData.append( buildMessage( CMD_ROSTER_VERSION, String.valueOf( lVersion ) ) );
+        }
+
+        appendTopic( strData, room );
+
+        if ( lLastEntryId != NO_ENTRY_ID )
+        {
+            strData.append( buildMessage( CMD_LAST_ENTRY, String.valueOf( lReadEntryId ) ) );
+        }
+
+        if ( strStateVersion != null )
+        {
+            strData.append( buildMessage( CMD_STATE_VERSION, strStateVersion ) );
+        }
+
+        user.setLastAccessTime( new Date(  ) );
+    }
+
+    /**
+     * Returns the id of the last entry received by the client, sent in the request
+     * @param request The http request
+     * @return The id, or NO_ENTRY_ID if the client did not send it
+     */
+    public static long getLastEntryId( HttpServletRequest request )
+    {
+        String strLastEntryId = request.getParameter( ChatConstantes.PARAM_LAST_ENTRY_ID );
+
+        if ( strLastEntryId != null )
+        {
+            try
+            {
+                return Math.max( Long.parseLong( strLastEntryId.trim(  ) ), 0 );
+            }
+            catch ( NumberFormatException e )
+            {
+                // The entries not read yet are sent
+            }
+        }
+
+        return NO_ENTRY_ID;
+    }
+
+    /**
+     * Returns the version of the list of users known by the client, sent in the request
+     * @param request The http request
+     * @return The version, or NO_ROSTER_VERSION if the client did not send it
+     */
+    public static long getRosterVersion( HttpServletRequest request )
+    {
+        String strRosterVersion = request.getParameter( ChatConstantes.PARAM_ROSTER_VERSION );
+
+        if ( strRosterVersion != null )
+        {
+            try
+            {
+                return Math.max( Long.parseLong( strRosterVersion.trim(  ) ), 0 );
+            }
+            catch ( NumberFormatException e )
+            {
+                // The whole list is sent
+                return 0;
+            }
+        }
+
+        return NO_ROSTER_VERSION;
+    }
+
+    /**
+     * Returns the state version known by the client, sent in the request
+     * @param request The http request
+     * @return The version, or null if the client does not use it
+     */
+    public static String getClientStateVersion( HttpServletRequest request )
+    {
+        return request.getParameter( ChatConstantes.PARAM_STATE_VERSION );
+    }
+
+    /**
+     * Returns the state version of a user : the versions of the room and of the user. When it has not changed since
+     * the previous poll of the client, the client already has all the data.
+     * @param room The room of the user
+     * @param user The user
+     * @return The version
+     */
+    public static String getStateVersion( ChatRoom room, ChatUser user )
+    {
+        return room.getStateVersion(  ) + "." + user.getStateVersion(  );
+    }
+
+    /**
+     * Returns the id after which the entries must be sent to a user
+     * @param user The user
+     * @param lLastEntryId The id of the last entry received by the client, or NO_ENTRY_ID
+     * @return The id
+     */
+    static long getReadEntryId( ChatUser user, long lLastEntryId )
+    {
+        if ( lLastEntryId == NO_ENTRY_ID )
+        {
+            return user.getReadEntryId(  );
+        }
+
+        // Never send the entries added before the arrival of the user
+        return Math.max( lLastEntryId, user.getJoinEntryId(  ) );
+    }
+
+    /**
+     * Checks if data is waiting to be read by a user : entries after the last entry received, a kick or a new pseudo
+     * @param room The room of the user
+     * @param user The user
+     * @param lLastEntryId The id of the last entry received by the client, or NO_ENTRY_ID
+     * @return true if data is waiting for the user
+     */
+    static boolean hasUserData( ChatRoom room, ChatUser user, long lLastEntryId )
+    {
+        return user.hasPendingStatus(  ) || room.hasChatEntriesAfter( user, getReadEntryId( user, lLastEntryId ) );
+    }
+
+    /**
+     * Handles the states which end the normal flow of a user : missing user, kick and new pseudo
+     * @param room The room of the user
+     * @param user The user, may be null
+     * @param strPseudo The pseudo used by the client
+     * @return The frame to send, or null if the user can receive his data
+     */
+    static String getUserStatus( ChatRoom room, ChatUser user, String strPseudo )
+    {
+        if ( user == null )
+        {
+            return buildMessage( CMD_KICK, AppPropertiesService.getProperty( MESSAGE_USER_KICKED ) );
+        }
+
+        if ( user.isKicked(  ) )
+        {
+            String strMessage = user.getKickComment(  );
+            room.removeUser( strPseudo );
+
+            return buildMessage( CMD_KICK, strMessage );
+        }
+
+        if ( user.hasNewPseudo(  ) )
+        {
+            room.removeOldPseudo( strPseudo );
+
+            return buildMessage( CMD_NEW_PSEUDO, user.getNickname(  ) );
+        }
+
+        return null;
+    }
+
+    /**
+     * Appends the frame of an entry
+     * @param strData The buffer
+     * @param entry The entry
+     */
+    static void appendEntry( StringBuffer strData, ChatEntry entry )
+    {
+        strData.append( getFrame( entry ) );
+    }
+
+    /**
+     * Returns the frame of an entry. The frame is built the first time the entry is sent, then shared by all the
+     * recipients.
+     * @param entry The entry
+     * @return The frame
+     */
+    static String getFrame( ChatEntry entry )
+    {
+        String strFrame = entry.getFrame(  );
+
+        if ( strFrame == null )
+        {
+            strFrame = buildFrame( entry );
+            entry.setFrame( strFrame );
+        }
+
+        return strFrame;
+    }
+
+    /**
+     * Returns the bytes of the frame of an entry, encoded with the ENCODING charset
+     * @param entry The entry
+     * @return The bytes of the frame
+     */
+    static byte[] getFrameBytes( ChatEntry entry )
+    {
+        byte[] frameBytes = entry.getFrameBytes(  );
+
+        if ( frameBytes == null )
+        {
+            frameBytes = getFrame( entry ).getBytes( CHARSET );
+            entry.setFrameBytes( frameBytes );
+        }
+
+        return frameBytes;
+    }
+
+    /**
+     * Builds the frame of an entry
+     * @param entry The entry
+     * @return The frame
+     */
+    private static String buildFrame( ChatEntry entry )
+    {
+        switch ( entry.getType(  ) )
+        {
+            case ChatEntry.TYPE_MESSAGE:
+                return buildMessage( "<" + entry.getNickname(  ) + "> " + entry.getChatMessage(  ) );
+
+            case ChatEntry.TYPE_NOTIFICATION:
+                return buildMessage( entry.getChatMessage(  ) );
+
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Appends the list of the users of the room
+     * @param strData The buffer
+     * @param room The room
+     * @param strPseudo The pseudo of the user receiving the list, or null if the list is shared by all users
+     */
+    static void appendUsers( StringBuffer strData, ChatRoom room, String strPseudo )
+    {
+        Enumeration users = room.getUsers(  );
+
+        while ( users.hasMoreElements(  ) )
+        {
+            appendUser( strData, (ChatUser) users.nextElement(  ), strPseudo );
+        }
+    }
+
+    /**
+     * Appends the changes of the list of the users since a given version : the users arrived or changed and the
+     * users departed. The whole list is sent when the changes since this version are no longer known.
+     * @param strData The buffer
+     * @param room The room
+     * @param strPseudo The pseudo of the user receiving the list, or null if the list is shared by all users
+     * @param lRosterVersion The version of the list known by the client, 0 if it has no list
+     * @return The version of the list sent
+     */
+    static long appendRosterChanges( StringBuffer strData, ChatRoom room, String strPseudo, long lRosterVersion )
+    {
+        long lVersion = room.getRosterVersion(  );
+        Set<String> setNicknames = ( lRosterVersion > 0 ) ? room.getRosterChangesSince( lRosterVersion ) : null;
+
+        if ( setNicknames == null )
+        {
+            strData.append( buildMessage( CMD_CLEAR_USERS, "" ) );
+            appendUsers( strData, room, strPseudo );
+
+            return lVersion;
+        }
+
+        for ( String strNickname : setNicknames )
+        {
+            ChatUser user = room.getUser( strNickname );
+
+            if ( user != null )
+            {
+                appendUser( strData, user, strPseudo );
+            }
+            else
+            {
+                strData.append( buildMessage( CMD_REMOVE_USER, strNickname ) );
+            }
+        }
+
+        return lVersion;
+    }
+
+    /**
+     * Appends a user of the room
+     * @param strData The buffer
+     * @param user The user
+     * @param strPseudo The pseudo of the user receiving the list, or null if the list is shared by all users
+     */
+    private static void appendUser( StringBuffer strData, ChatUser user, String strPseudo )
+    {
+        strData.append( CMD_ADD_USER );
+
+        if ( user.getMode(  ) == ChatUser.MODE_OP )
+        {
+            strData.append( "@" );
+        }
+        else if ( user.getMode(  ) == ChatUser.MODE_VOICE )
+        {
+            strData.append( "+" );
+        }
+
+        strData.append( user.getNickname(  ) );
+
+        if ( ( strPseudo != null ) && strPseudo.equals( user.getNickname(  ) ) )
+        {
+            strData.append( "*" );
+        }
+
+        if ( user.isAway(  ) )
+        {
+            if ( user.getAwayComment(  ) != null )
+            {
+                strData.append( " (absent:" + user.getAwayComment(  ) + ")" );
+            }
+            else
+            {
+                strData.append( " (absent)" );
+            }
+        }
+
+        strData.append( SEPARATOR );
+    }
+
+    /**
+     * Appends the topic of the room
+     * @param strData The buffer
+     * @param room The room
+     */
+    static void appendTopic( StringBuffer strData, ChatRoom room )
+    {
+        strData.append( buildMessage( CMD_SET_TOPIC, room.getDescription(  ) ) );
+    }
+}
@@ -1,298 +1,227 @@
-/*
- * Copyright (c) 2002-2014, Mairie de Paris
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- *
- *  1. Redistributions of source code must retain the above copyright notice
- *     and the following disclaimer.
- *
- *  2. Redistributions in binary form must reproduce the above copyright notice
- *     and the following disclaimer in the documentation and/or other materials
- *     provided with the distribution.
- *
- *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
- *     contributors may be used to endorse or promote products derived from
- *     this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE.
- *
- * License 1.0
- */
-package fr.paris.lutece.plugins.chat.web;
-
-import fr.paris.lutece.plugins.chat.business.ChatEntry;
-import fr.paris.lutece.plugins.chat.business.ChatRoom;
-import fr.paris.lutece.plugins.chat.business.ChatUser;
-import fr.paris.lutece.plugins.chat.service.ChatConstantes;
-import fr.paris.lutece.plugins.chat.service.ChatService;
-import fr.paris.lutece.portal.service.util.AppPropertiesService;
-
-import java.io.IOException;
-import java.io.PrintWriter;
-
-import java.util.Date;
-import java.util.Enumeration;
-
-import javax.servlet.ServletConfig;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-
-/**
- * Servlet which returns the last messages of the room on which the user is connected
- *
- */
-public class ChatServlet extends HttpServlet
-{
-    private static final long serialVersionUID = -6400074588556875395L;
-    private static final String SEPARATOR = "\nend\n";
-    private static final String CMD_ADD_USER = "ADD USER:";
-    private static final String CMD_ADD_MSG = "ADD MESSAGE:";
-    private static final String CMD_SET_TOPIC = "SET TOPIC:";
-    private static final String CMD_NEW_PSEUDO = "NEW PSEUDO:";
-    private static final String CMD_KICK = "KICK:";
-    private static final String CONTENT_TYPE = "text/html";
-    private static final String MESSAGE_RECEPTION = "chat.msg.message.received";
-    private static final String MESSAGE_CONNEXION_CONFIRMATION = "chat.msg.connexion.established";
-    private static final String MESSAGE_INVALID_ROOM = "chat.msg.invalid.room";
-    private static final String MESSAGE_USER_BANNED = "chat.msg.user.banned";
-    private static final String MESSAGE_USER_ALREADY_EXIST = "chat.msg.user.already.exist";
-    private static final String MESSAGE_CONNEXION_FAILED = "chat.msg.connexion.failed";
-    private static final String MESSAGE_USER_KICKED = "chat.msg.user.kicked";
-
-    /**
-     * Initialize the servlet
-     * @param config The servlet config
-     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
-     */
-    public void init( ServletConfig config ) throws ServletException
-    {
-        super.init( config );
-    }
-
-    /**
-     * Process HTTP Get request
-     * @param request The http request
-     * @param response The http response
-     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
-     * @throws IOException If an I/O exception occurs
-     */
-    public void doGet( HttpServletRequest request, HttpServletResponse response )
-        throws ServletException, IOException
-    {
-        response.setContentType( CONTENT_TYPE );
-
-        PrintWriter out = response.getWriter(  );
-        String strUserData = getUserData( request );
-        out.println( strUserData );
-    }
-
-    /**
-     * Process HTTP Post request
-     * @param request The http request
-     * @param response The http response
-     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
-     * @throws IOException If an I/O exception occurs
-     */
-    public void doPost( HttpServletRequest request, HttpServletResponse response )
-        throws ServletException, IOException
-    {
-        response.setContentType( CONTENT_TYPE );
-
-        PrintWriter out = response.getWriter(  );
-
-        if ( request.getParameter( ChatConstantes.PARAM_MESSAGE ) != null )
-        {
-            ChatService.newMessage( request );
-            out.println( AppPropertiesService.getProperty( MESSAGE_RECEPTION ) );
-        }
-        else
-        {
-            switch ( ChatService.doEnterRoom( request ) )
-            {
-                case ChatRoom.USER_ADDED:
-                    out.println( buildMessage( AppPropertiesService.getProperty( MESSAGE_CONNEXION_CONFIRMATION ) ) );
-
-                    break;
-
-                case ChatRoom.INVALID_ROOM:
-                    out.println( buildMessage( CMD_KICK, AppPropertiesService.getProperty( MESSAGE_INVALID_ROOM ) ) );
-
-                    break;
-
-                case ChatRoom.USER_IS_BANNED:
-                    out.println( buildMessage( CMD_KICK, AppPropertiesService.getProperty( MESSAGE_USER_BANNED ) ) );
-
-                    break;
-
-                case ChatRoom.USER_ALREADY_EXISTS:
-                    out.println( buildMessage( CMD_KICK, AppPropertiesService.getProperty( MESSAGE_USER_ALREADY_EXIST ) ) );
-
-                    break;
-
-                default:
-                    out.println( AppPropertiesService.getProperty( MESSAGE_CONNEXION_FAILED ) );
-
-                    break;
-            }
-        }
-    }
-
-    /**
-     * Clean the ressources
-     */
-    public void destroy(  )
-    {
-    }
-
-    /**
-         * Builds a message
-     * @param strMessage The body of the message
-     * @return The message string
-     */
-    String buildMessage( String strMessage )
-    {
-        return buildMessage( CMD_ADD_MSG, strMessage );
-    }
-
-    /**
-     * Builds a message
-     * @param strCommand The message command
-     * @param strMessage The body of the message
-     * @return The message string
-     */
-    String buildMessage( String strCommand, String strMessage )
-    {
-        StringBuffer strBuffer = new StringBuffer(  );
-        strBuffer.append( strCommand );
-        strBuffer.append( strMessage );
-        strBuffer.append( SEPARATOR );
-
-        return strBuffer.toString(  );
-    }
-
-    /**
-     * Gets information about users
-     * @param request The Http request
-     * @return A string containing user information
-     */
-    String getUserData( HttpServletRequest request )
-    {
-        StringBuffer strData = new StringBuffer(  );
-        ChatRoom room = ChatService.getRoom( request );
-        String strPseudo = ChatService.getNickname( request );
-        ChatUser user = room.getUser( strPseudo );
-
-        if ( user == null )
-        {
-            return buildMessage( CMD_KICK, AppPropertiesService.getProperty( MESSAGE_USER_KICKED ) );
-        }
-
-        if ( user.isKicked(  ) )
-        {
-            String strMessage = user.getKickComment(  );
-            room.removeUser( strPseudo );
-
-            return buildMessage( CMD_KICK, strMessage );
-        }
-
-        if ( user.hasNewPseudo(  ) )
-        {
-            room.removeOldPseudo( strPseudo );
-
-            return buildMessage( CMD_NEW_PSEUDO, user.getNickname(  ) );
-        }
-
-        // List of the messages
-        Enumeration entries = user.getChatEntries(  );
-
-        while ( entries.hasMoreElements(  ) )
-        {
-            ChatEntry entry = (ChatEntry) entries.nextElement(  );
-
-            if ( entry.getTime(  ) < user.getLastAccessTime(  ).getTime(  ) )
-            {
-                // The message came before the arrival of the user, then go to the next one
-                continue;
-            }
-
-            switch ( entry.getType(  ) )
-            {
-                case ChatEntry.TYPE_MESSAGE:
-                    strData.append( buildMessage( "<" + entry.getNickname(  ) + "> " + entry.getChatMessage(  ) ) );
-
-                    break;
-
-                case ChatEntry.TYPE_NOTIFICATION:
-                    strData.append( buildMessage( entry.getChatMessage(  ) ) );
-
-                    break;
-
-                default:
-
-                    // No data is appended
-                    break;
-            }
-        }
-
-        // List of the users
-        Enumeration users = room.getUsers(  );
-
-        while ( users.hasMoreElements(  ) )
-        {
-            ChatUser u = (ChatUser) users.nextElement(  );
-            strData.append( CMD_ADD_USER );
-
-            if ( u.getMode(  ) == ChatUser.MODE_OP )
-            {
-                strData.append( "@" );
-            }
-            else if ( u.getMode(  ) == ChatUser.MODE_VOICE )
-            {
-                strData.append( "+" );
-            }
-
-            strData.append( u.getNickname(  ) );
-
-            if ( strPseudo.equals( u.getNickname(  ) ) )
-            {
-                strData.append( "*" );
-            }
-
-            if ( u.isAway(  ) )
-            {
-                if ( u.getAwayComment(  ) != null )
-                {
-                    strData.append( " (absent:" + u.getAwayComment(  ) + ")" );
-                }
-                else
-                {
-                    strData.append( " (absent)" );
-                }
-            }
-
-            strData.append( SEPARATOR );
-        }
-
-        // Topic of the room
-        strData.append( buildMessage( CMD_SET_TOPIC, room.getDescription(  ) ) );
-        user.setLastAccessTime( new Date(  ) );
-
-        return strData.toString(  );
-    }
-}
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.service.ChatConstantes;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.util.Date;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Servlet which returns the last messages of the room on which the user is connected
+ *
+ */
+public class ChatServlet extends HttpServlet
+{
+    private static final long serialVersionUID = -6400074588556875395L;
+    private static final String CONTENT_TYPE = "text/html";
+    private static final String MESSAGE_RECEPTION = "chat.msg.message.received";
+    private static final String MESSAGE_DROPPED = "chat.msg.message.dropped";
+    private static final String MESSAGE_CONNEXION_CONFIRMATION = "chat.msg.connexion.established";
+    private static final String MESSAGE_INVALID_ROOM = "chat.msg.invalid.room";
+    private static final String MESSAGE_USER_BANNED = "chat.msg.user.banned";
+    private static final String MESSAGE_USER_ALREADY_EXIST = "chat.msg.user.already.exist";
+    private static final String MESSAGE_CONNEXION_FAILED = "chat.msg.connexion.failed";
+    private static final String PROPERTY_LONGPOLL_TIMEOUT = "chat.longpoll.timeout.seconds";
+    private static final int PROPERTY_LONGPOLL_TIMEOUT_DEF = 20;
+
+    /**
+     * Initialize the servlet
+     * @param config The servlet config
+     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
+     */
+    public void init( ServletConfig config ) throws ServletException
+    {
+        super.init( config );
+    }
+
+    /**
+     * Process HTTP Get request
+     * @param request The http request
+     * @param response The http response
+     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
+     * @throws IOException If an I/O exception occurs
+     */
+    public void doGet( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        if ( ChatForwarder.forward( request, response ) )
+        {
+            return;
+        }
+
+        response.setContentType( CONTENT_TYPE );
+        response.setCharacterEncoding( ChatProtocol.ENCODING );
+
+        ChatRoom room = ChatService.getRoom( request );
+        String strPseudo = ChatService.getNickname( request );
+        long lLastEntryId = ChatProtocol.getLastEntryId( request );
+        long lRosterVersion = ChatProtocol.getRosterVersion( request );
+        String strClientStateVersion = ChatProtocol.getClientStateVersion( request );
+        ChatUser user = ( room != null ) ? room.getUser( strPseudo ) : null;
+
+        if ( ( request.getParameter( ChatConstantes.PARAM_WAIT ) != null ) && request.isAsyncSupported(  ) )
+        {
+            if ( ( user != null ) && !ChatProtocol.hasUserData( room, user, lLastEntryId ) )
+            {
+                // Nothing to send yet : park the request until data is available or the timeout expires
+                AsyncContext asyncContext = request.startAsync(  );
+                asyncContext.setTimeout( 1000L * AppPropertiesService.getPropertyInt( PROPERTY_LONGPOLL_TIMEOUT,
+                        PROPERTY_LONGPOLL_TIMEOUT_DEF ) );
+                new ChatLongPoll( asyncContext, room, user, strPseudo, lLastEntryId, lRosterVersion,
+                    strClientStateVersion != null ).start(  );
+
+                return;
+            }
+        }
+
+        String strStateVersion = null;
+
+        if ( ( strClientStateVersion != null ) && ( user != null ) )
+        {
+            strStateVersion = ChatProtocol.getStateVersion( room, user );
+
+            if ( strStateVersion.equals( strClientStateVersion ) )
+            {
+                // Nothing has changed since the previous poll : no need to build the data
+                user.setLastAccessTime( new Date(  ) );
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+
+                return;
+            }
+        }
+
+        ServletOutputStream out = response.getOutputStream(  );
+        ChatProtocol.writeUserData( out, room, strPseudo, lLastEntryId, lRosterVersion, strStateVersion );
+        out.println(  );
+    }
+
+    /**
+     * Process HTTP Post request
+     * @param request The http request
+     * @param response The http response
+     * @throws ServletException If an exception occurs that interrupts the servlet's normal operation
+     * @throws IOException If an I/O exception occurs
+     */
+    public void doPost( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        if ( ChatForwarder.forward( request, response ) )
+        {
+            return;
+        }
+
+        response.setContentType( CONTENT_TYPE );
+
+        PrintWriter out = response.getWriter(  );
+
+        if ( request.getParameter( ChatConstantes.PARAM_MESSAGE ) != null )
+        {
+            if ( ChatService.newMessage( request ) == ChatService.MESSAGE_DROPPED )
+            {
+                // The client may send the message again later
+                response.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                out.println( AppPropertiesService.getProperty( MESSAGE_DROPPED ) );
+            }
+            else
+            {
+                out.println( AppPropertiesService.getProperty( MESSAGE_RECEPTION ) );
+            }
+        }
+        else
+        {
+            switch ( ChatService.doEnterRoom( request ) )
+            {
+                case ChatRoom.USER_ADDED:
+
+                    if ( ChatService.isForwardedRequest( request ) )
+                    {
+                        // The node of the user attaches the nickname given to its session
+                        response.setHeader( ChatConstantes.HEADER_NICKNAME,
+                            (String) request.getSession(  ).getAttribute( ChatConstantes.ATTRIBUTE_NICKNAME ) );
+                    }
+
+                    out.println( ChatProtocol.buildMessage(
+                            AppPropertiesService.getProperty( MESSAGE_CONNEXION_CONFIRMATION ) ) );
+
+                    break;
+
+                case ChatRoom.INVALID_ROOM:
+                    out.println( ChatProtocol.buildMessage( ChatProtocol.CMD_KICK,
+                            AppPropertiesService.getProperty( MESSAGE_INVALID_ROOM ) ) );
+
+                    break;
+
+                case ChatRoom.USER_IS_BANNED:
+                    out.println( ChatProtocol.buildMessage( ChatProtocol.CMD_KICK,
+                            AppPropertiesService.getProperty( MESSAGE_USER_BANNED ) ) );
+
+                    break;
+
+                case ChatRoom.USER_ALREADY_EXISTS:
+                    out.println( ChatProtocol.buildMessage( ChatProtocol.CMD_KICK,
+                            AppPropertiesService.getProperty( MESSAGE_USER_ALREADY_EXIST ) ) );
+
+                    break;
+
+                default:
+                    out.println( AppPropertiesService.getProperty( MESSAGE_CONNEXION_FAILED ) );
+
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Clean the ressources
+     */
+    public void destroy(  )
+    {
+    }
+}
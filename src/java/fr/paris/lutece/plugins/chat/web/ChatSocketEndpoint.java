@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+import fr.paris.lutece.plugins.chat.business.ChatUserListener;
+import fr.paris.lutece.plugins.chat.service.ChatConstantes;
+import fr.paris.lutece.plugins.chat.service.ChatService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSession;
+
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+
+/**
+ * WebSocket endpoint speaking the chat protocol. The user must have entered the room in the same http session.
+ * Inbound text messages are processed as the messages posted to the chat servlet, an empty message only keeps the
+ * user active. Outbound frames are pushed as the entries are added to the room.
+ * <br>
+ * Reading the pushed frames does not keep the user active : the client must send an empty message, or answer the
+ * pings of the server, more often than the inactivity delay of the room, otherwise the user expires.
+ */
+@ServerEndpoint( value = "/servlet/plugins/chat/ChatSocket", configurator = ChatSocketConfigurator.class )
+public class ChatSocketEndpoint implements ChatUserListener, SendHandler
+{
+    private static final String MESSAGE_USER_KICKED = "chat.msg.user.kicked";
+    private static final String MESSAGE_DROPPED = "chat.msg.message.dropped";
+    private static final String PROPERTY_MAX_PENDING_FRAMES = "chat.socket.max.pending.frames";
+    private static final int PROPERTY_MAX_PENDING_FRAMES_DEF = 500;
+    private Session _session;
+    private ChatRoom _room;
+    private ChatUser _user;
+    private volatile String _strPseudo;
+    private ChatSocketRoom _socketRoom;
+    private Queue<String> _queueFrames = new ConcurrentLinkedQueue<String>(  );
+    private AtomicInteger _nPendingFrames = new AtomicInteger(  );
+    private AtomicBoolean _bSending = new AtomicBoolean(  );
+    private volatile boolean _bClosing;
+    private int _nMaxPendingFrames;
+
+    // The entries pushed while the first frame is built, by id, or null once the first frame is sent
+    private Map<Long, String> _mapHeldFrames = new LinkedHashMap<Long, String>(  );
+
+    /**
+     * Opens the connection of a user
+     *
+     * @param session The WebSocket session
+     * @param config The endpoint config
+     */
+    @OnOpen
+    public void onOpen( Session session, EndpointConfig config )
+    {
+        _session = session;
+        _nMaxPendingFrames = AppPropertiesService.getPropertyInt( PROPERTY_MAX_PENDING_FRAMES,
+                PROPERTY_MAX_PENDING_FRAMES_DEF );
+
+        HttpSession httpSession = (HttpSession) config.getUserProperties(  )
+                                                      .remove( ChatSocketConfigurator.PROPERTY_HTTP_SESSION );
+
+        if ( httpSession != null )
+        {
+            String strRoomName = (String) httpSession.getAttribute( ChatConstantes.ATTRIBUTE_ROOM_NAME );
+            _strPseudo = (String) httpSession.getAttribute( ChatConstantes.ATTRIBUTE_NICKNAME );
+
+            if ( ( strRoomName != null ) && ( _strPseudo != null ) )
+            {
+                _room = ChatService.getRoomList(  ).getRoom( strRoomName );
+            }
+        }
+
+        if ( ( _room != null ) && ( ChatService.getOwnerUrl( _room ) != null ) )
+        {
+            // The sockets of a room owned by another node are not forwarded : the client has to poll this node
+            close(  );
+
+            return;
+        }
+
+        if ( _room != null )
+        {
+            _user = _room.getUser( _strPseudo );
+        }
+
+        if ( ( _user == null ) || _user.isKicked(  ) )
+        {
+            closeWithStatus(  );
+
+            return;
+        }
+
+        _socketRoom = ChatSocketRoom.getInstance( _room );
+        _socketRoom.addSocket( this );
+        _user.addListener( this );
+
+        // The first frame holds the entries not read yet, the whole list of the users and the topic. The entries
+        // pushed meanwhile are held, and only those added after the first frame are sent.
+        synchronized ( this )
+        {
+            send( ChatProtocol.getUserData( _room, _strPseudo, ChatProtocol.NO_ENTRY_ID, 0, null ) );
+
+            long lLastEntryId = _user.getReadEntryId(  );
+
+            for ( Map.Entry<Long, String> frame : _mapHeldFrames.entrySet(  ) )
+            {
+                if ( frame.getKey(  ) > lLastEntryId )
+                {
+                    send( frame.getValue(  ) );
+                }
+            }
+
+            _mapHeldFrames = null;
+        }
+    }
+
+    /**
+     * Processes a message sent by the user
+     *
+     * @param strMessage The message
+     */
+    @OnMessage
+    public void onMessage( String strMessage )
+    {
+        if ( _user == null )
+        {
+            return;
+        }
+
+        if ( _room.getUser( _strPseudo ) != _user )
+        {
+            // The user has left the room, for instance after an inactivity timeout
+            closeWithStatus(  );
+
+            return;
+        }
+
+        _user.setLastAccessTime( new Date(  ) );
+
+        if ( ( strMessage.length(  ) != 0 ) &&
+                ( ChatService.newMessage( _room, _strPseudo, strMessage ) == ChatService.MESSAGE_DROPPED ) )
+        {
+            send( ChatProtocol.buildMessage( AppPropertiesService.getProperty( MESSAGE_DROPPED ) ) );
+        }
+    }
+
+    /**
+     * Keeps the user active when the client answers a ping
+     *
+     * @param message The pong
+     */
+    @OnMessage
+    public void onPong( PongMessage message )
+    {
+        if ( _user != null )
+        {
+            _user.setLastAccessTime( new Date(  ) );
+        }
+    }
+
+    /**
+     * Closes the connection of a user
+     *
+     * @param session The WebSocket session
+     * @param reason The close reason
+     */
+    @OnClose
+    public void onClose( Session session, CloseReason reason )
+    {
+        unregister(  );
+    }
+
+    /**
+     * Handles a transport error
+     *
+     * @param session The WebSocket session
+     * @param error The error
+     */
+    @OnError
+    public void onError( Session session, Throwable error )
+    {
+        AppLogService.debug( "Chat socket error : " + error.getMessage(  ) );
+        unregister(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void userDataAvailable( ChatUser user )
+    {
+        if ( ChatService.getOwnerUrl( _room ) != null )
+        {
+            // The room has moved to another node
+            close(  );
+        }
+        else if ( user.isKicked(  ) )
+        {
+            closeWithStatus(  );
+        }
+        else if ( user.hasNewPseudo(  ) )
+        {
+            String strOldPseudo = _strPseudo;
+            _strPseudo = user.getNickname(  );
+            send( ChatProtocol.getUserStatus( _room, user, strOldPseudo ) );
+        }
+    }
+
+    /**
+     * Checks if this socket belongs to a user
+     *
+     * @param user The user
+     * @return true if the socket belongs to the user
+     */
+    boolean isUser( ChatUser user )
+    {
+        return _user == user;
+    }
+
+    /**
+     * Queues the frame of an entry pushed by the room. The frame is held while the first frame is built.
+     *
+     * @param strFrame The frame
+     * @param lEntryId The id of the entry
+     */
+    void sendEntry( String strFrame, long lEntryId )
+    {
+        synchronized ( this )
+        {
+            if ( _mapHeldFrames != null )
+            {
+                _mapHeldFrames.put( lEntryId, strFrame );
+
+                return;
+            }
+        }
+
+        send( strFrame );
+    }
+
+    /**
+     * Queues a frame. Frames are sent one at a time, in the order they are queued.
+     *
+     * @param strFrame The frame
+     */
+    void send( String strFrame )
+    {
+        if ( _nPendingFrames.incrementAndGet(  ) > _nMaxPendingFrames )
+        {
+            // The client does not read its frames
+            close(  );
+
+            return;
+        }
+
+        _queueFrames.add( strFrame );
+        sendNext(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onResult( SendResult result )
+    {
+        _bSending.set( false );
+
+        if ( !result.isOK(  ) )
+        {
+            close(  );
+
+            return;
+        }
+
+        sendNext(  );
+
+        if ( _bClosing && _queueFrames.isEmpty(  ) && !_bSending.get(  ) )
+        {
+            close(  );
+        }
+    }
+
+    /**
+     * Sends the next queued frame if no frame is being sent
+     */
+    private void sendNext(  )
+    {
+        while ( !_queueFrames.isEmpty(  ) && _bSending.compareAndSet( false, true ) )
+        {
+            String strFrame = _queueFrames.poll(  );
+
+            if ( strFrame == null )
+            {
+                // Another thread took the frame
+                _bSending.set( false );
+
+                continue;
+            }
+
+            _nPendingFrames.decrementAndGet(  );
+            _session.getAsyncRemote(  ).sendText( strFrame, this );
+
+            return;
+        }
+    }
+
+    /**
+     * Sends the kick, then closes the socket once the pending frames have been sent
+     */
+    private void closeWithStatus(  )
+    {
+        String strStatus = ( _room != null ) ? ChatProtocol.getUserStatus( _room, _user, _strPseudo ) : null;
+
+        if ( strStatus == null )
+        {
+            strStatus = ChatProtocol.buildMessage( ChatProtocol.CMD_KICK,
+                    AppPropertiesService.getProperty( MESSAGE_USER_KICKED ) );
+        }
+
+        unregister(  );
+        _bClosing = true;
+        send( strStatus );
+    }
+
+    /**
+     * Closes the socket
+     */
+    private void close(  )
+    {
+        unregister(  );
+
+        try
+        {
+            _session.close(  );
+        }
+        catch ( IOException e )
+        {
+            AppLogService.debug( "Chat socket : unable to close the session : " + e.getMessage(  ) );
+        }
+    }
+
+    /**
+     * Stops receiving the frames of the room
+     */
+    private void unregister(  )
+    {
+        if ( _socketRoom != null )
+        {
+            _socketRoom.removeSocket( this );
+        }
+
+        if ( _user != null )
+        {
+            _user.removeListener( this );
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatEntry;
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+import fr.paris.lutece.plugins.chat.business.ChatRoomListener;
+import fr.paris.lutece.plugins.chat.business.ChatUser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Broadcasts the entries of a room to its WebSocket connections. A broadcast entry is encoded once and the same
+ * frame is sent to every socket of the room. Notifications carry the changes of the users since the previous one.
+ */
+final class ChatSocketRoom implements ChatRoomListener
+{
+    // The rooms recreated when the settings are reloaded get their own broadcaster, the previous ones are collected
+    private static Map<ChatRoom, ChatSocketRoom> _mapRooms = new WeakHashMap<ChatRoom, ChatSocketRoom>(  );
+    private List<ChatSocketEndpoint> _listSockets = new CopyOnWriteArrayList<ChatSocketEndpoint>(  );
+    private long _lRosterVersion;
+
+    /**
+     * Private constructor
+     */
+    private ChatSocketRoom( ChatRoom room )
+    {
+        _lRosterVersion = room.getRosterVersion(  );
+    }
+
+    /**
+     * Returns the broadcaster of a room, created at the first call
+     *
+     * @param room The room
+     * @return The broadcaster
+     */
+    static ChatSocketRoom getInstance( ChatRoom room )
+    {
+        synchronized ( _mapRooms )
+        {
+            ChatSocketRoom socketRoom = _mapRooms.get( room );
+
+            if ( socketRoom == null )
+            {
+                socketRoom = new ChatSocketRoom( room );
+                _mapRooms.put( room, socketRoom );
+                room.addListener( socketRoom );
+            }
+
+            return socketRoom;
+        }
+    }
+
+    /**
+     * Adds a socket to the room
+     *
+     * @param socket The socket
+     */
+    void addSocket( ChatSocketEndpoint socket )
+    {
+        _listSockets.add( socket );
+    }
+
+    /**
+     * Removes a socket from the room
+     *
+     * @param socket The socket
+     */
+    void removeSocket( ChatSocketEndpoint socket )
+    {
+        _listSockets.remove( socket );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void chatEntryAdded( ChatRoom room, ChatEntry entry, ChatUser userRecipient )
+    {
+        if ( _listSockets.isEmpty(  ) )
+        {
+            return;
+        }
+
+        StringBuffer strData = new StringBuffer(  );
+        ChatProtocol.appendEntry( strData, entry );
+
+        if ( ( userRecipient == null ) && ( entry.getType(  ) == ChatEntry.TYPE_NOTIFICATION ) )
+        {
+            // Users and topic only change along with a notification entry
+            _lRosterVersion = ChatProtocol.appendRosterChanges( strData, room, null, _lRosterVersion );
+            ChatProtocol.appendTopic( strData, room );
+        }
+
+        String strFrame = strData.toString(  );
+
+        for ( ChatSocketEndpoint socket : _listSockets )
+        {
+            if ( ( userRecipient == null ) || socket.isUser( userRecipient ) )
+            {
+                socket.sendEntry( strFrame, entry.getId(  ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.business;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Stress test of a room : users join and leave, entries are posted and read at the same time. Every reader must
+ * receive every entry once, in the increasing order of the ids.
+ */
+public class ChatRoomStressTest
+{
+    private static final int POSTERS = 4;
+    private static final int ENTRIES_PER_POSTER = 5000;
+    private static final int READERS = 4;
+    private static final int PRIVATE_ENTRIES_PER_READER = 1000;
+    private static final int LOG_CAPACITY = 16;
+    private static final int LOG_ENTRIES = 50000;
+    private static final String READER_PREFIX = "reader";
+    private static final String POSTER_PREFIX = "poster";
+    private static final String PRIVATE_PREFIX = "private";
+    private static final String GUEST_PREFIX = "guest";
+    private static final String SEPARATOR = "-";
+
+    /**
+     * Posts to all the users and to each reader, reads, joins and sweeps concurrently on a room keeping all the
+     * entries
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test( timeout = 60000 )
+    public void testConcurrentPostPollJoinSweep(  ) throws InterruptedException
+    {
+        final int nTotal = POSTERS * ENTRIES_PER_POSTER;
+        final ChatRoom room = new ChatRoom( "stress", "Stress test", nTotal );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch posted = new CountDownLatch( POSTERS + READERS );
+        List<Thread> listThreads = new ArrayList<Thread>(  );
+        List<Reader> listReaders = new ArrayList<Reader>(  );
+
+        for ( int i = 0; i < READERS; i++ )
+        {
+            final ChatUser user = new ChatUser( READER_PREFIX + i, PRIVATE_ENTRIES_PER_READER );
+            assertEquals( ChatRoom.USER_ADDED, room.addUser( user ) );
+
+            Reader reader = new Reader( start, posted )
+                {
+                    @Override
+                    protected List<ChatEntry> read( ChatUser user, long lId )
+                    {
+                        return room.getChatEntriesAfter( user, lId );
+                    }
+                };
+
+            reader.setUser( user );
+            listReaders.add( reader );
+            listThreads.add( reader );
+
+            // Private entries are interleaved with the entries sent to all the users
+            final String strNickname = PRIVATE_PREFIX + i;
+            listThreads.add( new Thread(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        await( start );
+
+                        for ( int j = 0; j < PRIVATE_ENTRIES_PER_READER; j++ )
+                        {
+                            room.addChatEntry( new ChatEntry( strNickname, strNickname + SEPARATOR + j ), user );
+                        }
+
+                        posted.countDown(  );
+                    }
+                } );
+        }
+
+        for ( int i = 0; i < POSTERS; i++ )
+        {
+            final String strNickname = POSTER_PREFIX + i;
+            listThreads.add( new Thread(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        await( start );
+
+                        for ( int j = 0; j < ENTRIES_PER_POSTER; j++ )
+                        {
+                            room.addChatEntry( new ChatEntry( strNickname, strNickname + SEPARATOR + j ), null );
+                        }
+
+                        posted.countDown(  );
+                    }
+                } );
+        }
+
+        // Guests join with the same nickname while the sweeper removes them
+        listThreads.add( new Thread(  )
+            {
+                @Override
+                public void run(  )
+                {
+                    await( start );
+
+                    while ( posted.getCount(  ) > 0 )
+                    {
+                        room.addUserWithFreeNickname( new ChatUser( GUEST_PREFIX ) );
+                    }
+                }
+            } );
+
+        Thread sweeper = new Thread(  )
+            {
+                @Override
+                public void run(  )
+                {
+                    await( start );
+
+                    while ( posted.getCount(  ) > 0 )
+                    {
+                        sweepGuests( room );
+                    }
+                }
+            };
+
+        listThreads.add( sweeper );
+
+        for ( Thread thread : listThreads )
+        {
+            thread.start(  );
+        }
+
+        start.countDown(  );
+
+        for ( Thread thread : listThreads )
+        {
+            thread.join(  );
+        }
+
+        sweepGuests( room );
+        assertEquals( READERS, room.getUserCount(  ) );
+
+        for ( int i = 0; i < READERS; i++ )
+        {
+            List<ChatEntry> listEntries = listReaders.get( i ).getEntries(  );
+            assertEquals( "Entries lost or duplicated", nTotal + PRIVATE_ENTRIES_PER_READER, listEntries.size(  ) );
+
+            Map<String, Integer> mapLastSequences = new HashMap<String, Integer>(  );
+            long lLastId = 0;
+
+            for ( ChatEntry entry : listEntries )
+            {
+                assertTrue( "Ids not increasing", entry.getId(  ) > lLastId );
+                lLastId = entry.getId(  );
+
+                // The entries of each poster are read in the order they were posted
+                String strMessage = entry.getChatMessage(  );
+                int nSequence = Integer.parseInt( strMessage.substring( strMessage.indexOf( SEPARATOR ) + 1 ) );
+                Integer nLastSequence = mapLastSequences.put( entry.getNickname(  ), nSequence );
+                assertEquals( ( nLastSequence == null ) ? 0 : ( nLastSequence + 1 ), nSequence );
+            }
+
+            // Each reader receives its own private entries only
+            assertEquals( POSTERS + 1, mapLastSequences.size(  ) );
+            assertEquals( Integer.valueOf( PRIVATE_ENTRIES_PER_READER - 1 ),
+                mapLastSequences.get( PRIVATE_PREFIX + i ) );
+        }
+    }
+
+    /**
+     * Reads a small log while it wraps : entries may be overwritten before they are read, but the entries read are
+     * never read twice nor out of order
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test( timeout = 60000 )
+    public void testLogWrapsWhileReading(  ) throws InterruptedException
+    {
+        final ChatEntryLog log = new ChatEntryLog( LOG_CAPACITY );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch posted = new CountDownLatch( 1 );
+        List<Reader> listReaders = new ArrayList<Reader>(  );
+
+        for ( int i = 0; i < READERS; i++ )
+        {
+            Reader reader = new Reader( start, posted )
+                {
+                    @Override
+                    protected List<ChatEntry> read( ChatUser user, long lId )
+                    {
+                        return log.getEntriesAfter( lId );
+                    }
+                };
+
+            listReaders.add( reader );
+            reader.start(  );
+        }
+
+        Thread writer = new Thread(  )
+            {
+                @Override
+                public void run(  )
+                {
+                    await( start );
+
+                    for ( int i = 1; i <= LOG_ENTRIES; i++ )
+                    {
+                        ChatEntry entry = new ChatEntry( "writer", String.valueOf( i ) );
+                        entry.setId( i );
+                        log.append( entry );
+                    }
+
+                    posted.countDown(  );
+                }
+            };
+
+        writer.start(  );
+        start.countDown(  );
+        writer.join(  );
+
+        for ( Reader reader : listReaders )
+        {
+            reader.join(  );
+
+            List<ChatEntry> listEntries = reader.getEntries(  );
+            long lLastId = 0;
+
+            for ( ChatEntry entry : listEntries )
+            {
+                assertTrue( "Ids not increasing", entry.getId(  ) > lLastId );
+                lLastId = entry.getId(  );
+            }
+
+            assertEquals( LOG_ENTRIES, lLastId );
+        }
+    }
+
+    /**
+     * Removes the guests from a room
+     *
+     * @param room The room
+     */
+    private static void sweepGuests( ChatRoom room )
+    {
+        Enumeration<ChatUser> users = room.getUsers(  );
+
+        while ( users.hasMoreElements(  ) )
+        {
+            String strNickname = users.nextElement(  ).getNickname(  );
+
+            if ( strNickname.startsWith( GUEST_PREFIX ) )
+            {
+                room.removeUser( strNickname );
+            }
+        }
+    }
+
+    /**
+     * Waits for a latch
+     *
+     * @param latch The latch
+     */
+    private static void await( CountDownLatch latch )
+    {
+        try
+        {
+            latch.await(  );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+    }
+
+    /**
+     * Polls entries until the writers are done, then reads the remaining entries once
+     */
+    private abstract static class Reader extends Thread
+    {
+        private final CountDownLatch _start;
+        private final CountDownLatch _posted;
+        private final List<ChatEntry> _listEntries = new ArrayList<ChatEntry>(  );
+        private ChatUser _user;
+
+        /**
+         * Creates a new Reader object
+         *
+         * @param start The latch released when the test starts
+         * @param posted The latch released when all the entries are posted
+         */
+        Reader( CountDownLatch start, CountDownLatch posted )
+        {
+            _start = start;
+            _posted = posted;
+        }
+
+        /**
+         * Sets the user reading the entries
+         *
+         * @param user The user
+         */
+        void setUser( ChatUser user )
+        {
+            _user = user;
+        }
+
+        /**
+         * Returns the entries read, once the reader is done
+         *
+         * @return The entries
+         */
+        List<ChatEntry> getEntries(  )
+        {
+            return _listEntries;
+        }
+
+        /**
+         * Reads the entries after an id
+         *
+         * @param user The user
+         * @param lId The id of the last entry read
+         * @return The entries
+         */
+        protected abstract List<ChatEntry> read( ChatUser user, long lId );
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run(  )
+        {
+            await( _start );
+
+            long lLastId = 0;
+            boolean bDone = false;
+
+            while ( !bDone )
+            {
+                // Read once more after the last post
+                bDone = _posted.getCount(  ) == 0;
+
+                for ( ChatEntry entry : read( _user, lLastId ) )
+                {
+                    _listEntries.add( entry );
+                    lLastId = entry.getId(  );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.chat.web;
+
+import fr.paris.lutece.plugins.chat.business.ChatRoom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Tests of the forwarder against an owner answering on a local socket
+ */
+public class ChatForwarderTest
+{
+    private static final String ENCODING = "ISO-8859-1";
+    private static final String HEADER = "HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n\r\n";
+    private static final String PART_1 = "data: one\n\n";
+    private static final String PART_2 = "data: two\n\n";
+    private static final String REQUEST = "GET /lutece/servlet/plugins/chat/ChatEvents HTTP/1.0\r\n\r\n";
+    private static final int TIMEOUT_SECONDS = 10;
+    private ServerSocket _server;
+
+    /**
+     * Starts the owner : each connection receives the header and the two parts of an event stream
+     *
+     * @throws IOException If the server socket can't be opened
+     */
+    @Before
+    public void setUp(  ) throws IOException
+    {
+        _server = new ServerSocket( 0 );
+
+        Thread thread = new Thread(  )
+            {
+                @Override
+                public void run(  )
+                {
+                    try
+                    {
+                        while ( true )
+                        {
+                            answer( _server.accept(  ) );
+                        }
+                    }
+                    catch ( IOException e )
+                    {
+                        // The server is closed
+                    }
+                }
+            };
+
+        thread.setDaemon( true );
+        thread.start(  );
+    }
+
+    /**
+     * Stops the owner and the forwarder
+     *
+     * @throws IOException If the server socket can't be closed
+     */
+    @After
+    public void tearDown(  ) throws IOException
+    {
+        _server.close(  );
+        ChatForwarder.shutdown(  );
+    }
+
+    /**
+     * The response of the owner is copied to the client
+     *
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testForward(  ) throws Exception
+    {
+        Client client = forward( false );
+
+        assertTrue( client._complete.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+        assertEquals( HttpServletResponse.SC_OK, client._nStatus );
+        assertEquals( "text/event-stream", client._strContentType );
+        assertEquals( PART_1 + PART_2, client._body.toString( ENCODING ) );
+    }
+
+    /**
+     * An exchange closed by a container thread while the forwarder processes it is completed, and the forwarder
+     * keeps forwarding the other requests
+     *
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testExchangeClosedWhileProcessed(  ) throws Exception
+    {
+        Client clientClosed = forward( true );
+        assertTrue( clientClosed._complete.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+
+        Client client = forward( false );
+        assertTrue( client._complete.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+        assertEquals( PART_1 + PART_2, client._body.toString( ENCODING ) );
+    }
+
+    /**
+     * Forwards a request to the owner
+     *
+     * @param bClose true if the exchange is closed and its tasks refused when the response arrives
+     * @return The client receiving the response
+     * @throws IOException If the forwarder can't be started
+     */
+    private Client forward( boolean bClose ) throws IOException
+    {
+        Client client = new Client( bClose );
+        AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance( getClass(  ).getClassLoader(  ),
+                new Class<?>[] { AsyncContext.class, HttpServletResponse.class }, client );
+        ChatForwarder.Exchange exchange = ChatForwarder.getForwarder(  ).new Exchange( asyncContext,
+                new ChatRoom( "room", "" ), "http://127.0.0.1:" + _server.getLocalPort(  ) + "/lutece",
+                REQUEST.getBytes( ENCODING ) );
+        client._exchange = exchange;
+        exchange.connect( new InetSocketAddress( "127.0.0.1", _server.getLocalPort(  ) ) );
+
+        return client;
+    }
+
+    /**
+     * Answers a request as the owner
+     *
+     * @param socket The connection
+     * @throws IOException If the connection fails
+     */
+    private static void answer( Socket socket ) throws IOException
+    {
+        try
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(  ), ENCODING ) );
+            String strLine;
+
+            do
+            {
+                strLine = in.readLine(  );
+            }
+            while ( ( strLine != null ) && ( strLine.length(  ) != 0 ) );
+
+            OutputStream out = socket.getOutputStream(  );
+            out.write( ( HEADER + PART_1 ).getBytes( ENCODING ) );
+            out.flush(  );
+            Thread.sleep( 100 );
+            out.write( PART_2.getBytes( ENCODING ) );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+        finally
+        {
+            socket.close(  );
+        }
+    }
+
+    /**
+     * The context and the response of a forwarded request. The tasks run on new threads, as on container threads.
+     */
+    private static class Client implements InvocationHandler
+    {
+        private final boolean _bClose;
+        private final CountDownLatch _complete = new CountDownLatch( 1 );
+        private final ByteArrayOutputStream _body = new ByteArrayOutputStream(  );
+        private volatile ChatForwarder.Exchange _exchange;
+        private volatile int _nStatus;
+        private volatile String _strContentType;
+        private final ServletOutputStream _out = new ServletOutputStream(  )
+            {
+                @Override
+                public void write( int b )
+                {
+                    synchronized ( _body )
+                    {
+                        _body.write( b );
+                    }
+                }
+            };
+
+        /**
+         * Creates a new Client object
+         *
+         * @param bClose true if the exchange is closed and its tasks refused when the response arrives
+         */
+        Client( boolean bClose )
+        {
+            _bClose = bClose;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            String strName = method.getName(  );
+
+            if ( "start".equals( strName ) )
+            {
+                if ( _bClose )
+                {
+                    // A timeout on a container thread closes the connection while the forwarder reads it
+                    _exchange.close(  );
+                    throw new RejectedExecutionException(  );
+                }
+
+                new Thread( (Runnable) args[0] ).start(  );
+            }
+            else if ( "complete".equals( strName ) )
+            {
+                _complete.countDown(  );
+            }
+            else if ( "getResponse".equals( strName ) )
+            {
+                return proxy;
+            }
+            else if ( "getOutputStream".equals( strName ) )
+            {
+                return _out;
+            }
+            else if ( "setStatus".equals( strName ) )
+            {
+                _nStatus = (Integer) args[0];
+            }
+            else if ( "setContentType".equals( strName ) )
+            {
+                _strContentType = (String) args[0];
+            }
+            else if ( "isCommitted".equals( strName ) )
+            {
+                return Boolean.FALSE;
+            }
+
+            return null;
+        }
+    }
+}